@@ -109,12 +109,58 @@ public interface BlockChain extends Observable
    void addBlock(Block block)
       throws VerificationException;
 
+   /**
+    * Verify a transaction not yet in a block against the outputs unspent
+    * in the best chain, running the scripts of all its inputs. The
+    * transaction is not stored anywhere.
+    * @return The fees of the transaction.
+    */
+   long verifyTransaction(Transaction tx)
+      throws VerificationException;
+
    /**
     * Build a block locator to be used by a getBlocks message
     * @return A list of hashes
     */
    List<byte[]> buildBlockLocator();
 
+   /**
+    * Add a block header to the chain, without the transactions of the block.
+    * The header is validated with all the rules which don't need the
+    * transactions, then it is kept until the whole block is added.
+    * @return True if the header is new, false if it was already known.
+    */
+   boolean addBlockHeader(Block header)
+      throws VerificationException;
+
+   /**
+    * Returns the height of the best known header, which may be ahead of
+    * the best chain while blocks are downloaded.
+    */
+   int getHeaderHeight();
+
+   /**
+    * Build a block locator from the best known header, to be used by
+    * a getHeaders message
+    * @return A list of hashes
+    */
+   List<byte[]> buildHeaderLocator();
+
+   /**
+    * Get the blocks of the best known header chain which are not yet in the chain.
+    * @param max The maximum number of hashes to return.
+    * @return The hashes of the missing blocks, in chain order.
+    */
+   List<byte[]> getMissingBlocks(int max);
+
+   /**
+    * Mark a block known only by its header as invalid, because the whole
+    * block failed validation. The blocks built on it become invalid too, they
+    * are not missing anymore and are refused when added again.
+    * @param hash The hash of the invalid block.
+    */
+   void invalidateBlock(byte[] hash);
+
    /**
     * Returns the height of the best chain
     * @return 
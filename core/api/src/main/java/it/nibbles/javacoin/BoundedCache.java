@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache holding at most a given number of entries, the oldest ones are
+ * removed first. Lookups are counted, to tell how well the cache works. It
+ * can be used by any number of threads at once, the size may go over the
+ * maximum for a moment while entries are added concurrently.
+ *
+ * @param <K> The type of the keys, which must implement equals and hashCode.
+ * @param <V> The type of the values.
+ * @author Alessandro Polverini
+ */
+public class BoundedCache<K, V>
+{
+
+   private final int maxSize;
+   private final ConcurrentHashMap<K, V> entries = new ConcurrentHashMap<>();
+   // Keys in the order they were added, to remove the oldest first
+   private final Queue<K> order = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger size = new AtomicInteger();
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   /**
+    * @param maxSize The maximum number of entries to keep.
+    */
+   public BoundedCache(int maxSize)
+   {
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * @return The value of the key, or null if it is not in the cache.
+    */
+   public V get(K key)
+   {
+      V value = entries.get(key);
+      if (value != null)
+         hits.incrementAndGet();
+      else
+         misses.incrementAndGet();
+      return value;
+   }
+
+   /**
+    * Add an entry if the key is not in the cache yet, removing the oldest
+    * entries if the cache gets too big.
+    *
+    * @return The value already in the cache, or null if the entry was added.
+    */
+   public V putIfAbsent(K key, V value)
+   {
+      V existing = entries.putIfAbsent(key, value);
+      if (existing != null)
+         return existing;
+      order.add(key);
+      added(key, value);
+      if (size.incrementAndGet() <= maxSize)
+         return null;
+      // Make room removing the oldest entries
+      K oldest;
+      while ((size.get() > maxSize) && ((oldest = order.poll()) != null))
+      {
+         V removedValue = entries.remove(oldest);
+         if (removedValue != null)
+         {
+            size.decrementAndGet();
+            removed(oldest, removedValue);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Called when an entry is added, does nothing by default.
+    */
+   protected void added(K key, V value)
+   {
+   }
+
+   /**
+    * Called when an entry is removed to make room, does nothing by default.
+    */
+   protected void removed(K key, V value)
+   {
+   }
+
+   public void clear()
+   {
+      entries.clear();
+      order.clear();
+      size.set(0);
+   }
+
+   public int size()
+   {
+      return size.get();
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * @return The number of lookups which found the key.
+    */
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   /**
+    * @return The number of lookups which did not find the key.
+    */
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   /**
+    * @return The fraction of lookups which found the key, or zero if there
+    * were none.
+    */
+   public double getHitRate()
+   {
+      long hitCount = hits.get();
+      long total = hitCount + misses.get();
+      return total == 0 ? 0 : (double) hitCount / total;
+   }
+}
@@ -24,7 +24,12 @@ import it.nibbles.javacoin.BlockChain;
 import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionOutput;
 import it.nibbles.javacoin.VerificationException;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -35,7 +40,13 @@ import java.util.Observable;
 import java.util.ResourceBundle;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
-import org.apache.commons.collections.map.LRUMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,8 +65,9 @@ public class BlockChainImpl extends Observable implements BlockChain
    public static final long COINBASE_MATURITY = 100;
    public static final long INITIAL_COINBASE_VALUE = 5000000000l;
    public static final long COINBASE_VALUE_HALFTIME = 210000l;
+   public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
 
-   private LRUMap blockHeadersCache = new LRUMap(100);
+   private BlockTree blockTree = null;
 
    private static final Map<BigInteger,Map<Integer,BigInteger>> knownHashes =
       new HashMap<>();
@@ -70,6 +82,13 @@ public class BlockChainImpl extends Observable implements BlockChain
    //private boolean isTestnet = false;
    //private ParallelTransactionsVerifier parallelVerifier;
    private BlockTransactionsVerifier transactionsVerifier;
+   private UnspentOutputSet unspentOutputs = null;
+   private BlockUndoJournal undoJournal = null;
+   private byte[] assumeValidHash = null;
+   private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+   private Executor snapshotExecutor = createSnapshotExecutor();
+   // Set while a snapshot is being stored, snapshots are never stored concurrently
+   private final AtomicBoolean snapshotStoring = new AtomicBoolean(false);
 
    public BlockChainImpl(BitcoinFactory bitcoinFactory, BlockChainLinkStorage linkStorage,
       boolean simplifiedVerification)
@@ -108,10 +127,264 @@ public class BlockChainImpl extends Observable implements BlockChain
          if ( ! storedGenesisLink.getBlock().equals(bitcoinFactory.getGenesisBlock()) )
             throw new VerificationException("genesis block in storage is not the same as the block chain's");
       }
+      blockTree = new BlockTree(linkStorage);
+      blockTree.load();
       if (maxThreads == 1)
          transactionsVerifier = new SerialTransactionsVerifier(linkStorage, bitcoinFactory.getScriptFactory(), simplifiedVerification);
       else
          transactionsVerifier = new ParallelTransactionsVerifier(linkStorage, bitcoinFactory.getScriptFactory(), simplifiedVerification, maxThreads);
+      // Full nodes keep the unspent outputs of the best chain in memory
+      if (!simplifiedVerification)
+      {
+         unspentOutputs = new UnspentOutputSet();
+         undoJournal = new BlockUndoJournal(linkStorage, bitcoinFactory.getScriptFactory());
+         loadUnspentOutputs(linkStorage.getLastLink());
+         transactionsVerifier.setUnspentOutputs(unspentOutputs);
+      }
+   }
+
+   /**
+    * Rebuild the unspent output set up to the given block. The set is
+    * restored from the stored snapshot and moved to the branch of the block,
+    * so only the blocks after the snapshot or after the fork have to be
+    * loaded. Without a usable snapshot all the blocks are connected starting
+    * from the genesis block. The undo journal is filled along the way. If
+    * the stored branch can not be connected the set is left empty, and
+    * verification falls back to the storage lookups.
+    * @param tipLink The last block to connect, usually the top of the best chain.
+    */
+   private void loadUnspentOutputs(BlockChainLink tipLink)
+   {
+      unspentOutputs.clear();
+      undoJournal.clear();
+      if (tipLink == null)
+         return;
+      long startTime = System.currentTimeMillis();
+      BlockTreeNode tipNode = blockTree.getNode(tipLink.getBlock().getHash());
+      BlockTreeNode snapshotNode = loadUnspentOutputSnapshot(tipNode);
+      LinkedList<byte[]> hashes = new LinkedList<>();
+      for (BlockTreeNode node = tipNode; (node != null) && (node != snapshotNode); node = node.getParent())
+         hashes.addFirst(node.getHash());
+      try
+      {
+         for (byte[] hash : hashes)
+         {
+            BlockChainLink link = linkStorage.getLink(hash);
+            undoJournal.addIfMissing(hash, unspentOutputs.connectBlock(link.getBlock(), link.getHeight()));
+         }
+         logger.info("unspent output set loaded with {} outputs up to height {}, {} blocks connected in {} ms",
+            new Object[] {unspentOutputs.size(), unspentOutputs.getTipHeight(), hashes.size(), System.currentTimeMillis() - startTime});
+      } catch (VerificationException e)
+      {
+         logger.warn("could not build the unspent output set from the stored chain, using storage lookups", e);
+         unspentOutputs.clear();
+         undoJournal.clear();
+      }
+   }
+
+   /**
+    * Fill the unspent output set with the snapshot in the storage, if there
+    * is one. If its tip is not on the branch of the given node, the blocks
+    * after the fork are disconnected with their stored undo data.
+    * @return The node the set was brought to, or null if the set is still empty.
+    */
+   private BlockTreeNode loadUnspentOutputSnapshot(BlockTreeNode tipNode)
+   {
+      try (InputStream snapshot = linkStorage.getUnspentOutputSnapshot())
+      {
+         if (snapshot == null)
+            return null;
+         unspentOutputs.loadSnapshot(snapshot, bitcoinFactory.getScriptFactory());
+      } catch (IOException | RuntimeException e)
+      {
+         logger.warn("could not read the unspent output snapshot, connecting all the blocks", e);
+         return null;
+      }
+      BlockTreeNode snapshotNode = blockTree.getNode(unspentOutputs.getTipHash());
+      BlockTreeNode forkNode = blockTree.getCommonAncestor(snapshotNode, tipNode);
+      if (forkNode == null)
+      {
+         logger.info("unspent output snapshot at height {} is not in the chain, connecting all the blocks", unspentOutputs.getTipHeight());
+         unspentOutputs.clear();
+         return null;
+      }
+      for (BlockTreeNode node = snapshotNode; node != forkNode; node = node.getParent())
+      {
+         List<UnspentOutput> spentOutputs = undoJournal.get(node.getHash());
+         if (spentOutputs == null)
+         {
+            logger.info("no undo data for block {} after the unspent output snapshot, connecting all the blocks", BtcUtil.hexOut(node.getHash()));
+            unspentOutputs.clear();
+            return null;
+         }
+         unspentOutputs.disconnectBlock(linkStorage.getLink(node.getHash()).getBlock(), spentOutputs);
+      }
+      return forkNode;
+   }
+
+   /**
+    * Store a snapshot of the unspent output set, so the next startup does not
+    * have to connect all the blocks again. Only the outputs are collected
+    * here, they are written to the storage by the snapshot executor while
+    * blocks keep being added. If the previous snapshot is still being
+    * written this one is skipped.
+    */
+   private void storeUnspentOutputSnapshot()
+   {
+      if (!snapshotStoring.compareAndSet(false, true))
+      {
+         logger.info("previous unspent output snapshot still being stored, skipping the one at height {}", unspentOutputs.getTipHeight());
+         return;
+      }
+      final BlockChainLinkStorage.SnapshotWriter writer = unspentOutputs.createSnapshot();
+      final int height = unspentOutputs.getTipHeight();
+      final int size = unspentOutputs.size();
+      try
+      {
+         snapshotExecutor.execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               long startTime = System.currentTimeMillis();
+               try
+               {
+                  linkStorage.storeUnspentOutputSnapshot(writer);
+                  logger.info("stored snapshot of {} unspent outputs at height {} in {} ms",
+                     new Object[] {size, height, System.currentTimeMillis() - startTime});
+               } catch (IOException | RuntimeException e)
+               {
+                  logger.warn("could not store the unspent output snapshot at height " + height + ", the previous one is kept", e);
+               } finally
+               {
+                  snapshotStoring.set(false);
+               }
+            }
+         });
+      } catch (RejectedExecutionException e)
+      {
+         snapshotStoring.set(false);
+         logger.warn("could not start storing the unspent output snapshot", e);
+      }
+   }
+
+   /**
+    * @return An executor running the snapshots on a single daemon thread,
+    * which stops when there is nothing to do.
+    */
+   private static Executor createSnapshotExecutor()
+   {
+      return new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "Unspent Output Snapshot");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Move the unspent output set from the current best chain to another
+    * branch: blocks of the best chain are disconnected back to the fork point
+    * using the undo journal, then the blocks of the new branch are connected.
+    * The work done depends only on the length of the two branches. If the
+    * undo data of a block to disconnect is missing the set is rebuilt instead.
+    * @param newTipLink The last block of the new branch.
+    * @return What was done, to revert it or to notify it.
+    * @throws VerificationException If the new branch can not be connected, in
+    * which case the set is back on the previous best chain.
+    */
+   private Reorganization reorganize(BlockChainLink newTipLink)
+      throws VerificationException
+   {
+      Reorganization reorganization = new Reorganization();
+      BlockTreeNode oldNode = blockTree.getNode(unspentOutputs.getTipHash());
+      BlockTreeNode newNode = blockTree.getNode(newTipLink.getBlock().getHash());
+      reorganization.oldTip = oldNode == null ? null : oldNode.getLink();
+      BlockTreeNode forkNode = blockTree.getCommonAncestor(oldNode, newNode);
+      // Collect the blocks of both branches down to the fork point
+      List<BlockChainLink> oldBranch = new ArrayList<>();
+      List<List<UnspentOutput>> oldBranchUndo = new ArrayList<>();
+      LinkedList<BlockChainLink> newBranch = new LinkedList<>();
+      boolean journaled = forkNode != null;
+      for (BlockTreeNode node = oldNode; journaled && (node != forkNode); node = node.getParent())
+      {
+         List<UnspentOutput> spentOutputs = undoJournal.get(node.getHash());
+         journaled = spentOutputs != null;
+         oldBranch.add(node.getLink());
+         oldBranchUndo.add(spentOutputs);
+      }
+      for (BlockTreeNode node = newNode; journaled && (node != forkNode); node = node.getParent())
+         newBranch.addFirst(node.getLink());
+      if (!journaled)
+      {
+         logger.info("reorganization to {} misses undo data, rebuilding unspent outputs", newTipLink.getBlock());
+         reorganization.rebuilt = true;
+         loadUnspentOutputs(newTipLink);
+         return reorganization;
+      }
+      logger.info("reorganization at height {}: disconnecting {} blocks, connecting {} blocks",
+         new Object[] {forkNode.getHeight(), oldBranch.size(), newBranch.size()});
+      try
+      {
+         for (int i = 0; i < oldBranch.size(); i++)
+         {
+            BlockChainLink fullLink = linkStorage.getLink(oldBranch.get(i).getBlock().getHash());
+            unspentOutputs.disconnectBlock(fullLink.getBlock(), oldBranchUndo.get(i));
+            undoJournal.remove(fullLink.getBlock().getHash());
+            reorganization.disconnected.add(fullLink);
+         }
+         for (BlockChainLink headerLink : newBranch)
+         {
+            BlockChainLink fullLink = linkStorage.getLink(headerLink.getBlock().getHash());
+            undoJournal.addIfMissing(fullLink.getBlock().getHash(), unspentOutputs.connectBlock(fullLink.getBlock(), fullLink.getHeight()));
+            reorganization.connected.add(fullLink);
+         }
+      } catch (VerificationException e)
+      {
+         revertReorganization(reorganization);
+         throw new VerificationException("branch of block " + newTipLink.getBlock() + " can not become the best chain", e);
+      } catch (RuntimeException e)
+      {
+         // Storage errors do not make the branch invalid
+         revertReorganization(reorganization);
+         throw e;
+      }
+      return reorganization;
+   }
+
+   /**
+    * Bring the unspent output set back to the best chain it was on before
+    * a reorganization.
+    */
+   private void revertReorganization(Reorganization reorganization)
+   {
+      if (reorganization.rebuilt)
+      {
+         loadUnspentOutputs(reorganization.oldTip);
+         return;
+      }
+      try
+      {
+         for (int i = reorganization.connected.size() - 1; i >= 0; i--)
+         {
+            Block block = reorganization.connected.get(i).getBlock();
+            unspentOutputs.disconnectBlock(block, undoJournal.get(block.getHash()));
+            undoJournal.remove(block.getHash());
+         }
+         for (int i = reorganization.disconnected.size() - 1; i >= 0; i--)
+         {
+            BlockChainLink link = reorganization.disconnected.get(i);
+            undoJournal.addIfMissing(link.getBlock().getHash(), unspentOutputs.connectBlock(link.getBlock(), link.getHeight()));
+         }
+      } catch (VerificationException | RuntimeException e)
+      {
+         logger.error("could not revert reorganization, rebuilding unspent outputs", e);
+         loadUnspentOutputs(reorganization.oldTip);
+      }
    }
 
    public void setListener(BlockChainListener listener)
@@ -123,6 +396,86 @@ public class BlockChainImpl extends Observable implements BlockChain
       return listener;
    }
 
+   /**
+    * Set a block trusted to be valid together with all of its ancestors. The
+    * scripts of the ancestors are not executed when they are added, all the
+    * other checks are still done. The block must be in the header tree (for
+    * example downloading the headers first) before its ancestors are added
+    * for this to have an effect.
+    * @param assumeValidHash The hash of the trusted block, or null to verify
+    * the scripts of all blocks.
+    */
+   public void setAssumeValidHash(byte[] assumeValidHash)
+   {
+      this.assumeValidHash = assumeValidHash;
+      if (assumeValidHash != null)
+         logger.info("assuming valid the scripts of block {} and its ancestors", BtcUtil.hexOut(assumeValidHash));
+   }
+
+   public byte[] getAssumeValidHash()
+   {
+      return assumeValidHash;
+   }
+
+   /**
+    * Set how often a snapshot of the unspent output set is stored: every
+    * time a block at a height multiple of the interval is connected to the
+    * best chain. At startup only the blocks after the snapshot are connected.
+    * @param snapshotInterval The interval in blocks, zero to never store it.
+    */
+   public void setSnapshotInterval(int snapshotInterval)
+   {
+      this.snapshotInterval = snapshotInterval;
+   }
+
+   public int getSnapshotInterval()
+   {
+      return snapshotInterval;
+   }
+
+   /**
+    * Set the executor writing the snapshots of the unspent output set to the
+    * storage. By default they are written by a background thread.
+    */
+   public void setSnapshotExecutor(Executor snapshotExecutor)
+   {
+      this.snapshotExecutor = snapshotExecutor;
+   }
+
+   /**
+    * Get the highest of the known hashes of this chain, which is a suitable
+    * block to assume valid.
+    * @return The hash, or null if there are no known hashes for this chain.
+    */
+   public byte[] getHighestKnownHash()
+   {
+      Map<Integer,BigInteger> hashes = knownHashes.get(new BigInteger(1, bitcoinFactory.getGenesisBlock().getHash()));
+      if ((hashes == null) || (hashes.isEmpty()))
+         return null;
+      BigInteger hash = hashes.get(Collections.max(hashes.keySet()));
+      // Back to the 32 bytes of a block hash
+      byte[] bytes = hash.toByteArray();
+      byte[] result = new byte[32];
+      int length = Math.min(bytes.length, result.length);
+      System.arraycopy(bytes, bytes.length - length, result, result.length - length, length);
+      return result;
+   }
+
+   /**
+    * Determine whether the block of a link is the block assumed valid or
+    * one of its ancestors in the header tree.
+    */
+   private boolean isAssumedValid(BlockChainLink link)
+   {
+      if (assumeValidHash == null)
+         return false;
+      BlockTreeNode trustedNode = blockTree.getNode(assumeValidHash);
+      if ((trustedNode == null) || (trustedNode.getHeight() < link.getHeight()))
+         return false;
+      BlockTreeNode ancestor = trustedNode.getAncestor(link.getHeight());
+      return (ancestor != null) && (Arrays.equals(ancestor.getHash(), link.getBlock().getHash()));
+   }
+
    @Override
    public Block getBlock(byte[] hash)
    {
@@ -134,20 +487,16 @@ public class BlockChainImpl extends Observable implements BlockChain
 
    /**
     * Returns a block header. Sometimes it can have transactions but there is no guarantee
-    * It uses a little LRU cache to speedup things for getMedianTimestamp()
+    * It is served from the in-memory block tree.
     * @param hash
-    * @return The
+    * @return The header, or null if the block is unknown.
     */
    public Block getBlockHeader(byte[] hash)
    {
-      Block block = (Block) blockHeadersCache.get(new HashWrapper(hash));
-      if (block != null)
-         return block;
-      BlockChainLink link = linkStorage.getLinkBlockHeader(hash);
-      if (link == null)
+      BlockTreeNode node = blockTree.getNode(hash);
+      if (node == null)
          return null;
-      blockHeadersCache.put(new HashWrapper(hash), link.getBlock());
-      return link.getBlock();
+      return node.getBlock();
    }
 
    /**
@@ -182,6 +531,8 @@ public class BlockChainImpl extends Observable implements BlockChain
    public void addBlock(Block block)
       throws VerificationException
    {
+      // Internal validation, orphans are not validated again when connected
+      block.validate();
       addBlock(block,true);
    }
 
@@ -194,10 +545,11 @@ public class BlockChainImpl extends Observable implements BlockChain
    @Override
    public Block getCommonBlock(Block first, Block second)
    {
-      BlockChainLink link = linkStorage.getCommonLink(first.getHash(),second.getHash());
-      if ( link == null )
+      BlockTreeNode node = blockTree.getCommonAncestor(blockTree.getNode(first.getHash()),
+         blockTree.getNode(second.getHash()));
+      if ( node == null )
          return null;
-      return link.getBlock();
+      return getBlock(node.getHash());
    }
 
    /**
@@ -213,13 +565,13 @@ public class BlockChainImpl extends Observable implements BlockChain
    @Override
    public boolean isReachable(Block target, Block source)
    {
-      return linkStorage.isReachable(target.getHash(),source.getHash());
+      return blockTree.isReachable(blockTree.getNode(target.getHash()),blockTree.getNode(source.getHash()));
    }
 
    /**
     * Add a block to the chain. If the block is not connectable it will be added to the orphan pool.
-    * No orphan is ever passed to the store.
-    * @param rawBlock The block to add.
+    * No orphan is ever passed to the store. The block must be already validated.
+    * @param block The block to add.
     * @param checkOrphans Whether we should check if some orphans are now connectable.
     */
    private int addBlock(Block block, boolean checkOrphans)
@@ -227,18 +579,19 @@ public class BlockChainImpl extends Observable implements BlockChain
    {
       logger.debug("Trying to add block: {}", block);
 
-      // Internal validation
-      block.validate();
-
       logger.debug("Checking whether block is already in the chain...");
-      if (linkStorage.blockExists(block.getHash()))
+      BlockTreeNode node = blockTree.getLoadedNode(block.getHash());
+      if (((node != null) && (node.isStored())) || (linkStorage.blockExists(block.getHash())))
          return 0;
+      if ((node != null) && (node.isInvalid()))
+         throw new VerificationException("block " + BtcUtil.hexOut(block.getHash()) + " was marked invalid");
 
       // Check 11: Check whether block is orphan block, in which case notify
-      // listener to try to get that block and stop
+      // listener to try to get that block and stop. A parent known only by
+      // its header is not yet connectable either.
       logger.debug("Checking whether block is orphan...");
-      BlockChainLink previousLink = linkStorage.getLinkBlockHeader(block.getPreviousBlockHash());
-      if (previousLink == null)
+      BlockTreeNode previousNode = blockTree.getNode(block.getPreviousBlockHash());
+      if ((previousNode == null) || (!previousNode.isStored()))
       {
          orphanBlocks.addBlock(block);
 
@@ -250,6 +603,89 @@ public class BlockChainImpl extends Observable implements BlockChain
          return 0;
       }
 
+      BlockChainLink previousLink = previousNode.getLink();
+      BlockChainLink link = verifyHeader(previousNode, block);
+
+      // If the branch of this block is going to overtake the best chain, move
+      // the unspent outputs to its parent first, so it is verified against them
+      Reorganization reorganization = null;
+      if ((!simplifiedVerification) && (unspentOutputs.getTipHash() != null) && (!unspentOutputs.isTip(previousLink))
+         && (link.getTotalDifficulty().compareTo(linkStorage.getLastLink().getTotalDifficulty()) > 0))
+         reorganization = reorganize(previousLink);
+
+      boolean connected = false;
+      List<UnspentOutput> spentOutputs = null;
+      try
+      {
+         verifyTransactions(previousLink, link);
+
+         // Connect the block to the unspent outputs if it extends the best chain,
+         // this also catches outputs spent twice inside the same block. The undo
+         // data is stored before the block, so a stored block always has it.
+         if ((!simplifiedVerification) && (unspentOutputs.isTip(previousLink)))
+         {
+            spentOutputs = unspentOutputs.connectBlock(block, link.getHeight());
+            connected = true;
+            undoJournal.add(block.getHash(), spentOutputs);
+         }
+
+         // Check 16.6: Relay block to our peers
+         // (Also: add or update the link in storage, and only relay if it's really new)
+         logger.debug("adding block to storage...");
+         linkStorage.addLink(link);
+      } catch (VerificationException | RuntimeException e)
+      {
+         if (connected)
+         {
+            undoJournal.remove(block.getHash());
+            unspentOutputs.disconnectBlock(block, spentOutputs);
+         }
+         if (reorganization != null)
+            revertReorganization(reorganization);
+         throw e;
+      }
+      blockTree.add(link);
+      if ((connected) && (snapshotInterval > 0) && (link.getHeight() % snapshotInterval == 0))
+         storeUnspentOutputSnapshot();
+      if (listener != null)
+      {
+         listener.notifyAddedBlock(block);
+         if (reorganization != null)
+         {
+            for (BlockChainLink disconnectedLink : reorganization.disconnected)
+               listener.notifyDisconnectedBlock(disconnectedLink.getBlock());
+            for (BlockChainLink connectedLink : reorganization.connected)
+               listener.notifyConnectedBlock(connectedLink.getBlock());
+         }
+         if (connected)
+            listener.notifyConnectedBlock(block);
+      }
+      if (reorganization != null)
+      {
+         setChanged();
+         notifyObservers(BlockChain.Event.LONGEST_PATH_CHANGE);
+      }
+
+      // Check 19: For each orphan block for which this block is its prev,
+      // run all these steps (including this one) recursively on that orphan
+      int blocksAdded = 1;
+      if (checkOrphans)
+      {
+         blocksAdded += connectOrphanBlocks(block);
+      }
+      return blocksAdded;
+   }
+   
+   /**
+    * Checks 12,13,14: Verify the header of a block in the context of its
+    * parent, that is the difficulty target, the median time and the known
+    * hashes.
+    * @return The link of the block.
+    */
+   private BlockChainLink verifyHeader(BlockTreeNode previousNode, Block block)
+      throws VerificationException
+   {
+      BlockChainLink previousLink = previousNode.getLink();
       // Check 12: Check that nBits value matches the difficulty rules
       logger.debug("checking whether block has the appropriate target...");
       DifficultyTarget blockTarget = new DifficultyTarget(block.getCompressedTarget());
@@ -264,7 +700,7 @@ public class BlockChainImpl extends Observable implements BlockChain
             + ", when calculated is: " + calculatedTarget);
 
       // Check 13: Reject if timestamp is before the median time of the last 11 blocks
-      long medianTimestamp = getMedianTimestamp(previousLink);
+      long medianTimestamp = getMedianTimestamp(previousNode);
       logger.debug("checking timestamp {} against median {}", block.getCreationTime(), medianTimestamp);
       if (block.getCreationTime() <= medianTimestamp)
          throw new VerificationException("block's creation time (" + block.getCreationTime()
@@ -280,6 +716,93 @@ public class BlockChainImpl extends Observable implements BlockChain
             throw new VerificationException("block should have a hash we already know, but it doesn't, might indicate a tampering or attack at depth: " + link.getHeight());
       } else
          logger.warn("known hashes don't exist for this chain, security checks for known blocks can not be made");
+      return link;
+   }
+
+   /**
+    * Add the header of a block, without its transactions. The header gets
+    * all the checks of a block that don't need the transactions (proof of
+    * work, difficulty target, median time, known hashes), and becomes part of
+    * the skeleton of the chain until the whole block is added.
+    */
+   @Override
+   public boolean addBlockHeader(Block header)
+      throws VerificationException
+   {
+      BlockTreeNode node = blockTree.getNode(header.getHash());
+      if ((node != null) && (node.isInvalid()))
+         throw new VerificationException("header " + BtcUtil.hexOut(header.getHash()) + " is of an invalid block");
+      if (node != null)
+         return false;
+      BlockImpl.validateHeader(header);
+      BlockTreeNode previousNode = blockTree.getNode(header.getPreviousBlockHash());
+      if (previousNode == null)
+         throw new VerificationException("header " + BtcUtil.hexOut(header.getHash()) + " does not connect to a known block");
+      if (previousNode.isInvalid())
+         throw new VerificationException("header " + BtcUtil.hexOut(header.getHash()) + " builds on an invalid block");
+      blockTree.addHeader(verifyHeader(previousNode, header));
+      return true;
+   }
+
+   @Override
+   public int getHeaderHeight()
+   {
+      return blockTree.getBestHeaderNode().getHeight();
+   }
+
+   /**
+    * Get the blocks of the best header chain which are not stored yet,
+    * going forward from the point where the best chain leaves it.
+    * @param max The maximum number of hashes to return.
+    * @return The hashes in chain order, empty if all blocks are stored.
+    */
+   @Override
+   public List<byte[]> getMissingBlocks(int max)
+   {
+      List<byte[]> hashes = new ArrayList<>();
+      BlockTreeNode headerNode = blockTree.getBestHeaderNode();
+      BlockTreeNode forkNode = blockTree.getCommonAncestor(headerNode, blockTree.getBestNode());
+      for (int height = forkNode == null ? 0 : forkNode.getHeight() + 1;
+         (height <= headerNode.getHeight()) && (hashes.size() < max); height++)
+      {
+         BlockTreeNode node = headerNode.getAncestor(height);
+         if ((node != null) && (!node.isStored()))
+            hashes.add(node.getHash());
+      }
+      return hashes;
+   }
+
+   @Override
+   public void invalidateBlock(byte[] hash)
+   {
+      BlockTreeNode node = blockTree.getLoadedNode(hash);
+      if ((node != null) && (!node.isStored()) && (!node.isInvalid()))
+         blockTree.invalidate(node);
+   }
+
+   /**
+    * Verify a transaction not yet in a block. With simplified verification
+    * there are no unspent outputs to run the scripts against, so only the
+    * checks without context are done and the fees are not known (0).
+    */
+   @Override
+   public long verifyTransaction(Transaction tx)
+      throws VerificationException
+   {
+      tx.validate();
+      if (simplifiedVerification)
+         return 0;
+      return transactionsVerifier.verifyUnconfirmedTransaction(tx);
+   }
+
+   /**
+    * Checks 15,16,17,18: Verify the transactions of a block and the value of
+    * its coinbase.
+    */
+   private void verifyTransactions(BlockChainLink previousLink, BlockChainLink link)
+      throws VerificationException
+   {
+      Block block = link.getBlock();
       // Checks 15,16,17,18: Check the transactions in the block
       // We diverge from the official list here since we don't maintain main and side branches
       // separately, and we have to make sure block is 100% compliant if we want to add it to the
@@ -295,7 +818,10 @@ public class BlockChainImpl extends Observable implements BlockChain
       {
          //time = System.currentTimeMillis();
          //blockFees = parallelVerifier.verifyBlockTransactions(linkStorage, bitcoinFactory.getScriptFactory(), previousLink, block, simplifedVerification);
-         blockFees = transactionsVerifier.verifyBlockTransactions(previousLink, block);
+         boolean assumedValid = isAssumedValid(link);
+         if (assumedValid)
+            logger.debug("block {} is assumed valid, not verifying its scripts", block);
+         blockFees = transactionsVerifier.verifyBlockTransactions(previousLink, block, !assumedValid);
          //long time3 = System.currentTimeMillis() - time;
          //if (blockFees != parallelFees)
          //   throw new VerificationException("Calcolo fee non corrispondente: " + blockFees + " vs " + parallelFees);
@@ -327,24 +853,8 @@ public class BlockChainImpl extends Observable implements BlockChain
                + coinbaseValue + " vs. " + (coinbaseValid + blockFees)
                + " (coinbase: " + coinbaseValid + ", block fees: " + blockFees + ")");
       }
-
-      // Check 16.6: Relay block to our peers
-      // (Also: add or update the link in storage, and only relay if it's really new)
-      logger.debug("adding block to storage...");
-      linkStorage.addLink(link);
-      if (listener != null)
-         listener.notifyAddedBlock(block);
-
-      // Check 19: For each orphan block for which this block is its prev,
-      // run all these steps (including this one) recursively on that orphan
-      int blocksAdded = 1;
-      if (checkOrphans)
-      {
-         blocksAdded += connectOrphanBlocks(block);
-      }
-      return blocksAdded;
    }
-   
+
    /**
     * This is an iterative function that adds to the chain all
     * the orphan blocks that can be added after a new block is inserted
@@ -391,16 +901,15 @@ public class BlockChainImpl extends Observable implements BlockChain
    /**
     * Calculate the median of the (some number of) blocks starting at the given block.
     */
-   private long getMedianTimestamp(BlockChainLink link)
+   private long getMedianTimestamp(BlockTreeNode node)
    {
-      if ( link == null )
+      if ( node == null )
          return 0;
-      Block block = link.getBlock();
       List<Long> times = new LinkedList<>();
-      for ( int i=0; (block!=null) && (i<MEDIAN_BLOCKS); i++ )
+      for ( int i=0; (node!=null) && (i<MEDIAN_BLOCKS); i++ )
       {
-         times.add(block.getCreationTime());
-         block=getBlockHeader(block.getPreviousBlockHash());
+         times.add(node.getBlock().getCreationTime());
+         node=node.getParent();
       }
       Collections.sort(times);
       return times.get(times.size()/2);
@@ -431,13 +940,12 @@ public class BlockChainImpl extends Observable implements BlockChain
             else
             {
                // Return the last non-special-min-difficulty-rules-block
-               // We could use a custom method here to load only block headers instead of full blocks
-               // but this lack of performance is only for the testnet so we don't care
-               while (link != null && (link.getHeight() % TARGET_RECALC) != 0 && 
-                  link.getBlock().getCompressedTarget() == bitcoinFactory.maxDifficultyTarget().getCompressedTarget())
-                  link = linkStorage.getLinkBlockHeader(link.getBlock().getPreviousBlockHash());
-               if (link != null)
-                  return new DifficultyTarget(link.getBlock().getCompressedTarget());
+               BlockTreeNode node = blockTree.getNode(link.getBlock().getHash());
+               while (node != null && (node.getHeight() % TARGET_RECALC) != 0 && 
+                  node.getBlock().getCompressedTarget() == bitcoinFactory.maxDifficultyTarget().getCompressedTarget())
+                  node = node.getParent();
+               if (node != null)
+                  return new DifficultyTarget(node.getBlock().getCompressedTarget());
                else
                 return bitcoinFactory.maxDifficultyTarget();
             }
@@ -447,12 +955,12 @@ public class BlockChainImpl extends Observable implements BlockChain
       }
       // We have to change the target. First collect the last TARGET_RECALC 
       // blocks (including the given block) 
-      Block startBlock = link.getBlock();
-      for ( int i=0; (i<TARGET_RECALC-1) && (startBlock!=null); i++ )
-         startBlock = getBlockHeader(startBlock.getPreviousBlockHash());
+      BlockTreeNode node = blockTree.getNode(link.getBlock().getHash());
+      BlockTreeNode startNode = node == null ? null : node.getAncestor((int) (link.getHeight() - (TARGET_RECALC - 1)));
       // This shouldn't happen, we reached genesis
-      if ( startBlock == null )
+      if ( startNode == null )
          return bitcoinFactory.maxDifficultyTarget();
+      Block startBlock = startNode.getBlock();
       // Calculate the time the TARGET_RECALC blocks took
       long calculatedTimespan = link.getBlock().getCreationTime() - startBlock.getCreationTime();
       if (calculatedTimespan < TARGET_TIMESPAN/4)
@@ -499,16 +1007,33 @@ public class BlockChainImpl extends Observable implements BlockChain
     */
    @Override
    public List<byte[]> buildBlockLocator()
+   {
+      return buildLocator(blockTree.getNode(linkStorage.getLastLink().getBlock().getHash()));
+   }
+
+   /**
+    * Return a block locator starting from the best known header, to be used
+    * by getHeaders.
+    * @return a list of block hashes
+    */
+   @Override
+   public List<byte[]> buildHeaderLocator()
+   {
+      return buildLocator(blockTree.getBestHeaderNode());
+   }
+
+   private List<byte[]> buildLocator(BlockTreeNode topNode)
    {
       List<byte[]> blocks = new LinkedList<>();
-      int topHeight = linkStorage.getLastLink().getHeight();
       int start = 0;
       int step = 1;
-      for (long i = topHeight; i > 0; i -= step, ++start)
+      for (int i = topNode.getHeight(); i > 0; i -= step, ++start)
       {
          if (start >= 10)
             step *= 2;
-         blocks.add(linkStorage.getHashOfMainChainAtHeight(i));
+         BlockTreeNode node = topNode.getAncestor(i);
+         if (node != null)
+            blocks.add(node.getHash());
       }
       blocks.add(getGenesisBlock().getHash());
       return blocks;
@@ -574,4 +1099,15 @@ public class BlockChainImpl extends Observable implements BlockChain
       }
    }
 
+   /**
+    * The blocks moved by a reorganization of the unspent output set.
+    */
+   private static class Reorganization
+   {
+      private BlockChainLink oldTip;
+      private boolean rebuilt = false;
+      private List<BlockChainLink> disconnected = new ArrayList<>();
+      private List<BlockChainLink> connected = new ArrayList<>();
+   }
+
 }
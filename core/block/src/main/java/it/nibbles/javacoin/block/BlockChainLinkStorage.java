@@ -19,6 +19,9 @@
 package it.nibbles.javacoin.block;
 
 import it.nibbles.javacoin.TransactionInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -27,6 +30,15 @@ import java.util.List;
  */
 public interface BlockChainLinkStorage
 {
+   /**
+    * Writes a snapshot of the unspent outputs to the stream of a storage.
+    */
+   interface SnapshotWriter
+   {
+      void writeTo(OutputStream output)
+         throws IOException;
+   }
+
    /**
     * Get the very first link in the storage, which should contain the genesis
     * block of this chain. This might be null if there are no
@@ -156,4 +168,59 @@ public interface BlockChainLinkStorage
     * @return The block link at specified height of the best chain
     */
    BlockChainLink getLinkAtHeight(long height);
+
+   /**
+    * Store a snapshot of the unspent outputs of the best chain. The snapshot
+    * is stored in pieces while the writer produces it, so it is never all in
+    * memory, and it replaces the previous one only once it is complete.
+    * Storages that do not keep it just ignore it, in that case the unspent
+    * outputs are rebuilt from the blocks at startup.
+    * @param writer The writer of the snapshot, as created by {@link UnspentOutputSet#createSnapshot()}.
+    * @throws IOException If the writer failed, the previous snapshot is kept.
+    */
+   default void storeUnspentOutputSnapshot(SnapshotWriter writer)
+      throws IOException
+   {
+   }
+
+   /**
+    * @return A stream reading the last snapshot stored with
+    * {@link #storeUnspentOutputSnapshot(SnapshotWriter)}, to be closed by the
+    * caller, or null if there is none.
+    */
+   default InputStream getUnspentOutputSnapshot()
+   {
+      return null;
+   }
+
+   /**
+    * Store the undo data of a block, that is the outputs it spent when it was
+    * connected to the best chain. It is stored before the block itself, so a
+    * stored block connected to the best chain always has its undo data.
+    * Storages that do not keep it just ignore it, in that case deep
+    * reorganizations rebuild the unspent outputs.
+    * @param hash The hash of the block.
+    * @param undoData The serialized undo data.
+    */
+   default void storeUndoData(byte[] hash, byte[] undoData)
+   {
+   }
+
+   /**
+    * @return The undo data stored for the block with the given hash, or null
+    * if there is none.
+    */
+   default byte[] getUndoData(byte[] hash)
+   {
+      return null;
+   }
+
+   /**
+    * @return True if undo data is stored for the block with the given hash.
+    * Storages should answer without reading the data.
+    */
+   default boolean hasUndoData(byte[] hash)
+   {
+      return getUndoData(hash) != null;
+   }
 }
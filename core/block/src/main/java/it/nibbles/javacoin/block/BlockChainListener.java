@@ -37,5 +37,23 @@ public interface BlockChainListener
     * Called when a fully verified block enters a chain.
     */
    void notifyAddedBlock(Block block);
+
+   /**
+    * Called when a block becomes part of the best chain, either because it
+    * extends it or because its branch overtook the previous best chain.
+    * Blocks are notified in chain order. Does nothing by default.
+    */
+   default void notifyConnectedBlock(Block block)
+   {
+   }
+
+   /**
+    * Called when a block leaves the best chain during a reorganization.
+    * Blocks are notified from the old tip backwards to the fork point.
+    * Does nothing by default.
+    */
+   default void notifyDisconnectedBlock(Block block)
+   {
+   }
 }
 
@@ -24,17 +24,15 @@ import it.nibbles.javacoin.ScriptFactory;
 import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.VerificationException;
-import it.nibbles.javacoin.net.ArraysUtil;
 import it.nibbles.javacoin.net.BitcoinOutputStream;
 import it.nibbles.javacoin.net.BlockHeader;
 import it.nibbles.javacoin.net.BlockMessage;
 import it.nibbles.javacoin.net.HexUtil;
 import it.nibbles.javacoin.net.Tx;
 import it.nibbles.javacoin.utils.BtcUtil;
+import it.nibbles.javacoin.utils.Hashing;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -75,6 +73,9 @@ public class BlockImpl implements Block, Hashable
    private byte[] merkleRoot;
    private byte[] hash;
    private List<TransactionImpl> transactions;
+   // Set once the block passed validation, so it is not done again
+   private volatile boolean validated = false;
+   private volatile boolean headerValidated = false;
 
    /**
     * Construct hash with basic data given, without hash (which will be calculated).
@@ -142,27 +143,25 @@ public class BlockImpl implements Block, Hashable
          if ( logger.isDebugEnabled() )
             logger.debug("hashing block header: {}",HexUtil.toHexString(blockHeaderBytes));
          // Hash this twice
-         MessageDigest digest = MessageDigest.getInstance("SHA-256");
-         byte[] firstHash = digest.digest(blockHeaderBytes);
-         digest.reset();
-         byte[] result = ArraysUtil.reverse(digest.digest(firstHash));
+         byte[] result = Hashing.doubleSha256Reversed(blockHeaderBytes);
          if ( logger.isDebugEnabled() )
             logger.debug("hashed to: {}",HexUtil.toHexString(result));
          return result;
-      } catch ( NoSuchAlgorithmException e ) {
-         throw new BitcoinException("can not find sha-256 algorithm for hash calculation",e);
       } catch ( IOException e ) {
          throw new BitcoinException("failed to calculate hash for block header",e);
       }
    }
 
    /**
-    * Run all validations that require no context.
+    * Run all validations that require no context. A block which passed them
+    * once is not validated again.
     */
    @Override
    public void validate()
       throws VerificationException
    {
+      if ( validated )
+         return;
       // This method goes over all the rules mentioned at:
       // https://en.bitcoin.it/wiki/Protocol_rules#.22 block.22 _messages
       
@@ -173,13 +172,8 @@ public class BlockImpl implements Block, Hashable
       // 3. Transaction list must be non-empty 
       //    Note: This is not true, we want to be able to filter, so no check is made
       // 4. Block hash must satisfy claimed nBits proof of work 
-      DifficultyTarget claimedTarget = new DifficultyTarget(compressedTarget);
-      DifficultyTarget hashTarget = new DifficultyTarget(hash);
-      if ( hashTarget.compareTo(claimedTarget) > 0 )
-         throw new VerificationException("difficulty of block ("+this+") does not have claimed difficulty of: "+claimedTarget);
       // 5. Block timestamp must not be more than two hours in the future 
-      if ( creationTime > System.currentTimeMillis() + BLOCK_FUTURE_VALIDITY )
-         throw new VerificationException("creation time of block ("+this+"): "+new Date(creationTime)+" is too far in future");
+      validateHeader();
       // 6. First transaction must be coinbase (i.e. only 1 input, with hash=0, n=-1), the rest must not be 
       // Note: Not true, instead the first and only the first transaction can be coinbase
       for ( int i=1; i<transactions.size(); i++ )
@@ -218,6 +212,7 @@ public class BlockImpl implements Block, Hashable
             usedOuts.add(referredOut);
          }
       }
+      validated = true;
    }
 
    @Override
@@ -279,6 +274,34 @@ public class BlockImpl implements Block, Hashable
       return Arrays.equals(((BlockImpl) o).hash,hash);
    }
 
+   /**
+    * Validate the header of this block, a block whose header passed once
+    * is not validated again, also by validate().
+    */
+   public void validateHeader()
+      throws VerificationException
+   {
+      if ( headerValidated )
+         return;
+      validateHeader(this);
+      headerValidated = true;
+   }
+
+   /**
+    * Validate the parts of a block which only need the header: the proof
+    * of work and the creation time.
+    */
+   public static void validateHeader(Block block)
+      throws VerificationException
+   {
+      DifficultyTarget claimedTarget = new DifficultyTarget(block.getCompressedTarget());
+      DifficultyTarget hashTarget = new DifficultyTarget(block.getHash());
+      if ( hashTarget.compareTo(claimedTarget) > 0 )
+         throw new VerificationException("difficulty of block ("+block+") does not have claimed difficulty of: "+claimedTarget);
+      if ( block.getCreationTime() > System.currentTimeMillis() + BLOCK_FUTURE_VALIDITY )
+         throw new VerificationException("creation time of block ("+block+"): "+new Date(block.getCreationTime())+" is too far in future");
+   }
+
    public static BlockImpl createBlock(ScriptFactory scriptFactory, BlockMessage blockMessage)
       throws BitcoinException
    {
@@ -291,6 +314,17 @@ public class BlockImpl implements Block, Hashable
       return block;
    }
 
+   /**
+    * Create a block without transactions from a header received in a
+    * headers message.
+    */
+   public static BlockImpl createBlock(BlockHeader header)
+      throws BitcoinException
+   {
+      return new BlockImpl(new LinkedList<TransactionImpl>(),header.getTimestamp(),header.getNonce(),
+            header.getDifficulty(),header.getPrevBlock(),header.getRootHash(),null,header.getVersion());
+   }
+
    public BlockMessage createBlockMessage(long magic)
       throws IOException
    {
@@ -5,12 +5,14 @@ import it.nibbles.javacoin.Block;
 import it.nibbles.javacoin.Script;
 import it.nibbles.javacoin.ScriptException;
 import it.nibbles.javacoin.ScriptFactory;
+import it.nibbles.javacoin.ScriptFragment;
 import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.TransactionOutput;
 import it.nibbles.javacoin.VerificationException;
 import it.nibbles.javacoin.utils.BtcUtil;
 import java.util.Arrays;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +28,7 @@ public abstract class BlockTransactionsVerifier
    protected BlockChainLinkStorage linkStorage;
    protected ScriptFactory scriptFactory;
    protected boolean simplifiedVerification;
+   protected UnspentOutputSet unspentOutputs = null;
 
    public BlockTransactionsVerifier(BlockChainLinkStorage linkStorage, ScriptFactory scriptFactory, boolean simplifiedVerification)
    {
@@ -34,7 +37,37 @@ public abstract class BlockTransactionsVerifier
       this.simplifiedVerification = simplifiedVerification;
    }
 
-   public abstract long verifyBlockTransactions(BlockChainLink previousLink, Block block)
+   /**
+    * Set the unspent outputs of the best chain. Blocks extending the tip of
+    * the set will have their inputs resolved against it instead of the storage.
+    */
+   public void setUnspentOutputs(UnspentOutputSet unspentOutputs)
+   {
+      this.unspentOutputs = unspentOutputs;
+   }
+
+   public UnspentOutputSet getUnspentOutputs()
+   {
+      return unspentOutputs;
+   }
+
+   public long verifyBlockTransactions(BlockChainLink previousLink, Block block)
+      throws VerificationException, BitcoinException
+   {
+      return verifyBlockTransactions(previousLink, block, true);
+   }
+
+   /**
+    * Verify the transactions of a block in the context of its branch.
+    *
+    * @param previousLink The link of the parent of the block.
+    * @param block The block we're trying to add.
+    * @param verifyScripts If false the scripts of the inputs are not
+    * executed, all the other checks are done.
+    * @return The fees of the block, that is the value of the inputs minus the
+    * value of the outputs.
+    */
+   public abstract long verifyBlockTransactions(BlockChainLink previousLink, Block block, boolean verifyScripts)
       throws VerificationException, BitcoinException;
 
    /**
@@ -64,6 +97,24 @@ public abstract class BlockTransactionsVerifier
    public long verifyTransaction(BlockChainLink previousLink, Block block, Transaction tx)
       throws VerificationException
    {
+      return verifyTransaction(previousLink, block, tx, null);
+   }
+
+   /**
+    * Verify that a transaction is valid according to sub-rules applying to the
+    * block tree, optionally leaving out the verification of the scripts.
+    *
+    * @param previousLink The link that represents the branch if the new transaction.
+    * @param block The block we're trying to add.
+    * @param scriptChecks If not null the script of each input is not verified,
+    * but added to this list to be verified later.
+    * @return The total value of the inputs after verification.
+    */
+   protected long verifyTransaction(BlockChainLink previousLink, Block block, Transaction tx, List<ScriptCheck> scriptChecks)
+      throws VerificationException
+   {
+      if ((unspentOutputs != null) && (unspentOutputs.isTip(previousLink)))
+         return verifyTransactionOnUnspentOutputs(previousLink, block, tx, scriptChecks);
       long value = 0;
       for (TransactionInput in : tx.getInputs())
       {
@@ -92,25 +143,7 @@ public abstract class BlockTransactionsVerifier
          TransactionOutput out = outTx.getOutputs().get(in.getClaimedOutputIndex());
          value += out.getValue(); // Remember value that goes in from this out
 
-         if (!transactionExceptions.isExempt(tx.getHash(), ValidationCategory.ScriptValidation))
-         {
-            Script script = scriptFactory.createScript(in.getSignatureScript(), out.getScript());
-            try
-            {
-               if (!script.execute(in))
-               {
-                  logger.warn("FALSE executing script on " + tx + "\n"
-                     + "inScript:  " + in.getSignatureScript() + " outScript:  " + out.getScript() + " bip16: " + script.isValidBip16());
-                  throw new VerificationException("verification script for input " + in + " returned 'false' for verification, script was: "
-                     + script + " in tx " + BtcUtil.hexOut(tx.getHash()));
-               }
-            } catch (ScriptException e)
-            {
-               logger.warn("ScriptException executing script on " + tx + "\n"
-                  + "inScript:  " + in.getSignatureScript() + " outScript:  " + out.getScript() + " bip16: " + script.isValidBip16());
-               throw new VerificationException("verification script for input " + in + " in tx " + BtcUtil.hexOut(tx.getHash()) + " failed to execute", e);
-            }
-         }
+         checkScript(tx, in, out.getScript(), scriptChecks);
          // Check 16.1.5: For each input, if the referenced output has already been
          // spent by a transaction in the [same] branch, reject
          if (linkStorage.outputClaimedInSameBranch(previousLink, in))
@@ -120,4 +153,160 @@ public abstract class BlockTransactionsVerifier
       }
       return value;
    }
+
+   /**
+    * Verify a transaction of a block extending the best chain using the
+    * unspent output set. Outputs are looked up only once and there is no need
+    * to walk the branch, since an output claimed by a previous block is not in
+    * the set anymore. Outputs created and spent inside the block itself are
+    * checked for double spending when the block is connected to the set.
+    *
+    * @param previousLink The tip of the unspent output set.
+    * @param block The block we're trying to add.
+    * @param scriptChecks If not null the scripts are added to it instead of
+    * being verified.
+    * @return The total value of the inputs after verification.
+    */
+   protected long verifyTransactionOnUnspentOutputs(BlockChainLink previousLink, Block block, Transaction tx,
+      List<ScriptCheck> scriptChecks)
+      throws VerificationException
+   {
+      long value = 0;
+      int blockHeight = previousLink.getHeight() + 1;
+      for (TransactionInput in : tx.getInputs())
+      {
+         // Check 16.1.1 and 16.1.5: the referenced output must exist and be unspent
+         long outValue;
+         ScriptFragment outScript;
+         int outHeight;
+         boolean outCoinbase;
+         UnspentOutput unspent = unspentOutputs.getUnspentOutput(in.getClaimedTransactionHash(), in.getClaimedOutputIndex());
+         if (unspent != null)
+         {
+            outValue = unspent.getValue();
+            outScript = unspent.getScript();
+            outHeight = unspent.getHeight();
+            outCoinbase = unspent.isCoinbase();
+         } else
+         {
+            Transaction outTx = getTransaction(block, in.getClaimedTransactionHash());
+            if (outTx == null)
+               throw new VerificationException("transaction output not found or already spent for input: " + in);
+            // Check 16.1.2
+            if (outTx.getOutputs().size() <= in.getClaimedOutputIndex())
+               throw new VerificationException("transaction output index for input is out of range: "
+                  + (in.getClaimedOutputIndex() + 1) + " vs. " + outTx.getOutputs().size());
+            TransactionOutput out = outTx.getOutputs().get(in.getClaimedOutputIndex());
+            outValue = out.getValue();
+            outScript = out.getScript();
+            outHeight = blockHeight;
+            outCoinbase = outTx.isCoinbase();
+         }
+         // Check 16.1.3
+         if (outCoinbase && (outHeight + BlockChainImpl.COINBASE_MATURITY > blockHeight))
+            throw new VerificationException("input (" + in + ") referenced coinbase transaction in block at height "
+               + outHeight + " which was not mature enough, current link height is " + previousLink.getHeight());
+         value += outValue;
+         // Check 16.1.4
+         checkScript(tx, in, outScript, scriptChecks);
+      }
+      return value;
+   }
+
+   /**
+    * Verify a transaction which is not in a block yet, as relayed by peers,
+    * against the outputs unspent at the tip of the best chain. The scripts of
+    * all the inputs are run, so their signatures enter the cache of the
+    * script factory before the transaction is found in a block.
+    *
+    * @return The fees of the transaction.
+    */
+   public long verifyUnconfirmedTransaction(Transaction tx)
+      throws VerificationException
+   {
+      if (unspentOutputs == null)
+         throw new VerificationException("there is no unspent output set to verify transaction against: " + tx);
+      if (tx.isCoinbase())
+         throw new VerificationException("coinbase transaction can only be in a block: " + tx);
+      int height = unspentOutputs.getTipHeight() + 1;
+      long inValue = 0;
+      for (TransactionInput in : tx.getInputs())
+      {
+         UnspentOutput unspent = unspentOutputs.getUnspentOutput(in.getClaimedTransactionHash(), in.getClaimedOutputIndex());
+         if (unspent == null)
+            throw new VerificationException("transaction output not found or already spent for input: " + in);
+         if (unspent.isCoinbase() && (unspent.getHeight() + BlockChainImpl.COINBASE_MATURITY > height))
+            throw new VerificationException("input (" + in + ") referenced coinbase transaction in block at height "
+               + unspent.getHeight() + " which is not mature enough, next block height is " + height);
+         inValue += unspent.getValue();
+         verifyScript(tx, in, unspent.getScript());
+      }
+      long outValue = 0;
+      for (TransactionOutput out : tx.getOutputs())
+         outValue += out.getValue();
+      if (inValue < outValue)
+         throw new VerificationException("more money spent (" + outValue + ") then available (" + inValue + ") in transaction: " + tx);
+      return inValue - outValue;
+   }
+
+   private void checkScript(Transaction tx, TransactionInput in, ScriptFragment outScript, List<ScriptCheck> scriptChecks)
+      throws VerificationException
+   {
+      if (scriptChecks == null)
+         verifyScript(tx, in, outScript);
+      else
+         scriptChecks.add(new ScriptCheck(tx, in, outScript));
+   }
+
+   /**
+    * Check 16.1.4: Verify crypto signatures for the input, unless the
+    * transaction is a known exception.
+    */
+   protected void verifyScript(Transaction tx, TransactionInput in, ScriptFragment outScript)
+      throws VerificationException
+   {
+      if (transactionExceptions.isExempt(tx.getHash(), ValidationCategory.ScriptValidation))
+         return;
+      Script script = scriptFactory.createScript(in.getSignatureScript(), outScript);
+      try
+      {
+         if (!script.execute(in))
+         {
+            logger.warn("FALSE executing script on " + tx + "\n"
+               + "inScript:  " + in.getSignatureScript() + " outScript:  " + outScript + " bip16: " + script.isValidBip16());
+            throw new VerificationException("verification script for input " + in + " returned 'false' for verification, script was: "
+               + script + " in tx " + BtcUtil.hexOut(tx.getHash()));
+         }
+      } catch (ScriptException e)
+      {
+         logger.warn("ScriptException executing script on " + tx + "\n"
+            + "inScript:  " + in.getSignatureScript() + " outScript:  " + outScript + " bip16: " + script.isValidBip16());
+         throw new VerificationException("verification script for input " + in + " in tx " + BtcUtil.hexOut(tx.getHash()) + " failed to execute", e);
+      }
+   }
+
+   /**
+    * The verification of the script of an input, which can be done
+    * independently of the other inputs once the claimed output is known.
+    */
+   protected class ScriptCheck
+   {
+
+      private final Transaction tx;
+      private final TransactionInput in;
+      private final ScriptFragment outScript;
+
+      public ScriptCheck(Transaction tx, TransactionInput in, ScriptFragment outScript)
+      {
+         this.tx = tx;
+         this.in = in;
+         this.outScript = outScript;
+      }
+
+      public void verify()
+         throws VerificationException
+      {
+         verifyScript(tx, in, outScript);
+      }
+   }
 }
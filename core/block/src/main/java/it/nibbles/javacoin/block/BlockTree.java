@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.Block;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All the known block headers, kept in memory as a tree. Every node knows
+ * its height, cumulative work, parent and a skip pointer, so ancestor lookup,
+ * common ancestor and reachability queries are answered in O(log n) without
+ * going to the storage. Nodes missing from the tree are loaded from the
+ * storage on demand. The tree may also contain headers of blocks which are
+ * not yet stored, these are the skeleton of the chain when downloading
+ * headers first.
+ *
+ * @author Alessandro Polverini
+ */
+public class BlockTree
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(BlockTree.class);
+   private BlockChainLinkStorage linkStorage;
+   private Map<HashWrapper, BlockTreeNode> nodes = new ConcurrentHashMap<>();
+   private volatile BlockTreeNode bestNode = null;
+   private volatile BlockTreeNode bestHeaderNode = null;
+
+   public BlockTree(BlockChainLinkStorage linkStorage)
+   {
+      this.linkStorage = linkStorage;
+   }
+
+   /**
+    * Load the best chain from the storage.
+    */
+   public void load()
+   {
+      long startTime = System.currentTimeMillis();
+      BlockChainLink lastLink = linkStorage.getLastLink();
+      if (lastLink != null)
+         getNode(lastLink.getBlock().getHash());
+      logger.info("block tree loaded with {} headers in {} ms", nodes.size(), System.currentTimeMillis() - startTime);
+   }
+
+   /**
+    * Get the node of a block, loading it (and its missing ancestors) from the
+    * storage if it is not yet in the tree.
+    *
+    * @return The node, or null if the block is unknown.
+    */
+   public BlockTreeNode getNode(byte[] hash)
+   {
+      BlockTreeNode node = nodes.get(new HashWrapper(hash));
+      if (node != null)
+         return node;
+      // Collect the missing headers going back to a known node or to the root
+      LinkedList<BlockChainLink> missing = new LinkedList<>();
+      for (BlockChainLink link = linkStorage.getLinkBlockHeader(hash); link != null;)
+      {
+         missing.addFirst(link);
+         if (nodes.containsKey(new HashWrapper(link.getBlock().getPreviousBlockHash())))
+            break;
+         link = linkStorage.getLinkBlockHeader(link.getBlock().getPreviousBlockHash());
+      }
+      for (BlockChainLink link : missing)
+         node = add(link);
+      return node;
+   }
+
+   /**
+    * @return The node of the block if it is already in the tree, without
+    * looking in the storage.
+    */
+   public BlockTreeNode getLoadedNode(byte[] hash)
+   {
+      return nodes.get(new HashWrapper(hash));
+   }
+
+   /**
+    * Add a stored block to the tree. Only the header of the block is kept.
+    *
+    * @param link The link of the block, its parent should be in the tree
+    * already, otherwise the block becomes a new root.
+    * @return The node of the block.
+    */
+   public synchronized BlockTreeNode add(BlockChainLink link)
+   {
+      BlockTreeNode node = nodes.get(new HashWrapper(link.getBlock().getHash()));
+      if (node == null)
+         node = addNode(link, true);
+      else if (!node.isStored())
+         node.setStored();
+      else
+         return node;
+      // Same rule as the storage: the first block with most work is the best
+      if ((bestNode == null) || (node.getTotalDifficulty().compareTo(bestNode.getTotalDifficulty()) > 0))
+         bestNode = node;
+      return node;
+   }
+
+   /**
+    * Add the header of a block which is not yet stored.
+    *
+    * @param link The link of the header, its parent should be in the tree
+    * already.
+    * @return The node of the header.
+    */
+   public synchronized BlockTreeNode addHeader(BlockChainLink link)
+   {
+      BlockTreeNode node = nodes.get(new HashWrapper(link.getBlock().getHash()));
+      if (node == null)
+         node = addNode(link, false);
+      return node;
+   }
+
+   private BlockTreeNode addNode(BlockChainLink link, boolean stored)
+   {
+      BlockTreeNode node = new BlockTreeNode(headerLink(link), nodes.get(new HashWrapper(link.getBlock().getPreviousBlockHash())), stored);
+      nodes.put(new HashWrapper(link.getBlock().getHash()), node);
+      if ((!node.isInvalid()) && ((bestHeaderNode == null) || (node.getTotalDifficulty().compareTo(bestHeaderNode.getTotalDifficulty()) > 0)))
+         bestHeaderNode = node;
+      return node;
+   }
+
+   /**
+    * Mark a header which is not stored, and all the headers built on it, as
+    * invalid. The best header becomes the valid node with the most work, so
+    * the invalid blocks are not missing anymore.
+    *
+    * @param invalidNode The node of the block which failed validation.
+    */
+   public synchronized void invalidate(BlockTreeNode invalidNode)
+   {
+      if (invalidNode.isStored())
+         throw new IllegalArgumentException("block " + invalidNode.getBlock() + " is already stored");
+      BlockTreeNode best = bestNode;
+      for (BlockTreeNode node : nodes.values())
+      {
+         if (isReachable(node, invalidNode))
+            node.setInvalid();
+         else if ((!node.isInvalid()) && ((best == null) || (node.getTotalDifficulty().compareTo(best.getTotalDifficulty()) > 0)))
+            best = node;
+      }
+      bestHeaderNode = best;
+      logger.info("invalidated block {}, best header is now at height {}", invalidNode.getBlock(),
+         best == null ? -1 : best.getHeight());
+   }
+
+   /**
+    * Avoid keeping transactions in memory, only the header is needed.
+    */
+   private BlockChainLink headerLink(BlockChainLink link)
+   {
+      Block block = link.getBlock();
+      if ((!(block instanceof BlockImpl)) || (block.getTransactions().isEmpty()))
+         return link;
+      try
+      {
+         BlockImpl header = new BlockImpl(new ArrayList<TransactionImpl>(), block.getCreationTime(), block.getNonce(),
+            block.getCompressedTarget(), block.getPreviousBlockHash(), block.getMerkleRoot(), block.getHash(), block.getVersion());
+         return new BlockChainLink(header, link.getTotalDifficulty(), link.getHeight());
+      } catch (BitcoinException e)
+      {
+         return link;
+      }
+   }
+
+   /**
+    * @return The stored node with the most work.
+    */
+   public BlockTreeNode getBestNode()
+   {
+      return bestNode;
+   }
+
+   /**
+    * @return The node with the most work, including headers of blocks which
+    * are not yet stored.
+    */
+   public BlockTreeNode getBestHeaderNode()
+   {
+      return bestHeaderNode;
+   }
+
+   /**
+    * Compute the latest common ancestor of two nodes.
+    *
+    * @return The common node, or null if the nodes are not on the same tree.
+    */
+   public BlockTreeNode getCommonAncestor(BlockTreeNode first, BlockTreeNode second)
+   {
+      if ((first == null) || (second == null))
+         return null;
+      if (first.getHeight() > second.getHeight())
+         first = first.getAncestor(second.getHeight());
+      else if (second.getHeight() > first.getHeight())
+         second = second.getAncestor(first.getHeight());
+      // Now on the same height, so skip pointers lead to the same height too
+      while ((first != null) && (second != null) && (first != second))
+      {
+         if ((first.getSkip() != null) && (second.getSkip() != null) && (first.getSkip() != second.getSkip()))
+         {
+            first = first.getSkip();
+            second = second.getSkip();
+         } else
+         {
+            first = first.getParent();
+            second = second.getParent();
+         }
+      }
+      return first == second ? first : null;
+   }
+
+   /**
+    * @return True if target can be reached from source going forward, that is
+    * source is an ancestor of target, or they are the same.
+    */
+   public boolean isReachable(BlockTreeNode target, BlockTreeNode source)
+   {
+      if ((target == null) || (source == null))
+         return false;
+      return target.getAncestor(source.getHeight()) == source;
+   }
+
+   public int size()
+   {
+      return nodes.size();
+   }
+}
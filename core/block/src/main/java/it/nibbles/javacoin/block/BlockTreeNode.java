@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.Block;
+
+/**
+ * A node of the in-memory block tree. It references the header of a block
+ * (with its height and cumulative work), its parent and a skip pointer to a
+ * farther ancestor, so ancestors at any height can be reached in a
+ * logarithmic number of steps.
+ *
+ * @author Alessandro Polverini
+ */
+public class BlockTreeNode
+{
+
+   private BlockChainLink link;
+   private BlockTreeNode parent;
+   private BlockTreeNode skip;
+   private volatile boolean stored;
+   private volatile boolean invalid;
+
+   BlockTreeNode(BlockChainLink link, BlockTreeNode parent, boolean stored)
+   {
+      this.link = link;
+      this.parent = parent;
+      this.stored = stored;
+      this.invalid = (parent != null) && (parent.isInvalid());
+      if (parent != null)
+         this.skip = parent.getAncestor(getSkipHeight(link.getHeight()));
+   }
+
+   /**
+    * @return The link of the block, it is not guaranteed to contain the
+    * transactions of the block.
+    */
+   public BlockChainLink getLink()
+   {
+      return link;
+   }
+
+   public Block getBlock()
+   {
+      return link.getBlock();
+   }
+
+   public byte[] getHash()
+   {
+      return link.getBlock().getHash();
+   }
+
+   public int getHeight()
+   {
+      return link.getHeight();
+   }
+
+   public Difficulty getTotalDifficulty()
+   {
+      return link.getTotalDifficulty();
+   }
+
+   /**
+    * @return True if the whole block is in the storage, false if only its
+    * header is known so far.
+    */
+   public boolean isStored()
+   {
+      return stored;
+   }
+
+   void setStored()
+   {
+      stored = true;
+   }
+
+   /**
+    * @return True if the block, or one of its ancestors, failed validation.
+    */
+   public boolean isInvalid()
+   {
+      return invalid;
+   }
+
+   void setInvalid()
+   {
+      invalid = true;
+   }
+
+   /**
+    * @return The node of the previous block, or null if this is the first
+    * block of the tree.
+    */
+   public BlockTreeNode getParent()
+   {
+      return parent;
+   }
+
+   BlockTreeNode getSkip()
+   {
+      return skip;
+   }
+
+   /**
+    * Get the ancestor of this block at the given height, following skip
+    * pointers when they don't overshoot.
+    *
+    * @return The ancestor, this node itself if height is the height of this
+    * node, or null if there is no such ancestor in the tree.
+    */
+   public BlockTreeNode getAncestor(int height)
+   {
+      if (height > getHeight())
+         return null;
+      BlockTreeNode walk = this;
+      int heightWalk = getHeight();
+      while ((walk != null) && (heightWalk > height))
+      {
+         int heightSkip = getSkipHeight(heightWalk);
+         int heightSkipPrev = getSkipHeight(heightWalk - 1);
+         if ((walk.skip != null) && ((heightSkip == height)
+            || ((heightSkip > height) && (!((heightSkipPrev < heightSkip - 2) && (heightSkipPrev >= height))))))
+         {
+            walk = walk.skip;
+            heightWalk = heightSkip;
+         } else
+         {
+            walk = walk.parent;
+            heightWalk--;
+         }
+      }
+      return walk;
+   }
+
+   /**
+    * Compute the height the skip pointer of a node at a given height points
+    * to. Heights are chosen so that any ancestor is reachable in O(log n) steps.
+    */
+   static int getSkipHeight(int height)
+   {
+      if (height < 2)
+         return 0;
+      return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+   }
+
+   private static int invertLowestOne(int n)
+   {
+      return n & (n - 1);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "BlockTreeNode[height=" + getHeight() + ", block=" + getBlock() + "]";
+   }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.ScriptFactory;
+import it.nibbles.javacoin.net.BitcoinInputStream;
+import it.nibbles.javacoin.net.BitcoinOutputStream;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the undo data of the blocks connected to the unspent output set:
+ * the outputs each block consumed. With these a block can be disconnected
+ * from the set without looking up the claimed transactions again. The undo
+ * data is stored in the link storage beside the block, the most recent
+ * blocks are also kept in memory.
+ *
+ * @author Alessandro Polverini
+ */
+public class BlockUndoJournal
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(BlockUndoJournal.class);
+   public static final int DEFAULT_MAX_BLOCKS = 1000;
+   private final int maxBlocks;
+   private final BlockChainLinkStorage linkStorage;
+   private final ScriptFactory scriptFactory;
+   private Map<HashWrapper, List<UnspentOutput>> undoData;
+
+   public BlockUndoJournal(BlockChainLinkStorage linkStorage, ScriptFactory scriptFactory)
+   {
+      this(linkStorage, scriptFactory, DEFAULT_MAX_BLOCKS);
+   }
+
+   /**
+    * Create a journal storing the undo data in the link storage.
+    * @param linkStorage The storage of the blocks.
+    * @param scriptFactory The factory to rebuild the output scripts with.
+    * @param maxBlocks The number of recent blocks to keep in memory too.
+    */
+   public BlockUndoJournal(BlockChainLinkStorage linkStorage, ScriptFactory scriptFactory, int maxBlocks)
+   {
+      this.linkStorage = linkStorage;
+      this.scriptFactory = scriptFactory;
+      this.maxBlocks = maxBlocks;
+      undoData = new LinkedHashMap<HashWrapper, List<UnspentOutput>>()
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<HashWrapper, List<UnspentOutput>> eldest)
+         {
+            return size() > BlockUndoJournal.this.maxBlocks;
+         }
+      };
+   }
+
+   /**
+    * Remember the outputs spent by a block. The undo data is stored first, so
+    * if the storage fails the journal is not changed.
+    */
+   public synchronized void add(byte[] blockHash, List<UnspentOutput> spentOutputs)
+   {
+      linkStorage.storeUndoData(blockHash, write(spentOutputs));
+      undoData.put(new HashWrapper(blockHash), spentOutputs);
+   }
+
+   /**
+    * Remember the outputs spent by a block, storing them only if the storage
+    * does not have them already.
+    */
+   public synchronized void addIfMissing(byte[] blockHash, List<UnspentOutput> spentOutputs)
+   {
+      if (!linkStorage.hasUndoData(blockHash))
+         linkStorage.storeUndoData(blockHash, write(spentOutputs));
+      undoData.put(new HashWrapper(blockHash), spentOutputs);
+   }
+
+   /**
+    * @return The outputs spent by the block, or null if the block is not in
+    * the journal.
+    */
+   public synchronized List<UnspentOutput> get(byte[] blockHash)
+   {
+      List<UnspentOutput> spentOutputs = undoData.get(new HashWrapper(blockHash));
+      if (spentOutputs != null)
+         return spentOutputs;
+      byte[] stored = linkStorage.getUndoData(blockHash);
+      if (stored == null)
+         return null;
+      try
+      {
+         return read(stored);
+      } catch (IOException e)
+      {
+         logger.warn("could not read the stored undo data of block " + BtcUtil.hexOut(blockHash), e);
+         return null;
+      }
+   }
+
+   /**
+    * Forget the undo data of a block which is being disconnected. The stored
+    * data is kept, as it is still valid if the block is connected again.
+    */
+   public synchronized void remove(byte[] blockHash)
+   {
+      undoData.remove(new HashWrapper(blockHash));
+   }
+
+   /**
+    * @return True if the journal has the undo data of the block. The stored
+    * data is not read.
+    */
+   public synchronized boolean contains(byte[] blockHash)
+   {
+      return undoData.containsKey(new HashWrapper(blockHash)) || linkStorage.hasUndoData(blockHash);
+   }
+
+   /**
+    * @return The number of blocks kept in memory.
+    */
+   public synchronized int size()
+   {
+      return undoData.size();
+   }
+
+   public int getMaxBlocks()
+   {
+      return maxBlocks;
+   }
+
+   /**
+    * Forget the blocks kept in memory, the stored undo data is not changed.
+    */
+   public synchronized void clear()
+   {
+      undoData.clear();
+   }
+
+   private static byte[] write(List<UnspentOutput> spentOutputs)
+   {
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         BitcoinOutputStream output = new BitcoinOutputStream(bytes);
+         output.writeUIntVar(spentOutputs.size());
+         for (UnspentOutput out : spentOutputs)
+            out.write(output);
+         return bytes.toByteArray();
+      } catch (IOException e)
+      {
+         throw new IllegalStateException("could not serialize undo data", e);
+      }
+   }
+
+   private List<UnspentOutput> read(byte[] stored)
+      throws IOException
+   {
+      BitcoinInputStream input = new BitcoinInputStream(new ByteArrayInputStream(stored));
+      long count = input.readUIntVar();
+      List<UnspentOutput> spentOutputs = new ArrayList<>();
+      for (long i = 0; i < count; i++)
+         spentOutputs.add(UnspentOutput.read(input, scriptFactory));
+      return spentOutputs;
+   }
+}
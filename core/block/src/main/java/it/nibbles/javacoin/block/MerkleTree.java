@@ -20,7 +20,7 @@ package it.nibbles.javacoin.block;
 
 import it.nibbles.javacoin.BitcoinException;
 import it.nibbles.javacoin.Transaction;
-import it.nibbles.javacoin.net.ArraysUtil;
+import it.nibbles.javacoin.utils.Hashing;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.LinkedList;
@@ -28,8 +28,6 @@ import java.util.Iterator;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,7 +55,8 @@ public class MerkleTree
 
    private List<? extends Transaction> transactions;
    private List<MerkleNode> outerNodes;
-   private MessageDigest digest = null;
+   // Both children hashes in hashed order
+   private final byte[] children = new byte[2*Hashing.SHA256_LENGTH];
 
    public MerkleTree(List<? extends Transaction> transactions)
       throws BitcoinException
@@ -77,12 +76,6 @@ public class MerkleTree
       if ( this.outerNodes == null )
          this.outerNodes = new LinkedList<MerkleNode>();
       this.transactions=transactions;
-      try
-      {
-         digest = MessageDigest.getInstance("SHA-256");
-      } catch ( NoSuchAlgorithmException e ) {
-         throw new BitcoinException("can not find sha-256 algorithm for merkle hash calculation",e);
-      }
    }
 
    /**
@@ -98,17 +91,20 @@ public class MerkleTree
    private MerkleNode createParent(MerkleNode node1, MerkleNode node2, int startIndex, int endIndex)
    {
       // Generate new hash
-      digest.reset();
-      digest.update(ArraysUtil.reverse(node1.getHash()));
-      digest.update(ArraysUtil.reverse(node2.getHash()));
-      byte[] firstHash = digest.digest();
-      digest.reset();
+      copyReversed(node1.getHash(),0);
+      copyReversed(node2.getHash(),Hashing.SHA256_LENGTH);
       MerkleNode parent = new MerkleNode(
-            ArraysUtil.reverse(digest.digest(firstHash)), startIndex, endIndex,
+            Hashing.doubleSha256Reversed(children), startIndex, endIndex,
             new MerkleNode[] { node1, node2 },false);
       return parent;
    }
 
+   private void copyReversed(byte[] hash, int offset)
+   {
+      for ( int i=0; i<Hashing.SHA256_LENGTH; i++ )
+         children[offset+i] = hash[Hashing.SHA256_LENGTH-1-i];
+   }
+
    /**
     * Build the merkle tree from the specified outer nodes and the supplied transactions.
     */
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.util.Arrays;
+
+/**
+ * Identifies a single output of a transaction: the hash of the transaction
+ * and the index of the output inside it. Used as key of the unspent output set.
+ *
+ * @author Alessandro Polverini
+ */
+public class OutPoint
+{
+
+   private byte[] txHash;
+   private long index;
+
+   public OutPoint(byte[] txHash, long index)
+   {
+      this.txHash = txHash;
+      this.index = index;
+   }
+
+   public byte[] getTxHash()
+   {
+      return txHash;
+   }
+
+   public long getIndex()
+   {
+      return index;
+   }
+
+   @Override
+   public int hashCode()
+   {
+      // Hashes are random enough, just mix the index in the last bytes as HashWrapper does
+      int len = txHash.length;
+      int h = 0;
+      for (int i = Math.max(0, len - 4); i < len; i++)
+         h = h * 256 + (txHash[i] & 0xff);
+      return h * 31 + (int) index;
+   }
+
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (obj == null)
+         return false;
+      if (getClass() != obj.getClass())
+         return false;
+      final OutPoint other = (OutPoint) obj;
+      return index == other.index && Arrays.equals(txHash, other.txHash);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "OutPoint[" + BtcUtil.hexOut(txHash) + ":" + index + "]";
+   }
+}
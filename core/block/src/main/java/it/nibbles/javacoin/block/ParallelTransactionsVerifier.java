@@ -24,28 +24,30 @@ import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionOutput;
 import it.nibbles.javacoin.VerificationException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Verifies the transactions of a block on a pool of work stealing threads.
+ * First the inputs of all the transactions are looked up in parallel, then
+ * the scripts of all the inputs are verified, split in ranges of inputs
+ * regardless of the transaction they belong to, so a transaction with many
+ * inputs uses all the threads. If the block is not valid the error of its
+ * first invalid transaction is reported, independently of the order in
+ * which the threads did the work.
  *
  * @author Alessandro Polverini
  */
 public class ParallelTransactionsVerifier extends BlockTransactionsVerifier
 {
 
-   private ExecutorService executorService;
-   private BlockChainLink link;
-   private Block block;
+   // Number of scripts verified by a task without splitting it further
+   private static final int SCRIPT_GRAIN = 4;
+   private ForkJoinPool pool;
    private int numThreads;
-   private long inValue;
-   private long outValue;
 
    public ParallelTransactionsVerifier(BlockChainLinkStorage linkStorage, ScriptFactory scriptFactory, boolean simplifiedVerification)
    {
@@ -56,109 +58,178 @@ public class ParallelTransactionsVerifier extends BlockTransactionsVerifier
    {
       super(linkStorage, scriptFactory, simplifiedVerification);
       numThreads = maxThreads <= 0 ? Runtime.getRuntime().availableProcessors() : maxThreads;
-      executorService = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory());
+      pool = new ForkJoinPool(numThreads, new VerifierThreadFactory(), null, false);
       logger.info("Parallel Transaction Verifier instantiated with {} threads", numThreads);
    }
 
    @Override
-   public long verifyBlockTransactions(BlockChainLink previousLink, Block block)
+   public long verifyBlockTransactions(final BlockChainLink previousLink, final Block block, boolean verifyScripts)
       throws VerificationException, BitcoinException
    {
-      this.link = previousLink;
-      this.block = block;
-      inValue = outValue = 0;
-      logger.debug("Parallel checking of {} transactions...", block.getTransactions().size());
-      List<Callable<InOutValues>> todo = new ArrayList<>(block.getTransactions().size());
-      for (Transaction tx : block.getTransactions())
+      final List<Transaction> transactions = block.getTransactions();
+      logger.debug("Parallel checking of {} transactions...", transactions.size());
+      // Look up the inputs of each transaction, collecting the scripts to verify
+      final TxVerification[] verifications = new TxVerification[transactions.size()];
+      pool.invoke(new RangeTask(new IndexedWork()
       {
-         todo.add(new SingleTxVerifier(tx));
+         @Override
+         public void run(int index)
+         {
+            verifications[index] = resolveTransaction(previousLink, block, transactions.get(index));
+         }
+      }, 0, verifications.length, 1));
+      // Scripts of the transactions after the first invalid one can't change the outcome
+      int firstInvalidTx = 0;
+      final List<ScriptCheck> scriptChecks = new ArrayList<>();
+      while ((firstInvalidTx < verifications.length) && (verifications[firstInvalidTx].error == null))
+      {
+         if (verifyScripts)
+            scriptChecks.addAll(verifications[firstInvalidTx].scriptChecks);
+         firstInvalidTx++;
       }
-      try
+      // Verify all the scripts, remembering the error of the first failing one
+      final Throwable[] scriptErrors = new Throwable[scriptChecks.size()];
+      final AtomicInteger firstFailedScript = new AtomicInteger(scriptChecks.size());
+      pool.invoke(new RangeTask(new IndexedWork()
       {
-         List<Future<InOutValues>> allRes = executorService.invokeAll(todo);
-         for (Iterator<Future<InOutValues>> it = allRes.iterator(); it.hasNext();)
+         @Override
+         public void run(int index)
          {
-            Future<InOutValues> res = it.next();
+            // Not needed if an earlier script already failed
+            if (index > firstFailedScript.get())
+               return;
             try
             {
-               InOutValues values = res.get();
-               inValue += values.localInValue;
-               outValue += values.localOutValue;
-            } catch (ExecutionException ex)
+               scriptChecks.get(index).verify();
+            } catch (Throwable e)
             {
-               Throwable t = ex.getCause();
-               if (t instanceof VerificationException)
-                  throw (VerificationException) t;
-               else
-               {
-                  logger.error("Unexpected error: " + t.getMessage(), t);
-                  throw new BitcoinException("Unexpected exception while veryfing block", t);
-               }
+               // Anything thrown makes the block fail, as it did through a future
+               scriptErrors[index] = e;
+               int current;
+               while ((index < (current = firstFailedScript.get())) && (!firstFailedScript.compareAndSet(current, index)));
             }
          }
-      } catch (InterruptedException ex)
+      }, 0, scriptChecks.size(), SCRIPT_GRAIN));
+      if (firstFailedScript.get() < scriptChecks.size())
+         throw verificationFailed(scriptErrors[firstFailedScript.get()]);
+      if (firstInvalidTx < verifications.length)
+         throw verificationFailed(verifications[firstInvalidTx].error);
+      long inValue = 0;
+      long outValue = 0;
+      for (TxVerification verification : verifications)
       {
-         executorService.shutdownNow();
-         executorService = Executors.newFixedThreadPool(numThreads);
-         throw new VerificationException("Verification threads interrupted");
+         inValue += verification.inValue;
+         outValue += verification.outValue;
       }
       return inValue - outValue;
    }
 
-   class SingleTxVerifier implements Callable<InOutValues>
+   /**
+    * Do all the checks of a transaction except verifying its scripts, which
+    * are collected instead.
+    */
+   private TxVerification resolveTransaction(BlockChainLink previousLink, Block block, Transaction tx)
    {
-
-      private Transaction tx;
-
-      public SingleTxVerifier(Transaction tx)
-      {
-         this.tx = tx;
-      }
-
-      @Override
-      public InOutValues call() throws VerificationException
+      TxVerification verification = new TxVerification();
+      try
       {
-         InOutValues inOutValues = new InOutValues();
          // Validate without context
          tx.validate();
          // Checks 16.1.1-7: Verify only if this is supposed to be a full node
          if ((!simplifiedVerification) && (!tx.isCoinbase()))
          {
-            inOutValues.localInValue = verifyTransaction(link, block, tx);
+            verification.inValue = verifyTransaction(previousLink, block, tx, verification.scriptChecks);
             for (TransactionOutput out : tx.getOutputs())
             {
-               inOutValues.localOutValue += out.getValue();
+               verification.outValue += out.getValue();
             }
             // Check 16.1.6: Using the referenced output transactions to get
             // input values, check that each input value, as well as the sum, are in legal money range
             // Check 16.1.7: Reject if the sum of input values < sum of output values
-            if (inOutValues.localInValue < inOutValues.localOutValue)
-               throw new VerificationException("more money spent (" + inOutValues.localOutValue + ") then available (" + inOutValues.localInValue + ") in transaction: " + tx);
+            if (verification.inValue < verification.outValue)
+               throw new VerificationException("more money spent (" + verification.outValue + ") then available (" + verification.inValue + ") in transaction: " + tx);
          }
-         return inOutValues;
+      } catch (Throwable e)
+      {
+         verification.error = e;
       }
+      return verification;
+   }
+
+   private BitcoinException verificationFailed(Throwable e)
+   {
+      if (e instanceof VerificationException)
+         return (VerificationException) e;
+      logger.error("Unexpected error: " + e.getMessage(), e);
+      return new BitcoinException("Unexpected exception while veryfing block", e);
    }
 
-   class DaemonThreadFactory implements ThreadFactory
+   /**
+    * The outcome of the checks of a transaction.
+    */
+   private class TxVerification
    {
 
-      int counter = 0;
+      private long inValue = 0;
+      private long outValue = 0;
+      private List<ScriptCheck> scriptChecks = new ArrayList<>();
+      private Throwable error;
+   }
+
+   private interface IndexedWork
+   {
+
+      void run(int index);
+   }
+
+   /**
+    * Does some work for a range of indexes, splitting the range in halves
+    * for other threads to steal until it is small enough.
+    */
+   private static class RangeTask extends RecursiveAction
+   {
+
+      private final IndexedWork work;
+      private final int from;
+      private final int to;
+      private final int grain;
+
+      private RangeTask(IndexedWork work, int from, int to, int grain)
+      {
+         this.work = work;
+         this.from = from;
+         this.to = to;
+         this.grain = grain;
+      }
 
       @Override
-      public Thread newThread(Runnable r)
+      protected void compute()
       {
-         counter++;
-         Thread t = new Thread(r);
-         t.setDaemon(true);
-         t.setName("Transaction Verifier " + counter);
-         return t;
+         if (to - from <= grain)
+         {
+            for (int i = from; i < to; i++)
+               work.run(i);
+            return;
+         }
+         int middle = (from + to) >>> 1;
+         invokeAll(new RangeTask(work, from, middle, grain), new RangeTask(work, middle, to, grain));
       }
    }
 
-   class InOutValues
+   private static class VerifierThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory
    {
 
-      public long localInValue = 0;
-      public long localOutValue = 0;
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+      {
+         ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool)
+         {
+         };
+         thread.setDaemon(true);
+         thread.setName("Transaction Verifier " + counter.incrementAndGet());
+         return thread;
+      }
    }
 }
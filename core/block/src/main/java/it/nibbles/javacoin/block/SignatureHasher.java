@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.ScriptFragment;
+import it.nibbles.javacoin.SignatureHashType;
+import it.nibbles.javacoin.VerificationException;
+import it.nibbles.javacoin.net.BitcoinOutputStream;
+import it.nibbles.javacoin.utils.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Calculates the signature hashes of the inputs of a transaction. The hashed
+ * message is the transaction serialized with all the other input scripts
+ * blanked out, so the parts not depending on the signed input are serialized
+ * only once per transaction and streamed into the digest for each input,
+ * without creating a copy of the transaction. The digest state after the
+ * inputs preceding each input is also kept, so hashing an input does not
+ * start again from the beginning of the transaction. An instance is created
+ * for a transaction when the first signature hash is requested, and can be
+ * used by any number of threads at once.
+ *
+ * @author Alessandro Polverini
+ */
+final class SignatureHasher
+{
+
+   // An input without script: outpoint, empty script and sequence
+   private static final int BLANK_INPUT_SIZE = 32 + 4 + 1 + 4;
+   // An output blanked out for SIGHASH_SINGLE: value -1 and empty script
+   private static final byte[] BLANK_OUTPUT = new byte[]
+   {
+      -1, -1, -1, -1, -1, -1, -1, -1, 0
+   };
+   private final TransactionImpl transaction;
+   private final List<TransactionInputImpl> inputs;
+   private final List<TransactionOutputImpl> outputs;
+   // Version and number of inputs, the same for all except SIGHASH_ANYONECANPAY
+   private final byte[] header;
+   private final byte[] singleHeader;
+   // Serialized outputs and the start of each of them
+   private final byte[] serializedOutputs;
+   private final int[] outputOffsets;
+   // Lock time is at the end of all hashed messages
+   private final byte[] lockTime;
+   // Inputs serialized without scripts, lazily created for the input type
+   private volatile BlankedInputs blankedInputs;
+   private volatile BlankedInputs blankedUpdateInputs;
+
+   SignatureHasher(TransactionImpl transaction, List<TransactionInputImpl> inputs, List<TransactionOutputImpl> outputs)
+           throws BitcoinException
+   {
+      this.transaction = transaction;
+      this.inputs = inputs;
+      this.outputs = outputs;
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         BitcoinOutputStream output = new BitcoinOutputStream(bytes);
+         output.writeUInt32(transaction.getVersion());
+         output.writeUIntVar(inputs.size());
+         header = bytes.toByteArray();
+         bytes.reset();
+         output.writeUInt32(transaction.getVersion());
+         output.writeUIntVar(1);
+         singleHeader = bytes.toByteArray();
+         bytes.reset();
+         outputOffsets = new int[outputs.size() + 1];
+         for (int i = 0; i < outputs.size(); i++)
+         {
+            outputOffsets[i] = bytes.size();
+            TransactionOutputImpl out = outputs.get(i);
+            byte[] script = out.getScript() == null ? new byte[0] : out.getScript().toByteArray();
+            output.writeUInt64(out.getValue());
+            output.writeUIntVar(script.length);
+            output.write(script);
+         }
+         outputOffsets[outputs.size()] = bytes.size();
+         serializedOutputs = bytes.toByteArray();
+         bytes.reset();
+         output.writeUInt32(transaction.getLockTime());
+         lockTime = bytes.toByteArray();
+      } catch (IOException e)
+      {
+         throw new BitcoinException("failed to serialize transaction for signature hash", e);
+      }
+   }
+
+   /**
+    * Calculate the signature hash of an input of the transaction.
+    *
+    * @param inputIndex The index of the input in the transaction.
+    * @param type The hash type.
+    * @param subscript The subscript to use for hashing in place of the input
+    * script.
+    * @return The double SHA-256 of the serialized message, in "Bitcoin" order.
+    */
+   byte[] hash(int inputIndex, SignatureHashType type, ScriptFragment subscript)
+           throws BitcoinException
+   {
+      TransactionInputImpl input = inputs.get(inputIndex);
+      SignatureHashType.InputSignatureHashType inputType = type.getInputType();
+      SignatureHashType.OutputSignatureHashType outputType = type.getOutputType();
+      if ((outputType == SignatureHashType.OutputSignatureHashType.SIGHASH_SINGLE) && (inputIndex >= outputs.size()))
+         throw new VerificationException("calculating hash type SIGHASH_SINGLE, but not enough outputs: " + inputIndex + " vs. " + outputs.size());
+      try
+      {
+         MessageDigest digest;
+         BitcoinOutputStream output;
+         // Inputs
+         if (inputType == SignatureHashType.InputSignatureHashType.SIGHASH_ANYONECANPAY)
+         {
+            digest = Hashing.sha256Digest();
+            digest.update(singleHeader);
+            output = new BitcoinOutputStream(new DigestStream(digest));
+            writeInput(output, input, subscript);
+         } else
+         {
+            BlankedInputs blanked = getBlankedInputs(inputType == SignatureHashType.InputSignatureHashType.SIGHASH_ALLOWUPDATE);
+            digest = blanked.getMidstate(inputIndex);
+            output = new BitcoinOutputStream(new DigestStream(digest));
+            writeInput(output, input, subscript);
+            int next = (inputIndex + 1) * BLANK_INPUT_SIZE;
+            digest.update(blanked.bytes, next, blanked.bytes.length - next);
+         }
+         // Outputs
+         switch (outputType)
+         {
+            case SIGHASH_ALL:
+               output.writeUIntVar(outputs.size());
+               digest.update(serializedOutputs);
+               break;
+            case SIGHASH_SINGLE:
+               output.writeUIntVar(inputIndex + 1);
+               for (int i = 0; i < inputIndex; i++)
+                  digest.update(BLANK_OUTPUT);
+               digest.update(serializedOutputs, outputOffsets[inputIndex],
+                       outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+               break;
+            case SIGHASH_NONE:
+               output.writeUIntVar(0);
+               break;
+         }
+         digest.update(lockTime);
+         output.writeUInt32(type.getValue());
+         // Hash twice
+         byte[] firstHash = digest.digest();
+         return digest.digest(firstHash);
+      } catch (IOException e)
+      {
+         throw new BitcoinException("failed to calculate signature hash for transaction " + transaction, e);
+      }
+   }
+
+   private void writeInput(BitcoinOutputStream output, TransactionInputImpl input, ScriptFragment subscript)
+           throws IOException
+   {
+      byte[] script = subscript == null ? new byte[0] : subscript.toByteArray();
+      output.writeReverse(input.getClaimedTransactionHash());
+      output.writeUInt32(input.getClaimedOutputIndex());
+      output.writeUIntVar(script.length);
+      output.write(script);
+      output.writeUInt32(input.getSequence());
+   }
+
+   private BlankedInputs getBlankedInputs(boolean allowUpdate)
+           throws IOException
+   {
+      // Concurrent callers may build it twice, but both are equal
+      BlankedInputs result = allowUpdate ? blankedUpdateInputs : blankedInputs;
+      if (result == null)
+      {
+         result = new BlankedInputs(allowUpdate);
+         if (allowUpdate)
+            blankedUpdateInputs = result;
+         else
+            blankedInputs = result;
+      }
+      return result;
+   }
+
+   /**
+    * All the inputs serialized without scripts, and the digest of the message
+    * up to each of them.
+    */
+   private class BlankedInputs
+   {
+
+      private final byte[] bytes;
+      private final MessageDigest[] midstates;
+
+      private BlankedInputs(boolean allowUpdate)
+              throws IOException
+      {
+         ByteArrayOutputStream byteOutput = new ByteArrayOutputStream(inputs.size() * BLANK_INPUT_SIZE);
+         BitcoinOutputStream output = new BitcoinOutputStream(byteOutput);
+         for (TransactionInputImpl input : inputs)
+         {
+            output.writeReverse(input.getClaimedTransactionHash());
+            output.writeUInt32(input.getClaimedOutputIndex());
+            output.writeUIntVar(0);
+            output.writeUInt32(allowUpdate ? 0 : input.getSequence());
+         }
+         bytes = byteOutput.toByteArray();
+         MessageDigest[] states = new MessageDigest[inputs.size()];
+         try
+         {
+            MessageDigest digest = Hashing.newSha256Digest();
+            digest.update(header);
+            for (int i = 0; i < states.length; i++)
+            {
+               states[i] = (MessageDigest) digest.clone();
+               digest.update(bytes, i * BLANK_INPUT_SIZE, BLANK_INPUT_SIZE);
+            }
+         } catch (CloneNotSupportedException e)
+         {
+            // Provider can not copy the digest state, hash the inputs every time
+            states = null;
+         }
+         midstates = states;
+      }
+
+      /**
+       * @return A new digest which already hashed the message up to the input.
+       */
+      private MessageDigest getMidstate(int inputIndex)
+      {
+         if (midstates != null)
+         {
+            try
+            {
+               return (MessageDigest) midstates[inputIndex].clone();
+            } catch (CloneNotSupportedException e)
+            {
+               // Can not happen, the state was cloned already
+            }
+         }
+         MessageDigest digest = Hashing.sha256Digest();
+         digest.update(header);
+         digest.update(bytes, 0, inputIndex * BLANK_INPUT_SIZE);
+         return digest;
+      }
+   }
+
+   /**
+    * Writes directly into a digest.
+    */
+   private static class DigestStream extends OutputStream
+   {
+
+      private final MessageDigest digest;
+
+      private DigestStream(MessageDigest digest)
+      {
+         this.digest = digest;
+      }
+
+      @Override
+      public void write(int value)
+      {
+         digest.update((byte) value);
+      }
+
+      @Override
+      public void write(byte[] array, int offset, int length)
+      {
+         digest.update(array, offset, length);
+      }
+   }
+}
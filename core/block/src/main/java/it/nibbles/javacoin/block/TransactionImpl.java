@@ -25,17 +25,15 @@ import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.TransactionOutput;
 import it.nibbles.javacoin.VerificationException;
-import it.nibbles.javacoin.net.ArraysUtil;
 import it.nibbles.javacoin.net.BitcoinOutputStream;
 import it.nibbles.javacoin.net.Tx;
 import it.nibbles.javacoin.net.TxIn;
 import it.nibbles.javacoin.net.TxOut;
 import it.nibbles.javacoin.utils.BtcUtil;
+import it.nibbles.javacoin.utils.Hashing;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -64,6 +62,7 @@ public class TransactionImpl implements Transaction, Hashable
    private List<TransactionOutputImpl> outputs;
    private long lockTime;
    private byte[] hash;
+   private volatile SignatureHasher signatureHasher; // Created on first signature hash
 
    /**
     * Create the transaction with the inputs, outputs and locking time. This method
@@ -107,8 +106,12 @@ public class TransactionImpl implements Transaction, Hashable
       if ( hash == null )
          this.hash = calculateHash(null);
       // Make all inputs and outputs be a part of this transaction
+      int inputIndex = 0;
       for ( TransactionInputImpl input : inputs )
+      {
          input.setTransaction(this);
+         input.setIndex(inputIndex++);
+      }
       for ( int index = 0; index <outputs.size(); index++ )
       {
          TransactionOutputImpl output = outputs.get(index);
@@ -170,6 +173,17 @@ public class TransactionImpl implements Transaction, Hashable
 
    public static TransactionImpl createTransaction(ScriptFactory scriptFactory, Tx tx)
       throws BitcoinException
+   {
+      return createTransaction(scriptFactory,tx,null);
+   }
+
+   /**
+    * Create a transaction from a protocol transaction whose hash is already known,
+    * for example because it was stored with it.
+    * @param hash The hash of the transaction, or null to compute it.
+    */
+   public static TransactionImpl createTransaction(ScriptFactory scriptFactory, Tx tx, byte[] hash)
+      throws BitcoinException
    {
       // First outs
       List<TransactionOutputImpl> outs = new LinkedList<>();
@@ -189,10 +203,27 @@ public class TransactionImpl implements Transaction, Hashable
          ins.add(in);
       }
       // Create tx
-      TransactionImpl transaction = new TransactionImpl(ins,outs,tx.getLockTime(),tx.getVersion());
+      TransactionImpl transaction = new TransactionImpl(ins,outs,tx.getLockTime(),hash,tx.getVersion());
       return transaction;
    }
 
+   /**
+    * Get the calculator of the signature hashes of inputs, which keeps the parts of
+    * this transaction shared by all inputs already serialized.
+    */
+   SignatureHasher getSignatureHasher()
+      throws BitcoinException
+   {
+      // May be created twice by concurrent callers, which is harmless
+      SignatureHasher hasher = signatureHasher;
+      if ( hasher == null )
+      {
+         hasher = new SignatureHasher(this,inputs,outputs);
+         signatureHasher = hasher;
+      }
+      return hasher;
+   }
+
    /**
     * Calculate the hash of the whole transaction, with some optional additional bytes.
     */
@@ -214,15 +245,10 @@ public class TransactionImpl implements Transaction, Hashable
          if ( logger.isDebugEnabled() )
             logger.debug("hashing transaction: {}",BtcUtil.hexOut(txBytes));
          // Hash this twice
-         MessageDigest digest = MessageDigest.getInstance("SHA-256");
-         byte[] firstHash = digest.digest(txBytes);
-         digest.reset();
-         byte[] result = ArraysUtil.reverse(digest.digest(firstHash));
+         byte[] result = Hashing.doubleSha256Reversed(txBytes);
          if ( logger.isDebugEnabled() )
             logger.debug("hashed to: {}",BtcUtil.hexOut(result));
          return result;
-      } catch ( NoSuchAlgorithmException e ) {
-         throw new BitcoinException("can not find sha-256 algorithm for hash calculation",e);
       } catch ( IOException e ) {
          throw new BitcoinException("failed to calculate hash for transaction",e);
       }
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.ScriptFactory;
+import it.nibbles.javacoin.ScriptFragment;
+import it.nibbles.javacoin.net.BitcoinInputStream;
+import it.nibbles.javacoin.net.BitcoinOutputStream;
+import java.io.IOException;
+
+/**
+ * An output of the best chain which is not yet claimed by any input. It
+ * holds everything needed to verify an input claiming it, so the referenced
+ * transaction does not have to be loaded from the storage.
+ *
+ * @author Alessandro Polverini
+ */
+public class UnspentOutput
+{
+
+   private OutPoint outPoint;
+   private long value;
+   private ScriptFragment script;
+   private int height;
+   private boolean coinbase;
+
+   public UnspentOutput(OutPoint outPoint, long value, ScriptFragment script, int height, boolean coinbase)
+   {
+      this.outPoint = outPoint;
+      this.value = value;
+      this.script = script;
+      this.height = height;
+      this.coinbase = coinbase;
+   }
+
+   public OutPoint getOutPoint()
+   {
+      return outPoint;
+   }
+
+   public long getValue()
+   {
+      return value;
+   }
+
+   public ScriptFragment getScript()
+   {
+      return script;
+   }
+
+   /**
+    * @return The height of the block containing the transaction of this output.
+    */
+   public int getHeight()
+   {
+      return height;
+   }
+
+   /**
+    * @return True if the output belongs to a coinbase transaction, so
+    * maturity rules apply to it.
+    */
+   public boolean isCoinbase()
+   {
+      return coinbase;
+   }
+
+   /**
+    * Serialize this output, it can be read back with {@link #read(BitcoinInputStream, ScriptFactory)}.
+    */
+   public void write(BitcoinOutputStream output)
+      throws IOException
+   {
+      output.writeUIntVar(outPoint.getTxHash().length);
+      output.write(outPoint.getTxHash());
+      output.writeUIntVar(outPoint.getIndex());
+      output.writeUInt64(value);
+      output.writeUInt32(height);
+      output.write(coinbase ? 1 : 0);
+      byte[] scriptBytes = script == null ? new byte[0] : script.toByteArray();
+      output.writeUIntVar(scriptBytes.length);
+      output.write(scriptBytes);
+   }
+
+   /**
+    * Read an output serialized with {@link #write(BitcoinOutputStream)}.
+    */
+   public static UnspentOutput read(BitcoinInputStream input, ScriptFactory scriptFactory)
+      throws IOException
+   {
+      OutPoint outPoint = new OutPoint(input.readBytes(), input.readUIntVar());
+      long value = input.readUInt64();
+      int height = (int) input.readUInt32();
+      boolean coinbase = input.readU() != 0;
+      ScriptFragment script = scriptFactory.createFragment(input.readBytes());
+      return new UnspentOutput(outPoint, value, script, height, coinbase);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "UnspentOutput[" + outPoint + ", value=" + value + ", height=" + height + (coinbase ? ", coinbase" : "") + "]";
+   }
+}
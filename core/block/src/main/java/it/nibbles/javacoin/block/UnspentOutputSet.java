@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.Block;
+import it.nibbles.javacoin.ScriptFactory;
+import it.nibbles.javacoin.Transaction;
+import it.nibbles.javacoin.TransactionInput;
+import it.nibbles.javacoin.TransactionOutput;
+import it.nibbles.javacoin.VerificationException;
+import it.nibbles.javacoin.net.BitcoinInputStream;
+import it.nibbles.javacoin.net.BitcoinOutputStream;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The set of unspent outputs of the best chain, kept in memory. Inputs of a
+ * block extending the tip of the set can be resolved with a single lookup,
+ * without loading the claimed transactions and without walking the branch
+ * in the storage to check whether they are already claimed.<br>
+ * Blocks are connected and disconnected atomically: either all the changes
+ * of a block are applied or none is. Lookups can be done concurrently by the
+ * transaction verifiers, changes are serialized.
+ *
+ * @author Alessandro Polverini
+ */
+public class UnspentOutputSet
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(UnspentOutputSet.class);
+   private static final long SNAPSHOT_VERSION = 1;
+   private Map<OutPoint, UnspentOutput> outputs = new ConcurrentHashMap<>();
+   private volatile byte[] tipHash = null;
+   private volatile int tipHeight = -1;
+
+   /**
+    * Get an unspent output of the best chain.
+    *
+    * @return The output, or null if it does not exist or it is already spent.
+    */
+   public UnspentOutput getUnspentOutput(byte[] txHash, long index)
+   {
+      return outputs.get(new OutPoint(txHash, index));
+   }
+
+   /**
+    * @return True if the given link is the last block connected to this set,
+    * so the set represents exactly the outputs available to its children.
+    */
+   public boolean isTip(BlockChainLink link)
+   {
+      byte[] hash = tipHash;
+      return hash != null && link != null && Arrays.equals(hash, link.getBlock().getHash());
+   }
+
+   public byte[] getTipHash()
+   {
+      return tipHash;
+   }
+
+   public int getTipHeight()
+   {
+      return tipHeight;
+   }
+
+   public int size()
+   {
+      return outputs.size();
+   }
+
+   /**
+    * Connect a block to the tip of the set: outputs claimed by the inputs of
+    * the block are removed and the outputs of its transactions are added. If
+    * any input claims an output that is missing or already spent (also inside
+    * the same block) nothing is changed.
+    *
+    * @param block The block to connect, its parent must be the current tip
+    * (if the set is not empty).
+    * @param height The height of the block.
+    * @return The outputs spent by the block, in input order. They are needed to
+    * disconnect the block later.
+    * @throws VerificationException If an input refers to an unavailable output.
+    */
+   public synchronized List<UnspentOutput> connectBlock(Block block, int height)
+      throws VerificationException
+   {
+      if (tipHash != null && !Arrays.equals(tipHash, block.getPreviousBlockHash()))
+         throw new VerificationException("block " + BtcUtil.hexOut(block.getHash()) + " does not extend the tip of the unspent output set: "
+            + BtcUtil.hexOut(tipHash));
+      List<UnspentOutput> spent = new ArrayList<>();
+      Set<OutPoint> spentKeys = new HashSet<>();
+      Map<OutPoint, UnspentOutput> created = new HashMap<>();
+      for (Transaction tx : block.getTransactions())
+      {
+         if (!tx.isCoinbase())
+            for (TransactionInput in : tx.getInputs())
+            {
+               OutPoint key = new OutPoint(in.getClaimedTransactionHash(), in.getClaimedOutputIndex());
+               if (created.remove(key) != null)
+                  continue; // Created and spent in this same block
+               UnspentOutput out = spentKeys.contains(key) ? null : outputs.get(key);
+               if (out == null)
+                  throw new VerificationException("Block: " + BtcUtil.hexOut(block.getHash()) + " Tx: " + BtcUtil.hexOut(tx.getHash())
+                     + " claims output " + key + " which does not exist or is already spent");
+               spentKeys.add(key);
+               spent.add(out);
+            }
+         int index = 0;
+         for (TransactionOutput out : tx.getOutputs())
+         {
+            OutPoint key = new OutPoint(tx.getHash(), index++);
+            created.put(key, new UnspentOutput(key, out.getValue(), out.getScript(), height, tx.isCoinbase()));
+         }
+      }
+      // Everything checked, now apply
+      for (OutPoint key : spentKeys)
+         outputs.remove(key);
+      outputs.putAll(created);
+      tipHash = block.getHash();
+      tipHeight = height;
+      logger.debug("connected block {} at height {}, spent {} outputs, unspent outputs now: {}",
+         new Object[]
+         {
+            BtcUtil.hexOut(block.getHash()), height, spent.size(), outputs.size()
+         });
+      return spent;
+   }
+
+   /**
+    * Disconnect the tip of the set, restoring the state before the block was
+    * connected.
+    *
+    * @param block The block to disconnect, it must be the current tip.
+    * @param spentOutputs The outputs that were spent by the block, as returned
+    * by {@link #connectBlock(Block, int)}.
+    */
+   public synchronized void disconnectBlock(Block block, List<UnspentOutput> spentOutputs)
+   {
+      if (!Arrays.equals(tipHash, block.getHash()))
+         throw new IllegalStateException("block " + BtcUtil.hexOut(block.getHash()) + " is not the tip of the unspent output set");
+      for (Transaction tx : block.getTransactions())
+         for (int index = 0; index < tx.getOutputs().size(); index++)
+            outputs.remove(new OutPoint(tx.getHash(), index));
+      for (ListIterator<UnspentOutput> it = spentOutputs.listIterator(spentOutputs.size()); it.hasPrevious();)
+      {
+         UnspentOutput out = it.previous();
+         outputs.put(out.getOutPoint(), out);
+      }
+      tipHash = block.getPreviousBlockHash();
+      tipHeight--;
+      logger.debug("disconnected block {}, unspent outputs now: {}", BtcUtil.hexOut(block.getHash()), outputs.size());
+   }
+
+   /**
+    * Take a snapshot of all the outputs of the set together with its tip, so
+    * the set can be restored later without connecting all the blocks again.
+    * Only the references to the outputs are copied while the set is locked,
+    * they are serialized by the returned writer, which can run in another
+    * thread while blocks are connected and disconnected.
+    * @return The writer of the snapshot, to be read back with
+    * {@link #loadSnapshot(InputStream, ScriptFactory)}.
+    * @throws IllegalStateException If no block is connected to the set.
+    */
+   public synchronized BlockChainLinkStorage.SnapshotWriter createSnapshot()
+   {
+      if (tipHash == null)
+         throw new IllegalStateException("can not take a snapshot of an empty unspent output set");
+      final byte[] hash = tipHash;
+      final int height = tipHeight;
+      final UnspentOutput[] snapshot = outputs.values().toArray(new UnspentOutput[outputs.size()]);
+      return new BlockChainLinkStorage.SnapshotWriter()
+      {
+         @Override
+         public void writeTo(OutputStream stream)
+            throws IOException
+         {
+            BitcoinOutputStream output = new BitcoinOutputStream(stream);
+            output.writeUInt32(SNAPSHOT_VERSION);
+            output.writeUIntVar(hash.length);
+            output.write(hash);
+            output.writeUInt32(height);
+            output.writeUIntVar(snapshot.length);
+            for (UnspentOutput out : snapshot)
+               out.write(output);
+            output.flush();
+         }
+      };
+   }
+
+   /**
+    * Replace the content of the set with a snapshot.
+    * @param snapshot The stream of the snapshot, as written by {@link #createSnapshot()}.
+    * @param scriptFactory The factory to rebuild the output scripts with.
+    * @throws IOException If the snapshot can not be read, the set is left empty.
+    */
+   public synchronized void loadSnapshot(InputStream snapshot, ScriptFactory scriptFactory)
+      throws IOException
+   {
+      clear();
+      try
+      {
+         BitcoinInputStream input = new BitcoinInputStream(snapshot);
+         long version = input.readUInt32();
+         if (version != SNAPSHOT_VERSION)
+            throw new IOException("unknown unspent output snapshot version: " + version);
+         byte[] hash = input.readBytes();
+         int height = (int) input.readUInt32();
+         long count = input.readUIntVar();
+         for (long i = 0; i < count; i++)
+         {
+            UnspentOutput out = UnspentOutput.read(input, scriptFactory);
+            outputs.put(out.getOutPoint(), out);
+         }
+         tipHash = hash;
+         tipHeight = height;
+      } catch (IOException | RuntimeException e)
+      {
+         clear();
+         throw e;
+      }
+      logger.debug("loaded snapshot of {} unspent outputs at height {}", outputs.size(), tipHeight);
+   }
+
+   /**
+    * Empty the set. It will not be used until blocks are connected again
+    * starting from the genesis block.
+    */
+   public synchronized void clear()
+   {
+      outputs.clear();
+      tipHash = null;
+      tipHeight = -1;
+   }
+}
@@ -0,0 +1,623 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.Block;
+import it.nibbles.javacoin.Transaction;
+import it.nibbles.javacoin.TransactionInput;
+import it.nibbles.javacoin.block.BlockChainLink;
+import it.nibbles.javacoin.block.BlockChainLinkStorage;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.HashWrapper;
+import it.nibbles.javacoin.block.TransactionImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A storage keeping the results of another storage in memory, so the same
+ * blocks asked for again and again, like the last blocks of the chain or the
+ * blocks with transactions recently claimed, do not go to the database every
+ * time. It can be put in front of any storage.<br>
+ * Stored blocks never change, so headers, complete blocks, the hash, previous
+ * hash and height of blocks, and transactions with the block containing them
+ * are kept until the least recently used ones are removed to make room. The
+ * blocks added are kept with their transactions, as they are the ones most
+ * likely to be asked for and claimed soon. Whether a block is reachable from another one is answered
+ * walking the previous hashes of the kept blocks, if they are all there. Only
+ * the last link and the blocks of the main chain at given heights can change,
+ * when a link is added: they are updated if the link extends the main chain,
+ * and forgotten if it may have changed the branch of the main chain. Each such
+ * change counts a new version of the main chain, and results read from the
+ * storage are only kept if no link changed the main chain meanwhile.<br>
+ * Lookups returning nothing are never kept, so adding a link does not make any
+ * other kept result wrong. The statistics of every cache can be read to
+ * choose its size.
+ *
+ * @author Alessandro Polverini
+ */
+public class CachingChainLinkStorage implements BlockChainLinkStorage
+{
+
+   public static final int DEFAULT_LINK_CACHE_SIZE = 500;
+   public static final int DEFAULT_HEADER_CACHE_SIZE = 20000;
+   public static final int DEFAULT_BLOCK_CACHE_SIZE = 100000;
+   public static final int DEFAULT_TRANSACTION_CACHE_SIZE = 100000;
+   // Most previous hashes followed to tell whether a block is reachable
+   private static final int MAX_REACHABLE_STEPS = 2016;
+   private final BlockChainLinkStorage storage;
+   private final Cache<HashWrapper, BlockChainLink> links;
+   private final Cache<HashWrapper, BlockChainLink> headers;
+   private final Cache<HashWrapper, SimplifiedStoredBlock> blocks;
+   private final Cache<HashWrapper, StoredTransaction> transactions;
+   private final Cache<Long, byte[]> mainChain;
+   private volatile BlockChainLink genesisLink;
+   private volatile BlockChainLink lastLink;
+   // Changed with the lock held every time the main chain may change
+   private volatile long mainChainVersion = 0;
+
+   public CachingChainLinkStorage(BlockChainLinkStorage storage)
+   {
+      this(storage, DEFAULT_LINK_CACHE_SIZE, DEFAULT_HEADER_CACHE_SIZE, DEFAULT_BLOCK_CACHE_SIZE,
+              DEFAULT_TRANSACTION_CACHE_SIZE);
+   }
+
+   /**
+    * @param storage The storage to keep the results of.
+    * @param linkCacheSize The maximum number of complete blocks to keep.
+    * @param headerCacheSize The maximum number of block headers to keep.
+    * @param blockCacheSize The maximum number of hashes, previous hashes and
+    * heights of blocks to keep, also used for the main chain.
+    * @param transactionCacheSize The maximum number of transactions to keep.
+    */
+   public CachingChainLinkStorage(BlockChainLinkStorage storage, int linkCacheSize, int headerCacheSize,
+           int blockCacheSize, int transactionCacheSize)
+   {
+      this.storage = storage;
+      links = new Cache<>("links", linkCacheSize);
+      headers = new Cache<>("headers", headerCacheSize);
+      blocks = new Cache<>("blocks", blockCacheSize);
+      transactions = new Cache<>("transactions", transactionCacheSize);
+      mainChain = new Cache<>("main chain", blockCacheSize);
+   }
+
+   /**
+    * @return The storage the results are kept of.
+    */
+   public BlockChainLinkStorage getStorage()
+   {
+      return storage;
+   }
+
+   @Override
+   public synchronized void addLink(BlockChainLink link)
+   {
+      BlockChainLink top = lastLink;
+      storage.addLink(link);
+      HashWrapper key = new HashWrapper(link.getBlock().getHash());
+      links.put(key, remember(link));
+      BlockChainLink header = createHeaderLink(link, null);
+      if (header != null)
+         headers.put(key, header);
+      if (link.getBlock().getTransactions() != null)
+         for (Transaction tx : link.getBlock().getTransactions())
+            if (tx instanceof TransactionImpl)
+               transactions.put(new HashWrapper(tx.getHash()),
+                       new StoredTransaction(link.getBlock().getHash(), (TransactionImpl) tx));
+      if ((top == null) || (link.getTotalDifficulty().compareTo(top.getTotalDifficulty()) > 0))
+      {
+         // The main chain is still the same one if the link extends it
+         if ((top != null) && (Arrays.equals(link.getBlock().getPreviousBlockHash(), top.getBlock().getHash())))
+         {
+            mainChain.put((long) link.getHeight(), link.getBlock().getHash());
+            lastLink = link;
+         } else
+         {
+            mainChain.clear();
+            lastLink = null;
+         }
+         mainChainVersion++;
+      }
+   }
+
+   @Override
+   public BlockChainLink getGenesisLink()
+   {
+      BlockChainLink link = genesisLink;
+      if (link == null)
+      {
+         link = storage.getGenesisLink();
+         if (link != null)
+            genesisLink = remember(link);
+      }
+      return link;
+   }
+
+   @Override
+   public BlockChainLink getLastLink()
+   {
+      BlockChainLink link = lastLink;
+      if (link == null)
+      {
+         long version = mainChainVersion;
+         link = storage.getLastLink();
+         if (link != null)
+         {
+            remember(link);
+            synchronized (this)
+            {
+               if (version == mainChainVersion)
+                  lastLink = link;
+            }
+         }
+      }
+      return link;
+   }
+
+   @Override
+   public int getHeight()
+   {
+      BlockChainLink link = lastLink;
+      return link == null ? storage.getHeight() : link.getHeight();
+   }
+
+   @Override
+   public BlockChainLink getLink(byte[] hash)
+   {
+      HashWrapper key = new HashWrapper(hash);
+      BlockChainLink link = links.get(key);
+      if (link == null)
+      {
+         link = storage.getLink(hash);
+         if (link != null)
+            links.put(key, remember(link));
+      }
+      return link;
+   }
+
+   @Override
+   public boolean blockExists(byte[] hash)
+   {
+      return (blocks.peek(new HashWrapper(hash)) != null) || (storage.blockExists(hash));
+   }
+
+   @Override
+   public BlockChainLink getLinkBlockHeader(byte[] hash)
+   {
+      HashWrapper key = new HashWrapper(hash);
+      BlockChainLink link = headers.get(key);
+      if (link != null)
+         return link;
+      link = links.peek(key);
+      if (link != null)
+         link = createHeaderLink(link, null);
+      else
+         link = storage.getLinkBlockHeader(hash);
+      if (link != null)
+         headers.put(key, remember(link));
+      return link;
+   }
+
+   @Override
+   public BlockChainLink getCommonLink(byte[] first, byte[] second)
+   {
+      return remember(storage.getCommonLink(first, second));
+   }
+
+   @Override
+   public boolean isReachable(byte[] target, byte[] source)
+   {
+      SimplifiedStoredBlock targetBlock = blocks.peek(new HashWrapper(target));
+      SimplifiedStoredBlock sourceBlock = blocks.peek(new HashWrapper(source));
+      if ((targetBlock != null) && (sourceBlock != null))
+      {
+         Boolean reachable = isReachable(targetBlock, sourceBlock);
+         if (reachable != null)
+            return reachable;
+      }
+      return storage.isReachable(target, source);
+   }
+
+   @Override
+   public BlockChainLink getClaimedLink(BlockChainLink link, TransactionInput in)
+   {
+      StoredTransaction stored = getClaimedTransaction(link, in);
+      if (stored != null)
+      {
+         BlockChainLink claimedLink = getLink(stored.blockHash);
+         if (claimedLink != null)
+            return claimedLink;
+      }
+      return remember(storage.getClaimedLink(link, in));
+   }
+
+   @Override
+   public BlockChainLink getPartialClaimedLink(BlockChainLink link, TransactionInput in)
+   {
+      StoredTransaction stored = getClaimedTransaction(link, in);
+      if (stored != null)
+      {
+         BlockChainLink header = getLinkBlockHeader(stored.blockHash);
+         if (header != null)
+         {
+            BlockChainLink claimedLink = createHeaderLink(header, Collections.singletonList(stored.transaction));
+            if (claimedLink != null)
+               return claimedLink;
+         }
+      }
+      BlockChainLink claimedLink = storage.getPartialClaimedLink(link, in);
+      if (claimedLink != null)
+      {
+         remember(claimedLink);
+         for (Transaction tx : claimedLink.getBlock().getTransactions())
+            if ((tx instanceof TransactionImpl) && (Arrays.equals(tx.getHash(), in.getClaimedTransactionHash())))
+               transactions.put(new HashWrapper(tx.getHash()),
+                       new StoredTransaction(claimedLink.getBlock().getHash(), (TransactionImpl) tx));
+      }
+      return claimedLink;
+   }
+
+   @Override
+   public BlockChainLink getClaimerLink(BlockChainLink link, TransactionInput in)
+   {
+      return remember(storage.getClaimerLink(link, in));
+   }
+
+   @Override
+   public boolean outputClaimedInSameBranch(BlockChainLink link, TransactionInput in)
+   {
+      return storage.outputClaimedInSameBranch(link, in);
+   }
+
+   @Override
+   public byte[] getHashOfMainChainAtHeight(long height)
+   {
+      byte[] hash = mainChain.get(height);
+      if (hash == null)
+      {
+         long version = mainChainVersion;
+         hash = storage.getHashOfMainChainAtHeight(height);
+         if (hash != null)
+            putMainChain(version, height, hash);
+      }
+      return hash;
+   }
+
+   @Override
+   public BlockChainLink getLinkAtHeight(long height)
+   {
+      byte[] hash = mainChain.get(height);
+      if (hash != null)
+         return getLink(hash);
+      long version = mainChainVersion;
+      BlockChainLink link = storage.getLinkAtHeight(height);
+      if (link != null)
+      {
+         links.put(new HashWrapper(link.getBlock().getHash()), remember(link));
+         putMainChain(version, height, link.getBlock().getHash());
+      }
+      return link;
+   }
+
+   @Override
+   public void storeUndoData(byte[] hash, byte[] undoData)
+   {
+      storage.storeUndoData(hash, undoData);
+   }
+
+   @Override
+   public byte[] getUndoData(byte[] hash)
+   {
+      return storage.getUndoData(hash);
+   }
+
+   @Override
+   public boolean hasUndoData(byte[] hash)
+   {
+      return storage.hasUndoData(hash);
+   }
+
+   @Override
+   public void storeUnspentOutputSnapshot(SnapshotWriter writer)
+      throws IOException
+   {
+      storage.storeUnspentOutputSnapshot(writer);
+   }
+
+   @Override
+   public InputStream getUnspentOutputSnapshot()
+   {
+      return storage.getUnspentOutputSnapshot();
+   }
+
+   /**
+    * Forget all the kept results, for example if the storage was changed
+    * directly.
+    */
+   public synchronized void clear()
+   {
+      links.clear();
+      headers.clear();
+      blocks.clear();
+      transactions.clear();
+      mainChain.clear();
+      genesisLink = null;
+      lastLink = null;
+      mainChainVersion++;
+   }
+
+   public Cache<HashWrapper, BlockChainLink> getLinkCache()
+   {
+      return links;
+   }
+
+   public Cache<HashWrapper, BlockChainLink> getHeaderCache()
+   {
+      return headers;
+   }
+
+   public Cache<HashWrapper, SimplifiedStoredBlock> getBlockCache()
+   {
+      return blocks;
+   }
+
+   public Cache<HashWrapper, StoredTransaction> getTransactionCache()
+   {
+      return transactions;
+   }
+
+   public Cache<Long, byte[]> getMainChainCache()
+   {
+      return mainChain;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "CachingChainLinkStorage[" + links + " " + headers + " " + blocks + " " + transactions + " " + mainChain + "]";
+   }
+
+   /**
+    * Keep the hash of the block of the main chain at a height read from the
+    * storage, unless a link changed the main chain since the given version.
+    */
+   private synchronized void putMainChain(long version, long height, byte[] hash)
+   {
+      if (version == mainChainVersion)
+         mainChain.put(height, hash);
+   }
+
+   /**
+    * Keep the hash, previous hash and height of the block of a link.
+    */
+   private BlockChainLink remember(BlockChainLink link)
+   {
+      if (link != null)
+         blocks.put(new HashWrapper(link.getBlock().getHash()), new SimplifiedStoredBlock(link));
+      return link;
+   }
+
+   /**
+    * Find the kept transaction claimed by an input in the branch of the given
+    * link, the same way the storage does.
+    *
+    * @return The transaction with the block containing it, or null if it is
+    * not kept or it is not known whether its block is in the branch.
+    */
+   private StoredTransaction getClaimedTransaction(BlockChainLink link, TransactionInput in)
+   {
+      StoredTransaction stored = transactions.get(new HashWrapper(in.getClaimedTransactionHash()));
+      if (stored == null)
+         return null;
+      SimplifiedStoredBlock block = blocks.peek(new HashWrapper(stored.blockHash));
+      if ((block == null) || (block.height > link.getHeight()))
+         return null;
+      return Boolean.TRUE.equals(isReachable(new SimplifiedStoredBlock(link), block)) ? stored : null;
+   }
+
+   /**
+    * Tell whether two blocks are in the same branch following the previous
+    * hashes of the kept blocks, like the storage does.
+    *
+    * @return Whether one block is reachable from the other, or null if a
+    * block in between is not kept or they are too far apart.
+    */
+   private Boolean isReachable(SimplifiedStoredBlock target, SimplifiedStoredBlock source)
+   {
+      if (source.equals(target))
+         return true;
+      if (target.height == source.height)
+         return false;
+      if (target.height < source.height)
+      {
+         SimplifiedStoredBlock tmp = source;
+         source = target;
+         target = tmp;
+      }
+      if (target.height - source.height > MAX_REACHABLE_STEPS)
+         return null;
+      SimplifiedStoredBlock block = target;
+      while (block.height > source.height)
+      {
+         block = blocks.peek(new HashWrapper(block.prevBlockHash));
+         if (block == null)
+            return null;
+      }
+      return block.equals(source);
+   }
+
+   /**
+    * Create a link with the header of the given one and the given transactions.
+    *
+    * @return The new link, or null if it could not be created.
+    */
+   private BlockChainLink createHeaderLink(BlockChainLink link, List<TransactionImpl> txs)
+   {
+      Block block = link.getBlock();
+      try
+      {
+         return new BlockChainLink(new BlockImpl(txs, block.getCreationTime(), block.getNonce(),
+                 block.getCompressedTarget(), block.getPreviousBlockHash(), block.getMerkleRoot(),
+                 block.getHash(), block.getVersion()), link.getTotalDifficulty(), link.getHeight());
+      } catch (BitcoinException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * A transaction with the hash of the block containing it.
+    */
+   public static class StoredTransaction
+   {
+
+      private final byte[] blockHash;
+      private final TransactionImpl transaction;
+
+      private StoredTransaction(byte[] blockHash, TransactionImpl transaction)
+      {
+         this.blockHash = blockHash;
+         this.transaction = transaction;
+      }
+
+      public byte[] getBlockHash()
+      {
+         return blockHash;
+      }
+
+      public TransactionImpl getTransaction()
+      {
+         return transaction;
+      }
+   }
+
+   /**
+    * Keeps at most a given number of values, removing the least recently used
+    * ones first, and counts how many lookups found their value. It can be used
+    * by any number of threads at once.
+    */
+   public static class Cache<K, V>
+   {
+
+      private final String name;
+      private final int maxSize;
+      private final Map<K, V> entries;
+      private long hits = 0;
+      private long misses = 0;
+
+      private Cache(String name, final int maxSize)
+      {
+         this.name = name;
+         this.maxSize = maxSize;
+         entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+         {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+               return size() > maxSize;
+            }
+         };
+      }
+
+      /**
+       * Get a value counting the lookup in the statistics.
+       */
+      private synchronized V get(K key)
+      {
+         V value = entries.get(key);
+         if (value == null)
+            misses++;
+         else
+            hits++;
+         return value;
+      }
+
+      /**
+       * Get a value without counting the lookup, for lookups which are not
+       * done in the storage if the value is missing.
+       */
+      private synchronized V peek(K key)
+      {
+         return entries.get(key);
+      }
+
+      private synchronized void put(K key, V value)
+      {
+         entries.put(key, value);
+      }
+
+      private synchronized void clear()
+      {
+         entries.clear();
+      }
+
+      public synchronized int size()
+      {
+         return entries.size();
+      }
+
+      public int getMaxSize()
+      {
+         return maxSize;
+      }
+
+      /**
+       * @return The number of lookups which found the value.
+       */
+      public synchronized long getHits()
+      {
+         return hits;
+      }
+
+      /**
+       * @return The number of lookups which went to the storage.
+       */
+      public synchronized long getMisses()
+      {
+         return misses;
+      }
+
+      /**
+       * @return The fraction of lookups which found the value, or zero if
+       * there were none.
+       */
+      public synchronized double getHitRate()
+      {
+         long total = hits + misses;
+         return total == 0 ? 0 : (double) hits / total;
+      }
+
+      public synchronized void resetStatistics()
+      {
+         hits = 0;
+         misses = 0;
+      }
+
+      @Override
+      public synchronized String toString()
+      {
+         return name + "[size: " + entries.size() + "/" + maxSize + " hits: " + hits + " misses: " + misses
+                 + " hit rate: " + Math.round(getHitRate() * 100) + "%]";
+      }
+   }
+}
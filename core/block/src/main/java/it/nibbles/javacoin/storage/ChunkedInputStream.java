@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream reading back the chunks written by a {@link ChunkedOutputStream},
+ * loading one chunk at a time from a source.
+ *
+ * @author Alessandro Polverini
+ */
+public class ChunkedInputStream extends InputStream
+{
+
+   /**
+    * Loads the chunks of a stream.
+    */
+   public interface ChunkSource
+   {
+      /**
+       * @param seq The position of the chunk in the stream, starting from zero.
+       * @return The data of the chunk, or null after the last one.
+       */
+      byte[] load(int seq)
+         throws IOException;
+   }
+
+   private final ChunkSource source;
+   private byte[] chunk = new byte[0];
+   private int position = 0;
+   private int seq = 0;
+
+   public ChunkedInputStream(ChunkSource source)
+   {
+      this.source = source;
+   }
+
+   @Override
+   public int read()
+      throws IOException
+   {
+      if (!nextChunk())
+         return -1;
+      return chunk[position++] & 0xff;
+   }
+
+   @Override
+   public int read(byte[] data, int offset, int length)
+      throws IOException
+   {
+      if (length == 0)
+         return 0;
+      if (!nextChunk())
+         return -1;
+      int part = Math.min(length, chunk.length - position);
+      System.arraycopy(chunk, position, data, offset, part);
+      position += part;
+      return part;
+   }
+
+   @Override
+   public int available()
+   {
+      return chunk == null ? 0 : chunk.length - position;
+   }
+
+   /**
+    * Make sure there is data left in the current chunk, loading the next ones
+    * if needed.
+    * @return False at the end of the stream.
+    */
+   private boolean nextChunk()
+      throws IOException
+   {
+      while ((chunk != null) && (position == chunk.length))
+      {
+         chunk = source.load(seq++);
+         position = 0;
+      }
+      return chunk != null;
+   }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A stream cutting the data written to it in chunks of a fixed size, handed
+ * one at a time to a sink, so storages can keep data of any length in records
+ * of a bounded size. The last chunk, possibly shorter, is handed over when
+ * the stream is closed.
+ *
+ * @author Alessandro Polverini
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+
+   /**
+    * Stores the chunks of a stream.
+    */
+   public interface ChunkSink
+   {
+      /**
+       * @param seq The position of the chunk in the stream, starting from zero.
+       * @param chunk The data of the chunk.
+       */
+      void store(int seq, byte[] chunk)
+         throws IOException;
+   }
+
+   private final ChunkSink sink;
+   private final byte[] buffer;
+   private int length = 0;
+   private int count = 0;
+   private boolean closed = false;
+
+   public ChunkedOutputStream(int chunkSize, ChunkSink sink)
+   {
+      this.sink = sink;
+      buffer = new byte[chunkSize];
+   }
+
+   /**
+    * @return The number of chunks handed to the sink.
+    */
+   public int getChunkCount()
+   {
+      return count;
+   }
+
+   @Override
+   public void write(int b)
+      throws IOException
+   {
+      if (length == buffer.length)
+         storeChunk();
+      buffer[length++] = (byte) b;
+   }
+
+   @Override
+   public void write(byte[] data, int offset, int dataLength)
+      throws IOException
+   {
+      while (dataLength > 0)
+      {
+         if (length == buffer.length)
+            storeChunk();
+         int part = Math.min(dataLength, buffer.length - length);
+         System.arraycopy(data, offset, buffer, length, part);
+         length += part;
+         offset += part;
+         dataLength -= part;
+      }
+   }
+
+   @Override
+   public void close()
+      throws IOException
+   {
+      if (closed)
+         return;
+      closed = true;
+      if (length > 0)
+         storeChunk();
+   }
+
+   private void storeChunk()
+      throws IOException
+   {
+      sink.store(count++, Arrays.copyOf(buffer, length));
+      length = 0;
+   }
+}
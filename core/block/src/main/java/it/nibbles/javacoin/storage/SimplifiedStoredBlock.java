@@ -41,6 +41,13 @@ public class SimplifiedStoredBlock implements Comparable<SimplifiedStoredBlock>
       //chainWork = b.getTotalDifficulty().getDifficulty();
    }
 
+   public SimplifiedStoredBlock(byte[] hash, byte[] prevBlockHash, int height)
+   {
+      this.hash = hash;
+      this.prevBlockHash = prevBlockHash;
+      this.height = height;
+   }
+
    public SimplifiedStoredBlock(ResultSet rs) throws SQLException
    {
       hash = rs.getBytes("hash");
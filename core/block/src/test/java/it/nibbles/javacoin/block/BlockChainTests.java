@@ -31,6 +31,7 @@ import org.testng.annotations.DataProvider;
 import org.easymock.EasyMock;
 import org.easymock.Capture;
 import org.testng.Assert;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -51,11 +52,14 @@ public class BlockChainTests
       Script script = EasyMock.createMock(Script.class);
       EasyMock.expect(script.execute((TransactionInput)EasyMock.anyObject())).
          andReturn(successful).anyTimes();
+      EasyMock.expect(script.isValidBip16()).andReturn(false).anyTimes();
       EasyMock.replay(script);
       ScriptFactory scriptFactory = EasyMock.createMock(ScriptFactory.class);
       EasyMock.expect(scriptFactory.createScript(
                (ScriptFragment) EasyMock.anyObject(), (ScriptFragment) EasyMock.anyObject())).
          andReturn(script).anyTimes();
+      EasyMock.expect(scriptFactory.createFragment((byte[]) EasyMock.anyObject())).
+         andReturn(null).anyTimes();
       EasyMock.replay(scriptFactory);
       return scriptFactory;
    }
@@ -1106,4 +1110,531 @@ public class BlockChainTests
             storage.getLink(new byte[] { 03 }).getBlock());
       Assert.assertNull(commonBlock);
    }
+
+   public void testReorganization()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+ // Best chain
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 06;"+ // Side branch spending the same output
+            "   tx 123458 990106 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990107 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      final List<Block> connected = new ArrayList<>();
+      final List<Block> disconnected = new ArrayList<>();
+      chain.setListener(new BlockChainListener() {
+         @Override
+         public void notifyMissingBlock(byte[] blockHash)
+         {
+         }
+
+         @Override
+         public void notifyAddedBlock(Block block)
+         {
+         }
+
+         @Override
+         public void notifyConnectedBlock(Block block)
+         {
+            connected.add(block);
+         }
+
+         @Override
+         public void notifyDisconnectedBlock(Block block)
+         {
+            disconnected.add(block);
+         }
+      });
+      // This block makes the side branch the longest, and it spends an output
+      // only existing in the side branch
+      Block block = BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 06 010203 07;"+
+            "   tx 1234569 990108 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990109 false;"+
+            "      in 990107 0 999;"+
+            "      out 2000000;");
+      chain.addBlock(block);
+      Assert.assertEquals(storage.getNewLinks().size(),1);
+      Assert.assertEquals(disconnected.size(),1);
+      Assert.assertEquals(disconnected.get(0).getHash(),new byte[] { 02 });
+      Assert.assertEquals(connected.size(),2);
+      Assert.assertEquals(connected.get(0).getHash(),new byte[] { 06 });
+      Assert.assertEquals(connected.get(1).getHash(),new byte[] { 07 });
+   }
+
+   public void testHeadersFirst()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      // Add the headers of the next two blocks
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234569 1 1b0404cb 02 010203 03;")));
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234570 1 1b0404cb 03 010203 04;")));
+      Assert.assertFalse(chain.addBlockHeader(BlockMock.createBlock("block 1234570 1 1b0404cb 03 010203 04;")));
+      Assert.assertEquals(chain.getHeaderHeight(),3);
+      Assert.assertEquals(chain.getHeight(),1);
+      List<byte[]> missing = chain.getMissingBlocks(10);
+      Assert.assertEquals(missing.size(),2);
+      Assert.assertEquals(missing.get(0),new byte[] { 03 });
+      Assert.assertEquals(missing.get(1),new byte[] { 04 });
+      Assert.assertEquals(chain.getMissingBlocks(1).size(),1);
+      // The last block can not be added before its parent
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234570 1 1b0404cb 03 010203 04;"+
+            "   tx 1234570 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),0);
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990103 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),2);
+      Assert.assertTrue(chain.getMissingBlocks(10).isEmpty());
+   }
+
+   public void testInvalidateBlock()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      // Two header branches, the longer one is going to be invalid
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234569 1 1b0404cb 02 010203 03;")));
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234570 1 1b0404cb 03 010203 04;")));
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234571 1 1b0404cb 02 010203 05;")));
+      Assert.assertEquals(chain.getHeaderHeight(),3);
+      chain.invalidateBlock(new byte[] { 03 });
+      Assert.assertEquals(chain.getHeaderHeight(),2);
+      List<byte[]> missing = chain.getMissingBlocks(10);
+      Assert.assertEquals(missing.size(),1);
+      Assert.assertEquals(missing.get(0),new byte[] { 05 });
+      // Neither the invalid block nor anything built on it gets in again
+      try
+      {
+         chain.addBlockHeader(BlockMock.createBlock("block 1234572 1 1b0404cb 04 010203 06;"));
+         Assert.fail("header on an invalid block was accepted");
+      } catch (VerificationException e)
+      {
+      }
+      try
+      {
+         chain.addBlock(BlockMock.createBlock(
+               "block 1234569 1 1b0404cb 02 010203 03;"+
+               "   tx 1234569 990103 true;"+ // Coinbase
+               "      in 00 -1 999;"+
+               "      out 5000000;"));
+         Assert.fail("invalid block was accepted");
+      } catch (VerificationException e)
+      {
+      }
+      Assert.assertEquals(storage.getNewLinks().size(),0);
+      Assert.assertEquals(chain.getHeaderHeight(),2);
+   }
+
+   public void testAssumeValidSkipsScripts()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+ // A normal tx spending money from genesis
+            "      in 990101 0 999;"+
+            "      out 2000000;"+
+            "      out 3000000;");
+      // All scripts fail
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(false));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234569 1 1b0404cb 02 010203 03;")));
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234570 1 1b0404cb 03 010203 04;")));
+      chain.setAssumeValidHash(new byte[] { 04 });
+      // An ancestor of the trusted block is added without running its scripts
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990105 false;"+ // Using some money
+            "      in 990103 0 999;"+
+            "      out 2000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),1);
+   }
+
+   @Test(expectedExceptions = VerificationException.class)
+   public void testAssumeValidChecksAmounts()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      Assert.assertTrue(chain.addBlockHeader(BlockMock.createBlock("block 1234568 1 1b0404cb 01 010203 02;")));
+      chain.setAssumeValidHash(new byte[] { 02 });
+      // Spending more than available is still found
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 1234568 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990105 false;"+
+            "      in 990101 0 999;"+
+            "      out 6000000;"));
+   }
+
+   public void testUnspentOutputSnapshot()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+ // A normal tx spending money from genesis
+            "      in 990101 0 999;"+
+            "      out 2000000;"+
+            "      out 3000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      chain.setSnapshotInterval(2);
+      chain.setSnapshotExecutor(Runnable::run);
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      Assert.assertNotNull(storage.getUnspentOutputSnapshot());
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234570 1 1b0404cb 03 010203 04;"+
+            "   tx 1234570 990105 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      // Start again from the snapshot at height 2 and the block after it
+      chain = new BlockChainImpl(factory, storage, false);
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234571 1 1b0404cb 04 010203 05;"+
+            "   tx 1234571 990106 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990107 false;"+ // Spending an output of the snapshot
+            "      in 990103 1 999;"+
+            "      out 2000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),3);
+      try
+      {
+         chain.addBlock(BlockMock.createBlock(
+               "block 1234572 1 1b0404cb 05 010203 06;"+
+               "   tx 1234572 990108 true;"+ // Coinbase
+               "      in 00 -1 999;"+
+               "      out 5000000;"+
+               "   tx 1234581 990109 false;"+ // Spending the same output again
+               "      in 990103 1 999;"+
+               "      out 2000000;"));
+         Assert.fail("output spent twice was accepted");
+      } catch (VerificationException e)
+      {
+         // Expected
+      }
+      Assert.assertEquals(storage.getNewLinks().size(),3);
+   }
+
+   private long verifyTransactionTemplate(String transaction, boolean scriptSuccess)
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+ // A normal tx spending money from genesis
+            "      in 990101 0 999;"+
+            "      out 2000000;"+
+            "      out 3000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(scriptSuccess));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      // The transaction is taken from a block which is never added
+      Block block = BlockMock.createBlock("block 1234569 1 1b0404cb 02 010203 03;"+transaction);
+      long fees = chain.verifyTransaction(block.getTransactions().get(0));
+      Assert.assertEquals(storage.getNewLinks().size(),0);
+      return fees;
+   }
+
+   public void testVerifyTransaction()
+      throws BitcoinException
+   {
+      Assert.assertEquals(verifyTransactionTemplate(
+            "   tx 1234580 990105 false;"+
+            "      in 990103 0 999;"+
+            "      in 990103 1 999;"+
+            "      out 4000000;",true),1000000);
+   }
+
+   @Test(expectedExceptions=VerificationException.class)
+   public void testVerifyTransactionWithWrongScript()
+      throws BitcoinException
+   {
+      verifyTransactionTemplate(
+            "   tx 1234580 990105 false;"+
+            "      in 990103 0 999;"+
+            "      out 2000000;",false);
+   }
+
+   @Test(expectedExceptions=VerificationException.class)
+   public void testVerifyTransactionSpendingSpentOutput()
+      throws BitcoinException
+   {
+      verifyTransactionTemplate(
+            "   tx 1234580 990105 false;"+
+            "      in 990101 0 999;"+ // Already spent by the second block
+            "      out 2000000;",true);
+   }
+
+   @Test(expectedExceptions=VerificationException.class)
+   public void testVerifyTransactionSpendingYoungCoinbase()
+      throws BitcoinException
+   {
+      verifyTransactionTemplate(
+            "   tx 1234580 990105 false;"+
+            "      in 990102 0 999;"+
+            "      out 2000000;",true);
+   }
+
+   public void testUnreadableSnapshotConnectsAllBlocks()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      // A storage failing to read the snapshot, like a database without its table
+      DummyStorage storage = new DummyStorage(factory, blocks, 0)
+      {
+         @Override
+         public InputStream getUnspentOutputSnapshot()
+         {
+            throw new IllegalStateException("snapshot table missing");
+         }
+      };
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      // The unspent outputs were built from the blocks
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990105 false;"+
+            "      in 990103 0 999;"+
+            "      out 2000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),1);
+   }
+
+   public void testFailedUndoDataStoresNoBlock()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      final boolean[] failing = { false };
+      DummyStorage storage = new DummyStorage(factory, blocks, 0)
+      {
+         @Override
+         public void storeUndoData(byte[] hash, byte[] data)
+         {
+            if (failing[0])
+               throw new IllegalStateException("undo data not written");
+            super.storeUndoData(hash, data);
+         }
+      };
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      String block =
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990105 false;"+
+            "      in 990103 0 999;"+
+            "      out 2000000;";
+      failing[0] = true;
+      try
+      {
+         chain.addBlock(BlockMock.createBlock(block));
+         Assert.fail("block was added without undo data");
+      } catch (IllegalStateException e)
+      {
+         // Expected
+      }
+      Assert.assertEquals(storage.getNewLinks().size(),0);
+      // The spent output was given back, so the block can be added again
+      failing[0] = false;
+      chain.addBlock(BlockMock.createBlock(block));
+      Assert.assertEquals(storage.getNewLinks().size(),1);
+      Assert.assertTrue(storage.hasUndoData(storage.getNewLinks().get(0).getBlock().getHash()));
+   }
+
+   public void testUnspentOutputSnapshotOnOtherBranch()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 02;"+ // Best chain
+            "   tx 123458 990102 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990103 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;"+
+            "block 1234568 1 1b0404cb 01 010203 06;"+ // Side branch spending the same output
+            "   tx 123458 990106 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234568 990107 false;"+
+            "      in 990101 0 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      chain.setSnapshotInterval(2);
+      chain.setSnapshotExecutor(Runnable::run);
+      // The snapshot is taken on the best chain
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 02 010203 03;"+
+            "   tx 1234569 990104 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      Assert.assertNotNull(storage.getUnspentOutputSnapshot());
+      // Then the side branch overtakes it
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234569 1 1b0404cb 06 010203 07;"+
+            "   tx 1234569 990108 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234570 1 1b0404cb 07 010203 08;"+
+            "   tx 1234570 990109 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"));
+      Assert.assertEquals(storage.getLastLink().getBlock().getHash(), new byte[] { 8 });
+      // Starting again the snapshot is moved to the side branch with the stored undo data
+      chain = new BlockChainImpl(factory, storage, false);
+      chain.addBlock(BlockMock.createBlock(
+            "block 1234571 1 1b0404cb 08 010203 09;"+
+            "   tx 1234571 990110 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;"+
+            "   tx 1234580 990111 false;"+ // Spending an output of the side branch
+            "      in 990107 0 999;"+
+            "      out 2000000;"));
+      Assert.assertEquals(storage.getNewLinks().size(),4);
+      try
+      {
+         chain.addBlock(BlockMock.createBlock(
+               "block 1234572 1 1b0404cb 09 010203 0a;"+
+               "   tx 1234572 990112 true;"+ // Coinbase
+               "      in 00 -1 999;"+
+               "      out 5000000;"+
+               "   tx 1234581 990113 false;"+ // Spending an output of the old best chain
+               "      in 990103 0 999;"+
+               "      out 2000000;"));
+         Assert.fail("output of the old best chain was accepted");
+      } catch (VerificationException e)
+      {
+         // Expected
+      }
+      Assert.assertEquals(storage.getNewLinks().size(),4);
+   }
+
+   @Test(expectedExceptions = VerificationException.class)
+   public void testHeaderNotConnecting()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(
+            "block 1234567 1 1b0404cb 00 010203 01;"+ // Genesis block
+            "   tx 1234567 990101 true;"+ // Coinbase
+            "      in 00 -1 999;"+
+            "      out 5000000;");
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0),createScriptFactory(true));
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockChainImpl chain = new BlockChainImpl(factory, storage, false);
+      chain.addBlockHeader(BlockMock.createBlock("block 1234569 1 1b0404cb 05 010203 03;"));
+   }
 }
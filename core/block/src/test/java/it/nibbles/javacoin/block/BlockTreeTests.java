@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.Block;
+import java.math.BigInteger;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class BlockTreeTests
+{
+
+   private static final int CHAIN_LENGTH = 1000;
+   private static final int FORK_HEIGHT = 600;
+   private static final int BRANCH_LENGTH = 50;
+
+   private static byte[] hash(int id)
+   {
+      return new BigInteger(Integer.toHexString(id), 16).toByteArray();
+   }
+
+   /**
+    * Create a main chain and a shorter side branch forking at FORK_HEIGHT.
+    * Blocks of the main chain have id height+1, blocks of the branch have
+    * id 100000+height.
+    */
+   private BlockTree createTree()
+      throws BitcoinException
+   {
+      StringBuilder def = new StringBuilder();
+      def.append("block 1000 1 1b0404cb 00 010203 1;");
+      for (int i = 1; i < CHAIN_LENGTH; i++)
+         def.append("block ").append(1000 + i).append(" 1 1b0404cb ").append(Integer.toHexString(i)).
+            append(" 010203 ").append(Integer.toHexString(i + 1)).append(";");
+      for (int i = FORK_HEIGHT + 1; i <= FORK_HEIGHT + BRANCH_LENGTH; i++)
+         def.append("block ").append(1000 + i).append(" 1 1b0404cb ").
+            append(Integer.toHexString(i == FORK_HEIGHT + 1 ? FORK_HEIGHT + 1 : 100000 + i - 1)).
+            append(" 010203 ").append(Integer.toHexString(100000 + i)).append(";");
+      List<Block> blocks = BlockMock.createBlocks(def.toString());
+      BitcoinFactory factory = new TesterBitcoinFactory(blocks.get(0), null);
+      DummyStorage storage = new DummyStorage(factory, blocks, 0);
+      BlockTree tree = new BlockTree(storage);
+      tree.load();
+      return tree;
+   }
+
+   public void testLoadBestChain()
+      throws BitcoinException
+   {
+      BlockTree tree = createTree();
+      Assert.assertEquals(tree.size(), CHAIN_LENGTH);
+      Assert.assertEquals(tree.getBestNode().getHeight(), CHAIN_LENGTH - 1);
+      Assert.assertEquals(tree.getBestNode().getHash(), hash(CHAIN_LENGTH));
+      // Side branch is loaded on demand
+      Assert.assertNotNull(tree.getNode(hash(100000 + FORK_HEIGHT + BRANCH_LENGTH)));
+      Assert.assertEquals(tree.size(), CHAIN_LENGTH + BRANCH_LENGTH);
+   }
+
+   public void testAncestors()
+      throws BitcoinException
+   {
+      BlockTree tree = createTree();
+      BlockTreeNode top = tree.getBestNode();
+      for (int height = 0; height < CHAIN_LENGTH; height++)
+         Assert.assertEquals(top.getAncestor(height).getHash(), hash(height + 1));
+      Assert.assertNull(top.getAncestor(CHAIN_LENGTH));
+      BlockTreeNode branchTop = tree.getNode(hash(100000 + FORK_HEIGHT + BRANCH_LENGTH));
+      Assert.assertEquals(branchTop.getAncestor(FORK_HEIGHT + 10).getHash(), hash(100000 + FORK_HEIGHT + 10));
+      Assert.assertEquals(branchTop.getAncestor(FORK_HEIGHT).getHash(), hash(FORK_HEIGHT + 1));
+      Assert.assertEquals(branchTop.getAncestor(3).getHash(), hash(4));
+   }
+
+   public void testCommonAncestor()
+      throws BitcoinException
+   {
+      BlockTree tree = createTree();
+      BlockTreeNode top = tree.getBestNode();
+      BlockTreeNode branchTop = tree.getNode(hash(100000 + FORK_HEIGHT + BRANCH_LENGTH));
+      Assert.assertEquals(tree.getCommonAncestor(top, branchTop).getHash(), hash(FORK_HEIGHT + 1));
+      Assert.assertEquals(tree.getCommonAncestor(branchTop, top.getAncestor(10)).getHash(), hash(11));
+      Assert.assertSame(tree.getCommonAncestor(top, top), top);
+   }
+
+   public void testReachable()
+      throws BitcoinException
+   {
+      BlockTree tree = createTree();
+      BlockTreeNode top = tree.getBestNode();
+      BlockTreeNode branchTop = tree.getNode(hash(100000 + FORK_HEIGHT + BRANCH_LENGTH));
+      Assert.assertTrue(tree.isReachable(top, tree.getNode(hash(1))));
+      Assert.assertTrue(tree.isReachable(branchTop, top.getAncestor(FORK_HEIGHT)));
+      Assert.assertFalse(tree.isReachable(branchTop, top.getAncestor(FORK_HEIGHT + 1)));
+      Assert.assertFalse(tree.isReachable(top.getAncestor(10), top));
+      Assert.assertTrue(tree.isReachable(top, top));
+   }
+}
@@ -21,6 +21,10 @@ package it.nibbles.javacoin.block;
 import it.nibbles.javacoin.Block;
 import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionInput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -43,6 +47,8 @@ public class DummyStorage implements BlockChainLinkStorage
    private List<BlockChainLink> newLinks = new ArrayList<>();
    private Map<BigInteger,BlockChainLink> linksMap = new HashMap<>();
    private BitcoinFactory bitcoinFactory;
+   private byte[] unspentOutputSnapshot;
+   private Map<BigInteger,byte[]> undoData = new HashMap<>();
 
    public DummyStorage(BitcoinFactory bitcoinFactory, Block genesisBlock)
    {
@@ -254,4 +260,30 @@ public class DummyStorage implements BlockChainLinkStorage
       throw new UnsupportedOperationException("Not supported yet.");
    }
 
+   @Override
+   public void storeUndoData(byte[] hash, byte[] data)
+   {
+      undoData.put(new BigInteger(1,hash), data);
+   }
+
+   @Override
+   public byte[] getUndoData(byte[] hash)
+   {
+      return undoData.get(new BigInteger(1,hash));
+   }
+
+   @Override
+   public void storeUnspentOutputSnapshot(SnapshotWriter writer)
+      throws IOException
+   {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      writer.writeTo(output);
+      unspentOutputSnapshot = output.toByteArray();
+   }
+
+   @Override
+   public InputStream getUnspentOutputSnapshot()
+   {
+      return unspentOutputSnapshot == null ? null : new ByteArrayInputStream(unspentOutputSnapshot);
+   }
 }
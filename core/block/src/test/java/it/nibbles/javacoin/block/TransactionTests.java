@@ -32,6 +32,7 @@ import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.VerificationException;
 import it.nibbles.javacoin.BitcoinException;
 import it.nibbles.javacoin.SignatureHashType;
+import it.nibbles.javacoin.net.ArraysUtil;
 
 /**
  * @author Robert Brautigam
@@ -182,6 +183,62 @@ public class TransactionTests
       return type;
    }
 
+   public void testTransactionSignatureHashingTypes()
+      throws Exception
+   {
+      List<TransactionOutputImpl> outputs = new ArrayList<TransactionOutputImpl>();
+      outputs.add(new TransactionOutputImpl(100,createFragment("76 A9 14 01 02 03 88 AC")));
+      outputs.add(new TransactionOutputImpl(200,createFragment("76 A9 14 04 05 88 AC")));
+      outputs.add(new TransactionOutputImpl(300,createFragment("51")));
+      List<TransactionInputImpl> inputs = new ArrayList<TransactionInputImpl>();
+      for ( int i=0; i<3; i++ )
+         inputs.add(new TransactionInputImpl(
+                  HexUtil.toByteArray("0"+(i+1)+" 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F 10 "+
+                     "11 12 13 14 15 16 17 18 19 1A 1B 1C 1D 1E 1F 20"),
+                  i,createFragment("47 30 44 0"+i),0xFFFFFFF0l+i));
+      TransactionImpl transaction = new TransactionImpl(inputs,outputs,12345);
+      ScriptFragment subscript = createFragment("76 A9 14 AA BB CC 88 AC");
+      // Compare with the hash of a copy of the transaction modified as the type says
+      for ( SignatureHashType.InputSignatureHashType inputType : SignatureHashType.InputSignatureHashType.values() )
+         for ( SignatureHashType.OutputSignatureHashType outputType : SignatureHashType.OutputSignatureHashType.values() )
+            for ( int i=0; i<inputs.size(); i++ )
+               Assert.assertEquals(HexUtil.toHexString(
+                        inputs.get(i).getSignatureHash(getSignatureHashType(inputType,outputType,0x41),subscript)),
+                     HexUtil.toHexString(copySignatureHash(transaction,i,inputType,outputType,0x41,subscript)),
+                     "hash differs for input "+i+", type "+inputType+"/"+outputType);
+   }
+
+   private byte[] copySignatureHash(TransactionImpl transaction, int index,
+         SignatureHashType.InputSignatureHashType inputType,
+         SignatureHashType.OutputSignatureHashType outputType, int value, ScriptFragment subscript)
+      throws BitcoinException
+   {
+      List<TransactionInputImpl> inputs = new ArrayList<TransactionInputImpl>();
+      List<TransactionOutputImpl> outputs = new ArrayList<TransactionOutputImpl>();
+      for ( int i=0; i<transaction.getInputs().size(); i++ )
+      {
+         TransactionInput input = transaction.getInputs().get(i);
+         if ( i == index )
+            inputs.add(new TransactionInputImpl(input.getClaimedTransactionHash(),
+                     input.getClaimedOutputIndex(),subscript,input.getSequence()));
+         else if ( inputType != SignatureHashType.InputSignatureHashType.SIGHASH_ANYONECANPAY )
+            inputs.add(new TransactionInputImpl(input.getClaimedTransactionHash(),input.getClaimedOutputIndex(),null,
+                     inputType==SignatureHashType.InputSignatureHashType.SIGHASH_ALL?input.getSequence():0));
+      }
+      for ( int i=0; i<transaction.getOutputs().size(); i++ )
+      {
+         TransactionOutput output = transaction.getOutputs().get(i);
+         if ( (outputType == SignatureHashType.OutputSignatureHashType.SIGHASH_ALL) ||
+              ((outputType == SignatureHashType.OutputSignatureHashType.SIGHASH_SINGLE) && (i == index)) )
+            outputs.add(new TransactionOutputImpl(output.getValue(),output.getScript()));
+         else if ( (outputType == SignatureHashType.OutputSignatureHashType.SIGHASH_SINGLE) && (i < index) )
+            outputs.add(new TransactionOutputImpl(-1,null));
+      }
+      TransactionImpl txCopy = new TransactionImpl(inputs,outputs,transaction.getLockTime(),new byte[] {},
+            transaction.getVersion());
+      return ArraysUtil.reverse(txCopy.calculateHash(new byte[] { (byte)value, 0, 0, 0 }));
+   }
+
    public void testValidTransaction()
       throws VerificationException, BitcoinException
    {
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.block;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.Block;
+import it.nibbles.javacoin.ScriptFactory;
+import it.nibbles.javacoin.ScriptFragment;
+import it.nibbles.javacoin.VerificationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import org.easymock.EasyMock;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class UnspentOutputSetTests
+{
+
+   private static final String CHAIN =
+      "block 1234567 1 1b0404cb 00 010203 01;"
+      + "   tx 1234567 990101 true;"
+      + "      in 00 -1 999;"
+      + "      out 5000000;"
+      + "block 1234568 1 1b0404cb 01 010203 02;"
+      + "   tx 123458 990102 true;"
+      + "      in 00 -1 999;"
+      + "      out 5000000;"
+      + "   tx 1234568 990103 false;"
+      + "      in 990101 0 999;"
+      + "      out 2000000;"
+      + "      out 3000000;";
+
+   private static byte[] hash(String hexString)
+   {
+      // Same conversion used by BlockMock
+      return new BigInteger(hexString, 16).toByteArray();
+   }
+
+   private UnspentOutputSet createSet(List<Block> blocks)
+      throws VerificationException
+   {
+      UnspentOutputSet set = new UnspentOutputSet();
+      for (int i = 0; i < blocks.size(); i++)
+         set.connectBlock(blocks.get(i), i);
+      return set;
+   }
+
+   public void testConnect()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN);
+      UnspentOutputSet set = createSet(blocks);
+      Assert.assertEquals(set.size(), 3);
+      Assert.assertNull(set.getUnspentOutput(hash("990101"), 0));
+      UnspentOutput out = set.getUnspentOutput(hash("990103"), 1);
+      Assert.assertNotNull(out);
+      Assert.assertEquals(out.getValue(), 3000000);
+      Assert.assertEquals(out.getHeight(), 1);
+      Assert.assertFalse(out.isCoinbase());
+      Assert.assertTrue(set.getUnspentOutput(hash("990102"), 0).isCoinbase());
+      Assert.assertEquals(set.getTipHash(), blocks.get(1).getHash());
+   }
+
+   public void testDisconnect()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN);
+      UnspentOutputSet set = new UnspentOutputSet();
+      set.connectBlock(blocks.get(0), 0);
+      List<UnspentOutput> spent = set.connectBlock(blocks.get(1), 1);
+      Assert.assertEquals(spent.size(), 1);
+      set.disconnectBlock(blocks.get(1), spent);
+      Assert.assertEquals(set.size(), 1);
+      Assert.assertNotNull(set.getUnspentOutput(hash("990101"), 0));
+      Assert.assertEquals(set.getTipHash(), blocks.get(0).getHash());
+   }
+
+   public void testDoubleSpendInBlockIsAtomic()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN
+         + "block 1234569 1 1b0404cb 02 010203 03;"
+         + "   tx 1234569 990104 true;"
+         + "      in 00 -1 999;"
+         + "      out 5000000;"
+         + "   tx 1234580 990105 false;"
+         + "      in 990103 1 999;"
+         + "      out 2000000;"
+         + "   tx 1234581 990106 false;"
+         + "      in 990103 1 999;"
+         + "      out 1000000;");
+      UnspentOutputSet set = createSet(blocks.subList(0, 2));
+      try
+      {
+         set.connectBlock(blocks.get(2), 2);
+         Assert.fail("double spend was accepted");
+      } catch (VerificationException e)
+      {
+         // Expected
+      }
+      // Nothing must have changed
+      Assert.assertEquals(set.size(), 3);
+      Assert.assertEquals(set.getTipHash(), blocks.get(1).getHash());
+      Assert.assertNull(set.getUnspentOutput(hash("990105"), 0));
+   }
+
+   public void testSpendInSameBlock()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN
+         + "block 1234569 1 1b0404cb 02 010203 03;"
+         + "   tx 1234569 990104 true;"
+         + "      in 00 -1 999;"
+         + "      out 5000000;"
+         + "   tx 1234580 990105 false;"
+         + "      in 990103 1 999;"
+         + "      out 2000000;"
+         + "   tx 1234581 990106 false;"
+         + "      in 990105 0 999;"
+         + "      out 1000000;");
+      UnspentOutputSet set = createSet(blocks);
+      Assert.assertNull(set.getUnspentOutput(hash("990105"), 0));
+      Assert.assertNotNull(set.getUnspentOutput(hash("990106"), 0));
+      Assert.assertEquals(set.size(), 4);
+   }
+
+   @Test(expectedExceptions = VerificationException.class)
+   public void testNotExtendingTip()
+      throws BitcoinException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN);
+      UnspentOutputSet set = new UnspentOutputSet();
+      set.connectBlock(blocks.get(0), 0);
+      set.connectBlock(blocks.get(1), 1);
+      set.connectBlock(blocks.get(1), 2);
+   }
+
+   private byte[] createSnapshot(UnspentOutputSet set)
+      throws IOException
+   {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      set.createSnapshot().writeTo(output);
+      return output.toByteArray();
+   }
+
+   public void testSnapshot()
+      throws BitcoinException, IOException
+   {
+      List<Block> blocks = BlockMock.createBlocks(CHAIN);
+      UnspentOutputSet set = createSet(blocks);
+      ScriptFactory scriptFactory = EasyMock.createMock(ScriptFactory.class);
+      EasyMock.expect(scriptFactory.createFragment(EasyMock.aryEq(new byte[0])))
+         .andReturn(EasyMock.createMock(ScriptFragment.class)).times(3);
+      EasyMock.replay(scriptFactory);
+      UnspentOutputSet loaded = new UnspentOutputSet();
+      loaded.loadSnapshot(new ByteArrayInputStream(createSnapshot(set)), scriptFactory);
+      EasyMock.verify(scriptFactory);
+      Assert.assertEquals(loaded.size(), 3);
+      Assert.assertEquals(loaded.getTipHash(), blocks.get(1).getHash());
+      Assert.assertEquals(loaded.getTipHeight(), 1);
+      UnspentOutput out = loaded.getUnspentOutput(hash("990103"), 1);
+      Assert.assertEquals(out.getValue(), 3000000);
+      Assert.assertEquals(out.getHeight(), 1);
+      Assert.assertFalse(out.isCoinbase());
+      Assert.assertTrue(loaded.getUnspentOutput(hash("990102"), 0).isCoinbase());
+      Assert.assertNull(loaded.getUnspentOutput(hash("990101"), 0));
+   }
+
+   public void testTruncatedSnapshot()
+      throws BitcoinException, IOException
+   {
+      UnspentOutputSet set = createSet(BlockMock.createBlocks(CHAIN));
+      byte[] snapshot = createSnapshot(set);
+      ScriptFactory scriptFactory = EasyMock.createMock(ScriptFactory.class);
+      EasyMock.expect(scriptFactory.createFragment((byte[]) EasyMock.anyObject()))
+         .andReturn(EasyMock.createMock(ScriptFragment.class)).anyTimes();
+      EasyMock.replay(scriptFactory);
+      UnspentOutputSet loaded = new UnspentOutputSet();
+      try
+      {
+         loaded.loadSnapshot(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length - 1)), scriptFactory);
+         Assert.fail("truncated snapshot was loaded");
+      } catch (IOException e)
+      {
+         // Expected
+      }
+      Assert.assertEquals(loaded.size(), 0);
+      Assert.assertNull(loaded.getTipHash());
+   }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2011 NetMind Consulting Bt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package it.nibbles.javacoin.storage;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.TransactionInput;
+import it.nibbles.javacoin.block.BitcoinFactory;
+import it.nibbles.javacoin.block.BlockChainLink;
+import it.nibbles.javacoin.block.BlockChainLinkStorage;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.ProdnetBitcoinFactory;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.block.TransactionInputImpl;
+import it.nibbles.javacoin.block.TransactionOutputImpl;
+import java.math.BigDecimal;
+import java.util.LinkedList;
+import java.util.List;
+import org.easymock.EasyMock;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class CachingChainLinkStorageTests
+{
+
+   private BitcoinFactory bitcoinFactory;
+   private BlockChainLinkStorage storage;
+   private CachingChainLinkStorage cache;
+   private BlockChainLink genesis;
+
+   @BeforeMethod
+   public void setupStorage()
+      throws BitcoinException
+   {
+      bitcoinFactory = new ProdnetBitcoinFactory(null);
+      storage = EasyMock.createMock(BlockChainLinkStorage.class);
+      cache = new CachingChainLinkStorage(storage);
+      genesis = createLink(1, 0, 0, 1, 0);
+   }
+
+   private byte[] hash(int value)
+   {
+      byte[] hash = new byte[32];
+      hash[0] = (byte) value;
+      hash[31] = (byte) value;
+      return hash;
+   }
+
+   private BlockChainLink createLink(int hash, int prevHash, int height, long work, int txHash)
+      throws BitcoinException
+   {
+      List<TransactionImpl> txs = new LinkedList<>();
+      if (txHash > 0)
+         txs.add(new TransactionImpl(new LinkedList<TransactionInputImpl>(),
+                 new LinkedList<TransactionOutputImpl>(), 0, hash(txHash)));
+      BlockImpl block = new BlockImpl(txs, 11223000l, 11223344l, 0x1b0404cbl, hash(prevHash), hash(0), hash(hash));
+      return new BlockChainLink(block, bitcoinFactory.newDifficulty(new BigDecimal(work)), height);
+   }
+
+   private TransactionInput claiming(int txHash)
+   {
+      TransactionInput in = EasyMock.createMock(TransactionInput.class);
+      EasyMock.expect(in.getClaimedTransactionHash()).andReturn(hash(txHash)).anyTimes();
+      EasyMock.expect(in.getClaimedOutputIndex()).andReturn(0).anyTimes();
+      EasyMock.replay(in);
+      return in;
+   }
+
+   /**
+    * Make the cache know the genesis link as the last one.
+    */
+   private void startWithGenesis()
+   {
+      EasyMock.expect(storage.getLastLink()).andReturn(genesis);
+   }
+
+   public void testLinkKept()
+   {
+      EasyMock.expect(storage.getLink(EasyMock.aryEq(hash(1)))).andReturn(genesis);
+      EasyMock.replay(storage);
+      Assert.assertSame(cache.getLink(hash(1)), genesis);
+      Assert.assertSame(cache.getLink(hash(1)), genesis);
+      // Known without asking the storage
+      Assert.assertTrue(cache.blockExists(hash(1)));
+      Assert.assertEquals(cache.getLinkBlockHeader(hash(1)).getBlock().getHash(), hash(1));
+      EasyMock.verify(storage);
+      Assert.assertEquals(cache.getLinkCache().getHits(), 1);
+      Assert.assertEquals(cache.getLinkCache().getMisses(), 1);
+      Assert.assertEquals(cache.getLinkCache().getHitRate(), 0.5, 0.001);
+   }
+
+   public void testMissingLinkNotKept()
+   {
+      EasyMock.expect(storage.getLink(EasyMock.aryEq(hash(1)))).andReturn(null).times(2);
+      EasyMock.replay(storage);
+      Assert.assertNull(cache.getLink(hash(1)));
+      Assert.assertNull(cache.getLink(hash(1)));
+      EasyMock.verify(storage);
+   }
+
+   public void testLeastRecentlyUsedRemoved()
+      throws BitcoinException
+   {
+      cache = new CachingChainLinkStorage(storage, 2, 2, 2, 2);
+      BlockChainLink second = createLink(2, 1, 1, 2, 0);
+      BlockChainLink third = createLink(3, 2, 2, 3, 0);
+      EasyMock.expect(storage.getLink(EasyMock.aryEq(hash(1)))).andReturn(genesis).times(2);
+      EasyMock.expect(storage.getLink(EasyMock.aryEq(hash(2)))).andReturn(second);
+      EasyMock.expect(storage.getLink(EasyMock.aryEq(hash(3)))).andReturn(third);
+      EasyMock.replay(storage);
+      cache.getLink(hash(1));
+      cache.getLink(hash(2));
+      cache.getLink(hash(2));
+      cache.getLink(hash(3));
+      cache.getLink(hash(2));
+      cache.getLink(hash(1));
+      EasyMock.verify(storage);
+      Assert.assertEquals(cache.getLinkCache().size(), 2);
+   }
+
+   public void testAddLinkExtendsMainChain()
+      throws BitcoinException
+   {
+      BlockChainLink next = createLink(2, 1, 1, 2, 0);
+      startWithGenesis();
+      EasyMock.expect(storage.getHashOfMainChainAtHeight(0)).andReturn(hash(1));
+      storage.addLink(next);
+      EasyMock.replay(storage);
+      Assert.assertSame(cache.getLastLink(), genesis);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(0), hash(1));
+      cache.addLink(next);
+      Assert.assertSame(cache.getLastLink(), next);
+      Assert.assertEquals(cache.getHeight(), 1);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(0), hash(1));
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(2));
+      Assert.assertTrue(cache.isReachable(hash(2), hash(1)));
+      EasyMock.verify(storage);
+   }
+
+   public void testAddLinkOnOtherBranchForgetsMainChain()
+      throws BitcoinException
+   {
+      BlockChainLink first = createLink(2, 1, 1, 2, 0);
+      BlockChainLink second = createLink(3, 1, 1, 3, 0);
+      startWithGenesis();
+      storage.addLink(first);
+      storage.addLink(second);
+      EasyMock.expect(storage.getLastLink()).andReturn(second);
+      EasyMock.expect(storage.getHashOfMainChainAtHeight(1)).andReturn(hash(3));
+      EasyMock.replay(storage);
+      cache.getLastLink();
+      cache.addLink(first);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(2));
+      cache.addLink(second);
+      Assert.assertSame(cache.getLastLink(), second);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(3));
+      Assert.assertFalse(cache.isReachable(hash(3), hash(2)));
+      EasyMock.verify(storage);
+   }
+
+   public void testMainChainReadWhileLinkAddedNotKept()
+      throws BitcoinException
+   {
+      final BlockChainLink first = createLink(2, 1, 1, 2, 0);
+      final BlockChainLink second = createLink(3, 1, 1, 3, 0);
+      storage.addLink(first);
+      storage.addLink(second);
+      // The links are added while the storage is read, after it answered
+      EasyMock.expect(storage.getLastLink()).andAnswer(() ->
+      {
+         cache.addLink(first);
+         return genesis;
+      });
+      EasyMock.expect(storage.getHashOfMainChainAtHeight(1)).andAnswer(() ->
+      {
+         cache.addLink(second);
+         return hash(2);
+      });
+      EasyMock.expect(storage.getLastLink()).andReturn(second);
+      EasyMock.expect(storage.getHashOfMainChainAtHeight(1)).andReturn(hash(3));
+      EasyMock.replay(storage);
+      Assert.assertSame(cache.getLastLink(), genesis);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(2));
+      Assert.assertSame(cache.getLastLink(), second);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(3));
+      EasyMock.verify(storage);
+   }
+
+   public void testAddLinkWithLessWorkKeepsLastLink()
+      throws BitcoinException
+   {
+      BlockChainLink first = createLink(2, 1, 1, 3, 0);
+      BlockChainLink second = createLink(3, 1, 1, 2, 0);
+      startWithGenesis();
+      storage.addLink(first);
+      storage.addLink(second);
+      EasyMock.replay(storage);
+      cache.getLastLink();
+      cache.addLink(first);
+      cache.addLink(second);
+      Assert.assertSame(cache.getLastLink(), first);
+      Assert.assertEquals(cache.getHashOfMainChainAtHeight(1), hash(2));
+      EasyMock.verify(storage);
+   }
+
+   public void testClaimedTransactionOfAddedBlock()
+      throws BitcoinException
+   {
+      BlockChainLink next = createLink(2, 1, 1, 2, 50);
+      BlockChainLink top = createLink(3, 2, 2, 3, 0);
+      startWithGenesis();
+      storage.addLink(next);
+      EasyMock.replay(storage);
+      cache.getLastLink();
+      cache.addLink(next);
+      BlockChainLink claimedLink = cache.getPartialClaimedLink(top, claiming(50));
+      Assert.assertEquals(claimedLink.getBlock().getHash(), hash(2));
+      Assert.assertEquals(claimedLink.getBlock().getTransactions().size(), 1);
+      Assert.assertEquals(claimedLink.getBlock().getTransactions().get(0).getHash(), hash(50));
+      Assert.assertSame(cache.getClaimedLink(top, claiming(50)), next);
+      EasyMock.verify(storage);
+      Assert.assertEquals(cache.getTransactionCache().getHits(), 2);
+   }
+
+   public void testClaimedTransactionOnOtherBranch()
+      throws BitcoinException
+   {
+      BlockChainLink next = createLink(2, 1, 1, 2, 50);
+      BlockChainLink other = createLink(3, 1, 1, 3, 0);
+      TransactionInput in = claiming(50);
+      startWithGenesis();
+      storage.addLink(next);
+      EasyMock.expect(storage.getPartialClaimedLink(other, in)).andReturn(null);
+      EasyMock.replay(storage);
+      cache.getLastLink();
+      cache.addLink(next);
+      Assert.assertNull(cache.getPartialClaimedLink(other, in));
+      EasyMock.verify(storage);
+   }
+}
@@ -32,14 +32,28 @@ import java.util.Collections;
 public class KeyFactoryImpl extends Observable implements KeyFactory
 {
    private KeyStore keyStore;
+   private PublicKeyCache publicKeyCache;
 
    /**
-    * Create this keystore with the storage implementation given.
+    * Create this keystore with the storage implementation given, and a
+    * cache of public keys of the default size.
     * @param keyStore The keyStore mechanism to use.
     */
    public KeyFactoryImpl(KeyStore keyStore)
+   {
+      this(keyStore,new PublicKeyCache());
+   }
+
+   /**
+    * Create this keystore with the storage implementation given.
+    * @param keyStore The keyStore mechanism to use.
+    * @param publicKeyCache The cache of public keys created from their
+    * representation, or null to always create new ones.
+    */
+   public KeyFactoryImpl(KeyStore keyStore, PublicKeyCache publicKeyCache)
    {
       this.keyStore=keyStore;
+      this.publicKeyCache=publicKeyCache;
    }
 
    /**
@@ -56,12 +70,24 @@ public class KeyFactoryImpl extends Observable implements KeyFactory
 
    /**
     * Create a public key from an already existing representation.
-    * This is a public key, and it won't be stored by this factory.
+    * This is a public key, and it won't be stored by this factory. The
+    * same instance may be returned for the same representation.
     * @param data The representation of the public key in EC public point.
     */
    public PublicKey createPublicKey(byte[] data)
    {
-      return new KeyImpl.PublicKeyImpl(data);
+      if ( publicKeyCache == null )
+         return new KeyImpl.PublicKeyImpl(data);
+      return publicKeyCache.get(data);
+   }
+
+   /**
+    * Get the cache of public keys, to see its hit rate and size.
+    * @return The cache, or null if public keys are not cached.
+    */
+   public PublicKeyCache getPublicKeyCache()
+   {
+      return publicKeyCache;
    }
 
    /**
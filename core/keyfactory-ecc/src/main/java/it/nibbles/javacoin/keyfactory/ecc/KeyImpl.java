@@ -41,6 +41,7 @@ import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -148,28 +149,21 @@ public class KeyImpl implements Key
     */
    public static class PublicKeyImpl implements PublicKey
    {
+      private static final BigInteger[] INFINITY = new BigInteger[0];
       private byte[] publicKey;
-      private byte[] hash;
+      private volatile byte[] hash;
+      // The affine coordinates of the decoded point, INFINITY if it is the
+      // point at infinity, decoded when first needed
+      private volatile BigInteger[] point;
 
       /**
        * Create the public key object with only the public key byte
-       * representation. In this case the hash will be calculated.
+       * representation. In this case the hash will be calculated when first
+       * needed.
        */
       PublicKeyImpl(byte[] publicKey)
       {
          this.publicKey=publicKey;
-         // Calculate hash RIPEMD-160(SHA-256(public key))
-         try
-         {
-            MessageDigest shaDigest = MessageDigest.getInstance("SHA-256");
-            byte[] shaResult = shaDigest.digest(publicKey);
-            RIPEMD160Digest ripeDigest = new RIPEMD160Digest();
-            ripeDigest.update(shaResult,0,shaResult.length);
-            hash = new byte[ripeDigest.getDigestSize()]; // Should be actually 20 bytes (160 bits)
-            ripeDigest.doFinal(hash,0);
-         } catch ( NoSuchAlgorithmException e ) {
-            throw new RuntimeException("could not get SHA-256 algorithm, crypto will not work at all",e);
-         }
       }
 
       /**
@@ -201,11 +195,11 @@ public class KeyImpl implements Key
             BigInteger r = ((ASN1Integer)sequence.getObjectAt(0)).getPositiveValue();
             BigInteger s = ((ASN1Integer)sequence.getObjectAt(1)).getPositiveValue();
             derInput.close();
-            // Now verify
-            ECDSASigner signer = new ECDSASigner();
-            signer.init(false,new ECPublicKeyParameters(
-                     domainParameters.getCurve().decodePoint(publicKey),domainParameters));
-            return signer.verifySignature(data,r,s);
+            // Now verify with the implementation specific to the curve
+            BigInteger[] coordinates = getPoint();
+            if ( coordinates == INFINITY )
+               return false;
+            return Secp256k1.verify(data,r,s,coordinates[0],coordinates[1]);
          } catch ( IOException e ) {
             throw new VerificationException("could not read signature values from signature bytes",e);
          }
@@ -218,7 +212,44 @@ public class KeyImpl implements Key
       @Override
       public byte[] getHash()
       {
-         return hash;
+         byte[] result = hash;
+         if ( result == null )
+         {
+            // Calculate hash RIPEMD-160(SHA-256(public key))
+            try
+            {
+               MessageDigest shaDigest = MessageDigest.getInstance("SHA-256");
+               byte[] shaResult = shaDigest.digest(publicKey);
+               RIPEMD160Digest ripeDigest = new RIPEMD160Digest();
+               ripeDigest.update(shaResult,0,shaResult.length);
+               result = new byte[ripeDigest.getDigestSize()]; // Should be actually 20 bytes (160 bits)
+               ripeDigest.doFinal(result,0);
+            } catch ( NoSuchAlgorithmException e ) {
+               throw new RuntimeException("could not get SHA-256 algorithm, crypto will not work at all",e);
+            }
+            hash = result;
+         }
+         return result;
+      }
+
+      /**
+       * Decode the point of the key, or return it if already decoded. Keys
+       * which do not decode are decoded again every time, so they fail the
+       * same way.
+       */
+      private BigInteger[] getPoint()
+      {
+         BigInteger[] result = point;
+         if ( result == null )
+         {
+            ECPoint decoded = domainParameters.getCurve().decodePoint(publicKey);
+            if ( decoded.isInfinity() )
+               result = INFINITY;
+            else
+               result = new BigInteger[] { decoded.getX().toBigInteger(), decoded.getY().toBigInteger() };
+            point = result;
+         }
+         return result;
       }
    }
          
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.keyfactory.ecc;
+
+import it.nibbles.javacoin.BoundedCache;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the public keys created from their encoded form, so a key which
+ * appears again, for example the key of a mining pool or of a reused
+ * address, is not decoded again. A public key decodes its curve point once,
+ * when it first verifies a signature, and computes its hash once when asked,
+ * so both are kept with the cached key. The cache holds at most a given
+ * number of keys, the oldest ones are removed first. It can be used by any
+ * number of threads at once.
+ *
+ * @author Alessandro Polverini
+ */
+public class PublicKeyCache
+{
+
+   public static final int DEFAULT_SIZE = 50000;
+   // Estimated bytes of an entry besides the encoded key: the map and queue
+   // nodes, the key wrapper, the public key with its hash, and the two
+   // coordinates of the decoded point.
+   private static final int ENTRY_OVERHEAD = 400;
+   private final BoundedCache<EncodedKey, KeyImpl.PublicKeyImpl> entries;
+   private final AtomicLong encodedBytes = new AtomicLong();
+
+   public PublicKeyCache()
+   {
+      this(DEFAULT_SIZE);
+   }
+
+   /**
+    * @param maxSize The maximum number of public keys to keep.
+    */
+   public PublicKeyCache(int maxSize)
+   {
+      entries = new BoundedCache<EncodedKey, KeyImpl.PublicKeyImpl>(maxSize)
+      {
+         @Override
+         protected void added(EncodedKey key, KeyImpl.PublicKeyImpl publicKey)
+         {
+            encodedBytes.addAndGet(key.data.length);
+         }
+
+         @Override
+         protected void removed(EncodedKey key, KeyImpl.PublicKeyImpl publicKey)
+         {
+            encodedBytes.addAndGet(-key.data.length);
+         }
+      };
+   }
+
+   /**
+    * Get the public key of the given encoded form, creating it if it is not
+    * in the cache.
+    *
+    * @param data The encoded public key, it is copied if the key is created.
+    */
+   public KeyImpl.PublicKeyImpl get(byte[] data)
+   {
+      KeyImpl.PublicKeyImpl publicKey = entries.get(new EncodedKey(data));
+      if (publicKey != null)
+         return publicKey;
+      byte[] copy = data.clone();
+      publicKey = new KeyImpl.PublicKeyImpl(copy);
+      KeyImpl.PublicKeyImpl existing = entries.putIfAbsent(new EncodedKey(copy), publicKey);
+      return existing == null ? publicKey : existing;
+   }
+
+   public void clear()
+   {
+      entries.clear();
+      encodedBytes.set(0);
+   }
+
+   public int size()
+   {
+      return entries.size();
+   }
+
+   public int getMaxSize()
+   {
+      return entries.getMaxSize();
+   }
+
+   /**
+    * @return The number of lookups which found the key.
+    */
+   public long getHits()
+   {
+      return entries.getHits();
+   }
+
+   /**
+    * @return The number of lookups which had to create the key.
+    */
+   public long getMisses()
+   {
+      return entries.getMisses();
+   }
+
+   /**
+    * @return The fraction of lookups which found the key, or zero if there
+    * were none.
+    */
+   public double getHitRate()
+   {
+      return entries.getHitRate();
+   }
+
+   /**
+    * @return An estimate of the bytes of memory held by the cached keys.
+    */
+   public long getMemoryFootprint()
+   {
+      return encodedBytes.get() + (long) size() * ENTRY_OVERHEAD;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "PublicKeyCache[size: " + size() + "/" + getMaxSize() + " hits: " + getHits() + " misses: " + getMisses()
+              + " hit rate: " + Math.round(getHitRate() * 100) + "% memory: " + (getMemoryFootprint() / 1024) + "KB]";
+   }
+
+   /**
+    * The encoded form of a key compared by content.
+    */
+   private static class EncodedKey
+   {
+
+      private final byte[] data;
+      private final int hashCode;
+
+      private EncodedKey(byte[] data)
+      {
+         this.data = data;
+         hashCode = Arrays.hashCode(data);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hashCode;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         return (o instanceof EncodedKey) && (Arrays.equals(data, ((EncodedKey) o).data));
+      }
+   }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.keyfactory.ecc;
+
+import java.math.BigInteger;
+
+/**
+ * ECDSA signature verification specialised for the secp256k1 curve. The
+ * generic implementation works in affine coordinates, which need a modular
+ * inversion for every point addition, and multiplies by full 256 bit scalars.
+ * Here instead:
+ * <ul>
+ * <li>Points are kept in Jacobian coordinates, the only inversion is avoided
+ * by comparing r with the x coordinate in projective form.</li>
+ * <li>Both scalars are split with the GLV endomorphism of the curve,
+ * k = k1 + k2 * lambda, where lambda * (x, y) = (beta * x, y), so four half
+ * length multiplications share the same 128 doublings.</li>
+ * <li>The scalars are in width-w NAF form, odd multiples of the generator are
+ * precomputed once in a wide table, those of the public key are computed for
+ * each verification in a narrow one.</li>
+ * </ul>
+ * Keys which are not on the curve are rejected.
+ * The result is the same as ECDSASigner.verifySignature for the curve.
+ *
+ * @author Alessandro Polverini
+ */
+final class Secp256k1
+{
+
+   static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+   static final BigInteger N = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+   static final BigInteger GX = new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16);
+   static final BigInteger GY = new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16);
+   // The endomorphism: lambda * (x, y) = (beta * x, y)
+   private static final BigInteger BETA = new BigInteger("7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16);
+   // Short basis of the lattice used to split scalars, b1 is negative
+   private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+   private static final BigInteger B1 = new BigInteger("-E4437ED6010E88286F547FA90ABFE4C3", 16);
+   private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+   private static final BigInteger B2 = A1;
+   private static final BigInteger TWO_N = N.shiftLeft(1);
+   private static final BigInteger P_MINUS_N = P.subtract(N);
+   private static final int G_WINDOW = 8;
+   private static final int Q_WINDOW = 5;
+   private static final AffinePoint[] G_TABLE;
+   private static final AffinePoint[] LAMBDA_G_TABLE;
+
+   private Secp256k1()
+   {
+   }
+
+   /**
+    * Verify an ECDSA signature.
+    *
+    * @param message The signed hash.
+    * @param r The r value of the signature.
+    * @param s The s value of the signature.
+    * @param qx The affine x coordinate of the public key.
+    * @param qy The affine y coordinate of the public key.
+    * @return True if the signature is valid.
+    */
+   static boolean verify(byte[] message, BigInteger r, BigInteger s, BigInteger qx, BigInteger qy)
+   {
+      if ((r.signum() <= 0) || (r.compareTo(N) >= 0) || (s.signum() <= 0) || (s.compareTo(N) >= 0))
+         return false;
+      if (!isOnCurve(qx, qy))
+         return false;
+      BigInteger e = calculateE(message);
+      BigInteger c = s.modInverse(N);
+      BigInteger u1 = e.multiply(c).mod(N);
+      BigInteger u2 = r.multiply(c).mod(N);
+      JacobianPoint point = multiplyAndAdd(u1, u2, qx, qy);
+      if (point == null)
+         return false;
+      // x = X / Z^2, check x mod n == r without inverting Z
+      BigInteger zz = mul(point.z, point.z);
+      if (mul(r, zz).equals(point.x))
+         return true;
+      // x may also be r + n if it is still less than p
+      return (r.compareTo(P_MINUS_N) < 0) && (mul(r.add(N), zz).equals(point.x));
+   }
+
+   /**
+    * Check the key is a point of the curve, y^2 = x^3 + 7, as keys not on
+    * the curve are not accepted.
+    */
+   private static boolean isOnCurve(BigInteger x, BigInteger y)
+   {
+      if ((x.signum() < 0) || (x.compareTo(P) >= 0) || (y.signum() < 0) || (y.compareTo(P) >= 0))
+         return false;
+      return mul(y, y).equals(add(mul(mul(x, x), x), BigInteger.valueOf(7)));
+   }
+
+   /**
+    * Take the message as a number, truncated to the bits of the order as
+    * ECDSA defines.
+    */
+   private static BigInteger calculateE(byte[] message)
+   {
+      BigInteger e = new BigInteger(1, message);
+      int messageBitLength = message.length * 8;
+      if (N.bitLength() < messageBitLength)
+         e = e.shiftRight(messageBitLength - N.bitLength());
+      return e;
+   }
+
+   /**
+    * @return u1 * G + u2 * Q, or null if it is the point at infinity.
+    */
+   static JacobianPoint multiplyAndAdd(BigInteger u1, BigInteger u2, BigInteger qx, BigInteger qy)
+   {
+      BigInteger[] split1 = split(u1);
+      BigInteger[] split2 = split(u2);
+      // Odd multiples of the public key and of its endomorphism image
+      JacobianPoint[] qTable = new JacobianPoint[1 << (Q_WINDOW - 2)];
+      JacobianPoint[] lambdaQTable = new JacobianPoint[qTable.length];
+      qTable[0] = new JacobianPoint(qx, qy, BigInteger.ONE);
+      JacobianPoint twoQ = twice(qTable[0]);
+      for (int i = 1; i < qTable.length; i++)
+         qTable[i] = add(qTable[i - 1], twoQ);
+      for (int i = 0; i < qTable.length; i++)
+         lambdaQTable[i] = new JacobianPoint(mul(qTable[i].x, BETA), qTable[i].y, qTable[i].z);
+      int[] naf1 = wnaf(split1[0], G_WINDOW);
+      int[] naf2 = wnaf(split1[1], G_WINDOW);
+      int[] naf3 = wnaf(split2[0], Q_WINDOW);
+      int[] naf4 = wnaf(split2[1], Q_WINDOW);
+      int length = Math.max(Math.max(naf1.length, naf2.length), Math.max(naf3.length, naf4.length));
+      JacobianPoint result = null;
+      for (int i = length - 1; i >= 0; i--)
+      {
+         result = twice(result);
+         result = addAffine(result, G_TABLE, naf1, i);
+         result = addAffine(result, LAMBDA_G_TABLE, naf2, i);
+         result = addJacobian(result, qTable, naf3, i);
+         result = addJacobian(result, lambdaQTable, naf4, i);
+      }
+      return result;
+   }
+
+   /**
+    * Split the scalar k into k1 + k2 * lambda (mod n) with k1 and k2 of
+    * about 128 bits, possibly negative.
+    */
+   static BigInteger[] split(BigInteger k)
+   {
+      BigInteger c1 = roundDivideByN(B2.multiply(k));
+      BigInteger c2 = roundDivideByN(B1.negate().multiply(k));
+      BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+      BigInteger k2 = c1.multiply(B1).add(c2.multiply(B2)).negate();
+      return new BigInteger[]
+      {
+         k1, k2
+      };
+   }
+
+   private static BigInteger roundDivideByN(BigInteger value)
+   {
+      // value is not negative, so division truncating is floor
+      return value.shiftLeft(1).add(N).divide(TWO_N);
+   }
+
+   /**
+    * Width-w non adjacent form of a number, least significant digit first.
+    * Digits are zero or odd numbers in the range -2^(w-1) to 2^(w-1).
+    */
+   static int[] wnaf(BigInteger k, int width)
+   {
+      boolean negative = k.signum() < 0;
+      k = k.abs();
+      int[] digits = new int[k.bitLength() + 1];
+      int modulus = 1 << width;
+      int i = 0;
+      while (k.signum() > 0)
+      {
+         if (k.testBit(0))
+         {
+            int digit = k.intValue() & (modulus - 1);
+            if (digit >= (modulus >> 1))
+               digit -= modulus;
+            digits[i] = negative ? -digit : digit;
+            k = k.subtract(BigInteger.valueOf(digit));
+         }
+         k = k.shiftRight(1);
+         i++;
+      }
+      return digits;
+   }
+
+   private static JacobianPoint addAffine(JacobianPoint point, AffinePoint[] table, int[] naf, int index)
+   {
+      if ((index >= naf.length) || (naf[index] == 0))
+         return point;
+      int digit = naf[index];
+      AffinePoint other = table[(Math.abs(digit) - 1) >> 1];
+      return addAffine(point, other.x, digit > 0 ? other.y : P.subtract(other.y));
+   }
+
+   private static JacobianPoint addJacobian(JacobianPoint point, JacobianPoint[] table, int[] naf, int index)
+   {
+      if ((index >= naf.length) || (naf[index] == 0))
+         return point;
+      int digit = naf[index];
+      JacobianPoint other = table[(Math.abs(digit) - 1) >> 1];
+      return add(point, digit > 0 ? other : new JacobianPoint(other.x, P.subtract(other.y), other.z));
+   }
+
+   /**
+    * Double a point, a = 0 for this curve.
+    */
+   static JacobianPoint twice(JacobianPoint point)
+   {
+      if ((point == null) || (point.y.signum() == 0))
+         return null;
+      BigInteger a = mul(point.x, point.x);
+      BigInteger b = mul(point.y, point.y);
+      BigInteger c = mul(b, b);
+      BigInteger xb = add(point.x, b);
+      BigInteger d = sub(sub(mul(xb, xb), a), c);
+      d = add(d, d);
+      BigInteger e = add(add(a, a), a);
+      BigInteger f = mul(e, e);
+      BigInteger x3 = sub(f, add(d, d));
+      BigInteger c8 = c.shiftLeft(3).mod(P);
+      BigInteger y3 = sub(mul(e, sub(d, x3)), c8);
+      BigInteger z3 = mul(point.y, point.z);
+      z3 = add(z3, z3);
+      return new JacobianPoint(x3, y3, z3);
+   }
+
+   /**
+    * Add two points in Jacobian coordinates, null is the point at infinity.
+    */
+   static JacobianPoint add(JacobianPoint p1, JacobianPoint p2)
+   {
+      if (p1 == null)
+         return p2;
+      if (p2 == null)
+         return p1;
+      BigInteger z1z1 = mul(p1.z, p1.z);
+      BigInteger z2z2 = mul(p2.z, p2.z);
+      BigInteger u1 = mul(p1.x, z2z2);
+      BigInteger u2 = mul(p2.x, z1z1);
+      BigInteger s1 = mul(p1.y, mul(p2.z, z2z2));
+      BigInteger s2 = mul(p2.y, mul(p1.z, z1z1));
+      return add(p1, u1, s1, u2, s2, mul(p1.z, p2.z));
+   }
+
+   /**
+    * Add a point in affine coordinates to a point in Jacobian coordinates.
+    */
+   private static JacobianPoint addAffine(JacobianPoint p1, BigInteger x2, BigInteger y2)
+   {
+      if (p1 == null)
+         return new JacobianPoint(x2, y2, BigInteger.ONE);
+      BigInteger z1z1 = mul(p1.z, p1.z);
+      BigInteger u2 = mul(x2, z1z1);
+      BigInteger s2 = mul(y2, mul(p1.z, z1z1));
+      return add(p1, p1.x, p1.y, u2, s2, p1.z);
+   }
+
+   private static JacobianPoint add(JacobianPoint p1, BigInteger u1, BigInteger s1, BigInteger u2, BigInteger s2, BigInteger z1z2)
+   {
+      BigInteger h = sub(u2, u1);
+      BigInteger r = sub(s2, s1);
+      if (h.signum() == 0)
+      {
+         if (r.signum() == 0)
+            return twice(p1); // Same point
+         return null; // Opposite points
+      }
+      BigInteger hh = mul(h, h);
+      BigInteger hhh = mul(hh, h);
+      BigInteger v = mul(u1, hh);
+      BigInteger x3 = sub(sub(mul(r, r), hhh), add(v, v));
+      BigInteger y3 = sub(mul(r, sub(v, x3)), mul(s1, hhh));
+      BigInteger z3 = mul(z1z2, h);
+      return new JacobianPoint(x3, y3, z3);
+   }
+
+   private static BigInteger mul(BigInteger a, BigInteger b)
+   {
+      return a.multiply(b).mod(P);
+   }
+
+   private static BigInteger add(BigInteger a, BigInteger b)
+   {
+      BigInteger result = a.add(b);
+      return result.compareTo(P) >= 0 ? result.subtract(P) : result;
+   }
+
+   private static BigInteger sub(BigInteger a, BigInteger b)
+   {
+      BigInteger result = a.subtract(b);
+      return result.signum() < 0 ? result.add(P) : result;
+   }
+
+   private static AffinePoint toAffine(JacobianPoint point)
+   {
+      BigInteger zInverse = point.z.modInverse(P);
+      BigInteger zInverse2 = mul(zInverse, zInverse);
+      return new AffinePoint(mul(point.x, zInverse2), mul(point.y, mul(zInverse2, zInverse)));
+   }
+
+   static class JacobianPoint
+   {
+
+      final BigInteger x;
+      final BigInteger y;
+      final BigInteger z;
+
+      JacobianPoint(BigInteger x, BigInteger y, BigInteger z)
+      {
+         this.x = x;
+         this.y = y;
+         this.z = z;
+      }
+   }
+
+   private static class AffinePoint
+   {
+
+      private final BigInteger x;
+      private final BigInteger y;
+
+      private AffinePoint(BigInteger x, BigInteger y)
+      {
+         this.x = x;
+         this.y = y;
+      }
+   }
+
+   static
+   {
+      // Odd multiples of the generator: G, 3G, 5G, ...
+      G_TABLE = new AffinePoint[1 << (G_WINDOW - 2)];
+      LAMBDA_G_TABLE = new AffinePoint[G_TABLE.length];
+      JacobianPoint g = new JacobianPoint(GX, GY, BigInteger.ONE);
+      JacobianPoint twoG = twice(g);
+      JacobianPoint multiple = g;
+      for (int i = 0; i < G_TABLE.length; i++)
+      {
+         G_TABLE[i] = toAffine(multiple);
+         LAMBDA_G_TABLE[i] = new AffinePoint(mul(G_TABLE[i].x, BETA), G_TABLE[i].y);
+         multiple = add(multiple, twoG);
+      }
+   }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.keyfactory.ecc;
+
+import it.nibbles.javacoin.PublicKey;
+import it.nibbles.javacoin.VerificationException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class PublicKeyCacheTests
+{
+
+   private byte[] encodedKey(KeyImpl key)
+   {
+      return ((KeyImpl.PublicKeyImpl) key.getPublicKey()).getPublicKey();
+   }
+
+   public void testSameKeyReturned()
+   {
+      PublicKeyCache cache = new PublicKeyCache();
+      byte[] data = encodedKey(new KeyImpl());
+      PublicKey first = cache.get(data);
+      PublicKey second = cache.get(data.clone());
+      Assert.assertSame(second, first);
+      Assert.assertEquals(cache.size(), 1);
+      Assert.assertEquals(cache.getHits(), 1);
+      Assert.assertEquals(cache.getMisses(), 1);
+      Assert.assertEquals(cache.getHitRate(), 0.5, 0.001);
+      Assert.assertTrue(cache.getMemoryFootprint() > data.length);
+   }
+
+   public void testDataCopied()
+   {
+      PublicKeyCache cache = new PublicKeyCache();
+      KeyImpl key = new KeyImpl();
+      byte[] data = encodedKey(key).clone();
+      KeyImpl.PublicKeyImpl publicKey = cache.get(data);
+      data[1] ^= 1;
+      Assert.assertEquals(publicKey.getPublicKey(), encodedKey(key));
+      Assert.assertEquals(publicKey.getHash(), key.getPublicKey().getHash());
+   }
+
+   public void testCachedKeyVerifies()
+           throws VerificationException
+   {
+      KeyFactoryImpl factory = new KeyFactoryImpl(null);
+      KeyImpl key = new KeyImpl();
+      byte[] hash = new byte[32];
+      hash[0] = 1;
+      byte[] signature = key.sign(hash);
+      for (int i = 0; i < 3; i++)
+         Assert.assertTrue(factory.createPublicKey(encodedKey(key)).verify(hash, signature));
+      Assert.assertEquals(factory.getPublicKeyCache().getHits(), 2);
+   }
+
+   public void testOldestRemoved()
+   {
+      PublicKeyCache cache = new PublicKeyCache(2);
+      byte[] first = encodedKey(new KeyImpl());
+      cache.get(first);
+      cache.get(encodedKey(new KeyImpl()));
+      cache.get(encodedKey(new KeyImpl()));
+      Assert.assertEquals(cache.size(), 2);
+      cache.get(first);
+      Assert.assertEquals(cache.getHits(), 0);
+   }
+
+   public void testNoCache()
+   {
+      KeyFactoryImpl factory = new KeyFactoryImpl(null, null);
+      byte[] data = encodedKey(new KeyImpl());
+      Assert.assertNotSame(factory.createPublicKey(data), factory.createPublicKey(data));
+      Assert.assertNull(factory.getPublicKeyCache());
+   }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.keyfactory.ecc;
+
+import java.math.BigInteger;
+import java.util.Random;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Check the secp256k1 specific verification against the generic one.
+ *
+ * @author Alessandro Polverini
+ */
+@Test
+public class Secp256k1Tests
+{
+
+   private static final X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+   private static final ECDomainParameters domain = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
+   private final Random random = new Random(1);
+
+   private BigInteger randomScalar()
+   {
+      BigInteger k;
+      do
+      {
+         k = new BigInteger(256, random);
+      } while ((k.signum() == 0) || (k.compareTo(Secp256k1.N) >= 0));
+      return k;
+   }
+
+   private byte[] randomHash()
+   {
+      byte[] hash = new byte[32];
+      random.nextBytes(hash);
+      return hash;
+   }
+
+   private boolean verifyGeneric(byte[] hash, BigInteger r, BigInteger s, ECPoint q)
+   {
+      ECDSASigner signer = new ECDSASigner();
+      signer.init(false, new ECPublicKeyParameters(q, domain));
+      return signer.verifySignature(hash, r, s);
+   }
+
+   private boolean verify(byte[] hash, BigInteger r, BigInteger s, ECPoint q)
+   {
+      return Secp256k1.verify(hash, r, s, q.getX().toBigInteger(), q.getY().toBigInteger());
+   }
+
+   public void testSplit()
+   {
+      BigInteger lambda = new BigInteger("5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+      for (int i = 0; i < 200; i++)
+      {
+         BigInteger k = randomScalar();
+         BigInteger[] split = Secp256k1.split(k);
+         Assert.assertEquals(split[0].add(split[1].multiply(lambda)).mod(Secp256k1.N), k);
+         Assert.assertTrue(split[0].abs().bitLength() <= 129);
+         Assert.assertTrue(split[1].abs().bitLength() <= 129);
+      }
+   }
+
+   public void testWnaf()
+   {
+      for (int i = 0; i < 200; i++)
+      {
+         BigInteger k = new BigInteger(130, random);
+         if (i % 2 == 1)
+            k = k.negate();
+         int[] digits = Secp256k1.wnaf(k, 5);
+         BigInteger value = BigInteger.ZERO;
+         for (int j = digits.length - 1; j >= 0; j--)
+         {
+            Assert.assertTrue((digits[j] == 0) || ((Math.abs(digits[j]) % 2 == 1) && (Math.abs(digits[j]) < 16)));
+            value = value.shiftLeft(1).add(BigInteger.valueOf(digits[j]));
+         }
+         Assert.assertEquals(value, k);
+      }
+   }
+
+   public void testMultiplyAndAdd()
+   {
+      for (int i = 0; i < 50; i++)
+      {
+         BigInteger u1 = randomScalar();
+         BigInteger u2 = randomScalar();
+         ECPoint q = params.getG().multiply(randomScalar());
+         ECPoint expected = params.getG().multiply(u1).add(q.multiply(u2));
+         Secp256k1.JacobianPoint result = Secp256k1.multiplyAndAdd(u1, u2,
+                 q.getX().toBigInteger(), q.getY().toBigInteger());
+         BigInteger zInverse = result.z.modInverse(Secp256k1.P);
+         BigInteger zInverse2 = zInverse.multiply(zInverse).mod(Secp256k1.P);
+         Assert.assertEquals(result.x.multiply(zInverse2).mod(Secp256k1.P), expected.getX().toBigInteger());
+         Assert.assertEquals(result.y.multiply(zInverse2).multiply(zInverse).mod(Secp256k1.P), expected.getY().toBigInteger());
+      }
+   }
+
+   public void testMultiplyToInfinity()
+   {
+      // u1 * G + u2 * G with u1 + u2 = n
+      BigInteger u1 = randomScalar();
+      Assert.assertNull(Secp256k1.multiplyAndAdd(u1, Secp256k1.N.subtract(u1), Secp256k1.GX, Secp256k1.GY));
+   }
+
+   public void testValidSignatures()
+   {
+      for (int i = 0; i < 50; i++)
+      {
+         BigInteger privateKey = randomScalar();
+         ECPoint q = params.getG().multiply(privateKey);
+         ECDSASigner signer = new ECDSASigner();
+         signer.init(true, new ECPrivateKeyParameters(privateKey, domain));
+         byte[] hash = randomHash();
+         BigInteger[] signature = signer.generateSignature(hash);
+         Assert.assertTrue(verifyGeneric(hash, signature[0], signature[1], q));
+         Assert.assertTrue(verify(hash, signature[0], signature[1], q));
+      }
+   }
+
+   public void testInvalidSignatures()
+   {
+      for (int i = 0; i < 50; i++)
+      {
+         BigInteger privateKey = randomScalar();
+         ECPoint q = params.getG().multiply(privateKey);
+         ECDSASigner signer = new ECDSASigner();
+         signer.init(true, new ECPrivateKeyParameters(privateKey, domain));
+         byte[] hash = randomHash();
+         BigInteger[] signature = signer.generateSignature(hash);
+         BigInteger r = signature[0];
+         BigInteger s = signature[1];
+         byte[] otherHash = hash.clone();
+         otherHash[i % 32] ^= 1;
+         Assert.assertFalse(verify(otherHash, r, s, q));
+         Assert.assertFalse(verify(hash, r.add(BigInteger.ONE), s, q));
+         Assert.assertFalse(verify(hash, r, s.add(BigInteger.ONE), q));
+         Assert.assertFalse(verify(hash, r, s, q.twice()));
+      }
+   }
+
+   public void testOutOfRangeValues()
+   {
+      BigInteger privateKey = randomScalar();
+      ECPoint q = params.getG().multiply(privateKey);
+      byte[] hash = randomHash();
+      BigInteger[] values = new BigInteger[]
+      {
+         BigInteger.ZERO, Secp256k1.N, Secp256k1.N.add(BigInteger.ONE), BigInteger.ONE.negate()
+      };
+      for (BigInteger value : values)
+      {
+         Assert.assertFalse(verify(hash, value, BigInteger.ONE, q));
+         Assert.assertFalse(verify(hash, BigInteger.ONE, value, q));
+         Assert.assertEquals(verify(hash, value, BigInteger.ONE, q), verifyGeneric(hash, value, BigInteger.ONE, q));
+      }
+   }
+
+   public void testLongMessageTruncated()
+   {
+      // The message is cut to the bit length of the order, as in the generic implementation
+      BigInteger privateKey = randomScalar();
+      ECPoint q = params.getG().multiply(privateKey);
+      ECDSASigner signer = new ECDSASigner();
+      signer.init(true, new ECPrivateKeyParameters(privateKey, domain));
+      byte[] message = new byte[40];
+      random.nextBytes(message);
+      BigInteger[] signature = signer.generateSignature(message);
+      Assert.assertTrue(verify(message, signature[0], signature[1], q));
+   }
+
+   public void testKeyNotOnCurve()
+   {
+      BigInteger privateKey = randomScalar();
+      ECPoint q = params.getG().multiply(privateKey);
+      ECDSASigner signer = new ECDSASigner();
+      signer.init(true, new ECPrivateKeyParameters(privateKey, domain));
+      byte[] hash = randomHash();
+      BigInteger[] signature = signer.generateSignature(hash);
+      Assert.assertFalse(Secp256k1.verify(hash, signature[0], signature[1],
+              q.getX().toBigInteger(), q.getY().toBigInteger().add(BigInteger.ONE)));
+      Assert.assertFalse(Secp256k1.verify(hash, signature[0], signature[1],
+              q.getX().toBigInteger(), q.getY().toBigInteger().add(Secp256k1.P)));
+   }
+}
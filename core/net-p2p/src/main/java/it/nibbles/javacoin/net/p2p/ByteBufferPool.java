@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net.p2p;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers of the same size, so connections don't
+ * allocate (and the garbage collector doesn't free) a buffer for each read.
+ * Buffers of other sizes can be released too, they are simply dropped.
+ *
+ * @author Alessandro Polverini
+ */
+public class ByteBufferPool
+{
+
+   private final int bufferSize;
+   private final int maxPooled;
+   private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger pooled = new AtomicInteger();
+
+   /**
+    * @param bufferSize The size of the buffers.
+    * @param maxPooled The maximum number of free buffers kept.
+    */
+   public ByteBufferPool(int bufferSize, int maxPooled)
+   {
+      this.bufferSize = bufferSize;
+      this.maxPooled = maxPooled;
+   }
+
+   /**
+    * @return A cleared buffer, allocated if there is no free one.
+    */
+   public ByteBuffer acquire()
+   {
+      ByteBuffer buffer = buffers.poll();
+      if (buffer == null)
+         return ByteBuffer.allocateDirect(bufferSize);
+      pooled.decrementAndGet();
+      buffer.clear();
+      return buffer;
+   }
+
+   /**
+    * Give back a buffer which is not used anymore.
+    */
+   public void release(ByteBuffer buffer)
+   {
+      if ((buffer == null) || (buffer.capacity() != bufferSize) || (!buffer.isDirect()))
+         return;
+      if (pooled.incrementAndGet() > maxPooled)
+      {
+         pooled.decrementAndGet();
+         return;
+      }
+      buffers.offer(buffer);
+   }
+
+   public int getBufferSize()
+   {
+      return bufferSize;
+   }
+
+   /**
+    * @return The number of free buffers in the pool.
+    */
+   public int getPooled()
+   {
+      return pooled.get();
+   }
+}
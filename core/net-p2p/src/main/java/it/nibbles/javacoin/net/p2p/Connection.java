@@ -123,4 +123,17 @@ public interface Connection
     * to the node for whatever reason, it can use this method.
     */
    void close();
+
+   /**
+    * Stop reading messages from this peer, until resumeReading() is called.
+    * A handler which can not keep up with a peer uses this to slow it down,
+    * instead of waiting in onMessage(). Messages already read may still be
+    * delivered.
+    */
+   void pauseReading();
+
+   /**
+    * Read messages from this peer again, after pauseReading().
+    */
+   void resumeReading();
 }
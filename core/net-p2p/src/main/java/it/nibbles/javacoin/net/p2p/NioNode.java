@@ -0,0 +1,1032 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net.p2p;
+
+import it.nibbles.javacoin.net.Message;
+import it.nibbles.javacoin.net.MessageMarshaller;
+import it.nibbles.javacoin.net.VersionMessage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A network node built on non-blocking channels. A small fixed number of I/O
+ * threads, each with its own selector, accept, connect, read and write for
+ * all the connections, and cut the incoming bytes into messages using pooled
+ * buffers. Messages are passed to the handlers on a separate pool of
+ * threads, in order for each connection, so a slow handler does not hold up
+ * the network. Handlers must not wait on the handler threads, which are
+ * shared by all the peers: a handler which can not keep up with a peer
+ * pauses reading from it instead. Handlers get the same Connection contract
+ * as with the thread per connection Node, which this node can replace.
+ *
+ * @author Alessandro Polverini
+ */
+public class NioNode extends Node
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(NioNode.class);
+   // Stop reading from a peer while this many of its messages wait for the handlers
+   private static final int MAX_PENDING_MESSAGES = 32;
+   // Messages of a peer handled in a row before giving the thread to others
+   private static final int MAX_DISPATCH_BATCH = 16;
+   private static int defaultIoThreads = 2;
+   private static int defaultHandlerThreads = 4;
+   private static int defaultBufferSize = 64 * 1024;
+   private static int defaultPooledBuffers = 256;
+   private int ioThreads = defaultIoThreads;
+   private int handlerThreads = defaultHandlerThreads;
+   private ByteBufferPool bufferPool = new ByteBufferPool(defaultBufferSize, defaultPooledBuffers);
+   private IoLoop[] loops;
+   private AtomicInteger nextLoop = new AtomicInteger();
+   private ServerSocketChannel serverChannel;
+   private ExecutorService handlerExecutor;
+   private ScheduledExecutorService maintenanceExecutor;
+   private final List<Thread> threads = new CopyOnWriteArrayList<>();
+   private final Set<NioConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<NioConnection, Boolean>());
+
+   public NioNode(long messageMagic, int port)
+   {
+      super(messageMagic, port);
+   }
+
+   public NioNode(long messageMagic)
+   {
+      super(messageMagic);
+   }
+
+   /**
+    * Start the I/O threads, listen for incoming connections and start to
+    * establish connections.
+    */
+   @Override
+   public void start()
+      throws IOException
+   {
+      if (running)
+         return;
+      serverChannel = ServerSocketChannel.open();
+      try
+      {
+         serverChannel.configureBlocking(false);
+         serverChannel.socket().bind(new InetSocketAddress(getPort()));
+      } catch (IOException e)
+      {
+         serverChannel.close();
+         throw e;
+      }
+      running = true;
+      handlerExecutor = Executors.newFixedThreadPool(handlerThreads, newThreadFactory("Bitcoin Node Handler"));
+      ThreadFactory ioThreadFactory = newThreadFactory("Bitcoin Node I/O");
+      loops = new IoLoop[ioThreads];
+      for (int i = 0; i < loops.length; i++)
+      {
+         loops[i] = new IoLoop();
+         ioThreadFactory.newThread(loops[i]).start();
+      }
+      loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+      // Connections are made and cleaned up periodically, the resolution is
+      // also bound by the old accept timeout
+      maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("Bitcoin Node Maintenance"));
+      maintenanceExecutor.scheduleWithFixedDelay(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            maintain();
+         }
+      }, 0, Math.min(getSoTimeout(), 1000), TimeUnit.MILLISECONDS);
+      logger.info("starting nio node on port {} with {} I/O threads", getPort(), ioThreads);
+   }
+
+   /**
+    * Stop the node, close all connections and wait until all threads of the
+    * node are finished.
+    */
+   @Override
+   public void stop()
+   {
+      logger.debug("stop called on nio node...");
+      if (!running)
+         return;
+      running = false;
+      try
+      {
+         serverChannel.close();
+      } catch (IOException e)
+      {
+         logger.error("error closing server channel", e);
+      }
+      maintenanceExecutor.shutdownNow();
+      for (IoLoop loop : loops)
+         loop.stop();
+      joinThreads("Bitcoin Node Maintenance", "Bitcoin Node I/O");
+      // The I/O threads are gone, so connections can be closed from here
+      for (NioConnection connection : new ArrayList<>(connections))
+         connection.closeInternal();
+      handlerExecutor.shutdown();
+      try
+      {
+         if (!handlerExecutor.awaitTermination(10, TimeUnit.SECONDS))
+            logger.warn("handlers did not finish in time, node might not be completely stopped");
+      } catch (InterruptedException e)
+      {
+         logger.error("interrupted while waiting for handlers to finish", e);
+      }
+      joinThreads("Bitcoin Node Handler");
+      logger.info("nio node stopped");
+   }
+
+   /**
+    * Broadcast a message to all connections. Messages are only queued, so a
+    * slow peer does not delay the others, and connections still being
+    * established get them as soon as they are connected.
+    */
+   @Override
+   public void broadcast(Message message)
+   {
+      logger.debug("broadcasting message: {}", message);
+      for (NioConnection connection : connections)
+         connection.send(message);
+   }
+
+   /**
+    * Remove the connections which timed out, then make sure there are enough
+    * connections.
+    */
+   private void maintain()
+   {
+      try
+      {
+         long currentTime = System.currentTimeMillis();
+         for (NioConnection connection : connections)
+            if ( // If the connection could not be established in time
+               ((!connection.established) && (currentTime - connection.creationTime > getConnectTimeout()))
+               || // OR if there was no message yet, and the "initial timeout" ran out
+               ((connection.established) && (connection.lastIncomingTime == 0) && (currentTime - connection.creationTime > getInitialTimeout()))
+               || // OR there was a message, but it was longer than "timeout" ago
+               ((connection.lastIncomingTime > 0) && (currentTime - connection.lastIncomingTime > getTimeout())))
+            {
+               logger.debug("connection {} timed out", connection);
+               connection.close();
+            }
+         bootstrapConnections();
+      } catch (RuntimeException e)
+      {
+         logger.error("node maintenance failed", e);
+      }
+   }
+
+   /**
+    * Start connecting to nodes until there are enough connections.
+    */
+   private void bootstrapConnections()
+   {
+      if (connections.size() >= getMinConnections())
+         return;
+      if (getAddressSource() == null)
+      {
+         logger.debug("no address source setup for node, no nodes will be connected");
+         return;
+      }
+      for (InetSocketAddress address : getAddressSource().getAddresses())
+      {
+         if ((!running) || (connections.size() >= getMinConnections()) || (connections.size() >= getMaxConnections()))
+            return;
+         if (isConnected(address))
+         {
+            logger.debug("node already connected to address {}, will not connect again", address);
+            continue;
+         }
+         SocketChannel channel = null;
+         try
+         {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            NioConnection connection = new NioConnection(channel, true, address);
+            connections.add(connection);
+            connection.register(channel.connect(address));
+            logger.debug("connecting to address {}, current number of connections {}", address, connections.size());
+         } catch (IOException e)
+         {
+            logger.error("error connecting to address: {}", address);
+            closeChannel(channel);
+         }
+      }
+   }
+
+   private boolean isConnected(SocketAddress address)
+   {
+      for (NioConnection connection : connections)
+         if (address.equals(connection.remoteAddress))
+            return true;
+      return false;
+   }
+
+   /**
+    * Accept all the pending incoming connections, up to the maximum number of
+    * connections.
+    */
+   private void accept()
+      throws IOException
+   {
+      SocketChannel channel;
+      while ((channel = serverChannel.accept()) != null)
+      {
+         if ((!running) || (connections.size() >= getMaxConnections()))
+         {
+            logger.debug("not accepting connection because maximum number of connections reached ({})", getMaxConnections());
+            closeChannel(channel);
+            continue;
+         }
+         try
+         {
+            channel.configureBlocking(false);
+            NioConnection connection = new NioConnection(channel, false, channel.socket().getRemoteSocketAddress());
+            connections.add(connection);
+            connection.register(true);
+         } catch (IOException e)
+         {
+            logger.error("could not accept connection {}", channel, e);
+            closeChannel(channel);
+         }
+      }
+   }
+
+   private IoLoop nextLoop()
+   {
+      return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+   }
+
+   private static void closeChannel(SelectableChannel channel)
+   {
+      try
+      {
+         if (channel != null)
+            channel.close();
+      } catch (IOException e)
+      {
+         logger.error("could not close channel {}", channel, e);
+      }
+   }
+
+   /**
+    * Get the command from the header of a serialized message, which is
+    * the null padded ascii string after the magic number.
+    */
+   private static String getCommand(ByteBuffer frame)
+   {
+      byte[] command = new byte[12];
+      int length = 0;
+      while ((length < command.length) && ((command[length] = frame.get(frame.position() + 4 + length)) != 0))
+         length++;
+      return new String(command, 0, length, StandardCharsets.US_ASCII);
+   }
+
+   private ThreadFactory newThreadFactory(final String name)
+   {
+      return new ThreadFactory()
+      {
+         private AtomicInteger counter = new AtomicInteger();
+
+         @Override
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, name + " " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+         }
+      };
+   }
+
+   private void joinThreads(String... names)
+   {
+      for (Thread thread : threads)
+         for (String name : names)
+            if ((thread.getName().startsWith(name)) && (thread != Thread.currentThread()))
+            {
+               try
+               {
+                  thread.join();
+               } catch (InterruptedException e)
+               {
+                  logger.error("interrupted while waiting for thread {} to stop", thread.getName(), e);
+               }
+               threads.remove(thread);
+            }
+   }
+
+   /**
+    * A selector and the thread serving it. Operations on the channels of the
+    * selector are only done by this thread, other threads submit them as tasks.
+    */
+   private class IoLoop implements Runnable
+   {
+
+      private final Selector selector;
+      private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+      private volatile boolean stopped = false;
+
+      private IoLoop()
+         throws IOException
+      {
+         selector = Selector.open();
+      }
+
+      private void execute(Runnable task)
+      {
+         tasks.add(task);
+         selector.wakeup();
+      }
+
+      private void register(final SelectableChannel channel, final int ops, final NioConnection connection)
+      {
+         execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  SelectionKey key = channel.register(selector, ops, connection);
+                  if (connection != null)
+                     connection.registered(key);
+               } catch (IOException e)
+               {
+                  logger.error("could not register channel {}", channel, e);
+                  if (connection != null)
+                     connection.closeInternal();
+               }
+            }
+         });
+      }
+
+      private void stop()
+      {
+         stopped = true;
+         selector.wakeup();
+      }
+
+      @Override
+      public void run()
+      {
+         try
+         {
+            while (!stopped)
+            {
+               selector.select(1000);
+               Runnable task;
+               while ((task = tasks.poll()) != null)
+                  task.run();
+               Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+               while (keyIterator.hasNext())
+               {
+                  SelectionKey key = keyIterator.next();
+                  keyIterator.remove();
+                  if (key.isValid())
+                     handle(key);
+               }
+            }
+         } catch (IOException | RuntimeException e)
+         {
+            logger.error("I/O loop exiting because of an exception", e);
+         } finally
+         {
+            for (SelectionKey key : new ArrayList<>(selector.keys()))
+               if (key.attachment() != null)
+                  ((NioConnection) key.attachment()).closeInternal();
+            try
+            {
+               selector.close();
+            } catch (IOException e)
+            {
+               logger.error("error while closing selector", e);
+            }
+         }
+      }
+
+      private void handle(SelectionKey key)
+      {
+         if (key.attachment() == null)
+         {
+            try
+            {
+               accept();
+            } catch (IOException e)
+            {
+               logger.error("could not accept connections", e);
+            }
+            return;
+         }
+         NioConnection connection = (NioConnection) key.attachment();
+         try
+         {
+            if (key.isConnectable())
+               connection.finishConnect();
+            if ((key.isValid()) && (key.isReadable()))
+               connection.read();
+            if ((key.isValid()) && (key.isWritable()))
+               connection.write();
+         } catch (IOException | RuntimeException e)
+         {
+            if (running)
+               logger.debug("error while communicating with {}, closing", connection, e);
+            connection.closeInternal();
+         }
+      }
+   }
+
+   /**
+    * A connection served by one of the I/O loops. All reading, writing and
+    * closing is done on the loop thread, handlers are invoked on the handler
+    * threads one message at a time.
+    */
+   private class NioConnection implements Connection
+   {
+
+      private final SocketChannel channel;
+      private final IoLoop loop;
+      private final boolean isOutgoing;
+      private final SocketAddress remoteAddress;
+      private final MessageMarshaller marshaller = new MessageMarshaller(messageMagic);
+      private final Map<String, Object> session = new ConcurrentHashMap<>();
+      private final long creationTime = System.currentTimeMillis();
+      private volatile long lastIncomingTime = 0;
+      private volatile boolean established = false;
+      private final AtomicBoolean open = new AtomicBoolean(true);
+      private SelectionKey key;
+      private ByteBuffer readBuffer;
+      private boolean readPaused = false;
+      // Set by the handlers, reading stays paused until they resume it
+      private volatile boolean pausedByHandler = false;
+      // Set while framing, the connection is closed when the frames are done
+      private boolean closeRequested = false;
+      private final OutboundQueue outbound = new OutboundQueue(getMaxQueuedBytes());
+      private ByteBuffer writeBuffer;
+      private final AtomicBoolean writeScheduled = new AtomicBoolean();
+      private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+      private final AtomicInteger pendingMessages = new AtomicInteger();
+      private final AtomicBoolean dispatching = new AtomicBoolean();
+      private volatile VersionMessage versionMessage;
+      private volatile long connectionNonce;
+
+      private NioConnection(SocketChannel channel, boolean isOutgoing, SocketAddress remoteAddress)
+      {
+         this.channel = channel;
+         this.isOutgoing = isOutgoing;
+         this.remoteAddress = remoteAddress;
+         this.loop = nextLoop();
+      }
+
+      private void register(boolean connected)
+      {
+         loop.register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+      }
+
+      private void registered(SelectionKey key)
+      {
+         this.key = key;
+         if (!open.get())
+            key.cancel();
+         else if (channel.isConnected())
+         {
+            if (!outbound.isEmpty())
+               key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            established();
+         }
+      }
+
+      private void finishConnect()
+         throws IOException
+      {
+         if (channel.finishConnect())
+         {
+            key.interestOps(SelectionKey.OP_READ | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            established();
+         }
+      }
+
+      private void established()
+      {
+         readBuffer = bufferPool.acquire().order(ByteOrder.LITTLE_ENDIAN);
+         established = true;
+         logger.debug("connection established: {}", this);
+         dispatch(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               for (MessageHandler handler : handlers)
+               {
+                  try
+                  {
+                     handler.onJoin(NioConnection.this);
+                  } catch (Exception e)
+                  {
+                     logger.error("failed to handle join by handler {}", handler, e);
+                  }
+               }
+            }
+         });
+      }
+
+      private void read()
+         throws IOException
+      {
+         if (channel.read(readBuffer) < 0)
+            throw new EOFException("connection closed by peer");
+         processFrames();
+      }
+
+      /**
+       * Cut the complete messages out of the read buffer. The buffer grows if
+       * a message does not fit, and goes back to a pooled one afterwards.
+       */
+      private void processFrames()
+         throws IOException
+      {
+         int needed = 0;
+         readBuffer.flip();
+         try
+         {
+            while ((!readPaused) && (!closeRequested) && (readBuffer.remaining() >= MessageMarshaller.HEADER_LENGTH))
+            {
+               long length = readBuffer.getInt(readBuffer.position() + 16) & 0xffffffffl;
+               if (length > MessageMarshaller.MAX_MESSAGE_LENGTH)
+                  throw new IOException("message of " + length + " bytes is too long");
+               int frameLength = MessageMarshaller.HEADER_LENGTH + (int) length;
+               if (readBuffer.remaining() < frameLength)
+               {
+                  needed = frameLength;
+                  break;
+               }
+               // Decoded in place, the message does not keep the buffer
+               ByteBuffer frame = readBuffer.slice();
+               frame.limit(frameLength);
+               readBuffer.position(readBuffer.position() + frameLength);
+               received(frame);
+            }
+         } finally
+         {
+            readBuffer.compact();
+         }
+         if (closeRequested)
+         {
+            closeInternal();
+            return;
+         }
+         if (needed > readBuffer.capacity())
+            resizeReadBuffer(ByteBuffer.allocate(needed));
+         else if ((readBuffer.capacity() != bufferPool.getBufferSize()) && (needed <= bufferPool.getBufferSize())
+            && (readBuffer.position() <= bufferPool.getBufferSize()))
+            resizeReadBuffer(bufferPool.acquire());
+      }
+
+      private void resizeReadBuffer(ByteBuffer buffer)
+      {
+         readBuffer.flip();
+         buffer.order(ByteOrder.LITTLE_ENDIAN).put(readBuffer);
+         bufferPool.release(readBuffer);
+         readBuffer = buffer;
+      }
+
+      private void received(ByteBuffer frame)
+         throws IOException
+      {
+         String command = getCommand(frame);
+         if (!MessageMarshaller.isKnownCommand(command))
+         {
+            logger.warn("did not find message type for command (skipping message): {}", command);
+            return;
+         }
+         final Message message = marshaller.read(frame);
+         logger.debug("received message {}, from {}", message, remoteAddress);
+         lastIncomingTime = System.currentTimeMillis();
+         if (message instanceof VersionMessage)
+         {
+            VersionMessage versionMessage = (VersionMessage) message;
+            if (connectionNonce == versionMessage.getNonce())
+            {
+               logger.warn("Connection to self detected, closing " + this);
+               closeRequested = true;
+               return;
+            }
+            marshaller.setVersion(versionMessage.getVersion());
+            setVersionAndInfo(versionMessage);
+         }
+         // Don't read more from a peer whose messages are not handled fast enough
+         if (pendingMessages.incrementAndGet() >= MAX_PENDING_MESSAGES)
+         {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+         }
+         dispatch(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               for (MessageHandler handler : handlers)
+               {
+                  try
+                  {
+                     handler.onMessage(NioConnection.this, message);
+                  } catch (Exception e)
+                  {
+                     logger.error("handler " + handler + " failed to handle message", e);
+                  }
+               }
+               if (pendingMessages.decrementAndGet() < MAX_PENDING_MESSAGES / 2)
+                  resumeReadingIfIdle();
+            }
+         });
+      }
+
+      /**
+       * Read again from the peer, unless the handlers paused it or too many
+       * of its messages are still waiting.
+       */
+      private void resumeReadingIfIdle()
+      {
+         loop.execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               if ((!readPaused) || (key == null) || (!key.isValid()) || (pausedByHandler) || (pendingMessages.get() >= MAX_PENDING_MESSAGES))
+                  return;
+               readPaused = false;
+               key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+               try
+               {
+                  // Messages may be already waiting in the buffer
+                  processFrames();
+               } catch (IOException | RuntimeException e)
+               {
+                  logger.debug("error while communicating with {}, closing", NioConnection.this, e);
+                  closeInternal();
+               }
+            }
+         });
+      }
+
+      /**
+       * Write the queued messages until the channel would block, small
+       * messages are put together into one write.
+       */
+      private void write()
+         throws IOException
+      {
+         while ((writeBuffer != null) || ((writeBuffer = outbound.poll()) != null))
+         {
+            channel.write(writeBuffer);
+            if (writeBuffer.hasRemaining())
+               return;
+            writeBuffer = null;
+         }
+         key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+         // Something might have been queued meanwhile
+         if (!outbound.isEmpty())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+
+      /**
+       * Run a task on the handler threads, after all the previous tasks of
+       * this connection.
+       */
+      private void dispatch(Runnable task)
+      {
+         inbound.add(task);
+         if (dispatching.compareAndSet(false, true))
+            submitDispatcher();
+      }
+
+      private void submitDispatcher()
+      {
+         try
+         {
+            handlerExecutor.execute(dispatcher);
+         } catch (RejectedExecutionException e)
+         {
+            dispatching.set(false);
+            logger.debug("node is stopping, handlers are not invoked for {}", this);
+         }
+      }
+
+      private final Runnable dispatcher = new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            Runnable task;
+            for (int i = 0; (i < MAX_DISPATCH_BATCH) && ((task = inbound.poll()) != null); i++)
+               task.run();
+            dispatching.set(false);
+            if ((!inbound.isEmpty()) && (dispatching.compareAndSet(false, true)))
+               submitDispatcher();
+         }
+      };
+
+      /**
+       * Close the connection, must be called from the loop thread (or when
+       * the loop is not running anymore).
+       */
+      private void closeInternal()
+      {
+         if (!open.compareAndSet(true, false))
+            return;
+         connections.remove(this);
+         if (key != null)
+            key.cancel();
+         closeChannel(channel);
+         bufferPool.release(readBuffer);
+         readBuffer = null;
+         outbound.close();
+         writeBuffer = null;
+         logger.debug("connection closed: {}", this);
+         if (established)
+            dispatch(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  for (MessageHandler handler : handlers)
+                  {
+                     try
+                     {
+                        handler.onLeave(NioConnection.this);
+                     } catch (Exception e)
+                     {
+                        logger.error("handler " + handler + " could not execute onLeave()", e);
+                     }
+                  }
+               }
+            });
+      }
+
+      @Override
+      public Map<String, Object> getSession()
+      {
+         return session;
+      }
+
+      @Override
+      public Object getSessionAttribute(String name)
+      {
+         return session.get(name);
+      }
+
+      @Override
+      public Object setSessionAttribute(String name, Object o)
+      {
+         return session.put(name, o);
+      }
+
+      @Override
+      public SocketAddress getRemoteAddress()
+      {
+         return remoteAddress;
+      }
+
+      @Override
+      public SocketAddress getLocalAddress()
+      {
+         return channel.socket().getLocalSocketAddress();
+      }
+
+      @Override
+      public long getVersion()
+      {
+         return marshaller.getVersion();
+      }
+
+      @Override
+      public void setVersion(long version)
+      {
+         marshaller.setVersion(version);
+      }
+
+      @Override
+      public void setVersionAndInfo(VersionMessage versionMessage)
+      {
+         this.versionMessage = versionMessage;
+      }
+
+      @Override
+      public String getUserAgent()
+      {
+         return versionMessage == null ? null : versionMessage.getSecondaryVersion();
+      }
+
+      @Override
+      public long getNonce()
+      {
+         return connectionNonce;
+      }
+
+      @Override
+      public boolean hasServiceNodeNetwork()
+      {
+         VersionMessage version = versionMessage;
+         return (version != null) && ((version.getServices() & 1) != 0);
+      }
+
+      @Override
+      public boolean isIncoming()
+      {
+         return !isOutgoing;
+      }
+
+      @Override
+      public boolean isOutgoing()
+      {
+         return isOutgoing;
+      }
+
+      /**
+       * Serialize the message and queue it, the loop thread writes it when the
+       * channel is ready. If the queue is full the peer does not read fast
+       * enough, and is disconnected.
+       */
+      @Override
+      public void send(Message message)
+      {
+         if (message instanceof VersionMessage)
+            connectionNonce = ((VersionMessage) message).getNonce();
+         if (!open.get())
+         {
+            logger.debug("not sent, connection closed: {}", message);
+            return;
+         }
+         try
+         {
+            if (!outbound.offer(marshaller.serialize(message)))
+            {
+               if (open.get())
+               {
+                  logger.warn("send queue full with {} bytes, disconnecting {}", outbound.getQueuedBytes(), this);
+                  close();
+               }
+               return;
+            }
+            logger.debug("sending message {}, to {}", message, remoteAddress);
+         } catch (IOException e)
+         {
+            logger.error("could not send message: " + message + ", to: " + remoteAddress, e);
+            return;
+         }
+         if (writeScheduled.compareAndSet(false, true))
+            loop.execute(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  writeScheduled.set(false);
+                  if ((established) && (key != null) && (key.isValid()))
+                     key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+               }
+            });
+      }
+
+      @Override
+      public void pauseReading()
+      {
+         pausedByHandler = true;
+         loop.execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               // Unless it was resumed meanwhile
+               if ((!pausedByHandler) || (readPaused) || (key == null) || (!key.isValid()))
+                  return;
+               readPaused = true;
+               key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+         });
+      }
+
+      @Override
+      public void resumeReading()
+      {
+         pausedByHandler = false;
+         resumeReadingIfIdle();
+      }
+
+      @Override
+      public void close()
+      {
+         if (running)
+            loop.execute(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  closeInternal();
+               }
+            });
+      }
+
+      @Override
+      public String toString()
+      {
+         return "[Connection " + (isOutgoing ? "outgoing" : "incoming") + " to " + remoteAddress + "/" + getUserAgent();
+      }
+   }
+
+   public int getIoThreads()
+   {
+      return ioThreads;
+   }
+
+   /**
+    * Set the number of I/O threads, only before the node is started.
+    */
+   public void setIoThreads(int ioThreads)
+   {
+      this.ioThreads = ioThreads;
+   }
+
+   public int getHandlerThreads()
+   {
+      return handlerThreads;
+   }
+
+   /**
+    * Set the number of threads invoking the handlers, only before the node
+    * is started.
+    */
+   public void setHandlerThreads(int handlerThreads)
+   {
+      this.handlerThreads = handlerThreads;
+   }
+
+   public ByteBufferPool getBufferPool()
+   {
+      return bufferPool;
+   }
+
+   static
+   {
+      try
+      {
+         ResourceBundle bundle = ResourceBundle.getBundle("bitcoin-node");
+         if (bundle.containsKey("node.io_threads"))
+            defaultIoThreads = Integer.parseInt(bundle.getString("node.io_threads"));
+         if (bundle.containsKey("node.handler_threads"))
+            defaultHandlerThreads = Integer.parseInt(bundle.getString("node.handler_threads"));
+         if (bundle.containsKey("node.buffer_size"))
+            defaultBufferSize = Integer.parseInt(bundle.getString("node.buffer_size"));
+         if (bundle.containsKey("node.pooled_buffers"))
+            defaultPooledBuffers = Integer.parseInt(bundle.getString("node.pooled_buffers"));
+      } catch (Exception e)
+      {
+         logger.error("can not read default configuration for nio node, will go with hardcoded values", e);
+      }
+   }
+}
@@ -18,17 +18,19 @@
 package it.nibbles.javacoin.net.p2p;
 
 import it.nibbles.javacoin.net.BitcoinInputStream;
-import it.nibbles.javacoin.net.BitcoinOutputStream;
 import it.nibbles.javacoin.net.Message;
 import it.nibbles.javacoin.net.MessageMarshaller;
 import it.nibbles.javacoin.net.VersionMessage;
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -58,6 +60,7 @@ public class Node
    private static int defaultConnectTimeout = 10000; // 10 secs
    private static int defaultInitialTimeout = 1800000; // 30 mins
    private static int defaultTimeout = 30000; // 30 seconds
+   private static int defaultMaxQueuedBytes = 8 * 1024 * 1024; // 8 MB
    private int port = defaultPort;
    private int soTimeout = defaultSoTimeout;
    private int maxConnections = defaultMaxConnections;
@@ -65,9 +68,10 @@ public class Node
    private int connectTimeout = defaultConnectTimeout;
    private int initialTimeout = defaultInitialTimeout;
    private int timeout = defaultTimeout;
-   private boolean running = false;
+   private int maxQueuedBytes = defaultMaxQueuedBytes;
+   protected volatile boolean running = false;
    private AddressSource addressSource;
-   private List<MessageHandler> handlers = new ArrayList<>();
+   protected List<MessageHandler> handlers = new ArrayList<>();
    private final List<NodeWorker> workers = new ArrayList<>();
    private NodeListener nodeListener;
    protected long messageMagic;
@@ -238,22 +242,25 @@ public class Node
    /**
     * Broadcast a message to all nodes this node is in contact with. In case of
     * errors from a node the message will still be tried for other nodes, but
-    * there is no guarantee that any node received this message.
+    * there is no guarantee that any node received this message. The message
+    * is only queued for each node, so a slow node does not delay the others.
     */
    public void broadcast(Message message)
    {
       logger.debug("broadcasting message: {}", message);
+      List<NodeWorker> currentWorkers;
       synchronized (workers)
       {
-         for (NodeWorker worker : workers)
+         currentWorkers = new ArrayList<>(workers);
+      }
+      for (NodeWorker worker : currentWorkers)
+      {
+         try
          {
-            try
-            {
-               worker.send(message);
-            } catch (IOException e)
-            {
-               logger.error("could not broadcast message to node with socket: {}", worker.getAddress(), e);
-            }
+            worker.send(message);
+         } catch (IOException e)
+         {
+            logger.error("could not broadcast message to node with socket: {}", worker.getAddress(), e);
          }
       }
    }
@@ -368,25 +375,31 @@ public class Node
 
    /**
     * A worker is responsible for handling a single connection to another node.
+    * Messages are read on the thread of the worker, and sent from a queue by
+    * a separate writer thread.
     */
    private class NodeWorker implements Runnable
    {
 
       private Socket socket;
       private BitcoinInputStream input;
-      private BitcoinOutputStream output;
-      private boolean running;
+      private OutputStream output;
+      private OutboundQueue outbound = new OutboundQueue(maxQueuedBytes);
+      private volatile boolean running;
       private Thread workerThread;
+      private Thread writerThread;
       private MessageMarshaller marshaller = new MessageMarshaller(messageMagic);
       private Connection connection;
       private long lastIncomingTime = 0;
       private long creationTime = 0;
+      // Guarded by the worker, the worker thread waits while it is set
+      private boolean readPaused = false;
 
       private NodeWorker(Socket socket, boolean isOutgoing)
          throws IOException
       {
          input = new BitcoinInputStream(new BufferedInputStream(socket.getInputStream()));
-         output = new BitcoinOutputStream(socket.getOutputStream());
+         output = socket.getOutputStream();
          this.socket = socket;
          this.running = true;
          connection = new NodeWorkerConnection(isOutgoing);
@@ -399,6 +412,16 @@ public class Node
          workerThread = new Thread(this, "Bitcoin Node Connection (" + getAddress() + ")");
          workerThread.setDaemon(true);
          workerThread.start();
+         writerThread = new Thread(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               write();
+            }
+         }, "Bitcoin Node Writer (" + getAddress() + ")");
+         writerThread.setDaemon(true);
+         writerThread.start();
          // Invoke listeners
          for (MessageHandler handler : handlers)
          {
@@ -421,6 +444,8 @@ public class Node
       {
          // Stop running
          running = false;
+         outbound.close();
+         setReadPaused(false);
          // Close socket
          try
          {
@@ -451,6 +476,7 @@ public class Node
          try
          {
             workerThread.join();
+            writerThread.join();
          } catch (InterruptedException e)
          {
             logger.error("error while waiting for worker to stop, worker may not be completely stopped", e);
@@ -462,17 +488,59 @@ public class Node
          return socket.getRemoteSocketAddress();
       }
 
-      public synchronized void send(Message message)
+      /**
+       * Serialize the message and queue it for the writer thread. If the
+       * queue of this node is full, the node does not read fast enough and
+       * is disconnected.
+       */
+      public void send(Message message)
          throws IOException
       {
          logger.debug("sending message {}, to socket {}", message, socket);
-         if (running)
-         {
-            marshaller.write(message, output);
-            logger.debug("message sent");
-         } else
+         if (!running)
          {
             logger.debug("not sent, not running");
+            return;
+         }
+         if (!outbound.offer(marshaller.serialize(message)))
+         {
+            if (running)
+            {
+               logger.warn("send queue full with {} bytes, disconnecting {}", outbound.getQueuedBytes(), connection);
+               stopInternal();
+            }
+            throw new IOException("send queue full for " + getAddress());
+         }
+      }
+
+      /**
+       * Write the queued messages to the socket until the worker is stopped.
+       */
+      private void write()
+      {
+         try
+         {
+            ByteBuffer batch;
+            while ((batch = outbound.take()) != null)
+            {
+               output.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+               output.flush();
+            }
+         } catch (IOException e)
+         {
+            if (running)
+               logger.error("error while writing to socket {}", socket, e);
+            // The worker thread notices the closed socket and stops
+            try
+            {
+               socket.close();
+            } catch (IOException ioe)
+            {
+               logger.error("error closing socket {}", socket, ioe);
+            }
+         } catch (InterruptedException e)
+         {
+            logger.error("interrupted while waiting for messages to write to socket {}", socket, e);
          }
       }
 
@@ -484,6 +552,7 @@ public class Node
             // Wait for arriving messages
             while (running)
             {
+               waitWhileReadPaused();
                // Get message from stream
                Message message = marshaller.read(input);
                logger.debug("received message {}, from socket {}", message, socket);
@@ -528,6 +597,26 @@ public class Node
          }
       }
 
+      private synchronized void setReadPaused(boolean readPaused)
+      {
+         this.readPaused = readPaused;
+         notifyAll();
+      }
+
+      private synchronized void waitWhileReadPaused()
+         throws IOException
+      {
+         try
+         {
+            while ((readPaused) && (running))
+               wait();
+         } catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading is paused");
+         }
+      }
+
       /**
        * This inner class of the NodeWorker will be passed to handlers as a
        * shortcut to NodeWorker values and functionality.
@@ -623,6 +712,18 @@ public class Node
             return (versionMessage.getServices() & 1) != 0;
          }
 
+         @Override
+         public void pauseReading()
+         {
+            setReadPaused(true);
+         }
+
+         @Override
+         public void resumeReading()
+         {
+            setReadPaused(false);
+         }
+
          @Override
          public void send(Message message)
          {
@@ -733,6 +834,21 @@ public class Node
       this.timeout = timeout;
    }
 
+   public int getMaxQueuedBytes()
+   {
+      return maxQueuedBytes;
+   }
+
+   /**
+    * Set the maximum number of bytes queued for sending to one node. Nodes
+    * which let more pile up are disconnected. Note: this only applies to
+    * connections made after the call.
+    */
+   public void setMaxQueuedBytes(int maxQueuedBytes)
+   {
+      this.maxQueuedBytes = maxQueuedBytes;
+   }
+
    /**
     * Add another message handler for the node. Note: this is only legal before
     * the node is started.
@@ -767,6 +883,8 @@ public class Node
          defaultConnectTimeout = Integer.parseInt(bundle.getString("node.connect_timeout"));
          defaultInitialTimeout = Integer.parseInt(bundle.getString("node.initial_timeout"));
          defaultTimeout = Integer.parseInt(bundle.getString("node.timeout"));
+         if (bundle.containsKey("node.max_queued_bytes"))
+            defaultMaxQueuedBytes = Integer.parseInt(bundle.getString("node.max_queued_bytes"));
       } catch (Exception e)
       {
          logger.error("can not read default configuration for node, will go with hardcoded values", e);
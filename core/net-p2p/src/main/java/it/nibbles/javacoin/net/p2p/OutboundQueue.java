@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net.p2p;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The serialized messages waiting to be written to one connection. Senders
+ * only add to the queue, the I/O layer of the connection takes them out,
+ * putting small consecutive messages together into a single write. The queue
+ * holds at most a given number of bytes, if a peer does not read fast enough
+ * to stay under it, further messages are refused.
+ *
+ * @author Alessandro Polverini
+ */
+class OutboundQueue
+{
+
+   // Consecutive messages are put together up to this size
+   private static final int BATCH_SIZE = 64 * 1024;
+   private final Deque<byte[]> messages = new ArrayDeque<>();
+   private final int maxBytes;
+   private int queuedBytes = 0;
+   private boolean closed = false;
+
+   /**
+    * @param maxBytes The maximum number of bytes waiting in the queue.
+    */
+   OutboundQueue(int maxBytes)
+   {
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * Add a serialized message to the end of the queue.
+    *
+    * @return False if the message was not added, because the queue is closed
+    * or it would exceed its size limit.
+    */
+   synchronized boolean offer(byte[] message)
+   {
+      if ((closed) || (queuedBytes + (long) message.length > maxBytes))
+         return false;
+      messages.add(message);
+      queuedBytes += message.length;
+      notifyAll();
+      return true;
+   }
+
+   /**
+    * Take the messages from the head of the queue, waiting until there is
+    * one.
+    *
+    * @return The bytes to write, or null if the queue was closed.
+    */
+   synchronized ByteBuffer take()
+      throws InterruptedException
+   {
+      while ((!closed) && (messages.isEmpty()))
+         wait();
+      return poll();
+   }
+
+   /**
+    * Take the messages from the head of the queue without waiting.
+    *
+    * @return The bytes to write, or null if the queue is empty or closed.
+    */
+   synchronized ByteBuffer poll()
+   {
+      if ((closed) || (messages.isEmpty()))
+         return null;
+      byte[] first = messages.poll();
+      queuedBytes -= first.length;
+      if ((messages.isEmpty()) || (first.length + messages.peek().length > BATCH_SIZE))
+         return ByteBuffer.wrap(first);
+      // Copy as many following messages as fit into the batch
+      int length = first.length;
+      for (byte[] message : messages)
+      {
+         if (length + message.length > BATCH_SIZE)
+            break;
+         length += message.length;
+      }
+      ByteBuffer batch = ByteBuffer.allocate(length);
+      batch.put(first);
+      while ((!messages.isEmpty()) && (batch.remaining() >= messages.peek().length))
+      {
+         byte[] message = messages.poll();
+         queuedBytes -= message.length;
+         batch.put(message);
+      }
+      batch.flip();
+      return batch;
+   }
+
+   synchronized boolean isEmpty()
+   {
+      return messages.isEmpty();
+   }
+
+   /**
+    * @return The number of bytes waiting in the queue.
+    */
+   synchronized int getQueuedBytes()
+   {
+      return queuedBytes;
+   }
+
+   /**
+    * Drop all waiting messages and refuse new ones. Threads waiting in
+    * <code>take()</code> return null.
+    */
+   synchronized void close()
+   {
+      closed = true;
+      messages.clear();
+      queuedBytes = 0;
+      notifyAll();
+   }
+}
@@ -39,12 +39,14 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.easymock.EasyMock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,10 +79,18 @@ public class NodeTests
     */
    public Node createNode()
    {
-      savedNode = new Node(bitcoinFactory.getMessageMagic());
+      savedNode = newNode(bitcoinFactory.getMessageMagic());
       return savedNode;
    }
 
+   /**
+    * Instantiate the node implementation under test.
+    */
+   protected Node newNode(long messageMagic)
+   {
+      return new Node(messageMagic);
+   }
+
    /**
     * Create a new dummy node which connects to a node and has no server.
     */
@@ -151,7 +161,7 @@ public class NodeTests
       throws IOException
    {
       // Create node with defaults
-      Node node = new Node(bitcoinFactory.getMessageMagic());
+      Node node = newNode(bitcoinFactory.getMessageMagic());
       // Check that there are no node threads running before start
       Assert.assertFalse(isNodeThreadActive(),"there is a node thread before starting");
       // Start
@@ -259,6 +269,49 @@ public class NodeTests
       Assert.assertEquals(answer.getMessage(),"Message");
    }
 
+   public void testPausedReading()
+      throws IOException
+   {
+      DummyNode dummyNode = createDummyNode();
+      // Create bootstrapper
+      List<InetSocketAddress> addresses = new ArrayList<>();
+      addresses.add(dummyNode.getAddress());
+      AddressSource source = EasyMock.createMock(AddressSource.class);
+      EasyMock.expect(source.getAddresses()).andReturn(addresses).anyTimes();
+      EasyMock.replay(source);
+      // Create node
+      Node node = createNode();
+      node.setAddressSource(source);
+      // A repeater which pauses reading after every message
+      final AtomicReference<Connection> pausedConnection = new AtomicReference<>();
+      node.addHandler(new MessageRepeaterHandler()
+      {
+         @Override
+         public void onMessage(Connection conn, Message message)
+         {
+            conn.pauseReading();
+            pausedConnection.set(conn);
+            conn.send(message);
+         }
+      });
+      node.start();
+      dummyNode.accept();
+      dummyNode.send(messageFactory.newAlertMessage("Message1"));
+      Assert.assertEquals(((AlertMessage) dummyNode.read()).getMessage(),"Message1");
+      // The second message is not read while paused
+      dummyNode.send(messageFactory.newAlertMessage("Message2"));
+      try
+      {
+         dummyNode.read(1000);
+         Assert.fail("message read while reading is paused");
+      } catch (SocketTimeoutException e)
+      {
+         // Expected
+      }
+      pausedConnection.get().resumeReading();
+      Assert.assertEquals(((AlertMessage) dummyNode.read()).getMessage(),"Message2");
+   }
+
    public void testBroadcast()
       throws IOException
    {
@@ -291,6 +344,41 @@ public class NodeTests
       }
    }
 
+   public void testSlowNodeDisconnected()
+      throws IOException, InterruptedException
+   {
+      DummyNode dummyNode = createDummyNode();
+      // Create bootstrapper
+      List<InetSocketAddress> addresses = new ArrayList<>();
+      addresses.add(dummyNode.getAddress());
+      AddressSource source = EasyMock.createMock(AddressSource.class);
+      EasyMock.expect(source.getAddresses()).andReturn(addresses).anyTimes();
+      EasyMock.replay(source);
+      // Create node with a small send queue
+      Node node = createNode();
+      node.setAddressSource(source);
+      node.setMaxQueuedBytes(64*1024);
+      final Semaphore semaphore = new Semaphore(0);
+      node.addHandler(new MessageRepeaterHandler(){
+         @Override
+               public void onLeave(Connection conn)
+               {
+                  semaphore.release();
+               }
+            });
+      node.start();
+      dummyNode.accept();
+      // The dummy node never reads, so messages pile up once the socket
+      // buffers are full
+      char[] text = new char[10000];
+      Arrays.fill(text,'x');
+      Message message = messageFactory.newAlertMessage(new String(text));
+      for ( int i=0; (i<10000) && (semaphore.availablePermits()==0); i++ )
+         node.broadcast(message);
+      if ( ! semaphore.tryAcquire(5000,TimeUnit.MILLISECONDS) )
+         Assert.fail("slow node was not disconnected");
+   }
+
    public void testSameAddressTwice()
       throws IOException
    {
@@ -589,6 +677,23 @@ public class NodeTests
          return marshaller.read(input);
       }
 
+      /**
+       * Read a message, waiting at most the given milliseconds for it.
+       */
+      public Message read(int timeout)
+         throws IOException
+      {
+         int previousTimeout = socket.getSoTimeout();
+         socket.setSoTimeout(timeout);
+         try
+         {
+            return marshaller.read(input);
+         } finally
+         {
+            socket.setSoTimeout(previousTimeout);
+         }
+      }
+
       public void send(Message message)
          throws IOException
       {
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A bitcoin input stream reading from a part of a byte array, usually a whole
+ * message already received. Values are decoded directly from the array by
+ * position, instead of calling <code>read()</code> for every byte. Reading past
+ * the end of the given part is an error, so a malformed message can not read
+ * into the following one. If a listener is set, reading falls back to the
+ * byte by byte implementation of the superclass.
+ *
+ * @author Alessandro Polverini
+ */
+public class BitcoinBufferInputStream extends BitcoinInputStream
+{
+
+   private final byte[] buffer;
+   private final int limit;
+   private int position;
+   private int markPosition;
+   private int countStart;
+
+   public BitcoinBufferInputStream(byte[] buffer)
+   {
+      this(buffer, 0, buffer.length);
+   }
+
+   /**
+    * @param buffer The array to read from.
+    * @param offset The index of the first byte to read.
+    * @param length The number of bytes which can be read.
+    */
+   public BitcoinBufferInputStream(byte[] buffer, int offset, int length)
+   {
+      super(null);
+      if ((offset < 0) || (length < 0) || (offset + length > buffer.length))
+         throw new IndexOutOfBoundsException("invalid part of buffer with length " + buffer.length + ": " + offset + "/" + length);
+      this.buffer = buffer;
+      this.position = offset;
+      this.limit = offset + length;
+      this.markPosition = offset;
+      this.countStart = offset;
+   }
+
+   /**
+    * Make sure the given number of bytes can still be read.
+    */
+   private void require(long count)
+      throws IOException
+   {
+      if ((count < 0) || (limit - position < count))
+         throw new IOException("stream ended, can't read " + count + " more bytes");
+   }
+
+   @Override
+   public int read()
+   {
+      if (position >= limit)
+         return -1;
+      return buffer[position++] & 0xff;
+   }
+
+   @Override
+   public int read(byte[] result, int offset, int length)
+   {
+      if (position >= limit)
+         return -1;
+      int count = Math.min(length, limit - position);
+      System.arraycopy(buffer, position, result, offset, count);
+      position += count;
+      return count;
+   }
+
+   @Override
+   public int available()
+   {
+      return limit - position;
+   }
+
+   @Override
+   public long skip(long size)
+      throws IOException
+   {
+      require(size);
+      position += (int) size;
+      return size;
+   }
+
+   @Override
+   public boolean markSupported()
+   {
+      return true;
+   }
+
+   @Override
+   public void mark(int readLimit)
+   {
+      markPosition = position;
+   }
+
+   @Override
+   public void reset()
+   {
+      position = markPosition;
+   }
+
+   @Override
+   public void close()
+   {
+   }
+
+   @Override
+   public long getByteCount()
+   {
+      return position - countStart;
+   }
+
+   @Override
+   public void resetByteCount()
+   {
+      countStart = position;
+   }
+
+   @Override
+   public long readU()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readU();
+      require(1);
+      return buffer[position++] & 0xFFl;
+   }
+
+   @Override
+   public long readUInt16()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt16();
+      require(2);
+      long result = (buffer[position] & 0xFFl) | ((buffer[position + 1] & 0xFFl) << 8);
+      position += 2;
+      return result;
+   }
+
+   @Override
+   public long readUInt16BE()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt16BE();
+      require(2);
+      long result = ((buffer[position] & 0xFFl) << 8) | (buffer[position + 1] & 0xFFl);
+      position += 2;
+      return result;
+   }
+
+   @Override
+   public long readUInt32()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt32();
+      require(4);
+      long result = (buffer[position] & 0xFFl) | ((buffer[position + 1] & 0xFFl) << 8)
+         | ((buffer[position + 2] & 0xFFl) << 16) | ((buffer[position + 3] & 0xFFl) << 24);
+      position += 4;
+      return result;
+   }
+
+   @Override
+   public long readUInt32BE()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt32BE();
+      require(4);
+      long result = ((buffer[position] & 0xFFl) << 24) | ((buffer[position + 1] & 0xFFl) << 16)
+         | ((buffer[position + 2] & 0xFFl) << 8) | (buffer[position + 3] & 0xFFl);
+      position += 4;
+      return result;
+   }
+
+   @Override
+   public long readUInt64()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt64();
+      require(8);
+      long result = 0;
+      for (int i = 7; i >= 0; i--)
+         result = (result << 8) | (buffer[position + i] & 0xFFl);
+      position += 8;
+      return result;
+   }
+
+   @Override
+   public byte[] readBytes(int length)
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readBytes(length);
+      require(length);
+      byte[] result = Arrays.copyOfRange(buffer, position, position + length);
+      position += length;
+      return result;
+   }
+
+   @Override
+   public void readBytes(byte[] result, int offset, int length)
+      throws IOException
+   {
+      if (getListener() != null)
+      {
+         super.readBytes(result, offset, length);
+         return;
+      }
+      require(length);
+      System.arraycopy(buffer, position, result, offset, length);
+      position += length;
+   }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A bitcoin input stream reading from the remaining bytes of a byte buffer,
+ * for example a part of a memory mapped file. Values are decoded directly from
+ * the buffer, without copying it to an array first. The stream reads from its
+ * own view of the buffer, so the position of the given buffer is not changed.
+ * Reading past the limit of the buffer is an error. If a listener is set,
+ * reading falls back to the byte by byte implementation of the superclass.
+ *
+ * @author Alessandro Polverini
+ */
+public class BitcoinByteBufferInputStream extends BitcoinInputStream
+{
+
+   private final ByteBuffer buffer;
+   private int countStart;
+
+   /**
+    * @param buffer The buffer to read from, from its position to its limit.
+    */
+   public BitcoinByteBufferInputStream(ByteBuffer buffer)
+   {
+      super(null);
+      this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      this.countStart = buffer.position();
+      this.buffer.mark();
+   }
+
+   /**
+    * Make sure the given number of bytes can still be read.
+    */
+   private void require(long count)
+      throws IOException
+   {
+      if ((count < 0) || (buffer.remaining() < count))
+         throw new IOException("stream ended, can't read " + count + " more bytes");
+   }
+
+   @Override
+   public int read()
+   {
+      if (!buffer.hasRemaining())
+         return -1;
+      return buffer.get() & 0xff;
+   }
+
+   @Override
+   public int read(byte[] result, int offset, int length)
+   {
+      if (!buffer.hasRemaining())
+         return -1;
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(result, offset, count);
+      return count;
+   }
+
+   @Override
+   public int available()
+   {
+      return buffer.remaining();
+   }
+
+   @Override
+   public long skip(long size)
+      throws IOException
+   {
+      require(size);
+      buffer.position(buffer.position() + (int) size);
+      return size;
+   }
+
+   @Override
+   public boolean markSupported()
+   {
+      return true;
+   }
+
+   @Override
+   public void mark(int readLimit)
+   {
+      buffer.mark();
+   }
+
+   @Override
+   public void reset()
+   {
+      buffer.reset();
+   }
+
+   @Override
+   public void close()
+   {
+   }
+
+   @Override
+   public long getByteCount()
+   {
+      return buffer.position() - countStart;
+   }
+
+   @Override
+   public void resetByteCount()
+   {
+      countStart = buffer.position();
+   }
+
+   @Override
+   public long readU()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readU();
+      require(1);
+      return buffer.get() & 0xFFl;
+   }
+
+   @Override
+   public long readUInt16()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt16();
+      require(2);
+      return buffer.getShort() & 0xFFFFl;
+   }
+
+   @Override
+   public long readUInt16BE()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt16BE();
+      require(2);
+      return Short.reverseBytes(buffer.getShort()) & 0xFFFFl;
+   }
+
+   @Override
+   public long readUInt32()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt32();
+      require(4);
+      return buffer.getInt() & 0xFFFFFFFFl;
+   }
+
+   @Override
+   public long readUInt32BE()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt32BE();
+      require(4);
+      return Integer.reverseBytes(buffer.getInt()) & 0xFFFFFFFFl;
+   }
+
+   @Override
+   public long readUInt64()
+      throws IOException
+   {
+      if (getListener() != null)
+         return super.readUInt64();
+      require(8);
+      return buffer.getLong();
+   }
+
+   @Override
+   public void readBytes(byte[] result, int offset, int length)
+      throws IOException
+   {
+      if (getListener() != null)
+      {
+         super.readBytes(result, offset, length);
+         return;
+      }
+      try
+      {
+         buffer.get(result, offset, length);
+      } catch (BufferUnderflowException e)
+      {
+         throw new IOException("stream ended, can't read " + length + " more bytes", e);
+      }
+   }
+}
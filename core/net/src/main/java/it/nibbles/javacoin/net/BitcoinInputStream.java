@@ -53,6 +53,11 @@ public class BitcoinInputStream extends InputStream
       listener = null;
    }
 
+   public Listener getListener()
+   {
+      return listener;
+   }
+
    /**
     * This implementation of skip differs from the default one in that
     * it does not allocate any buffers larger than 4k, so it skips
@@ -254,21 +259,53 @@ public class BitcoinInputStream extends InputStream
    public byte[] readBytes(int length)
       throws IOException
    {
+      if ( length < 0 )
+         throw new IOException("can not read negative number of bytes: "+length);
       byte[] result = new byte[length];
-      for ( int i=0; i<length; i++ )
-         result[i]=(byte) readU();
+      readBytes(result,0,length);
       return result;
    }
 
+   /**
+    * Read exactly the given number of bytes into an array. If there is no
+    * listener the bytes are read in bulk from the underlying stream.
+    * @param result The array to fill.
+    * @param offset The index in the array to put the first byte to.
+    * @param length The number of bytes to read.
+    */
+   public void readBytes(byte[] result, int offset, int length)
+      throws IOException
+   {
+      if ( listener != null )
+      {
+         for ( int i=0; i<length; i++ )
+            result[offset+i]=(byte) readU();
+         return;
+      }
+      while ( length > 0 )
+      {
+         int count = input.read(result,offset,length);
+         if ( count < 0 )
+            throw new IOException("stream ended, can't read more values");
+         byteCount += count;
+         offset += count;
+         length -= count;
+      }
+   }
+
    /**
     * Read a byte array in reverse byte order.
     */
    public byte[] readReverseBytes(int length)
       throws IOException
    {
-      byte[] result = new byte[length];
-      for ( int i=0; i<length; i++ )
-         result[length-1-i]=(byte) readU();
+      byte[] result = readBytes(length);
+      for ( int i=0; i<length/2; i++ )
+      {
+         byte tmp = result[i];
+         result[i] = result[length-1-i];
+         result[length-1-i] = tmp;
+      }
       return result;
    }
 
@@ -26,6 +26,11 @@ import java.io.IOException;
  */
 public class BlockHeader
 {
+   /**
+    * The serialized length of a header in bytes.
+    */
+   public static final int LENGTH = 80;
+
    private long version;
    private byte[] prevBlock;
    private byte[] rootHash;
@@ -48,6 +53,17 @@ public class BlockHeader
    {
    }
 
+   /**
+    * Read a header serialized with the latest protocol version.
+    */
+   public static BlockHeader read(BitcoinInputStream input)
+      throws IOException
+   {
+      BlockHeader header = new BlockHeader();
+      header.readFrom(input,0,null);
+      return header;
+   }
+
    void readFrom(BitcoinInputStream input, long protocolVersion, Object param)
       throws IOException
    {
@@ -27,13 +27,31 @@ import java.util.List;
  */
 public class GetHeadersMessage extends Message
 {
+   private static final byte[] ZERO_HASH = new byte[32];
+   private static final long NO_VERSION = -1;
+
    private List<byte[]> hashStarts;
    private byte[] hashStop;
+   private long messageVersion = NO_VERSION;
 
+   /**
+    * Create the message in the original format, without a version field.
+    */
    public GetHeadersMessage(long magic, List<byte[]> hashStarts, byte[] hashStop)
       throws IOException
+   {
+      this(magic,NO_VERSION,hashStarts,hashStop);
+   }
+
+   /**
+    * Create the message in the current format, which starts with the
+    * protocol version like getblocks.
+    */
+   public GetHeadersMessage(long magic, long messageVersion, List<byte[]> hashStarts, byte[] hashStop)
+      throws IOException
    {
       super(magic,"getheaders");
+      this.messageVersion=messageVersion;
       this.hashStarts=hashStarts;
       this.hashStop=hashStop;
    }
@@ -49,6 +67,10 @@ public class GetHeadersMessage extends Message
       throws IOException
    {
       super.readFrom(input,version,param);
+      // Locators are shorter than 253 hashes, so the count is one byte and the
+      // payload is 32*n+33 bytes long without the version, 32*n+37 with it
+      if ( (getLength() >= 0) && (getLength()%32 != 1) )
+         messageVersion = input.readUInt32();
       long size = input.readUIntVar();
       hashStarts = new ArrayList<byte[]>();
       for ( long i=0; i<size; i++ )
@@ -61,10 +83,15 @@ public class GetHeadersMessage extends Message
       throws IOException
    {
       super.writeTo(output,version);
+      if ( messageVersion != NO_VERSION )
+         output.writeUInt32(messageVersion);
       output.writeUIntVar(hashStarts.size());
       for ( byte[] hash : hashStarts )
          output.writeReverse(hash);
-      output.writeReverse(hashStop);
+      if ( hashStop == null )
+         output.writeReverse(ZERO_HASH);
+      else
+         output.writeReverse(hashStop);
    }
 
    @Override
@@ -82,5 +109,14 @@ public class GetHeadersMessage extends Message
    {
       return hashStop;
    }
+
+   /**
+    * @return The version in the message, or -1 if it was in the original
+    * format without version.
+    */
+   public long getMessageVersion()
+   {
+      return messageVersion;
+   }
 }
 
@@ -50,12 +50,17 @@ public class HeadersMessage extends Message
       long headerCount = input.readUIntVar();
       if ( (headerCount<0) || (headerCount>=Integer.MAX_VALUE) )
          throw new IOException("too many headers in the block: "+headerCount);
+      // Headers are sent as blocks without transactions, so each one may be
+      // followed by a (zero) transaction count
+      boolean hasTxCount = getLength() == getUIntVarLength(headerCount)+headerCount*(BlockHeader.LENGTH+1);
       headers = new ArrayList<BlockHeader>();
       for ( long i=0; i<headerCount; i++ )
       {
          BlockHeader header = new BlockHeader();
          header.readFrom(input,protocolVersion,param);
          headers.add(header);
+         if ( hasTxCount )
+            input.readUIntVar();
       }
    }
 
@@ -80,6 +85,17 @@ public class HeadersMessage extends Message
       return headers;
    }
 
+   private static int getUIntVarLength(long value)
+   {
+      if ( value < 0xfd )
+         return 1;
+      if ( value <= 0xffff )
+         return 3;
+      if ( value <= 0xffffffffl )
+         return 5;
+      return 9;
+   }
+
 
 }
 
@@ -18,9 +18,10 @@
 
 package it.nibbles.javacoin.net;
 
+import it.nibbles.javacoin.utils.Hashing;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +39,6 @@ public class Message
    private long length = -1;
    private long checksum = 0;
    private long calculatedChecksum = 0;
-   private MessageDigest digest = null;
 
    /**
     * All messages must provide a constructor to construct
@@ -49,12 +49,6 @@ public class Message
    {
       this.magic=magic;
       this.command=command;
-      try
-      {
-         digest = MessageDigest.getInstance("SHA-256");
-      } catch ( Exception e ) {
-         throw new IOException("could not initialize SHA-256 digest",e);
-      }
    }
 
    /**
@@ -63,12 +57,6 @@ public class Message
     */
    Message() throws IOException
    {
-      try
-      {
-         digest = MessageDigest.getInstance("SHA-256");
-      } catch ( Exception e ) {
-         throw new IOException("could not initialize SHA-256 digest",e);
-      }
    }
 
    /**
@@ -87,37 +75,40 @@ public class Message
       command = input.readString(12);
       length = input.readUInt32();
       checksum = input.readUInt32();
-      // Now let's make sure we keep track of the real checksum
-      input.setListener(new BitcoinInputStream.Listener() {
-         @Override
-               public void update(int value)
-               {
-                  digest.update((byte) value);
-               }
-            });
    }
 
    /**
-    * Notification when the full message has been deserialized. Call receives
-    * the same paramters as the <code>readFrom()</code> call.
-    * @param input The stream to read this object from.
-    * @param version The protocol version number as communicated by the version command,
-    * if it's known.
-    * @param param A message type specific parameter to be used to control the
-    * deserialization process. Original intent is to allow for block pre-filtering,
-    * so that client does not construct potentially large objects in memory.
+    * Set the checksum calculated over the received payload, to be
+    * compared to the announced one by <code>verify()</code>.
+    */
+   void setCalculatedChecksum(long calculatedChecksum)
+   {
+      this.calculatedChecksum=calculatedChecksum;
+   }
+
+   /**
+    * Calculate the checksum of a payload, which is the first 4 bytes of
+    * sha256(sha256(content)) as an unsigned little endian number.
+    * @param bytes The array containing the payload.
+    * @param offset The index of the first byte of the payload.
+    * @param length The length of the payload.
+    */
+   static long calculateChecksum(byte[] bytes, int offset, int length)
+   {
+      byte[] result = Hashing.doubleSha256(bytes,offset,length);
+      return (long) ((long) result[0]&0xff) | (((long) result[1]&0xff)<<8) |
+         (((long) result[2]&0xff)<<16) | (((long) result[3]&0xff)<<24);
+   }
+
+   /**
+    * Calculate the checksum of the remaining bytes of a buffer, which are the
+    * payload of a message. The position of the buffer is not changed.
     */
-   void postReadFrom(BitcoinInputStream input, long version, Object param)
+   static long calculateChecksum(ByteBuffer payload)
    {
-      // Calculate the checksum as sha256(sha256(content))
-      input.clearListener();
-      byte[] tmp = digest.digest();
-      digest.reset();
-      byte[] result = digest.digest(tmp);
-      // Calculate checksum first 4 bytes
-      calculatedChecksum = (long) ((long) result[0]&0xff) | (((long) result[1]&0xff)<<8) |
+      byte[] result = Hashing.doubleSha256(payload);
+      return (long) ((long) result[0]&0xff) | (((long) result[1]&0xff)<<8) |
          (((long) result[2]&0xff)<<16) | (((long) result[3]&0xff)<<24);
-      logger.debug("digest checksum: {}",calculatedChecksum);
    }
 
    public long getMagic()
@@ -182,19 +173,10 @@ public class Message
       BitcoinOutputStream output = new BitcoinOutputStream(
             new OverwriterByteArrayOutputStream(serializedBytes,16));
       output.writeUInt32(length);
-      // Calculate checksum
-      digest.reset();
-      digest.update(serializedBytes,24,serializedBytes.length-24);
-      byte[] tmp = digest.digest();
-      digest.reset();
-      byte[] result = digest.digest(tmp);
       // Overwrite previous 0 value with first 4 bytes of checksum
       BitcoinOutputStream tmpOut = new BitcoinOutputStream(
             new OverwriterByteArrayOutputStream(serializedBytes,20));
-      tmpOut.writeU(result[0]&0xff);
-      tmpOut.writeU(result[1]&0xff);
-      tmpOut.writeU(result[2]&0xff);
-      tmpOut.writeU(result[3]&0xff);
+      tmpOut.writeUInt32(calculateChecksum(serializedBytes,24,serializedBytes.length-24));
    }
 
    public long getChecksum()
@@ -21,6 +21,7 @@ package it.nibbles.javacoin.net;
 import it.nibbles.javacoin.Constants;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -29,15 +30,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Handles serialization and deserialization of messages.
+ * Handles serialization and deserialization of messages. Messages are
+ * read whole into a buffer, verified and then deserialized from the buffer.
+ * Reading is not thread-safe, there should be one marshaller for each
+ * connection.
  * @author Robert Brautigam
  */
 public class MessageMarshaller
 {
    private static final Logger logger = LoggerFactory.getLogger(MessageMarshaller.class);
 
+   /**
+    * The length of the header (magic, command, length and checksum) of all messages.
+    */
+   public static final int HEADER_LENGTH = 24;
+   /**
+    * Messages with a longer payload than this are not accepted.
+    */
+   public static final int MAX_MESSAGE_LENGTH = 32 * 1024 * 1024;
+   // Frames up to this size are read into a buffer kept for the next message
+   private static final int MAX_KEPT_BUFFER = 256 * 1024;
+
    private static final Map<String,Class> messageTypes = new HashMap<>();
    private Map<Class,Object> params = new HashMap<>();
+   private byte[] frameBuffer = new byte[4096];
    private long version = -1;
    private long messageMagic = Constants.PRODNET_MESSAGE_MAGIC;   // Random value -- TODO: Use Prodnet magic
 
@@ -79,10 +95,22 @@ public class MessageMarshaller
       params.put(messageType,param);
    }
 
+   /**
+    * Determine whether messages of a command can be deserialized.
+    * @param command The command in the header of the message.
+    * @return True if there is a message type configured for the command.
+    */
+   public static boolean isKnownCommand(String command)
+   {
+      return messageTypes.containsKey(command);
+   }
+
    /**
     * Deserialize a message using the specified Bitcoin input
     * stream. The call will block until all the bytes for one
-    * message arrives.
+    * message arrives. The header is read first, then the whole
+    * payload in bulk, so the stream does not need to support marks.
+    * Messages with unknown commands are skipped.
     * @param input The stream to read the message from.
     */
    public Message read(BitcoinInputStream input)
@@ -90,45 +118,126 @@ public class MessageMarshaller
    {
       // First read the header from the stream, repeat this step
       // until we find a message we recognize
-      if ( ! input.markSupported() )
-         throw new IOException("input stream for deserialization does not support mark");
+      byte[] headerBytes = new byte[HEADER_LENGTH];
       Message header = new Message();
       Class messageType = null;
       while ( messageType == null )
       {
-         input.mark(20);
-         header.readFrom(input,version,null);
-         if ( header.getMagic() != messageMagic)
-            throw new IOException("wrong magic number for message: "+new Long(header.getMagic()).toString(16));
-         input.reset(); // Rewind, so message will read header again
+         input.readBytes(headerBytes,0,HEADER_LENGTH);
+         header.readFrom(new BitcoinBufferInputStream(headerBytes),version,null);
+         checkHeader(header);
          // Now search for a suitable message
          messageType = messageTypes.get(header.getCommand());
          if ( messageType == null )
          {
             // Did not recognize, so skip this message altogether
-            input.skip(header.getLength() + 24); // +24 is to skip header
+            input.skip(header.getLength());
             logger.warn("did not find message type for command (skipping message): {}",header.getCommand());
          }
       }
+      // Pull the whole message into one buffer
+      int frameLength = HEADER_LENGTH + (int) header.getLength();
+      byte[] frame = frameBuffer;
+      if ( frame.length < frameLength )
+      {
+         frame = new byte[frameLength];
+         if ( frameLength <= MAX_KEPT_BUFFER )
+            frameBuffer = frame;
+      }
+      System.arraycopy(headerBytes,0,frame,0,HEADER_LENGTH);
+      input.readBytes(frame,HEADER_LENGTH,frameLength-HEADER_LENGTH);
+      return read(messageType,header,frame,0,frameLength);
+   }
+
+   /**
+    * Deserialize a message which was already received whole.
+    * @param frame The array containing the message, with header.
+    * @param offset The index of the first byte of the message.
+    * @param length The length of the message, with header.
+    * @throws IOException If the message is malformed, does not have the
+    * announced length, or is of an unknown command.
+    */
+   public Message read(byte[] frame, int offset, int length)
+      throws IOException
+   {
+      if ( length < HEADER_LENGTH )
+         throw new IOException("message of "+length+" bytes is shorter than the header");
+      Message header = new Message();
+      header.readFrom(new BitcoinBufferInputStream(frame,offset,HEADER_LENGTH),version,null);
+      checkHeader(header);
+      if ( header.getLength() != length-HEADER_LENGTH )
+         throw new IOException("message announced "+header.getLength()+" bytes of payload, but has "+(length-HEADER_LENGTH));
+      Class messageType = messageTypes.get(header.getCommand());
+      if ( messageType == null )
+         throw new IOException("did not find message type for command: "+header.getCommand());
+      return read(messageType,header,frame,offset,length);
+   }
+
+   /**
+    * Deserialize a message which was already received whole, directly from
+    * a buffer, for example a slice of a network read buffer. The bytes are not
+    * copied, and the position of the buffer is not changed.
+    * @param frame The buffer containing the message with header, from its
+    * position to its limit.
+    * @throws IOException If the message is malformed, does not have the
+    * announced length, or is of an unknown command.
+    */
+   public Message read(ByteBuffer frame)
+      throws IOException
+   {
+      int length = frame.remaining();
+      if ( length < HEADER_LENGTH )
+         throw new IOException("message of "+length+" bytes is shorter than the header");
+      ByteBuffer headerBytes = frame.duplicate();
+      headerBytes.limit(headerBytes.position()+HEADER_LENGTH);
+      Message header = new Message();
+      header.readFrom(new BitcoinByteBufferInputStream(headerBytes),version,null);
+      checkHeader(header);
+      if ( header.getLength() != length-HEADER_LENGTH )
+         throw new IOException("message announced "+header.getLength()+" bytes of payload, but has "+(length-HEADER_LENGTH));
+      Class messageType = messageTypes.get(header.getCommand());
+      if ( messageType == null )
+         throw new IOException("did not find message type for command: "+header.getCommand());
+      ByteBuffer payload = frame.duplicate();
+      payload.position(payload.position()+HEADER_LENGTH);
+      return read(messageType,header,Message.calculateChecksum(payload),new BitcoinByteBufferInputStream(frame));
+   }
+
+   private void checkHeader(Message header)
+      throws IOException
+   {
+      if ( header.getMagic() != messageMagic)
+         throw new IOException("wrong magic number for message: "+Long.toHexString(header.getMagic()));
+      if ( header.getLength() > MAX_MESSAGE_LENGTH )
+         throw new IOException("message of "+header.getLength()+" bytes is too long, command: "+header.getCommand());
+   }
+
+   private Message read(Class messageType, Message header, byte[] frame, int offset, int length)
+      throws IOException
+   {
+      // Verify the checksum over the whole payload before anything is constructed
+      long calculatedChecksum = Message.calculateChecksum(frame,offset+HEADER_LENGTH,length-HEADER_LENGTH);
+      return read(messageType,header,calculatedChecksum,new BitcoinBufferInputStream(frame,offset,length));
+   }
+
+   private Message read(Class messageType, Message header, long calculatedChecksum, BitcoinInputStream input)
+      throws IOException
+   {
       logger.debug("message type {} found for command {}",messageType,header.getCommand());
+      if ( calculatedChecksum != header.getChecksum() )
+         throw new IOException("message checksum wrong for message: "+header);
       // Search for the construction parameter if there is any
       Object param = params.get(messageType);
       // Instantiate message and use the message deserialization in constructor
       try
       {
          Message message = (Message) messageType.newInstance();
-         input.resetByteCount();
+         // If the message has more bytes than we read, it is probable there
+         // was an extension to this message and we don't know it yet. The rest
+         // of the buffer is just ignored, hopefully it was not important :)
          message.readFrom(input,version,param);
-         // If we read less bytes than the announced length of message,
-         // it is probable there was an extension to this message and we don't know it
-         // yet. Just skip the rest of message, hopefully it was not important :)
-         //input.skip(header.getLength()+((message instanceof ChecksummedMessage)?24:20)-input.getByteCount());
-         input.skip(header.getLength()+24-input.getByteCount());
-         message.postReadFrom(input,version,param);
+         message.setCalculatedChecksum(calculatedChecksum);
          logger.debug("deserialized message: {}",message);
-         //if ( (message instanceof ChecksummedMessage) && (!((ChecksummedMessage)message).verify()) )
-         if (!message.verify())
-            throw new IOException("message checksum wrong for message: "+message);
          return message;
       } catch ( IOException e ) {
          throw e;
@@ -148,6 +257,21 @@ public class MessageMarshaller
     */
    public void write(Message message, BitcoinOutputStream output)
       throws IOException
+   {
+      // Copy it to the output
+      output.write(serialize(message));
+      output.flush(); // Send
+   }
+
+   /**
+    * Serialize a message into a byte array, with the same two phases as
+    * <code>write()</code>. This can be used to serialize a message on the
+    * calling thread, and write it to the network later.
+    * @param message The message to serialize.
+    * @return The complete message, with header.
+    */
+   public byte[] serialize(Message message)
+      throws IOException
    {
       // Serialize known values into a byte array stream
       ByteArrayOutputStream byteArrayOutput = new ByteArrayOutputStream();
@@ -157,9 +281,7 @@ public class MessageMarshaller
       byte[] byteArray = byteArrayOutput.toByteArray();
       // Invoke post write to finalize content
       message.postWriteTo(byteArray,version);
-      // Copy it to the output
-      output.write(byteArray);
-      output.flush(); // Send
+      return byteArray;
    }
 
    public long getVersion()
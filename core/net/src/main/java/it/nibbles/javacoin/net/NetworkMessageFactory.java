@@ -57,7 +57,7 @@ public class NetworkMessageFactory
    public GetHeadersMessage newGetHeadersMessage(long messageVersion, List<byte[]> hashStarts, byte[] hashStop)
       throws IOException
    {
-      return new GetHeadersMessage(messageMagic, hashStarts, hashStop);
+      return new GetHeadersMessage(messageMagic, messageVersion, hashStarts, hashStop);
    }
 
    public InvMessage newInvMessage(List<InventoryItem> items)
@@ -44,6 +44,17 @@ public class Tx
    {
    }
 
+   /**
+    * Read a transaction serialized with the latest protocol version.
+    */
+   public static Tx read(BitcoinInputStream input)
+      throws IOException
+   {
+      Tx tx = new Tx();
+      tx.readFrom(input,0,null);
+      return tx;
+   }
+
    void readFrom(BitcoinInputStream input, long protocolVersion, Object param)
       throws IOException
    {
@@ -23,6 +23,7 @@ import it.nibbles.javacoin.net.BitcoinInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -209,5 +210,83 @@ public class BitcoinInputStreamTests
       byte[] result = input.readBytes(3);
       Assert.assertEquals(result,byteOutput.toByteArray());
    }
-}
 
+   public void testBufferReadValues()
+      throws IOException
+   {
+      BitcoinInputStream input = new BitcoinBufferInputStream(HexUtil.toByteArray(
+               "FA 43 11 F2 FD 22 33 FA 43 11 F2 32 5F 6E 4F 04 41 42 43 44"));
+      Assert.assertEquals(input.readUInt32(), 0xF21143FAl);
+      Assert.assertEquals(input.readUIntVar(), 0x3322l);
+      Assert.assertEquals(input.readUInt64(), 0x4F6E5F32F21143FAl);
+      Assert.assertEquals(input.readString(), "ABCD");
+      Assert.assertEquals(input.getByteCount(), 20);
+      Assert.assertEquals(input.read(), -1);
+   }
+
+   public void testBufferReadPart()
+      throws IOException
+   {
+      BitcoinInputStream input = new BitcoinBufferInputStream(HexUtil.toByteArray("04 FF A3 11 22"), 1, 3);
+      Assert.assertEquals(input.readReverseBytes(3), HexUtil.toByteArray("11 A3 FF"));
+   }
+
+   @Test(expectedExceptions = IOException.class)
+   public void testBufferReadPastEnd()
+      throws IOException
+   {
+      BitcoinInputStream input = new BitcoinBufferInputStream(HexUtil.toByteArray("04 FF A3 11 22"), 0, 3);
+      input.readUInt32();
+   }
+
+   public void testBufferListener()
+      throws IOException
+   {
+      final ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+      BitcoinInputStream input = new BitcoinBufferInputStream(HexUtil.toByteArray("04 FF A3"));
+      input.setListener(new BitcoinInputStream.Listener() {
+         @Override
+               public void update(int value)
+               {
+                  byteOutput.write(value);
+               }
+            });
+      byte[] result = input.readBytes(3);
+      Assert.assertEquals(result,byteOutput.toByteArray());
+   }
+
+   public void testByteBufferReadValues()
+      throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(HexUtil.toByteArray(
+               "00 FA 43 11 F2 FD 22 33 FA 43 11 F2 32 5F 6E 4F 04 41 42 43 44 00"));
+      buffer.position(1).limit(21);
+      BitcoinInputStream input = new BitcoinByteBufferInputStream(buffer);
+      Assert.assertEquals(input.readUInt32(), 0xF21143FAl);
+      Assert.assertEquals(input.readUIntVar(), 0x3322l);
+      Assert.assertEquals(input.readUInt64(), 0x4F6E5F32F21143FAl);
+      Assert.assertEquals(input.readString(), "ABCD");
+      Assert.assertEquals(input.getByteCount(), 20);
+      Assert.assertEquals(input.read(), -1);
+      // The given buffer is left as it was
+      Assert.assertEquals(buffer.position(), 1);
+   }
+
+   public void testByteBufferReadBigEndian()
+      throws IOException
+   {
+      BitcoinInputStream input = new BitcoinByteBufferInputStream(ByteBuffer.wrap(HexUtil.toByteArray("04 FF A3 11 22 33")));
+      Assert.assertEquals(input.readUInt16BE(), 0x04FFl);
+      Assert.assertEquals(input.readUInt32BE(), 0xA3112233l);
+   }
+
+   @Test(expectedExceptions = IOException.class)
+   public void testByteBufferReadPastEnd()
+      throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(HexUtil.toByteArray("04 FF A3 11 22"));
+      buffer.limit(3);
+      BitcoinInputStream input = new BitcoinByteBufferInputStream(buffer);
+      input.readReverseBytes(4);
+   }
+}
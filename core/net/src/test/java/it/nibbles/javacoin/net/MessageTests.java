@@ -457,6 +457,32 @@ public class MessageTests
           "16 17 18 19 1A 1B 1C 1D 1E 1F");
    }
 
+   public void testGetHeadersWithVersion()
+      throws IOException
+   {
+      // Setup message, without stop hash
+      List<byte[]> hashStarts = new ArrayList<byte[]>();
+      hashStarts.add(
+            new byte[] 
+            { 31,30,29,28,27,26,25,24,23,22,21,20,19,18,17,16,15,14,13,12,11,10,9,8,7,6,5,4,3,2,1,0 });
+      GetHeadersMessage getheaders = new GetHeadersMessage(Constants.PRODNET_MESSAGE_MAGIC,32100,hashStarts,null);
+      // Serialize it
+      MessageMarshaller marshal = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+      ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+      BitcoinOutputStream output = new BitcoinOutputStream(byteOutput);
+      marshal.write(getheaders,output);
+      // Read it back
+      BitcoinInputStream input = new BitcoinInputStream(new ByteArrayInputStream(byteOutput.toByteArray()));
+      GetHeadersMessage message = (GetHeadersMessage) marshal.read(input);
+      // Check
+      Assert.assertEquals(message.getLength(),69);
+      Assert.assertTrue(message.verify(),"message could not be verified, checksum error");
+      Assert.assertEquals(message.getMessageVersion(),32100);
+      Assert.assertEquals(message.getHashStarts().size(),1);
+      Assert.assertEquals(message.getHashStarts().get(0),hashStarts.get(0));
+      Assert.assertEquals(message.getHashStop(),new byte[32]);
+   }
+
    public void testReadUnrecognizedCommand()
       throws IOException
    {
@@ -834,6 +860,36 @@ public class MessageTests
       Assert.assertEquals(message.getHeaders().get(0).getNonce(),33);
    }
 
+   public void testHeadersWithTxCountDeserialize()
+      throws IOException
+   {
+      // Headers sent as blocks without transactions
+      BitcoinInputStream input = new BitcoinInputStream(new ByteArrayInputStream(HexUtil.toByteArray(
+          "F9 BE B4 D9 "+                                       // main network magic bytes
+          "68 65 61 64 65 72 73 00 00 00 00 00 "+               // "headers" command
+          "52 00 00 00 "+                                       // payload is 82 bytes long
+          "23 30 D8 D9 "+                                       // checksum of payload
+          "01 "+                                                // 1 header only in this message
+          "01 00 00 00 "+                                       // version format of block payload
+          "00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F "+   // previous block hash
+          "10 11 12 13 14 15 16 17 18 19 1A 1B 1C 1D 1E 1F "+
+          "00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F "+   // root hash of tx
+          "10 11 12 13 14 15 16 17 18 19 1A 1B 1C 1D 1E 1F "+
+          "7B 00 00 00 "+                                       // timestamp
+          "16 00 00 00 "+                                       // difficulty
+          "21 00 00 00 "+                                       // nonce
+          "00")));                                              // no transactions
+      // Unmarshall
+      MessageMarshaller marshal = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+      HeadersMessage message = (HeadersMessage) marshal.read(input);
+      // Check
+      Assert.assertTrue(message.verify(),"message could not be verified, checksum error");
+      Assert.assertEquals(message.getHeaders().size(),1);
+      Assert.assertEquals(message.getHeaders().get(0).getVersion(),1);
+      Assert.assertEquals(message.getHeaders().get(0).getTimestamp(),123000);
+      Assert.assertEquals(message.getHeaders().get(0).getNonce(),33);
+   }
+
    public void testGetAddrDeserialize()
       throws IOException
    {
@@ -913,10 +969,12 @@ public class MessageTests
    {
       // First alert message sent on production network:
       // "See bitcoin.org/feb20 if you have trouble connecting after 20 February"
+      // The payload is the 1+115 bytes of the alert and the 1+71 bytes of the
+      // signature, 188 in all, and the checksum is of these 188 bytes.
       BitcoinInputStream input = new BitcoinInputStream(new ByteArrayInputStream(HexUtil.toByteArray(
             "F9 BE B4 D9 "+                          // Main network magic bytes
             "61 6C 65 72 74 00 00 00 00 00 00 00 "+  // "alert" command
-            "B2 00 00 00 "+                          // Payload is 178 bytes long
+            "BC 00 00 00 "+                          // Payload is 188 bytes long
             "4F E6 8F E9 "+                          // checksum
             "73 01 00 00 00 37 66 40 4F 00 00 00 00 B3 05 43 4F 00 00 "+
             "00 00 F2 03 00 00 F1 03 00 00 00 10 27 00 00 48 EE 00 00 "+
@@ -936,7 +994,7 @@ public class MessageTests
       System.out.println("Signature: "+BtcUtil.hexOut(message.getSignature())+" len: "+message.getSignature().length);
       Assert.assertEquals(message.getMagic(),Constants.PRODNET_MESSAGE_MAGIC);
       Assert.assertEquals(message.getCommand(),"alert");
-      Assert.assertEquals(message.getLength(),178);
+      Assert.assertEquals(message.getLength(),188);
       Assert.assertTrue(message.verify(),"message could not be verified, checksum error");
       // Check message fields
       Assert.assertEquals(message.getVersion(),1);
@@ -1049,6 +1107,60 @@ public class MessageTests
    }
    */
 
+   public void testReadFrame()
+      throws IOException
+   {
+      // Setup message
+      List<InventoryItem> items = new ArrayList<InventoryItem>();
+      items.add(new InventoryItem(InventoryItem.TYPE_BLOCK,
+               new byte[] { 31,30,29,28,27,26,25,24,23,22,21,20,19,18,17,16,15,14,13,12,11,10,9,8,7,6,5,4,3,2,1,0 }));
+      InvMessage inv = new InvMessage(Constants.PRODNET_MESSAGE_MAGIC,items);
+      MessageMarshaller marshal = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+      ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+      byteOutput.write(new byte[] { 1, 2, 3 });
+      marshal.write(inv,new BitcoinOutputStream(byteOutput));
+      byteOutput.write(new byte[] { 4, 5 });
+      byte[] bytes = byteOutput.toByteArray();
+      // Read it back from the middle of the array
+      InvMessage message = (InvMessage) marshal.read(bytes,3,bytes.length-5);
+      Assert.assertTrue(message.verify(),"message could not be verified, checksum error");
+      Assert.assertEquals(message.getInventoryItems().size(),1);
+      Assert.assertEquals(message.getInventoryItems().get(0).getHash(),items.get(0).getHash());
+   }
+
+   @Test(expectedExceptions=IOException.class)
+   public void testReadFrameWrongLength()
+      throws IOException
+   {
+      byte[] bytes = HexUtil.toByteArray(
+            "F9 BE B4 D9 "+                          // Main network magic bytes
+            "76 65 72 61 63 6B 00 00 00 00 00 00 "+  // "verack" command
+            "00 00 00 00 "+                          // Payload is 0 bytes long
+            "5D F6 E0 E2 "+                          // Checksum
+            "00");                                   // One more byte
+      MessageMarshaller marshal = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+      marshal.read(bytes,0,bytes.length);
+   }
+
+   @Test(expectedExceptions=IOException.class)
+   public void testTruncatedPayloadDeserialize()
+      throws IOException
+   {
+      // Payload announces a longer inventory than the message contains
+      BitcoinInputStream input = new BitcoinInputStream(new ByteArrayInputStream(HexUtil.toByteArray(
+          "F9 BE B4 D9 "+                                     // Main network magic bytes
+          "69 6E 76 00 00 00 00 00 00 00 00 00 "+             // "inv"
+          "01 00 00 00 "+                                     // payload is 1 byte long
+          "1C C3 AD EA "+                                     // checksum
+          "02 "+                                              // number of items
+          "F9 BE B4 D9 "+                                     // Next message
+          "76 65 72 61 63 6B 00 00 00 00 00 00 "+
+          "00 00 00 00 "+
+          "5D F6 E0 E2")));
+      MessageMarshaller marshal = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+      marshal.read(input);
+   }
+
    @Test(expectedExceptions=IOException.class)
    public void testWrongMagicDeserialize()
       throws IOException
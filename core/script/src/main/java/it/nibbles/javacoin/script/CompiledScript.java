@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The instructions of a script decoded once, so the script can be run any
+ * number of times without parsing it again. If the script can not be parsed
+ * to the end, the instructions before the error are kept together with the
+ * error, which is raised only when execution reaches it. The script is also
+ * matched against the standard templates, so those can be run without the
+ * interpreter. Instances are immutable.
+ *
+ * @author Alessandro Polverini
+ */
+class CompiledScript
+{
+
+   /**
+    * The standard forms of output scripts.
+    */
+   enum Template
+   {
+
+      PAY_TO_PUBKEY_HASH, // OP_DUP OP_HASH160 <20 bytes> OP_EQUALVERIFY OP_CHECKSIG
+      PAY_TO_PUBKEY, // <pubkey> OP_CHECKSIG
+      PAY_TO_SCRIPT_HASH, // OP_HASH160 <20 bytes> OP_EQUAL
+      NONE
+   };
+   private final Instruction[] instructions;
+   // The position after each instruction in the script
+   private final int[] ends;
+   private final IOException error;
+   private final int length;
+   private final Template template;
+
+   CompiledScript(byte[] script)
+   {
+      List<Instruction> decoded = new ArrayList<>();
+      List<Integer> positions = new ArrayList<>();
+      IOException readError = null;
+      InstructionInputStream input = new InstructionInputStream(new ByteArrayInputStream(script));
+      try
+      {
+         Instruction instruction;
+         while ((instruction = input.readInstruction()) != null)
+         {
+            decoded.add(instruction);
+            positions.add(input.getPointer());
+         }
+      } catch (IOException e)
+      {
+         readError = e;
+      }
+      instructions = decoded.toArray(new Instruction[decoded.size()]);
+      ends = new int[positions.size()];
+      for (int i = 0; i < ends.length; i++)
+         ends[i] = positions.get(i);
+      error = readError;
+      length = script.length;
+      template = matchTemplate();
+   }
+
+   /**
+    * Create the script running the first script and then the second one.
+    * The first script must have been parsed without errors.
+    */
+   CompiledScript(CompiledScript first, CompiledScript second)
+   {
+      instructions = new Instruction[first.size() + second.size()];
+      ends = new int[instructions.length];
+      System.arraycopy(first.instructions, 0, instructions, 0, first.size());
+      System.arraycopy(second.instructions, 0, instructions, first.size(), second.size());
+      System.arraycopy(first.ends, 0, ends, 0, first.size());
+      for (int i = 0; i < second.size(); i++)
+         ends[first.size() + i] = first.length + second.ends[i];
+      error = second.error;
+      length = first.length + second.length;
+      template = matchTemplate();
+   }
+
+   int size()
+   {
+      return instructions.length;
+   }
+
+   /**
+    * @return The instruction at the given index, or null if the script ended.
+    * @throws IOException If the script could not be parsed up to the index.
+    */
+   Instruction getInstruction(int index)
+           throws IOException
+   {
+      if (index < instructions.length)
+         return instructions[index];
+      if (error != null)
+         throw error;
+      return null;
+   }
+
+   /**
+    * @return The position in the script after the instruction at the index.
+    */
+   int getEnd(int index)
+   {
+      return ends[index];
+   }
+
+   /**
+    * @return The error parsing the script, or null if the whole script was
+    * parsed.
+    */
+   IOException getError()
+   {
+      return error;
+   }
+
+   Template getTemplate()
+   {
+      return template;
+   }
+
+   /**
+    * @return True if the script parsed and all instructions push data which
+    * is not empty.
+    */
+   boolean isDataPushOnly()
+   {
+      if (error != null)
+         return false;
+      for (Instruction instruction : instructions)
+         if (!isDataPush(instruction))
+            return false;
+      return true;
+   }
+
+   private Template matchTemplate()
+   {
+      if (error != null)
+         return Template.NONE;
+      if ((instructions.length == 5)
+              && (instructions[0].getOperation() == Operation.OP_DUP)
+              && (instructions[1].getOperation() == Operation.OP_HASH160)
+              && (isDataPush(instructions[2])) && (instructions[2].getData().length == 20)
+              && (instructions[3].getOperation() == Operation.OP_EQUALVERIFY)
+              && (instructions[4].getOperation() == Operation.OP_CHECKSIG))
+         return Template.PAY_TO_PUBKEY_HASH;
+      if ((instructions.length == 2)
+              && (isDataPush(instructions[0]))
+              && (instructions[1].getOperation() == Operation.OP_CHECKSIG))
+         return Template.PAY_TO_PUBKEY;
+      // Same as required by BIP0016
+      if ((instructions.length == 3)
+              && (instructions[0].getOperation() == Operation.OP_HASH160)
+              && (instructions[1].getOperation() == Operation.CONSTANT) && (instructions[1].getData().length == 20)
+              && (instructions[2].getOperation() == Operation.OP_EQUAL))
+         return Template.PAY_TO_SCRIPT_HASH;
+      return Template.NONE;
+   }
+
+   private static boolean isDataPush(Instruction instruction)
+   {
+      if (instruction.getData() == null)
+         return false;
+      switch (instruction.getOperation())
+      {
+         case CONSTANT:
+         case OP_PUSHDATA1:
+         case OP_PUSHDATA2:
+         case OP_PUSHDATA4:
+            return true;
+         default:
+            return false;
+      }
+   }
+}
@@ -30,14 +30,32 @@ import it.nibbles.javacoin.Script;
 public class ScriptFactoryImpl implements ScriptFactory
 {
    private KeyFactory keyFactory = null;
+   private SignatureCache signatureCache = null;
 
    /**
     * Create a factory with the given key factory. The key factory is used
-    * to deserialize public keys and verify signatures.
+    * to deserialize public keys and verify signatures. The scripts share
+    * a signature cache of the default size.
     */
    public ScriptFactoryImpl(KeyFactory keyFactory)
+   {
+      this(keyFactory, new SignatureCache());
+   }
+
+   /**
+    * Create a factory with the given key factory and signature cache.
+    * @param signatureCache The cache of valid signatures shared by all the
+    * scripts of this factory, or null to verify every signature.
+    */
+   public ScriptFactoryImpl(KeyFactory keyFactory, SignatureCache signatureCache)
    {
       this.keyFactory=keyFactory;
+      this.signatureCache=signatureCache;
+   }
+
+   public SignatureCache getSignatureCache()
+   {
+      return signatureCache;
    }
 
    public ScriptFragment createFragment(byte[] byteArray)
@@ -47,7 +65,9 @@ public class ScriptFactoryImpl implements ScriptFactory
 
    public Script createScript(ScriptFragment sigScript, ScriptFragment pubScript)
    {
-      return new ScriptImpl((ScriptFragmentImpl)sigScript, (ScriptFragmentImpl)pubScript, keyFactory);
+      ScriptImpl script = new ScriptImpl((ScriptFragmentImpl)sigScript, (ScriptFragmentImpl)pubScript, keyFactory);
+      script.setSignatureCache(signatureCache);
+      return script;
    }
 }
 
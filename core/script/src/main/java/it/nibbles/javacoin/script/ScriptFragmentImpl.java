@@ -37,6 +37,7 @@ public class ScriptFragmentImpl implements ScriptFragment
    private static final Logger logger = LoggerFactory.getLogger(ScriptFragmentImpl.class);
 
    private byte[] byteArray;
+   private volatile CompiledScript compiledScript; // Decoded on first use
 
    ScriptFragmentImpl(byte[] byteArray)
    {
@@ -67,6 +68,26 @@ public class ScriptFragmentImpl implements ScriptFragment
       return new InstructionInputStream(new ByteArrayInputStream(byteArray));
    }
 
+   /**
+    * Get the decoded instructions of this fragment. The fragment is decoded only
+    * the first time, concurrent callers may decode it twice but get equal results.
+    */
+   CompiledScript getCompiledScript()
+   {
+      CompiledScript result = compiledScript;
+      if ( result == null )
+      {
+         result = compile();
+         compiledScript = result;
+      }
+      return result;
+   }
+
+   protected CompiledScript compile()
+   {
+      return new CompiledScript(byteArray);
+   }
+
    public ScriptFragment getSubscript(byte[]... sigs)
       throws ScriptException
    {
@@ -74,10 +95,12 @@ public class ScriptFragmentImpl implements ScriptFragment
       {
          ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
          InstructionOutputStream output = new InstructionOutputStream(byteOutput);
-         InstructionInputStream input = getInstructionInput();
-         Instruction instruction = null;
-         while ( (instruction=input.readInstruction()) != null )
+         CompiledScript compiled = getCompiledScript();
+         if ( compiled.getError() != null )
+            throw compiled.getError();
+         for ( int index=0; index<compiled.size(); index++ )
          {
+            Instruction instruction = compiled.getInstruction(index);
             if ( instruction.getData() == null )
             {
                // There is no parameter, so if this is not an OP_CODESEPARATOR copy
@@ -150,11 +173,13 @@ public class ScriptFragmentImpl implements ScriptFragment
       try
       {
          int sigCount = 0;
-         InstructionInputStream input = getInstructionInput();
+         CompiledScript compiled = getCompiledScript();
+         if ( compiled.getError() != null )
+            throw compiled.getError();
          Instruction prevInstruction = null;
-         Instruction instruction = null;
-         while ( (instruction=input.readInstruction()) != null )
+         for ( int i=0; i<compiled.size(); i++ )
          {
+            Instruction instruction = compiled.getInstruction(i);
             if ( (instruction.getOperation() == Operation.OP_CHECKSIG) ||
                   (instruction.getOperation() == Operation.OP_CHECKSIGVERIFY) )
                sigCount++;
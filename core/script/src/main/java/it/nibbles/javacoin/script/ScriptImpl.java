@@ -27,13 +27,12 @@ import it.nibbles.javacoin.ScriptFragment;
 import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.VerificationException;
 import it.nibbles.javacoin.utils.BtcUtil;
+import it.nibbles.javacoin.utils.Hashing;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Stack;
-import org.bouncycastle.crypto.digests.RIPEMD160Digest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +45,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
    private static Logger logger = LoggerFactory.getLogger(ScriptImpl.class);
 
    private KeyFactory keyFactory;
+   private SignatureCache signatureCache = null;
    private int pubScriptPointer = 0;
    ScriptFragmentImpl sigScript, pubScript;
 
@@ -81,6 +81,27 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       this.pubScript = pubScript;
    }
 
+   /**
+    * Set the cache of the signatures already verified, or null to verify
+    * all of them.
+    */
+   void setSignatureCache(SignatureCache signatureCache)
+   {
+      this.signatureCache = signatureCache;
+   }
+
+   /**
+    * Decode the script from the already decoded fragments if it was created
+    * from those, so each fragment is decoded only once.
+    */
+   @Override
+   protected CompiledScript compile()
+   {
+      if ( (sigScript != null) && (pubScript != null) && (sigScript.getCompiledScript().getError() == null) )
+         return new CompiledScript(sigScript.getCompiledScript(), pubScript.getCompiledScript());
+      return super.compile();
+   }
+
    protected static byte[] mergeArrays(byte[] first, byte[] second) {
       byte[] scriptBytes = new byte[first.length+second.length];
       System.arraycopy(first,0,scriptBytes,0,first.length);
@@ -221,6 +242,8 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
     int signum = 1;
     if ((bytes[0] & 0x80) != 0) {
       signum = -1;
+      // Do not modify the original, it may be still on the stack or in the script
+      bytes = bytes.clone();
       bytes[0] &= 0x7F;
     }
     return new BigInteger(signum, bytes).intValue();
@@ -252,36 +275,48 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       return readLittleEndianInt(reversedBytes);
    }
   
-  private byte[] popData(Stack stack, String reason)
+  private byte[] popData(ScriptStack stack, String reason)
       throws ScriptException
    {
-      if ( stack.empty() )
+      if ( stack.isEmpty() )
          throw new ScriptException(reason+", but stack was empty");
-      if (stack.peek() instanceof Number)
+      if (stack.isNumber(0))
       {
-         Number num = (Number) stack.pop();
-         if (num.intValue() == 0)
+         int num = (int) stack.popNumber();
+         if (num == 0)
             return new byte[] { };
-         if (num.intValue() > 255)
-            throw new ScriptException(reason + ", but top item in stack is a number not fitting in one-sized byte array: " + stack.peek());
-         return new byte[] { num.byteValue() };
+         if (num > 255)
+            throw new ScriptException(reason + ", but top item in stack is a number not fitting in one-sized byte array: " + num);
+         return new byte[] { (byte) num };
       }
-      if ( ! (stack.peek() instanceof byte[]) )
-         throw new ScriptException(reason+", but top item in stack is not a byte array but: "+stack.peek());
-      return (byte[]) stack.pop();
+      if ( stack.getData(0) == null )
+         throw new ScriptException(reason+", but top item in stack is not a byte array but: null");
+      return stack.popData();
    }
 
-   private int popInt(Stack stack, String reason)
+   private int popInt(ScriptStack stack, String reason)
       throws ScriptException
    {
-      if (stack.empty())
+      if (stack.isEmpty())
          throw new ScriptException(reason + ", but stack was empty");
-      Object obj = stack.peek();
-      if (obj instanceof Number)
-         return ((Number) stack.pop()).intValue();
-      if (obj instanceof byte[] && ((byte[]) obj).length <= 4)
-         return readBigEndianInt((byte[]) stack.pop());
-      throw new ScriptException(reason + ", but top item in stack is not a number but: " + obj.getClass());
+      if (stack.isNumber(0))
+         return (int) stack.popNumber();
+      byte[] bytes = stack.getData(0);
+      if (bytes == null)
+         throw new ScriptException(reason + ", but top item in stack is not a number but: null");
+      if (bytes.length > 4)
+         throw new ScriptException(reason + ", but top item in stack is not a number but: " + bytes.getClass());
+      stack.drop();
+      if (bytes.length == 0)
+         return readBigEndianInt(bytes);
+      // Little endian with the sign in the highest bit, without copying the bytes
+      int value = 0;
+      for (int i = 0; i < bytes.length; i++)
+         value |= (bytes[i] & 0xff) << (8 * i);
+      int signBit = 0x80 << (8 * (bytes.length - 1));
+      if ((value & signBit) != 0)
+         return -(value & ~signBit);
+      return value;
    }
 
    private boolean byteArrayNotZero(byte[] obj)
@@ -296,20 +331,23 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       return false;
    }
    
-   private boolean popBoolean(Stack stack, String reason)
+   /**
+    * Get the boolean value of the top item. Note: a byte array is left on the
+    * stack, only numbers are removed.
+    */
+   private boolean popBoolean(ScriptStack stack, String reason)
       throws ScriptException
    {
-    if (stack.empty()) {
+    if (stack.isEmpty()) {
       throw new ScriptException(reason + ", but stack was empty");
     }
-    Object obj = stack.peek();
-    if (obj instanceof Number) {
-      return ((Number) stack.pop()).intValue() != 0;
+    if (stack.isNumber(0)) {
+      return ((int) stack.popNumber()) != 0;
     }
-    if (obj instanceof byte[]) {
-      return byteArrayNotZero((byte[])obj);
+    if (stack.getData(0) != null) {
+      return byteArrayNotZero(stack.getData(0));
     }
-    throw new ScriptException(reason+", but top item was not number nor byte[] but : "+stack.peek().getClass());
+    throw new ScriptException(reason+", but top item was not number nor byte[] but : null");
    }
 
    /**
@@ -322,26 +360,157 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
    public boolean execute(TransactionInput txIn)
       throws ScriptException
    {
+      // Standard scripts are run directly, without the interpreter
+      if ( (sigScript != null) && (pubScript != null) )
+      {
+         try
+         {
+            switch ( pubScript.getCompiledScript().getTemplate() )
+            {
+               case PAY_TO_PUBKEY_HASH:
+                  if ( isSigScriptDataPush(2) )
+                     return executePayToPubKeyHash(txIn);
+                  break;
+               case PAY_TO_PUBKEY:
+                  if ( isSigScriptDataPush(1) )
+                     return executePayToPubKey(txIn);
+                  break;
+               case PAY_TO_SCRIPT_HASH:
+                  if ( isValidBip16() )
+                     return executePayToScriptHash(txIn);
+                  break;
+            }
+         } catch ( ScriptException e ) {
+            logger.info("Script Exception: "+e.getMessage());
+            throw e;
+         } catch ( IOException e ) {
+            throw new ScriptException("error reading instructions "+toString(),e);
+         }
+      }
       // Create script runtime
-      return execute(txIn, new Stack());
+      ScriptStack stack = ScriptStack.acquire();
+      try
+      {
+         return execute(txIn, stack);
+      } finally {
+         ScriptStack.release(stack);
+      }
+   }
+
+   private boolean isSigScriptDataPush(int count)
+   {
+      CompiledScript compiled = sigScript.getCompiledScript();
+      return (compiled.size() == count) && (compiled.isDataPushOnly());
+   }
+
+   /**
+    * Run &lt;sig&gt; &lt;pubkey&gt; OP_DUP OP_HASH160 &lt;hash&gt; OP_EQUALVERIFY OP_CHECKSIG.
+    */
+   private boolean executePayToPubKeyHash(TransactionInput txIn)
+      throws ScriptException, IOException
+   {
+      CompiledScript sig = sigScript.getCompiledScript();
+      byte[] signature = sig.getInstruction(0).getData();
+      byte[] pubKey = sig.getInstruction(1).getData();
+      if ( ! Arrays.equals(pubScript.getCompiledScript().getInstruction(2).getData(),
+               Hashing.hash160(pubKey)) )
+      {
+         logger.debug("exiting script with false because of OP_EQUALVERIFY failed");
+         return false;
+      }
+      return verify(signature,pubKey,txIn,pubScript.getSubscript(signature));
+   }
+
+   /**
+    * Run &lt;sig&gt; &lt;pubkey&gt; OP_CHECKSIG.
+    */
+   private boolean executePayToPubKey(TransactionInput txIn)
+      throws ScriptException, IOException
+   {
+      byte[] signature = sigScript.getCompiledScript().getInstruction(0).getData();
+      byte[] pubKey = pubScript.getCompiledScript().getInstruction(0).getData();
+      return verify(signature,pubKey,txIn,pubScript.getSubscript(signature));
+   }
+
+   /**
+    * Run the constants of the signature script, check the hash of the last one
+    * and run it as a script on the rest of them, as in BIP0016.
+    */
+   private boolean executePayToScriptHash(TransactionInput txIn)
+      throws ScriptException, IOException
+   {
+      CompiledScript sig = sigScript.getCompiledScript();
+      ScriptStack stack = ScriptStack.acquire();
+      try
+      {
+         return executePayToScriptHash(txIn, sig, stack);
+      } finally {
+         ScriptStack.release(stack);
+      }
+   }
+
+   private boolean executePayToScriptHash(TransactionInput txIn, CompiledScript sig, ScriptStack stack)
+      throws ScriptException, IOException
+   {
+      for ( int i=0; i<sig.size(); i++ )
+      {
+         Instruction instruction = sig.getInstruction(i);
+         switch ( instruction.getOperation() )
+         {
+            case OP_0:
+               stack.pushNumber(0);
+               break;
+            case OP_1NEGATE:
+               stack.pushNumber(-1);
+               break;
+            case CONSTANT:
+            case OP_PUSHDATA1:
+            case OP_PUSHDATA2:
+            case OP_PUSHDATA4:
+               stack.pushData(instruction.getData());
+               break;
+            default: // OP_1 to OP_16, because push only was checked
+               stack.pushNumber(instruction.getOperation().getCode()-Operation.OP_1.getCode()+1);
+         }
+      }
+      byte[] data = popData(stack,"executing OP_HASH160");
+      if ( ! Arrays.equals(pubScript.getCompiledScript().getInstruction(1).getData(),
+               Hashing.hash160(data)) )
+         return false;
+      return executeBip16(txIn,stack,data);
    }
 
-   boolean execute(TransactionInput txIn, Stack stack)
+   private boolean executeBip16(TransactionInput txIn, ScriptStack stack, byte[] bip16Script)
       throws ScriptException
    {
-      // Create the script input
-      InstructionInputStream input = getInstructionInput();
-      Stack altStack = new Stack();
+      ScriptImpl script = new ScriptImpl(bip16Script, keyFactory, 0);
+      script.setSignatureCache(signatureCache);
+      if (logger.isDebugEnabled())
+         logger.debug("BIP0016 Script: " + script);
+      boolean res = script.execute(txIn, stack);
+      if (logger.isDebugEnabled())
+         logger.debug("BIP0016 Script res: " + res);
+      return res;
+   }
+
+   boolean execute(TransactionInput txIn, ScriptStack stack)
+      throws ScriptException
+   {
+      // Get the decoded instructions
+      CompiledScript program = getCompiledScript();
+      int pc = 0;
+      ScriptStack altStack = stack.getAltStack();
+      altStack.clear();
       int lastSeparator = 0;
       byte[] bip16Script = null;
       // Run the script
       try
       {
-         Instruction instruction = input.readInstruction();
+         Instruction instruction = program.getInstruction(pc);
          while ( instruction != null )
          {
             if (logger.isDebugEnabled())
-               logger.debug("Istruzione da eseguire: "+instruction+" "+dumpStack(stack));
+               logger.debug("Istruzione da eseguire: "+instruction+" "+stack);
             switch ( instruction.getOperation() )
             {
                case CONSTANT:
@@ -349,61 +518,61 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                case OP_PUSHDATA2:
                case OP_PUSHDATA4:
                   // These instruction all push data to stack
-                  stack.push(instruction.getData());
+                  stack.pushData(instruction.getData());
                   break;
                case OP_0:
-                  stack.push(0);
+                  stack.pushNumber(0);
                   break;
                case OP_1NEGATE:
-                  stack.push(-1);
+                  stack.pushNumber(-1);
                   break;
                case OP_1:
-                  stack.push(1);
+                  stack.pushNumber(1);
                   break;
                case OP_2:
-                  stack.push(2);
+                  stack.pushNumber(2);
                   break;
                case OP_3:
-                  stack.push(3);
+                  stack.pushNumber(3);
                   break;
                case OP_4:
-                  stack.push(4);
+                  stack.pushNumber(4);
                   break;
                case OP_5:
-                  stack.push(5);
+                  stack.pushNumber(5);
                   break;
                case OP_6:
-                  stack.push(6);
+                  stack.pushNumber(6);
                   break;
                case OP_7:
-                  stack.push(7);
+                  stack.pushNumber(7);
                   break;
                case OP_8:
-                  stack.push(8);
+                  stack.pushNumber(8);
                   break;
                case OP_9:
-                  stack.push(9);
+                  stack.pushNumber(9);
                   break;
                case OP_10:
-                  stack.push(10);
+                  stack.pushNumber(10);
                   break;
                case OP_11:
-                  stack.push(11);
+                  stack.pushNumber(11);
                   break;
                case OP_12:
-                  stack.push(12);
+                  stack.pushNumber(12);
                   break;
                case OP_13:
-                  stack.push(13);
+                  stack.pushNumber(13);
                   break;
                case OP_14:
-                  stack.push(14);
+                  stack.pushNumber(14);
                   break;
                case OP_15:
-                  stack.push(15);
+                  stack.pushNumber(15);
                   break;
                case OP_16:
-                  stack.push(16);
+                  stack.pushNumber(16);
                   break;
                case OP_NOP:
                   // Nothing
@@ -420,7 +589,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                      while ( (instruction != null ) &&
                              (instruction.getOperation()!=Operation.OP_ELSE) &&
                              (instruction.getOperation()!=Operation.OP_ENDIF) )
-                        instruction = input.readInstruction();
+                        instruction = program.getInstruction(++pc);
                      if ( instruction == null )
                         throw new ScriptException("executing OP_IF, did not found closing OP_ENDIF");
                   }
@@ -430,7 +599,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   // so that means we need to skip to OP_ENDIF
                   while ( (instruction != null ) &&
                         (instruction.getOperation()!=Operation.OP_ENDIF) )
-                     instruction = input.readInstruction();
+                     instruction = program.getInstruction(++pc);
                   if ( instruction == null )
                      throw new ScriptException("executing OP_ELSE (skipping ELSE body), did not found closing OP_ENDIF");
                   break;
@@ -450,44 +619,39 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   logger.debug("exiting on OP_RETURN statement");
                   return false; // Fail script
                case OP_TOALTSTACK:
-                  altStack.push(stack.pop());
+                  stack.moveTo(altStack);
                   break;
                case OP_FROMALTSTACK:
-                  stack.push(altStack.pop());
+                  altStack.moveTo(stack);
                   break;
                case OP_IFDUP:
                   // Duplicate true on stack (leave false)
                   condition = popBoolean(stack,"executing OP_IFDUP");
                   if ( condition )
                   {
-                     stack.push(1);
-                     stack.push(1);
+                     stack.pushNumber(1);
+                     stack.pushNumber(1);
                   } 
                   else
                   {
-                     stack.push(0);
+                     stack.pushNumber(0);
                   }
                   break;
                case OP_DEPTH:
-                  stack.push(stack.size());
+                  stack.pushNumber(stack.size());
                   break;
                case OP_DROP:
-                  stack.pop();
+                  stack.drop();
                   break;
                case OP_DUP:
-                  stack.push(stack.peek());
+                  stack.pushCopy(0);
                   break;
                case OP_NIP:
                   // Removes second item
-                  Object top = stack.pop();
-                  stack.pop();
-                  stack.push(top);
+                  stack.remove(1);
                   break;
                case OP_OVER:
-                  top = stack.pop();
-                  Object under = stack.peek();
-                  stack.push(top);
-                  stack.push(under);
+                  stack.pushCopy(1);
                   break;
                case OP_PICK:
                   // Copy nth deep item on top
@@ -496,7 +660,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                      throw new ScriptException("tried to OP_PICK negative index: "+depth);
                   if ( depth >= stack.size() )
                      throw new ScriptException("tried to OP_PICK deeper than stack: "+depth+" vs. "+stack.size());
-                  stack.push(stack.get(stack.size()-1-depth));
+                  stack.pushCopy(depth);
                   break;
                case OP_ROLL:
                   // Move nth deep item to top
@@ -505,87 +669,47 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                      throw new ScriptException("tried to OP_ROLL negative index: "+depth);
                   if ( depth >= stack.size() )
                      throw new ScriptException("tried to OP_ROLL deeper than stack: "+depth+" vs. "+stack.size());
-                  stack.push(stack.remove((stack.size()-1)-depth));
+                  stack.roll(depth);
                   break;
                case OP_ROT:
-                  Object x3 = stack.pop();
-                  Object x2 = stack.pop();
-                  Object x1 = stack.pop();
-                  stack.push(x2);
-                  stack.push(x3);
-                  stack.push(x1);
+                  // x1 x2 x3 -> x2 x3 x1
+                  stack.roll(2);
                   break;
                case OP_SWAP:
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x2);
-                  stack.push(x1);
+                  stack.roll(1);
                   break;
                case OP_TUCK:
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x2);
-                  stack.push(x1);
-                  stack.push(x2);
+                  // x1 x2 -> x2 x1 x2
+                  stack.roll(1);
+                  stack.pushCopy(1);
                   break;
                case OP_2DROP:
-                  stack.pop();
-                  stack.pop();
+                  stack.drop();
+                  stack.drop();
                   break;
                case OP_2DUP:
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x1);
-                  stack.push(x2);
-                  stack.push(x1);
-                  stack.push(x2);
+                  stack.pushCopy(1);
+                  stack.pushCopy(1);
                   break;
                case OP_3DUP:
-                  x3 = stack.pop();
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x1);
-                  stack.push(x2);
-                  stack.push(x3);
-                  stack.push(x1);
-                  stack.push(x2);
-                  stack.push(x3);
+                  stack.pushCopy(2);
+                  stack.pushCopy(2);
+                  stack.pushCopy(2);
                   break;
                case OP_2OVER:
-                  Object x4 = stack.pop();
-                  x3 = stack.pop();
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x1);
-                  stack.push(x2);
-                  stack.push(x3);
-                  stack.push(x4);
-                  stack.push(x1);
-                  stack.push(x2);
+                  // x1 x2 x3 x4 -> x1 x2 x3 x4 x1 x2
+                  stack.pushCopy(3);
+                  stack.pushCopy(3);
                   break;
                case OP_2ROT:
-                  Object x6 = stack.pop();
-                  Object x5 = stack.pop();
-                  x4 = stack.pop();
-                  x3 = stack.pop();
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x3);
-                  stack.push(x4);
-                  stack.push(x5);
-                  stack.push(x6);
-                  stack.push(x1);
-                  stack.push(x2);
+                  // x1 x2 x3 x4 x5 x6 -> x3 x4 x5 x6 x1 x2
+                  stack.roll(5);
+                  stack.roll(5);
                   break;
                case OP_2SWAP:
-                  x4 = stack.pop();
-                  x3 = stack.pop();
-                  x2 = stack.pop();
-                  x1 = stack.pop();
-                  stack.push(x3);
-                  stack.push(x4);
-                  stack.push(x1);
-                  stack.push(x2);
+                  // x1 x2 x3 x4 -> x3 x4 x1 x2
+                  stack.roll(3);
+                  stack.roll(3);
                   break;
                case OP_CAT:
                   throw new ScriptException("OP_CAT is disabled");
@@ -596,17 +720,13 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                case OP_RIGHT:
                   throw new ScriptException("OP_RIGHT is disabled");
                case OP_SIZE:
-                  Object o = stack.peek();
-                  if (o instanceof byte[])
-                     stack.push(((byte[])o).length);
-                  else if (o instanceof Number)
+                  if ( stack.isNumber(0) )
                      // Workaround 
-                     if (((Number) o).intValue() == 0)
-                        stack.push(0);
-                     else
-                        stack.push(1);
+                     stack.pushNumber( ((int) stack.getNumber(0) == 0) ? 0 : 1 );
+                  else if ( stack.getData(0) != null )
+                     stack.pushNumber(stack.getData(0).length);
                   else
-                     throw new ScriptException("OP_SIZE for unknown object on stack: "+o);
+                     throw new ScriptException("OP_SIZE for unknown object on stack: "+stack.describe(0));
                   break;
                case OP_INVERT:
                   throw new ScriptException("OP_INVERT is disabled");
@@ -619,32 +739,33 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                case OP_EQUAL:
                case OP_EQUALVERIFY:
                   // Make comparison
-                  x1 = stack.pop();
-                  x2 = stack.pop();
                   boolean equalResult = false;
-                  if ( (x1 instanceof Number) && (x2 instanceof Number) )
+                  if ( stack.isNumber(0) && stack.isNumber(1) )
                   {
                      // Compare two numbers
-                     equalResult = ((Number)x1).longValue() == ((Number)x2).longValue();
+                     equalResult = stack.getNumber(0) == stack.getNumber(1);
                   }
-                  else if ( (x1 instanceof byte[]) && (x2 instanceof byte[]) )
+                  else if ( (!stack.isNumber(0)) && (!stack.isNumber(1)) &&
+                        (stack.getData(0) != null) && (stack.getData(1) != null) )
                   {
                      // Compare two arrays
-                     equalResult = Arrays.equals((byte[]) x1, (byte[]) x2);
+                     equalResult = Arrays.equals(stack.getData(0), stack.getData(1));
                   } 
-                  else if ( (x1 instanceof byte[]) && (x2 instanceof Number) )
+                  else if ( (!stack.isNumber(0)) && (stack.getData(0) != null) && stack.isNumber(1) )
                   {
                      // Compare an array with the binary representazione of the number
-                     equalResult = Arrays.equals((byte[]) x1, toBigEndianByteArray((Number) x2));
+                     equalResult = Arrays.equals(stack.getData(0), toBigEndianByteArray(stack.getNumber(1)));
                   }
-                  else if ( (x1 instanceof Number) && (x2 instanceof byte[]) )
+                  else if ( stack.isNumber(0) && (!stack.isNumber(1)) && (stack.getData(1) != null) )
                   {
                      // Compare an array with the binary representazione of the number
-                     equalResult = Arrays.equals(toBigEndianByteArray((Number) x1), (byte[]) x2);
+                     equalResult = Arrays.equals(toBigEndianByteArray(stack.getNumber(0)), stack.getData(1));
                   } else
                   {
-                     throw new ScriptException("comparing non-compatible values: "+x1+" vs. "+x2);
+                     throw new ScriptException("comparing non-compatible values: "+stack.describe(0)+" vs. "+stack.describe(1));
                   }
+                  stack.drop();
+                  stack.drop();
                   // Handle result
                   if ( instruction.getOperation()==Operation.OP_EQUALVERIFY )
                   {
@@ -658,16 +779,16 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   else
                   {
                      // Put result on stack
-                     stack.push( (equalResult)?1:0 );
+                     stack.pushBoolean(equalResult);
                   }
                   break;
                case OP_1ADD:
                   long a = popInt(stack,"executing OP_1ADD");
-                  stack.push( (a+1) );
+                  stack.pushNumber(a+1);
                   break;
                case OP_1SUB:
                   a = popInt(stack,"executing OP_1SUB");
-                  stack.push( (a-1) );
+                  stack.pushNumber(a-1);
                   break;
                case OP_2MUL:
                   throw new ScriptException("OP_2MUL is disabled");
@@ -675,38 +796,38 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   throw new ScriptException("OP_2DIV is disabled");
                case OP_NEGATE:
                   a = popInt(stack,"executing OP_NEGATE");
-                  stack.push( (-a) );
+                  stack.pushNumber(-a);
                   break;
                case OP_ABS:
                   a = popInt(stack,"executing OP_ABS");
                   if ( a < 0 )
-                     stack.push( (-a) );
+                     stack.pushNumber(-a);
                   else
-                     stack.push( (a) );
+                     stack.pushNumber(a);
                   break;
                case OP_NOT:
                   a = popInt(stack,"executing OP_NOT");
                   if ( a == 0 )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_0NOTEQUAL:
                   a = popInt(stack,"executing OP_0NOTEQUAL");
                   if ( a != 0 )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_ADD:
                   long b = popInt(stack,"executing OP_ADD");
                   a = popInt(stack,"executing OP_ADD");
-                  stack.push( (a+b) );
+                  stack.pushNumber(a+b);
                   break;
                case OP_SUB:
                   b = popInt(stack,"executing OP_SUB");
                   a = popInt(stack,"executing OP_SUB");
-                  stack.push( (a-b) );
+                  stack.pushNumber(a-b);
                   break;
                case OP_MUL:
                   throw new ScriptException("OP_MUL is disabled");
@@ -722,25 +843,25 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   b = popInt(stack,"executing OP_BOOLAND");
                   a = popInt(stack,"executing OP_BOOLAND");
                   if ( (a!=0) && (b!=0) )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_BOOLOR:
                   b = popInt(stack,"executing OP_BOOLOR");
                   a = popInt(stack,"executing OP_BOOLOR");
                   if ( (a!=0) || (b!=0) )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_NUMEQUAL:
                   b = popInt(stack,"executing OP_NUMEQUAL");
                   a = popInt(stack,"executing OP_NUMEQUAL");
                   if ( a == b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_NUMEQUALVERIFY:
                   b = popInt(stack,"executing OP_NUMEQUALVERIFY");
@@ -755,108 +876,108 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   b = popInt(stack,"executing OP_NUMNOTEQUAL");
                   a = popInt(stack,"executing OP_NUMNOTEQUAL");
                   if ( a != b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_LESSTHAN:
                   b = popInt(stack,"executing OP_LESSTHAN");
                   a = popInt(stack,"executing OP_LESSTHAN");
                   if ( a < b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_GREATERTHAN:
                   b = popInt(stack,"executing OP_GREATERTHAN");
                   a = popInt(stack,"executing OP_GREATERTHAN");
                   if ( a > b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_LESSTHANOREQUAL:
                   b = popInt(stack,"executing OP_LESSTHANOREQUAL");
                   a = popInt(stack,"executing OP_LESSTHANOREQUAL");
                   if ( a <= b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_GREATERTHANOREQUAL:
                   b = popInt(stack,"executing OP_GREATERTHANOREQUAL");
                   a = popInt(stack,"executing OP_GREATERTHANOREQUAL");
                   if ( a >= b )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_MIN:
                   b = popInt(stack,"executing OP_MIN");
                   a = popInt(stack,"executing OP_MIN");
                   if ( a < b )
-                     stack.push(a);
+                     stack.pushNumber(a);
                   else
-                     stack.push(b);
+                     stack.pushNumber(b);
                   break;
                case OP_MAX:
                   b = popInt(stack,"executing OP_MAX");
                   a = popInt(stack,"executing OP_MAX");
                   if ( a > b )
-                     stack.push(a);
+                     stack.pushNumber(a);
                   else
-                     stack.push(b);
+                     stack.pushNumber(b);
                   break;
                case OP_WITHIN:
                   long max = popInt(stack,"executing OP_WITHIN");
                   long min = popInt(stack,"executing OP_WITHIN");
                   a = popInt(stack,"executing OP_WITHIN");
                   if ( (a>=min) && (a<max) )
-                     stack.push(1);
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_RIPEMD160:
                   byte[] data;
                   data = popData(stack,"executing OP_RIPEMD160");
-                  stack.push(digestRIPEMD160(data));
+                  stack.pushData(Hashing.ripemd160(data));
                   break;
                case OP_SHA1:
                   data = popData(stack,"executing OP_SHA1");
-                  stack.push(digestMessage(data,"SHA-1"));
+                  stack.pushData(digestMessage(data,"SHA-1"));
                   break;
                case OP_SHA256:
                   data = popData(stack,"executing OP_SHA256");
-                  stack.push(digestMessage(data,"SHA-256"));
+                  stack.pushData(Hashing.sha256(data));
                   break;
                case OP_HASH160:
                   data = popData(stack,"executing OP_HASH160");
-                  stack.push(digestRIPEMD160(digestMessage(data,"SHA-256")));
+                  stack.pushData(Hashing.hash160(data));
                   bip16Script = data;
                   break;
                case OP_HASH256:
                   data = popData(stack,"executing OP_HASH256");
-                  stack.push(digestMessage(digestMessage(data,"SHA-256"),"SHA-256"));
+                  stack.pushData(Hashing.doubleSha256(data));
                   break;
                case OP_CODESEPARATOR:
-                  lastSeparator = input.getPointer();
+                  lastSeparator = program.getEnd(pc);
                   break;
                case OP_CHECKSIG:
                   // Get input
                   byte[] pubKey = popData(stack,"executing OP_CHECKSIG");
                   byte[] sig = popData(stack,"executing OP_CHECKSIG");
                   // Push result to stack
-                  if ( verify(sig,pubKey,txIn,fragment(lastSeparator,pubScriptPointer,input.getPointer()).getSubscript(sig)) )
-                     stack.push(1);
+                  if ( verify(sig,pubKey,txIn,fragment(lastSeparator,pubScriptPointer,program.getEnd(pc)).getSubscript(sig)) )
+                     stack.pushNumber(1);
                   else
-                     stack.push(0);
+                     stack.pushNumber(0);
                   break;
                case OP_CHECKSIGVERIFY:
                   // Get input
                   pubKey = popData(stack,"executing OP_CHECKSIGVERIFY");
                   sig = popData(stack,"executing OP_CHECKSIGVERIFY");
                   // Abort if it does not verify
-                  if ( ! verify(sig,pubKey,txIn,fragment(lastSeparator,pubScriptPointer,input.getPointer()).getSubscript(sig)) )
+                  if ( ! verify(sig,pubKey,txIn,fragment(lastSeparator,pubScriptPointer,program.getEnd(pc)).getSubscript(sig)) )
                   {
                      logger.debug("exiting with false because of failed OP_CHECKSIGVERIFY");
                      return false;
@@ -876,7 +997,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                      sigs[i] = popData(stack,"executing OP_CHECKMULTISIG/OP_CHECKMULTISIGVERIFY");
                   logger.debug("found {} public keys and {} signatures",pubKeyCount, sigCount);
                   // Prepare subscript (remove all sigs)
-                  ScriptFragment subscript = fragment(lastSeparator,pubScriptPointer,input.getPointer()).getSubscript(sigs);
+                  ScriptFragment subscript = fragment(lastSeparator,pubScriptPointer,program.getEnd(pc)).getSubscript(sigs);
                   // Verify signatures now. Note that all signatures must verify, but not
                   // all public keys must correspond to signatures (there are more public keys
                   // than signatures). Also, public keys and signatures should be ordered, so no need
@@ -902,11 +1023,11 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   }
                   else
                   {
-                     stack.pop(); // Because of a bug in the original client, there is 1 plus value
+                     stack.drop(); // Because of a bug in the original client, there is 1 plus value
                      if ( currentSig < sigCount )
-                        stack.push(0);
+                        stack.pushNumber(0);
                      else
-                        stack.push(1);
+                        stack.pushNumber(1);
                   }
                   break;
                case OP_PUBKEYHASH:
@@ -938,7 +1059,7 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                default:
                   throw new ScriptException("unhandled operation encountered: "+instruction.getOperation());
             }
-            instruction = input.readInstruction();
+            instruction = program.getInstruction(++pc);
             if (instruction == null && isValidBip16())
             {
                boolean res = popBoolean(stack, "Checking first half of bip16 script");
@@ -946,13 +1067,8 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
                   return false;
                // Implementation implies that when a bip16 script is recognised exactly one hash160 func has been executed
                assert bip16Script != null;
-               ScriptImpl script = new ScriptImpl(bip16Script, keyFactory, 0);
-               if (logger.isDebugEnabled())
-                  logger.debug("BIP0016 Script: " + script);
-               res = script.execute(txIn, stack);
-               if (logger.isDebugEnabled())
-                  logger.debug("BIP0016 Script res: " + res);
-               stack.push(res ? 1 : 0);
+               res = executeBip16(txIn, stack, bip16Script);
+               stack.pushBoolean(res);
             }
          }
       } catch ( ScriptException e ) {
@@ -966,15 +1082,6 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       return popBoolean(stack,"determining script result");
    }
 
-   private byte[] digestRIPEMD160(byte[] data)
-   {
-      RIPEMD160Digest ripeDigest = new RIPEMD160Digest();
-      ripeDigest.update(data,0,data.length);
-      byte[] hash = new byte[ripeDigest.getDigestSize()]; // Should be actually 20 bytes (160 bits)
-      ripeDigest.doFinal(hash,0);
-      return hash;
-   }
-
    private byte[] digestMessage(byte[] data, String algorithm)
       throws ScriptException
    {
@@ -998,26 +1105,32 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       // Remove last byte from sig
       byte[] sigRaw = new byte[sig.length-1];
       System.arraycopy(sig,0,sigRaw,0,sigRaw.length);
-      // Create public key to check
-      PublicKey publicKey = keyFactory.createPublicKey(pubKey);
       // Re-create hash of the transaction
       byte[] transactionHash = null;
       try
       {
          transactionHash = txIn.getSignatureHash(signatureType,subscript);
-         if ( logger.isDebugEnabled() )
-            logger.debug("running verification, tx signature hash is {}, for type: "+signatureType+" and pubKey: {}/"+publicKey,
-               new BigInteger(1,transactionHash).toString(16), BtcUtil.hexOut(pubKey));
-         if ( logger.isDebugEnabled() )
-            logger.debug("running verification, signature script: {}",subscript);
       } catch ( BitcoinException e ) {
          throw new ScriptException("could not generate signature hash");
       }
+      // A signature already found valid does not need to be verified again
+      if ( (signatureCache != null) && (signatureCache.contains(transactionHash,pubKey,sigRaw)) )
+         return true;
+      // Create public key to check
+      PublicKey publicKey = keyFactory.createPublicKey(pubKey);
+      if ( logger.isDebugEnabled() )
+         logger.debug("running verification, tx signature hash is {}, for type: "+signatureType+" and pubKey: {}/"+publicKey,
+            new BigInteger(1,transactionHash).toString(16), BtcUtil.hexOut(pubKey));
+      if ( logger.isDebugEnabled() )
+         logger.debug("running verification, signature script: {}",subscript);
       // Now check that the sig is the encrypted transaction hash (done with the
       // private key corresponding to the public key at hand)
       try
       {
-         return publicKey.verify(transactionHash,sigRaw);
+         boolean valid = publicKey.verify(transactionHash,sigRaw);
+         if ( (valid) && (signatureCache != null) )
+            signatureCache.add(transactionHash,pubKey,sigRaw);
+         return valid;
       } catch ( VerificationException e ) {
          throw new ScriptException("verification exception while checking signature",e);
       }
@@ -1043,29 +1156,4 @@ public class ScriptImpl extends ScriptFragmentImpl implements Script
       System.arraycopy(toByteArray(),startIndex,fragment,0,fragment.length);
       return new ScriptFragmentImpl(fragment);
    }
-
-   // A couple debugging functions used to dump the stack on the logfile
-   private String stackObjToString(Object o)
-   {
-      if (o instanceof byte[])
-         return BtcUtil.hexOut((byte[]) o);
-      else
-         return o.toString();
-   }
-
-   private String dumpStack(Stack stack)
-   {
-      StringBuilder sb = new StringBuilder("STACK: ");
-      for (Object o : stack)
-      {
-         sb.append("\n");
-         if (o instanceof Number)
-            sb.append(stackObjToString(o)).append(" ");
-         else if (o instanceof byte[])
-            sb.append("<").append(stackObjToString(o)).append("> ");
-         else
-            sb.append("<UNK ").append(o).append("> ");
-      }
-      return sb.toString();
-   }
 }
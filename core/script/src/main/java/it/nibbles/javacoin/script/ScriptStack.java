@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ * The stack of a running script. Items are either byte arrays or numbers,
+ * numbers are kept as primitives so they are not boxed. Depth 0 is the top
+ * item. Removing from an empty stack, or from deeper than the stack, throws
+ * an EmptyStackException. Not thread safe, every running script has its own
+ * stack. A stack can be taken from the pool of the thread, which also holds an
+ * alternate stack, so running scripts one after the other does not allocate
+ * new stacks.
+ *
+ * @author Alessandro Polverini
+ */
+class ScriptStack
+{
+
+   private static final int INITIAL_CAPACITY = 16;
+   // Stacks grown bigger are not pooled, so the pool does not keep much memory
+   private static final int MAX_POOLED_CAPACITY = 1024;
+   private static final ThreadLocal<ScriptStack> pool = new ThreadLocal<>();
+   private byte[][] data = new byte[INITIAL_CAPACITY][];
+   private long[] numbers = new long[INITIAL_CAPACITY];
+   private boolean[] isNumber = new boolean[INITIAL_CAPACITY];
+   private int size = 0;
+   private ScriptStack altStack = null;
+
+   /**
+    * Get an empty stack from the pool of this thread, or a new one if the
+    * pooled stack is already in use.
+    */
+   static ScriptStack acquire()
+   {
+      ScriptStack stack = pool.get();
+      if (stack == null)
+         return new ScriptStack();
+      pool.set(null);
+      return stack;
+   }
+
+   /**
+    * Give the stack back to the pool of this thread, it must not be used
+    * afterwards.
+    */
+   static void release(ScriptStack stack)
+   {
+      if (stack.data.length > MAX_POOLED_CAPACITY)
+         return;
+      stack.clear();
+      if (stack.altStack != null)
+      {
+         if (stack.altStack.data.length > MAX_POOLED_CAPACITY)
+            stack.altStack = null;
+         else
+            stack.altStack.clear();
+      }
+      pool.set(stack);
+   }
+
+   /**
+    * @return The alternate stack belonging to this one.
+    */
+   ScriptStack getAltStack()
+   {
+      if (altStack == null)
+         altStack = new ScriptStack();
+      return altStack;
+   }
+
+   int size()
+   {
+      return size;
+   }
+
+   boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   void clear()
+   {
+      Arrays.fill(data, 0, size, null);
+      size = 0;
+   }
+
+   void pushData(byte[] value)
+   {
+      ensureCapacity();
+      data[size] = value;
+      isNumber[size] = false;
+      size++;
+   }
+
+   void pushNumber(long value)
+   {
+      ensureCapacity();
+      data[size] = null;
+      numbers[size] = value;
+      isNumber[size] = true;
+      size++;
+   }
+
+   void pushBoolean(boolean value)
+   {
+      pushNumber(value ? 1 : 0);
+   }
+
+   boolean isNumber(int depth)
+   {
+      return isNumber[index(depth)];
+   }
+
+   /**
+    * @return The byte array at the given depth, which must not be a number.
+    */
+   byte[] getData(int depth)
+   {
+      return data[index(depth)];
+   }
+
+   /**
+    * @return The number at the given depth, which must be a number.
+    */
+   long getNumber(int depth)
+   {
+      return numbers[index(depth)];
+   }
+
+   /**
+    * Remove the top item.
+    */
+   void drop()
+   {
+      index(0);
+      size--;
+      data[size] = null;
+   }
+
+   /**
+    * Remove the top item, which must be a byte array.
+    */
+   byte[] popData()
+   {
+      byte[] value = getData(0);
+      drop();
+      return value;
+   }
+
+   /**
+    * Remove the top item, which must be a number.
+    */
+   long popNumber()
+   {
+      long value = getNumber(0);
+      drop();
+      return value;
+   }
+
+   /**
+    * Push a copy of the item at the given depth.
+    */
+   void pushCopy(int depth)
+   {
+      int from = index(depth);
+      ensureCapacity();
+      data[size] = data[from];
+      numbers[size] = numbers[from];
+      isNumber[size] = isNumber[from];
+      size++;
+   }
+
+   /**
+    * Move the item at the given depth to the top.
+    */
+   void roll(int depth)
+   {
+      int from = index(depth);
+      byte[] movedData = data[from];
+      long movedNumber = numbers[from];
+      boolean movedIsNumber = isNumber[from];
+      int last = size - 1;
+      System.arraycopy(data, from + 1, data, from, last - from);
+      System.arraycopy(numbers, from + 1, numbers, from, last - from);
+      System.arraycopy(isNumber, from + 1, isNumber, from, last - from);
+      data[last] = movedData;
+      numbers[last] = movedNumber;
+      isNumber[last] = movedIsNumber;
+   }
+
+   /**
+    * Remove the item at the given depth.
+    */
+   void remove(int depth)
+   {
+      roll(depth);
+      drop();
+   }
+
+   /**
+    * Move the top item to the top of another stack.
+    */
+   void moveTo(ScriptStack other)
+   {
+      int top = index(0);
+      if (isNumber[top])
+         other.pushNumber(numbers[top]);
+      else
+         other.pushData(data[top]);
+      drop();
+   }
+
+   /**
+    * @return A readable form of the item at the given depth.
+    */
+   String describe(int depth)
+   {
+      int i = index(depth);
+      if (isNumber[i])
+         return Long.toString(numbers[i]);
+      if (data[i] == null)
+         return "null";
+      return "<" + BtcUtil.hexOut(data[i]) + ">";
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder("STACK: ");
+      for (int depth = size - 1; depth >= 0; depth--)
+         sb.append("\n").append(describe(depth)).append(" ");
+      return sb.toString();
+   }
+
+   private int index(int depth)
+   {
+      if ((depth < 0) || (depth >= size))
+         throw new EmptyStackException();
+      return size - 1 - depth;
+   }
+
+   private void ensureCapacity()
+   {
+      if (size < data.length)
+         return;
+      int capacity = data.length * 2;
+      data = Arrays.copyOf(data, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+      isNumber = Arrays.copyOf(isNumber, capacity);
+   }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import it.nibbles.javacoin.BoundedCache;
+import it.nibbles.javacoin.utils.Hashing;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Remembers the signatures which were already verified as valid, so the
+ * same signature of a transaction is not verified again, for example when
+ * the transaction arrives in a block after it was relayed alone. An entry is
+ * the digest of the signature hash, the public key and the signature, so it
+ * takes a fixed amount of memory. The cache holds at most a given number of
+ * entries, the oldest ones are removed first. It can be used by any number
+ * of threads at once.
+ *
+ * @author Alessandro Polverini
+ */
+public class SignatureCache
+{
+
+   public static final int DEFAULT_SIZE = 100000;
+   private final BoundedCache<Entry, Boolean> entries;
+
+   public SignatureCache()
+   {
+      this(DEFAULT_SIZE);
+   }
+
+   /**
+    * @param maxSize The maximum number of signatures to remember.
+    */
+   public SignatureCache(int maxSize)
+   {
+      entries = new BoundedCache<>(maxSize);
+   }
+
+   /**
+    * @return True if the signature was already verified as valid for this
+    * signature hash and public key.
+    */
+   public boolean contains(byte[] signatureHash, byte[] publicKey, byte[] signature)
+   {
+      return entries.get(new Entry(signatureHash, publicKey, signature)) != null;
+   }
+
+   /**
+    * Remember a signature which was verified as valid.
+    */
+   public void add(byte[] signatureHash, byte[] publicKey, byte[] signature)
+   {
+      entries.putIfAbsent(new Entry(signatureHash, publicKey, signature), Boolean.TRUE);
+   }
+
+   public void clear()
+   {
+      entries.clear();
+   }
+
+   public int size()
+   {
+      return entries.size();
+   }
+
+   public int getMaxSize()
+   {
+      return entries.getMaxSize();
+   }
+
+   /**
+    * @return The number of lookups which found the signature.
+    */
+   public long getHits()
+   {
+      return entries.getHits();
+   }
+
+   /**
+    * @return The number of lookups which did not find the signature.
+    */
+   public long getMisses()
+   {
+      return entries.getMisses();
+   }
+
+   /**
+    * @return The fraction of lookups which found the signature, or zero if
+    * there were none.
+    */
+   public double getHitRate()
+   {
+      return entries.getHitRate();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "SignatureCache[size: " + size() + "/" + getMaxSize() + " hits: " + getHits() + " misses: " + getMisses()
+              + " hit rate: " + Math.round(getHitRate() * 100) + "%]";
+   }
+
+   /**
+    * The digest of the signed hash, the key and the signature.
+    */
+   private static class Entry
+   {
+
+      private final byte[] digest;
+      private final int hashCode;
+
+      private Entry(byte[] signatureHash, byte[] publicKey, byte[] signature)
+      {
+         MessageDigest sha = Hashing.sha256Digest();
+         sha.update(signatureHash);
+         // The length of the key separates it from the signature
+         sha.update((byte) (publicKey.length >> 8));
+         sha.update((byte) publicKey.length);
+         sha.update(publicKey);
+         sha.update(signature);
+         digest = sha.digest();
+         hashCode = Arrays.hashCode(digest);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hashCode;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         return (o instanceof Entry) && (Arrays.equals(digest, ((Entry) o).digest));
+      }
+   }
+}
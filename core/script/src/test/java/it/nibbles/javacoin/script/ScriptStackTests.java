@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import java.util.EmptyStackException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class ScriptStackTests
+{
+
+   private ScriptStack createStack(int count)
+   {
+      ScriptStack stack = new ScriptStack();
+      for (int i = 1; i <= count; i++)
+         stack.pushNumber(i);
+      return stack;
+   }
+
+   public void testPushAndPop()
+   {
+      ScriptStack stack = new ScriptStack();
+      byte[] data = new byte[] {1, 2};
+      stack.pushData(data);
+      stack.pushNumber(-5);
+      Assert.assertEquals(stack.size(), 2);
+      Assert.assertTrue(stack.isNumber(0));
+      Assert.assertEquals(stack.popNumber(), -5);
+      Assert.assertFalse(stack.isNumber(0));
+      Assert.assertSame(stack.popData(), data);
+      Assert.assertTrue(stack.isEmpty());
+   }
+
+   public void testGrow()
+   {
+      ScriptStack stack = createStack(100);
+      Assert.assertEquals(stack.size(), 100);
+      Assert.assertEquals(stack.getNumber(0), 100);
+      Assert.assertEquals(stack.getNumber(99), 1);
+   }
+
+   public void testRoll()
+   {
+      ScriptStack stack = createStack(4);
+      stack.roll(2);
+      Assert.assertEquals(stack.toString(), "STACK: \n1 \n3 \n4 \n2 ");
+   }
+
+   public void testRemove()
+   {
+      ScriptStack stack = createStack(3);
+      stack.remove(1);
+      Assert.assertEquals(stack.toString(), "STACK: \n1 \n3 ");
+   }
+
+   public void testPushCopy()
+   {
+      ScriptStack stack = new ScriptStack();
+      byte[] data = new byte[] {1};
+      stack.pushData(data);
+      stack.pushNumber(2);
+      stack.pushCopy(1);
+      Assert.assertEquals(stack.size(), 3);
+      Assert.assertSame(stack.getData(0), data);
+   }
+
+   public void testMoveTo()
+   {
+      ScriptStack stack = createStack(2);
+      ScriptStack altStack = stack.getAltStack();
+      stack.moveTo(altStack);
+      Assert.assertEquals(stack.size(), 1);
+      Assert.assertEquals(altStack.popNumber(), 2);
+   }
+
+   @Test(expectedExceptions = EmptyStackException.class)
+   public void testDropEmpty()
+   {
+      new ScriptStack().drop();
+   }
+
+   @Test(expectedExceptions = EmptyStackException.class)
+   public void testRollTooDeep()
+   {
+      createStack(3).roll(3);
+   }
+
+   public void testPooled()
+   {
+      ScriptStack stack = ScriptStack.acquire();
+      stack.pushNumber(1);
+      stack.getAltStack().pushNumber(2);
+      // Already taken, so a new one is given
+      Assert.assertNotSame(ScriptStack.acquire(), stack);
+      ScriptStack.release(stack);
+      ScriptStack again = ScriptStack.acquire();
+      Assert.assertSame(again, stack);
+      Assert.assertTrue(again.isEmpty());
+      Assert.assertTrue(again.getAltStack().isEmpty());
+      ScriptStack.release(again);
+   }
+}
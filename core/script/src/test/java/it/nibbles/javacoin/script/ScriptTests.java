@@ -1068,4 +1068,121 @@ public class ScriptTests
       Assert.assertTrue(verificationScript.execute(txIn));
    }
 
+
+   private byte[] hash160(byte[] data)
+      throws Exception
+   {
+      byte[] sha = java.security.MessageDigest.getInstance("SHA-256").digest(data);
+      org.bouncycastle.crypto.digests.RIPEMD160Digest ripemd = new org.bouncycastle.crypto.digests.RIPEMD160Digest();
+      ripemd.update(sha,0,sha.length);
+      byte[] hash = new byte[20];
+      ripemd.doFinal(hash,0);
+      return hash;
+   }
+
+   /**
+    * Run the standard script both through the fast path and through the interpreter,
+    * and check they give the same result.
+    */
+   private boolean executeBothWays(String sigScript, String pubScript, byte[] signature, byte[] pubkey, boolean valid)
+      throws Exception
+   {
+      byte[] hash = new byte[] { 1, 2, 3, 4 };
+      TransactionInput txIn = createMock(TransactionInput.class);
+      expect(txIn.getSignatureHash(
+               eq(SignatureHashTypeImpl.SIGHASH_ALL),
+               eq(new ScriptFragmentImpl(toScript(pubScript)))
+               )).andReturn(hash).anyTimes();
+      replay(txIn);
+      PublicKey publicKey = createMock(PublicKey.class);
+      expect(publicKey.verify(aryEq(hash),aryEq(signature))).andReturn(valid).anyTimes();
+      replay(publicKey);
+      KeyFactory keyFactory = createMock(KeyFactory.class);
+      expect(keyFactory.createPublicKey(aryEq(pubkey))).andReturn(publicKey).anyTimes();
+      replay(keyFactory);
+      ScriptFactoryImpl scriptFactory = new ScriptFactoryImpl(keyFactory,null);
+      ScriptFragmentImpl sigFragment = new ScriptFragmentImpl(toScript(sigScript));
+      ScriptFragmentImpl pubFragment = new ScriptFragmentImpl(toScript(pubScript));
+      boolean fastResult = scriptFactory.createScript(sigFragment,pubFragment).execute(txIn);
+      ScriptImpl interpreted = new ScriptImpl(ScriptImpl.mergeArrays(sigFragment.toByteArray(),pubFragment.toByteArray()),
+            keyFactory,sigFragment.toByteArray().length);
+      Assert.assertEquals(fastResult,interpreted.execute(txIn));
+      return fastResult;
+   }
+
+   public void testPayToPubKeyHash()
+      throws Exception
+   {
+      byte[] signature = new byte[] { 100, 101, 102, 103, 110, 3 };
+      byte[] pubkey = new byte[] { 44, 42, 53, 12, 3, 1, 1, 1, 1, 1 };
+      String sigScript = "CONSTANT <"+HexUtil.toHexString(signature)+" 01> CONSTANT <"+HexUtil.toHexString(pubkey)+">";
+      String pubScript = "OP_DUP OP_HASH160 CONSTANT <"+HexUtil.toHexString(hash160(pubkey))+"> OP_EQUALVERIFY OP_CHECKSIG";
+      Assert.assertTrue(executeBothWays(sigScript,pubScript,signature,pubkey,true));
+      Assert.assertFalse(executeBothWays(sigScript,pubScript,signature,pubkey,false));
+      // Public key not matching the hash
+      byte[] otherHash = hash160(pubkey);
+      otherHash[0]++;
+      Assert.assertFalse(executeBothWays(sigScript,
+               "OP_DUP OP_HASH160 CONSTANT <"+HexUtil.toHexString(otherHash)+"> OP_EQUALVERIFY OP_CHECKSIG",
+               signature,pubkey,true));
+   }
+
+   public void testPayToPubKey()
+      throws Exception
+   {
+      byte[] signature = new byte[] { 100, 101, 102, 103, 110, 3 };
+      byte[] pubkey = new byte[] { 44, 42, 53, 12, 3, 1, 1, 1, 1, 1 };
+      String sigScript = "CONSTANT <"+HexUtil.toHexString(signature)+" 01>";
+      String pubScript = "CONSTANT <"+HexUtil.toHexString(pubkey)+"> OP_CHECKSIG";
+      Assert.assertTrue(executeBothWays(sigScript,pubScript,signature,pubkey,true));
+      Assert.assertFalse(executeBothWays(sigScript,pubScript,signature,pubkey,false));
+   }
+
+   public void testPayToPubKeyNotOnlyPushes()
+      throws Exception
+   {
+      byte[] signature = new byte[] { 100, 101, 102, 103, 110, 3 };
+      byte[] pubkey = new byte[] { 44, 42, 53, 12, 3, 1, 1, 1, 1, 1 };
+      // Signature script leaves false under the signature, so the interpreter has to run it
+      String sigScript = "OP_0 CONSTANT <"+HexUtil.toHexString(signature)+" 01>";
+      String pubScript = "CONSTANT <"+HexUtil.toHexString(pubkey)+"> OP_CHECKSIG";
+      Assert.assertTrue(executeBothWays(sigScript,pubScript,signature,pubkey,true));
+   }
+
+   public void testCompiledScriptKeepsParseError()
+      throws Exception
+   {
+      // Push of 5 bytes with only 2 following, script returns before reaching it
+      ScriptImpl scriptImpl = new ScriptImpl(HexUtil.toByteArray("51 6A 05 01 02"),createMock(KeyFactory.class),0);
+      Assert.assertFalse(scriptImpl.execute(createMock(TransactionInput.class)));
+      Assert.assertEquals(scriptImpl.getCompiledScript().size(),2);
+      Assert.assertNotNull(scriptImpl.getCompiledScript().getError());
+   }
+
+   @Test(expectedExceptions=ScriptException.class)
+   public void testCompiledScriptParseErrorReached()
+      throws Exception
+   {
+      ScriptImpl scriptImpl = new ScriptImpl(HexUtil.toByteArray("51 05 01 02"),createMock(KeyFactory.class),0);
+      scriptImpl.execute(createMock(TransactionInput.class));
+   }
+
+   public void testTemplates()
+      throws Exception
+   {
+      Assert.assertEquals(new ScriptFragmentImpl(toScript(
+                  "OP_DUP OP_HASH160 CONSTANT <01 02 03 04 05 06 07 08 09 10 11 12 13 14 15 16 17 18 19 20> OP_EQUALVERIFY OP_CHECKSIG"))
+            .getCompiledScript().getTemplate(),CompiledScript.Template.PAY_TO_PUBKEY_HASH);
+      Assert.assertEquals(new ScriptFragmentImpl(toScript("CONSTANT <01 02 03> OP_CHECKSIG"))
+            .getCompiledScript().getTemplate(),CompiledScript.Template.PAY_TO_PUBKEY);
+      Assert.assertEquals(new ScriptFragmentImpl(toScript(
+                  "OP_HASH160 CONSTANT <01 02 03 04 05 06 07 08 09 10 11 12 13 14 15 16 17 18 19 20> OP_EQUAL"))
+            .getCompiledScript().getTemplate(),CompiledScript.Template.PAY_TO_SCRIPT_HASH);
+      Assert.assertEquals(new ScriptFragmentImpl(toScript(
+                  "OP_HASH160 CONSTANT <01 02 03 04 05 06 07 08 09 10 11 12 13 14 15 16 17 18 19> OP_EQUAL"))
+            .getCompiledScript().getTemplate(),CompiledScript.Template.NONE);
+      Assert.assertEquals(new ScriptFragmentImpl(toScript("CONSTANT <01 02 03> OP_CHECKSIG OP_NOP"))
+            .getCompiledScript().getTemplate(),CompiledScript.Template.NONE);
+   }
+
 }
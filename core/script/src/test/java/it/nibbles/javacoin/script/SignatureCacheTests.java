@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class SignatureCacheTests
+{
+
+   private static final byte[] HASH = new byte[] {1, 2, 3, 4};
+
+   public void testContains()
+   {
+      SignatureCache cache = new SignatureCache(10);
+      Assert.assertFalse(cache.contains(HASH, new byte[] {5, 6}, new byte[] {7, 8}));
+      cache.add(HASH, new byte[] {5, 6}, new byte[] {7, 8});
+      Assert.assertTrue(cache.contains(HASH, new byte[] {5, 6}, new byte[] {7, 8}));
+      Assert.assertFalse(cache.contains(new byte[] {1, 2, 3, 5}, new byte[] {5, 6}, new byte[] {7, 8}));
+      Assert.assertFalse(cache.contains(HASH, new byte[] {5, 6}, new byte[] {7, 9}));
+      Assert.assertEquals(cache.getHits(), 1);
+      Assert.assertEquals(cache.getMisses(), 3);
+      Assert.assertEquals(cache.getHitRate(), 0.25, 0.0001);
+   }
+
+   public void testKeySeparatedFromSignature()
+   {
+      SignatureCache cache = new SignatureCache(10);
+      cache.add(HASH, new byte[] {5, 6}, new byte[] {7, 8});
+      Assert.assertFalse(cache.contains(HASH, new byte[] {5}, new byte[] {6, 7, 8}));
+   }
+
+   public void testOldestRemoved()
+   {
+      SignatureCache cache = new SignatureCache(3);
+      for (byte i = 0; i < 5; i++)
+         cache.add(HASH, new byte[] {i}, new byte[] {i});
+      Assert.assertEquals(cache.size(), 3);
+      Assert.assertFalse(cache.contains(HASH, new byte[] {0}, new byte[] {0}));
+      Assert.assertFalse(cache.contains(HASH, new byte[] {1}, new byte[] {1}));
+      for (byte i = 2; i < 5; i++)
+         Assert.assertTrue(cache.contains(HASH, new byte[] {i}, new byte[] {i}));
+   }
+
+   public void testAddTwice()
+   {
+      SignatureCache cache = new SignatureCache(2);
+      cache.add(HASH, new byte[] {1}, new byte[] {1});
+      cache.add(HASH, new byte[] {1}, new byte[] {1});
+      cache.add(HASH, new byte[] {2}, new byte[] {2});
+      Assert.assertEquals(cache.size(), 2);
+      Assert.assertTrue(cache.contains(HASH, new byte[] {1}, new byte[] {1}));
+   }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.bouncycastle.jcajce.provider.digest.RIPEMD160;
+
+/**
+ * The SHA-256 of the Java runtime and the RIPEMD-160 of bouncycastle, which
+ * the runtime does not have.
+ *
+ * @author Alessandro Polverini
+ */
+public class DefaultHashProvider implements HashProvider
+{
+
+   @Override
+   public MessageDigest createSha256()
+   {
+      try
+      {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException("can not find sha-256 algorithm", e);
+      }
+   }
+
+   @Override
+   public MessageDigest createRipemd160()
+   {
+      return new RIPEMD160.Digest();
+   }
+}
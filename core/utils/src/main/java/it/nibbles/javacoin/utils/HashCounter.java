@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The hashing done by a thread through Hashing, or by all threads which
+ * already terminated. The counters can be updated and read by any thread.
+ *
+ * @author Alessandro Polverini
+ */
+public class HashCounter
+{
+
+   private final String threadName;
+   private final LongAdder hashes = new LongAdder();
+   private final LongAdder bytes = new LongAdder();
+   private final LongAdder nanos = new LongAdder();
+
+   HashCounter(String threadName)
+   {
+      this.threadName = threadName;
+   }
+
+   void add(long hashedBytes, long elapsedNanos)
+   {
+      hashes.increment();
+      bytes.add(hashedBytes);
+      nanos.add(elapsedNanos);
+   }
+
+   /**
+    * Add the counts of another counter to this one.
+    */
+   void add(HashCounter other)
+   {
+      hashes.add(other.getHashes());
+      bytes.add(other.getBytes());
+      nanos.add(other.getNanos());
+   }
+
+   void reset()
+   {
+      hashes.reset();
+      bytes.reset();
+      nanos.reset();
+   }
+
+   public String getThreadName()
+   {
+      return threadName;
+   }
+
+   /**
+    * @return The number of hashes calculated.
+    */
+   public long getHashes()
+   {
+      return hashes.sum();
+   }
+
+   /**
+    * @return The number of bytes hashed.
+    */
+   public long getBytes()
+   {
+      return bytes.sum();
+   }
+
+   /**
+    * @return The time spent hashing in nanoseconds, only measured while
+    * timing is enabled in Hashing.
+    */
+   public long getNanos()
+   {
+      return nanos.sum();
+   }
+
+   /**
+    * @return The bytes hashed per second while hashing, or zero if the time
+    * was not measured.
+    */
+   public double getThroughput()
+   {
+      long elapsed = getNanos();
+      return elapsed == 0 ? 0 : getBytes() * 1e9 / elapsed;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "HashCounter[" + threadName + " hashes: " + getHashes() + " bytes: " + getBytes()
+              + " throughput: " + Math.round(getThroughput() / (1024 * 1024)) + "MB/s]";
+   }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.utils;
+
+import java.security.MessageDigest;
+
+/**
+ * Creates the digests used by Hashing, so a faster implementation can be
+ * plugged in. Digests are created once per thread and reused.
+ *
+ * @author Alessandro Polverini
+ */
+public interface HashProvider
+{
+
+   /**
+    * @return A new SHA-256 digest.
+    */
+   MessageDigest createSha256();
+
+   /**
+    * @return A new RIPEMD-160 digest.
+    */
+   MessageDigest createRipemd160();
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.utils;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The hashing used all over the protocol. The digests are created once per
+ * thread by the configured provider and reused, and the double SHA-256 is
+ * calculated without intermediate arrays. Every thread counts the hashes it
+ * calculated, to see where the time of hashing goes. The counts of threads
+ * which terminated are added up in one counter, so no counter is kept for
+ * every thread ever created.
+ *
+ * @author Alessandro Polverini
+ */
+public class Hashing
+{
+
+   public static final int SHA256_LENGTH = 32;
+   public static final int HASH160_LENGTH = 20;
+   private static volatile HashProvider provider = new DefaultHashProvider();
+   private static volatile boolean timing = false;
+   // The counters of live threads, guarded by itself
+   private static final List<ThreadCounter> counters = new ArrayList<>();
+   private static final HashCounter terminated = new HashCounter("terminated threads");
+   private static final ThreadLocal<Digests> digests = new ThreadLocal<Digests>()
+   {
+      @Override
+      protected Digests initialValue()
+      {
+         HashCounter counter = new HashCounter(Thread.currentThread().getName());
+         synchronized (counters)
+         {
+            retireTerminated();
+            counters.add(new ThreadCounter(Thread.currentThread(), counter));
+         }
+         return new Digests(provider, counter);
+      }
+   };
+
+   private Hashing()
+   {
+   }
+
+   /**
+    * Set the provider of the digests. Threads create new digests the next
+    * time they hash something.
+    */
+   public static void setProvider(HashProvider provider)
+   {
+      if (provider == null)
+         throw new IllegalArgumentException("hash provider can not be null");
+      Hashing.provider = provider;
+   }
+
+   public static HashProvider getProvider()
+   {
+      return provider;
+   }
+
+   /**
+    * Set whether to measure the time spent hashing, which costs two reads of
+    * the clock for every hash. The number of hashes and bytes are always
+    * counted.
+    */
+   public static void setTiming(boolean timing)
+   {
+      Hashing.timing = timing;
+   }
+
+   public static boolean isTiming()
+   {
+      return timing;
+   }
+
+   /**
+    * @return The counters of the live threads which used this class, and
+    * last the one of all threads which terminated.
+    */
+   public static List<HashCounter> getCounters()
+   {
+      List<HashCounter> result = new ArrayList<>();
+      synchronized (counters)
+      {
+         retireTerminated();
+         for (ThreadCounter threadCounter : counters)
+            result.add(threadCounter.counter);
+      }
+      result.add(terminated);
+      return result;
+   }
+
+   public static void resetCounters()
+   {
+      synchronized (counters)
+      {
+         for (ThreadCounter threadCounter : counters)
+            threadCounter.counter.reset();
+         terminated.reset();
+      }
+   }
+
+   /**
+    * Add the counters of terminated threads to the terminated counter and
+    * forget them. Must be called holding the lock of the counters.
+    */
+   private static void retireTerminated()
+   {
+      for (Iterator<ThreadCounter> iterator = counters.iterator(); iterator.hasNext();)
+      {
+         ThreadCounter threadCounter = iterator.next();
+         Thread thread = threadCounter.thread.get();
+         if ((thread == null) || (!thread.isAlive()))
+         {
+            terminated.add(threadCounter.counter);
+            iterator.remove();
+         }
+      }
+   }
+
+   private static Digests digests()
+   {
+      Digests result = digests.get();
+      if (result.provider != provider)
+      {
+         result = new Digests(provider, result.counter);
+         digests.set(result);
+      }
+      return result;
+   }
+
+   /**
+    * Get a SHA-256 digest of the current thread for hashing data given in
+    * parts. The digest is reset, and it must not be used after the thread
+    * calls any other method of this class which returns it again. Every
+    * digest calculated with it, or with its clones, is counted.
+    */
+   public static MessageDigest sha256Digest()
+   {
+      MessageDigest digest = digests().stream;
+      digest.reset();
+      return digest;
+   }
+
+   /**
+    * Create a new SHA-256 digest for hashing data given in parts, which
+    * belongs to the caller: it can be kept, for example to clone a hash state
+    * and resume it later. Every digest calculated with it, or with its
+    * clones, is counted to the current thread, even if calculated by others.
+    */
+   public static MessageDigest newSha256Digest()
+   {
+      Digests current = digests();
+      return new CountingDigest(current.provider.createSha256(), current.counter);
+   }
+
+   public static byte[] sha256(byte[] data)
+   {
+      return sha256(data, 0, data.length);
+   }
+
+   public static byte[] sha256(byte[] data, int offset, int length)
+   {
+      Digests d = digests();
+      long start = timing ? System.nanoTime() : 0;
+      d.sha256.update(data, offset, length);
+      byte[] result = d.sha256.digest();
+      d.count(length, start);
+      return result;
+   }
+
+   public static byte[] doubleSha256(byte[] data)
+   {
+      return doubleSha256(data, 0, data.length);
+   }
+
+   /**
+    * Calculate the SHA-256 of the SHA-256 of the given range.
+    */
+   public static byte[] doubleSha256(byte[] data, int offset, int length)
+   {
+      Digests d = digests();
+      long start = timing ? System.nanoTime() : 0;
+      d.sha256.update(data, offset, length);
+      byte[] result = d.secondRound();
+      d.count(length, start);
+      return result;
+   }
+
+   /**
+    * Calculate the SHA-256 of the SHA-256 of the remaining bytes of the
+    * buffer. The position of the buffer is moved to its limit.
+    */
+   public static byte[] doubleSha256(ByteBuffer data)
+   {
+      Digests d = digests();
+      long start = timing ? System.nanoTime() : 0;
+      int length = data.remaining();
+      d.sha256.update(data);
+      byte[] result = d.secondRound();
+      d.count(length, start);
+      return result;
+   }
+
+   /**
+    * Same as the double SHA-256, but with the bytes in reverse order, which
+    * is how hashes of blocks and transactions are used.
+    */
+   public static byte[] doubleSha256Reversed(byte[] data, int offset, int length)
+   {
+      return reverseInPlace(doubleSha256(data, offset, length));
+   }
+
+   public static byte[] doubleSha256Reversed(byte[] data)
+   {
+      return reverseInPlace(doubleSha256(data, 0, data.length));
+   }
+
+   public static byte[] doubleSha256Reversed(ByteBuffer data)
+   {
+      return reverseInPlace(doubleSha256(data));
+   }
+
+   public static byte[] ripemd160(byte[] data)
+   {
+      Digests d = digests();
+      long start = timing ? System.nanoTime() : 0;
+      d.ripemd160.update(data);
+      byte[] result = d.ripemd160.digest();
+      d.count(data.length, start);
+      return result;
+   }
+
+   /**
+    * Calculate the RIPEMD-160 of the SHA-256 of the data, used for the
+    * addresses.
+    */
+   public static byte[] hash160(byte[] data)
+   {
+      Digests d = digests();
+      long start = timing ? System.nanoTime() : 0;
+      d.sha256.update(data);
+      try
+      {
+         d.sha256.digest(d.scratch, 0, SHA256_LENGTH);
+      } catch (DigestException e)
+      {
+         throw new IllegalStateException("could not calculate sha-256", e);
+      }
+      d.ripemd160.update(d.scratch, 0, SHA256_LENGTH);
+      byte[] result = d.ripemd160.digest();
+      d.count(data.length, start);
+      return result;
+   }
+
+   /**
+    * Reverse the bytes of the array.
+    *
+    * @return The same array.
+    */
+   public static byte[] reverseInPlace(byte[] data)
+   {
+      for (int i = 0, j = data.length - 1; i < j; i++, j--)
+      {
+         byte b = data[i];
+         data[i] = data[j];
+         data[j] = b;
+      }
+      return data;
+   }
+
+   /**
+    * The counter of a live thread, the thread is only weakly referenced.
+    */
+   private static class ThreadCounter
+   {
+
+      private final WeakReference<Thread> thread;
+      private final HashCounter counter;
+
+      private ThreadCounter(Thread thread, HashCounter counter)
+      {
+         this.thread = new WeakReference<>(thread);
+         this.counter = counter;
+      }
+   }
+
+   /**
+    * A digest which counts the digests calculated to the counter of its
+    * thread. Time is measured for each update, not between them, so the
+    * work of the caller is not counted.
+    */
+   private static class CountingDigest extends MessageDigest
+           implements Cloneable
+   {
+
+      private final HashCounter counter;
+      private MessageDigest digest;
+      private long bytes = 0;
+      private long nanos = 0;
+
+      private CountingDigest(MessageDigest digest, HashCounter counter)
+      {
+         super(digest.getAlgorithm());
+         this.digest = digest;
+         this.counter = counter;
+      }
+
+      @Override
+      protected void engineUpdate(byte input)
+      {
+         long start = timing ? System.nanoTime() : 0;
+         digest.update(input);
+         updated(1, start);
+      }
+
+      @Override
+      protected void engineUpdate(byte[] input, int offset, int length)
+      {
+         long start = timing ? System.nanoTime() : 0;
+         digest.update(input, offset, length);
+         updated(length, start);
+      }
+
+      @Override
+      protected void engineUpdate(ByteBuffer input)
+      {
+         long start = timing ? System.nanoTime() : 0;
+         int length = input.remaining();
+         digest.update(input);
+         updated(length, start);
+      }
+
+      @Override
+      protected byte[] engineDigest()
+      {
+         long start = timing ? System.nanoTime() : 0;
+         byte[] result = digest.digest();
+         updated(0, start);
+         counted();
+         return result;
+      }
+
+      @Override
+      protected int engineDigest(byte[] buf, int offset, int length)
+              throws DigestException
+      {
+         long start = timing ? System.nanoTime() : 0;
+         int result = digest.digest(buf, offset, length);
+         updated(0, start);
+         counted();
+         return result;
+      }
+
+      @Override
+      protected void engineReset()
+      {
+         digest.reset();
+         bytes = 0;
+         nanos = 0;
+      }
+
+      @Override
+      protected int engineGetDigestLength()
+      {
+         return digest.getDigestLength();
+      }
+
+      @Override
+      public Object clone()
+              throws CloneNotSupportedException
+      {
+         CountingDigest result = (CountingDigest) super.clone();
+         result.digest = (MessageDigest) digest.clone();
+         return result;
+      }
+
+      private void updated(long length, long start)
+      {
+         bytes += length;
+         if (start != 0)
+            nanos += System.nanoTime() - start;
+      }
+
+      private void counted()
+      {
+         counter.add(bytes, nanos);
+         bytes = 0;
+         nanos = 0;
+      }
+   }
+
+   /**
+    * The digests of a thread.
+    */
+   private static class Digests
+   {
+
+      private final HashProvider provider;
+      private final HashCounter counter;
+      private final MessageDigest sha256;
+      private final MessageDigest stream;
+      private final MessageDigest ripemd160;
+      private final byte[] scratch = new byte[SHA256_LENGTH];
+
+      private Digests(HashProvider provider, HashCounter counter)
+      {
+         this.provider = provider;
+         this.counter = counter;
+         sha256 = provider.createSha256();
+         stream = new CountingDigest(provider.createSha256(), counter);
+         ripemd160 = provider.createRipemd160();
+      }
+
+      private byte[] secondRound()
+      {
+         try
+         {
+            sha256.digest(scratch, 0, SHA256_LENGTH);
+         } catch (DigestException e)
+         {
+            throw new IllegalStateException("could not calculate sha-256", e);
+         }
+         sha256.update(scratch, 0, SHA256_LENGTH);
+         return sha256.digest();
+      }
+
+      private void count(long bytes, long start)
+      {
+         counter.add(bytes, start == 0 ? 0 : System.nanoTime() - start);
+      }
+   }
+}
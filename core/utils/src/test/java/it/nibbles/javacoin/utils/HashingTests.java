@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class HashingTests
+{
+
+   private static byte[] sha256(byte[] data)
+      throws Exception
+   {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+   }
+
+   @AfterMethod
+   public void restoreDefaults()
+   {
+      Hashing.setProvider(new DefaultHashProvider());
+      Hashing.setTiming(false);
+   }
+
+   public void testSha256()
+   {
+      Assert.assertEquals(BtcUtil.hexOut(Hashing.sha256("abc".getBytes())).toLowerCase(),
+              "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+   }
+
+   public void testDoubleSha256Range()
+      throws Exception
+   {
+      byte[] data = "some data to hash twice".getBytes();
+      byte[] expected = sha256(sha256(Arrays.copyOfRange(data, 5, 14)));
+      Assert.assertEquals(Hashing.doubleSha256(data, 5, 9), expected);
+      byte[] reversed = Hashing.doubleSha256Reversed(data, 5, 9);
+      for (int i = 0; i < expected.length; i++)
+         Assert.assertEquals(reversed[i], expected[expected.length - 1 - i]);
+   }
+
+   public void testDoubleSha256Buffer()
+      throws Exception
+   {
+      byte[] data = "some data to hash twice".getBytes();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+      buffer.put(data);
+      buffer.flip();
+      buffer.position(3);
+      Assert.assertEquals(Hashing.doubleSha256(buffer), sha256(sha256(Arrays.copyOfRange(data, 3, data.length))));
+      Assert.assertFalse(buffer.hasRemaining());
+   }
+
+   public void testHash160()
+      throws Exception
+   {
+      byte[] data = "public key".getBytes();
+      byte[] sha = sha256(data);
+      RIPEMD160Digest ripemd = new RIPEMD160Digest();
+      ripemd.update(sha, 0, sha.length);
+      byte[] expected = new byte[Hashing.HASH160_LENGTH];
+      ripemd.doFinal(expected, 0);
+      Assert.assertEquals(Hashing.hash160(data), expected);
+   }
+
+   public void testStreamingDigestSeparate()
+      throws Exception
+   {
+      MessageDigest digest = Hashing.sha256Digest();
+      digest.update("first ".getBytes());
+      // Hashing in between does not disturb the streaming digest
+      Hashing.doubleSha256("other".getBytes());
+      digest.update("second".getBytes());
+      Assert.assertEquals(digest.digest(), sha256("first second".getBytes()));
+   }
+
+   public void testProviderChanged()
+   {
+      final AtomicInteger created = new AtomicInteger();
+      Hashing.setProvider(new DefaultHashProvider()
+      {
+         @Override
+         public MessageDigest createSha256()
+         {
+            created.incrementAndGet();
+            return super.createSha256();
+         }
+      });
+      Hashing.sha256(new byte[1]);
+      Hashing.sha256(new byte[1]);
+      // The internal and the streaming digest, created once
+      Assert.assertEquals(created.get(), 2);
+   }
+
+   public void testCounters()
+   {
+      Hashing.setTiming(true);
+      HashCounter counter = null;
+      Hashing.sha256(new byte[0]);
+      for (HashCounter c : Hashing.getCounters())
+         if (c.getThreadName().equals(Thread.currentThread().getName()))
+            counter = c;
+      Assert.assertNotNull(counter);
+      counter.reset();
+      Hashing.doubleSha256(new byte[100]);
+      Hashing.hash160(new byte[33]);
+      Assert.assertEquals(counter.getHashes(), 2);
+      Assert.assertEquals(counter.getBytes(), 133);
+      Assert.assertTrue(counter.getNanos() > 0);
+   }
+
+   public void testStreamingDigestCounted()
+      throws Exception
+   {
+      HashCounter counter = currentCounter();
+      counter.reset();
+      MessageDigest digest = Hashing.sha256Digest();
+      digest.update(new byte[10]);
+      MessageDigest midstate = (MessageDigest) digest.clone();
+      digest.update((byte) 1);
+      byte[] data = new byte[11];
+      data[10] = 1;
+      Assert.assertEquals(digest.digest(), sha256(data));
+      midstate.update(new byte[5]);
+      Assert.assertEquals(midstate.digest(), sha256(new byte[15]));
+      Assert.assertEquals(counter.getHashes(), 2);
+      Assert.assertEquals(counter.getBytes(), 26);
+   }
+
+   public void testNewDigestCounted()
+      throws Exception
+   {
+      HashCounter counter = currentCounter();
+      counter.reset();
+      MessageDigest digest = Hashing.newSha256Digest();
+      digest.update(new byte[10]);
+      // Kept across other hashes of the thread
+      Hashing.sha256Digest().digest(new byte[3]);
+      MessageDigest midstate = (MessageDigest) digest.clone();
+      midstate.update(new byte[5]);
+      Assert.assertEquals(midstate.digest(), sha256(new byte[15]));
+      Assert.assertEquals(digest.digest(), sha256(new byte[10]));
+      Assert.assertEquals(counter.getHashes(), 3);
+      Assert.assertEquals(counter.getBytes(), 28);
+   }
+
+   public void testTerminatedThreadsAddedUp()
+      throws Exception
+   {
+      Hashing.resetCounters();
+      Thread thread = new Thread(() -> Hashing.sha256(new byte[7]), "terminating");
+      thread.start();
+      thread.join();
+      List<HashCounter> counters = Hashing.getCounters();
+      HashCounter terminated = counters.get(counters.size() - 1);
+      for (HashCounter counter : counters)
+         Assert.assertNotEquals(counter.getThreadName(), "terminating");
+      Assert.assertEquals(terminated.getHashes(), 1);
+      Assert.assertEquals(terminated.getBytes(), 7);
+   }
+
+   private HashCounter currentCounter()
+   {
+      Hashing.sha256(new byte[0]);
+      for (HashCounter c : Hashing.getCounters())
+         if (c.getThreadName().equals(Thread.currentThread().getName()))
+            return c;
+      throw new IllegalStateException("no counter for the current thread");
+   }
+
+   public void testReverseInPlace()
+   {
+      byte[] data = new byte[]
+      {
+         1, 2, 3, 4, 5
+      };
+      Assert.assertSame(Hashing.reverseInPlace(data), data);
+      Assert.assertEquals(data, new byte[]
+      {
+         5, 4, 3, 2, 1
+      });
+   }
+}
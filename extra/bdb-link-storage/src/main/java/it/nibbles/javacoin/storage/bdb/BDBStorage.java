@@ -23,8 +23,11 @@ import com.sleepycat.collections.StoredSortedMap;
 import com.sleepycat.collections.TransactionRunner;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryConfig;
 import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.TransactionConfig;
@@ -39,9 +42,15 @@ import it.nibbles.javacoin.block.Difficulty;
 import it.nibbles.javacoin.block.StorageSession;
 import it.nibbles.javacoin.block.TransactionImpl;
 import it.nibbles.javacoin.storage.BaseChainLinkStorage;
+import it.nibbles.javacoin.storage.ChunkedInputStream;
+import it.nibbles.javacoin.storage.ChunkedOutputStream;
 import it.nibbles.javacoin.storage.SimplifiedStoredBlock;
 import it.nibbles.javacoin.utils.BtcUtil;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.util.ArrayList;
@@ -68,6 +77,9 @@ public class BDBStorage extends BaseChainLinkStorage {
   //private static final boolean DEFAULT_TRANSACTIONAL = true;
   private static final String DEFAULT_DB_PATH = "./test-db";
   private static final int DEFAULT_CACHE_PERCENT = 50;
+  private static final byte[] SNAPSHOT_KEY = "unspent-outputs".getBytes(StandardCharsets.US_ASCII);
+  // Size of the records the unspent output snapshot is stored in
+  private static final int SNAPSHOT_CHUNK_SIZE = 1 << 20;
   private static Logger logger = LoggerFactory.getLogger(BDBStorage.class);
   private boolean autoCreate = DEFAULT_AUTOCREATE;
   private boolean deferredWrite = DEFAULT_DEFERRED_WRITE;
@@ -82,6 +94,8 @@ public class BDBStorage extends BaseChainLinkStorage {
   private Database blockTxDatabase = null;
   private Database claimDatabase = null;
   private Database txBlockDatabase = null;
+  private Database stateDatabase = null;
+  private Database undoDatabase = null;
   private SecondaryDatabase heightDatabase = null;
   private SecondaryDatabase prevHashDatabase = null;
   private SecondaryDatabase difficultyDatabase = null;
@@ -143,6 +157,8 @@ public class BDBStorage extends BaseChainLinkStorage {
     blockHeadersDatabase = environment.openDatabase(null, "blockHeader-db", nodupsDbConfig);
     txDatabase = environment.openDatabase(null, "tx-db", nodupsDbConfig);
     blockTxDatabase = environment.openDatabase(null, "blockHeader-tx-relation", nodupsDbConfig);
+    stateDatabase = environment.openDatabase(null, "state-db", nodupsDbConfig);
+    undoDatabase = environment.openDatabase(null, "undo-db", nodupsDbConfig);
 
     DatabaseConfig dupsAllowedDbConfig = new DatabaseConfig();
     dupsAllowedDbConfig.setAllowCreate(autoCreate);
@@ -205,6 +221,10 @@ public class BDBStorage extends BaseChainLinkStorage {
    * Close the connection to BDB.
    */
   public void close() {
+    if (undoDatabase != null)
+      undoDatabase.close();
+    if (stateDatabase != null)
+      stateDatabase.close();
     if (txBlockDatabase != null)
       txBlockDatabase.close();
     if (claimDatabase != null)
@@ -225,6 +245,95 @@ public class BDBStorage extends BaseChainLinkStorage {
       environment.close();
   }
 
+  @Override
+  public void storeUndoData(byte[] hash, byte[] undoData) {
+    undoDatabase.put(null, new DatabaseEntry(hash), new DatabaseEntry(undoData));
+  }
+
+  @Override
+  public byte[] getUndoData(byte[] hash) {
+    DatabaseEntry value = new DatabaseEntry();
+    if (undoDatabase.get(null, new DatabaseEntry(hash), value, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+      return null;
+    return value.getData();
+  }
+
+  @Override
+  public boolean hasUndoData(byte[] hash) {
+    // Only the key is looked up, the undo data is not read
+    DatabaseEntry value = new DatabaseEntry();
+    value.setPartial(0, 0, true);
+    return undoDatabase.get(null, new DatabaseEntry(hash), value, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+  }
+
+  /**
+   * The snapshot is stored in chunks of a new generation, then the record
+   * under the snapshot key is changed to point to the new generation and the
+   * chunks of the previous one are deleted. A snapshot which is not complete
+   * is never read.
+   */
+  @Override
+  public void storeUnspentOutputSnapshot(SnapshotWriter writer) throws IOException {
+    final int[] previous = getSnapshotPointer();
+    final int generation = previous == null ? 0 : previous[0] + 1;
+    ChunkedOutputStream output = new ChunkedOutputStream(SNAPSHOT_CHUNK_SIZE, new ChunkedOutputStream.ChunkSink() {
+      @Override
+      public void store(int seq, byte[] chunk) {
+        stateDatabase.put(null, new DatabaseEntry(getSnapshotChunkKey(generation, seq)), new DatabaseEntry(chunk));
+      }
+    });
+    try {
+      writer.writeTo(output);
+      output.close();
+    } catch (IOException | RuntimeException e) {
+      deleteSnapshotChunks(generation, output.getChunkCount());
+      throw e;
+    }
+    byte[] pointer = ByteBuffer.allocate(8).putInt(generation).putInt(output.getChunkCount()).array();
+    stateDatabase.put(null, new DatabaseEntry(SNAPSHOT_KEY), new DatabaseEntry(pointer));
+    if (previous != null)
+      deleteSnapshotChunks(previous[0], previous[1]);
+  }
+
+  @Override
+  public InputStream getUnspentOutputSnapshot() {
+    final int[] pointer = getSnapshotPointer();
+    if (pointer == null)
+      return null;
+    return new ChunkedInputStream(new ChunkedInputStream.ChunkSource() {
+      @Override
+      public byte[] load(int seq) throws IOException {
+        if (seq >= pointer[1])
+          return null;
+        DatabaseEntry value = new DatabaseEntry();
+        if (stateDatabase.get(null, new DatabaseEntry(getSnapshotChunkKey(pointer[0], seq)), value, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+          throw new IOException("chunk " + seq + " of the unspent output snapshot is missing");
+        return value.getData();
+      }
+    });
+  }
+
+  /**
+   * @return The generation and the number of chunks of the stored snapshot,
+   * or null if there is none.
+   */
+  private int[] getSnapshotPointer() {
+    DatabaseEntry value = new DatabaseEntry();
+    if (stateDatabase.get(null, new DatabaseEntry(SNAPSHOT_KEY), value, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+      return null;
+    ByteBuffer pointer = ByteBuffer.wrap(value.getData());
+    return new int[] {pointer.getInt(), pointer.getInt()};
+  }
+
+  private byte[] getSnapshotChunkKey(int generation, int seq) {
+    return ByteBuffer.allocate(SNAPSHOT_KEY.length + 8).put(SNAPSHOT_KEY).putInt(generation).putInt(seq).array();
+  }
+
+  private void deleteSnapshotChunks(int generation, int count) {
+    for (int seq = 0; seq < count; seq++)
+      stateDatabase.delete(null, new DatabaseEntry(getSnapshotChunkKey(generation, seq)));
+  }
+
   // TODO eliminare
   public void printClaims() {
     System.out.println("Numero claims: " + claimedTxToBlockHash.size());
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.bdb;
+
+import it.nibbles.javacoin.storage.TestSuiteFactory;
+import org.testng.annotations.Factory;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the storage tests through a cache in front of the BDB storage.
+ *
+ * @author Alessandro Polverini
+ */
+@Test
+public class CachingStorageITTests extends StorageITTests {
+
+  private static final String DB_PATH = "target/test-cached-db";
+
+  @Factory
+  @Override
+  public Object[] createTestSuite() {
+    return TestSuiteFactory.getCachingTestSuite(createProvider(DB_PATH));
+  }
+}
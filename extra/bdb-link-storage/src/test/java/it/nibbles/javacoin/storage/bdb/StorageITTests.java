@@ -37,7 +37,12 @@ public class StorageITTests {
 
   private static Logger logger = LoggerFactory.getLogger(StorageITTests.class);
 
-  private StorageProvider<BDBStorage> createProvider() {
+  private static final String DB_PATH = "target/test-db";
+
+  /**
+   * @param dbPath The directory of the storages.
+   */
+  protected StorageProvider<BDBStorage> createProvider(final String dbPath) {
     return new StorageProvider<BDBStorage>() {
       @Override
       public BDBStorage newStorage() {
@@ -49,7 +54,7 @@ public class StorageITTests {
           return null;
         }
         BDBStorage storage = new BDBStorage(bitcoinFactory);
-        storage.setDbPath("target/test-db");
+        storage.setDbPath(dbPath);
         storage.setUseExplicitTransactions(false);
         storage.setDeferredWrite(true);
         storage.init();
@@ -65,7 +70,7 @@ public class StorageITTests {
 
       @Override
       public void cleanStorage() {
-        File dbFile = new File("target/test-db");
+        File dbFile = new File(dbPath);
         if (dbFile.isDirectory()) {
           File[] files = dbFile.listFiles();
           for (File file : files) {
@@ -78,6 +83,6 @@ public class StorageITTests {
 
   @Factory
   public Object[] createTestSuite() {
-    return TestSuiteFactory.getTestSuite(createProvider());
+    return TestSuiteFactory.getTestSuite(createProvider(DB_PATH));
   }
 }
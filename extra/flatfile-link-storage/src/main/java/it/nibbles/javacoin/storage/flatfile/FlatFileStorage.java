@@ -0,0 +1,1285 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.flatfile;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.Block;
+import it.nibbles.javacoin.Transaction;
+import it.nibbles.javacoin.TransactionInput;
+import it.nibbles.javacoin.block.BitcoinFactory;
+import it.nibbles.javacoin.block.BlockChainLink;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.StorageSession;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.net.BitcoinByteBufferInputStream;
+import it.nibbles.javacoin.net.BitcoinInputStream;
+import it.nibbles.javacoin.net.BitcoinOutputStream;
+import it.nibbles.javacoin.net.BlockHeader;
+import it.nibbles.javacoin.net.Tx;
+import it.nibbles.javacoin.net.TxIn;
+import it.nibbles.javacoin.storage.BaseChainLinkStorage;
+import it.nibbles.javacoin.storage.SimplifiedStoredBlock;
+import it.nibbles.javacoin.storage.StorageException;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storing block links as raw serialized blocks appended to rolling flat files,
+ * like the blk files of the reference client. Every block is written once in
+ * its network format, preceded by the message magic and its length, and is
+ * never rewritten. The files are mapped read-only in memory, so blocks and
+ * transactions are decoded straight from the mapped regions, without copying
+ * them or computing their hashes again.<br>
+ * Beside the block files an index file keeps, for every block, its hash, the
+ * data of the link, where the block is (file, offset, length), the hash and
+ * offset of each of its transactions, and the outputs its inputs claim. The
+ * index is also only appended to, after a header with the version of its
+ * format: an index of another version is refused, instead of being misread,
+ * and the block files must be removed to build it again. When the storage is initialized only the
+ * compact part of it is read in memory: the blocks by hash with the data of
+ * their links and their place, and tables from the first 8 bytes of the hashes
+ * of transactions and claimed outputs to the block and transaction. Places
+ * found in the tables are checked against the full hashes in the index file
+ * or the inputs in the block file.<br>
+ * A block is stored by appending it to the current block file and its record
+ * to the index file, both are forced to disk on commit when explicit
+ * transactions are used. Rolling back truncates both files back to where they
+ * were. If the process stops while storing a block, the partial records are
+ * removed the next time the storage is initialized.<br>
+ * The undo data of the blocks is appended to an undo file, and the snapshot
+ * of the unspent outputs, if any, is kept in its own file.
+ *
+ * @author Alessandro Polverini
+ */
+public class FlatFileStorage extends BaseChainLinkStorage
+{
+
+   private static Logger logger = LoggerFactory.getLogger(FlatFileStorage.class);
+   private static final String DEFAULT_DB_PATH = "./bitcoin-blocks";
+   private static final long DEFAULT_MAX_FILE_SIZE = 128l * 1024 * 1024;
+   private static final String INDEX_FILE_NAME = "index.dat";
+   private static final String SNAPSHOT_FILE_NAME = "utxo.dat";
+   private static final String UNDO_FILE_NAME = "undo.dat";
+   private static final String BLOCK_FILE_PATTERN = "blk%05d.dat";
+   // Every block is preceded by the message magic and its length
+   private static final int RECORD_HEADER_LENGTH = 8;
+   private static final int HASH_LENGTH = 32;
+   private static final int UNDO_HEADER_LENGTH = 4 + HASH_LENGTH;
+   // The index starts with a magic, which is never a valid record length, and
+   // the version of its format
+   private static final int INDEX_MAGIC = 0xF1A7F11E;
+   private static final int INDEX_VERSION = 1;
+   private static final int INDEX_HEADER_LENGTH = 8;
+   // A transaction in the index is its hash and its offset in the block
+   private static final int TX_RECORD_LENGTH = HASH_LENGTH + 4;
+   private String dbPath = DEFAULT_DB_PATH;
+   private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+   private BitcoinFactory bitcoinFactory = null;
+   private File directory;
+   private FileChannel indexChannel;
+   private FileChannel undoChannel;
+   // The block file being appended to
+   private FileChannel dataChannel;
+   private int dataFile;
+   // Read-only mappings of the block files, the one of the current file is
+   // mapped again when blocks past its end are read
+   private final Map<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+   //
+   // The index of the stored blocks, only changed when a session commits
+   private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+   private final Map<ByteBuffer, BlockEntry> blocks = new HashMap<>();
+   private final Map<Integer, List<BlockEntry>> blocksAtHeight = new HashMap<>();
+   private final Map<ByteBuffer, List<BlockEntry>> blocksWithPrevHash = new HashMap<>();
+   // The blocks in the order they were published, by sequence number
+   private final List<BlockEntry> entries = new ArrayList<>();
+   private final LocationTable txLocations = new LocationTable();
+   // Transactions with an input claiming an output, by the hash and index of the output
+   private final LocationTable claimLocations = new LocationTable();
+   private BlockEntry topEntry;
+   private BlockEntry lastEntry;
+   // The undo data is stored before its block, until the block is published
+   // its offset and length in the undo file are kept here
+   private final Map<ByteBuffer, long[]> pendingUndo = new HashMap<>();
+
+   public FlatFileStorage(BitcoinFactory bitcoinFactory)
+   {
+      this.bitcoinFactory = bitcoinFactory;
+      readConfiguration();
+   }
+
+   private void readConfiguration()
+   {
+      try
+      {
+         final String prefix = "storage.flatfile.";
+         ResourceBundle config = ResourceBundle.getBundle("flatfile-link-storage");
+         setAutoCreate(Boolean.valueOf(config.getString(prefix + "autocreate")));
+         setUseExplicitTransactions(Boolean.valueOf(config.getString(prefix + "transactional")));
+         dbPath = config.getString(prefix + "db_path");
+         setMaxFileSize(Long.parseLong(config.getString(prefix + "maxFileSize")));
+      } catch (MissingResourceException e)
+      {
+         logger.warn("could not read configuration for flat file link storage, using some default values", e);
+      }
+   }
+
+   /**
+    * To use the storage, it must be first initialized by calling this method.
+    */
+   public void init()
+   {
+      directory = new File(dbPath);
+      if (getAutoCreate())
+         directory.mkdirs();
+      if (!directory.isDirectory())
+         throw new StorageException("Block files directory does not exist: " + directory);
+      try
+      {
+         indexChannel = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw").getChannel();
+         checkIndexHeader();
+         long indexLength = readIndex();
+         if (indexLength < indexChannel.size())
+         {
+            logger.warn("Removing incomplete record at the end of the index, from: " + indexLength);
+            indexChannel.truncate(indexLength);
+         }
+         recoverBlockFiles();
+         undoChannel = new RandomAccessFile(new File(directory, UNDO_FILE_NAME), "rw").getChannel();
+         long undoLength = readUndoFile();
+         if (undoLength < undoChannel.size())
+         {
+            logger.warn("Removing incomplete record at the end of the undo file, from: " + undoLength);
+            undoChannel.truncate(undoLength);
+         }
+      } catch (IOException e)
+      {
+         close();
+         throw new StorageException("Can't open block files: " + e.getMessage(), e);
+      } catch (StorageException e)
+      {
+         close();
+         throw e;
+      }
+      logger.debug(this.getClass() + " Initialized, blocks: " + blocks.size() + " current file: " + dataFile);
+   }
+
+   /**
+    * Close the files, the storage can not be used afterwards.
+    */
+   public void close()
+   {
+      try
+      {
+         if (indexChannel != null)
+            indexChannel.close();
+         if (dataChannel != null)
+            dataChannel.close();
+         if (undoChannel != null)
+            undoChannel.close();
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't close block files: " + e.getMessage(), e);
+      } finally
+      {
+         indexChannel = null;
+         dataChannel = null;
+         undoChannel = null;
+         mappings.clear();
+      }
+   }
+
+   /**
+    * Write the header of a new index, or check that the index has the format
+    * of this version of the storage. An index shorter than the header has no
+    * complete record, so it is written again as a new one.
+    */
+   private void checkIndexHeader()
+      throws IOException
+   {
+      File file = new File(directory, INDEX_FILE_NAME);
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+      if (indexChannel.size() < INDEX_HEADER_LENGTH)
+      {
+         indexChannel.truncate(0);
+         header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).flip();
+         append(indexChannel, header);
+         indexChannel.force(true);
+         return;
+      }
+      while (header.hasRemaining())
+         if (indexChannel.read(header, header.position()) < 0)
+            throw new EOFException("end of index file while reading its header");
+      if (header.getInt(0) != INDEX_MAGIC)
+         throw new StorageException("Index file " + file + " has no format version, it was written by an older version of the storage."
+            + " Remove the block files in " + directory + " to store the chain again");
+      if (header.getInt(4) != INDEX_VERSION)
+         throw new StorageException("Index file " + file + " has format version " + header.getInt(4) + " instead of " + INDEX_VERSION
+            + ". Remove the block files in " + directory + " to store the chain again");
+   }
+
+   /**
+    * Read all the complete records of the index in memory.
+    *
+    * @return The length of the complete records.
+    */
+   private long readIndex()
+      throws IOException
+   {
+      long length = INDEX_HEADER_LENGTH;
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(new File(directory, INDEX_FILE_NAME)), 65536)))
+      {
+         input.readFully(new byte[INDEX_HEADER_LENGTH]);
+         while (true)
+         {
+            byte[] record;
+            try
+            {
+               record = new byte[input.readInt()];
+               input.readFully(record);
+            } catch (EOFException e)
+            {
+               return length;
+            }
+            publish(readIndexRecord(ByteBuffer.wrap(record), length));
+            length += 4 + record.length;
+         }
+      }
+   }
+
+   /**
+    * Note where the undo data of each block is in the undo file.
+    *
+    * @return The length of the complete records.
+    */
+   private long readUndoFile()
+      throws IOException
+   {
+      long length = 0;
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(new File(directory, UNDO_FILE_NAME)), 65536)))
+      {
+         byte[] hash = new byte[HASH_LENGTH];
+         while (true)
+         {
+            int dataLength;
+            try
+            {
+               dataLength = input.readInt();
+               input.readFully(hash);
+               input.skipBytes(dataLength);
+            } catch (EOFException e)
+            {
+               return length;
+            }
+            if (length + UNDO_HEADER_LENGTH + dataLength > undoChannel.size())
+               return length;
+            BlockEntry entry = blocks.get(ByteBuffer.wrap(hash));
+            if (entry != null)
+            {
+               entry.undoOffset = length + UNDO_HEADER_LENGTH;
+               entry.undoLength = dataLength;
+            }
+            length += UNDO_HEADER_LENGTH + dataLength;
+         }
+      }
+   }
+
+   /**
+    * Remove the blocks written after the last one in the index, which were
+    * not committed, and open the last file to append to.
+    */
+   private void recoverBlockFiles()
+      throws IOException
+   {
+      dataFile = lastEntry == null ? 0 : lastEntry.file;
+      long dataLength = lastEntry == null ? 0 : lastEntry.offset + lastEntry.length;
+      for (int file = dataFile + 1; getBlockFile(file).exists(); file++)
+      {
+         logger.warn("Removing block file not in the index: " + getBlockFile(file));
+         getBlockFile(file).delete();
+      }
+      dataChannel = new RandomAccessFile(getBlockFile(dataFile), "rw").getChannel();
+      if (dataChannel.size() > dataLength)
+      {
+         logger.warn("Removing blocks not in the index at the end of " + getBlockFile(dataFile) + ", from: " + dataLength);
+         dataChannel.truncate(dataLength);
+      }
+   }
+
+   private File getBlockFile(int file)
+   {
+      return new File(directory, String.format(BLOCK_FILE_PATTERN, file));
+   }
+
+   @Override
+   public StorageSession newStorageSession(boolean forWriting)
+   {
+      if (!forWriting)
+         return new StorageSessionImpl();
+      try
+      {
+         return new StorageSessionImpl(dataFile, dataChannel.size(), indexChannel.size());
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't read size of block files: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   protected Connection newConnection()
+   {
+      return null;
+   }
+
+   @Override
+   protected void storeBlockLink(final StorageSession storageSession, final BlockChainLink link) throws IOException
+   {
+      StorageSessionImpl session = (StorageSessionImpl) storageSession;
+      Block block = link.getBlock();
+      BlockEntry entry = new BlockEntry(block.getHash(), block.getPreviousBlockHash(), link.getHeight(),
+              link.getTotalDifficulty().getDifficulty());
+      // Serialize the block in network format, noting where transactions are
+      ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+      BitcoinOutputStream output = new BitcoinOutputStream(byteOutput);
+      new BlockHeader(block.getVersion(), block.getPreviousBlockHash(), block.getMerkleRoot(),
+              block.getCreationTime(), block.getCompressedTarget(), block.getNonce()).writeTo(output);
+      List<Transaction> txs = block.getTransactions();
+      output.writeUIntVar(txs.size());
+      int[] txOffsets = new int[txs.size()];
+      entry.txCount = txs.size();
+      entry.txKeys = new long[txs.size()];
+      int claimCount = 0;
+      for (Transaction tx : txs)
+         if (!tx.isCoinbase())
+            claimCount += tx.getInputs().size();
+      entry.claimKeys = new long[claimCount];
+      entry.claimTxs = new int[claimCount];
+      int claim = 0;
+      for (int i = 0; i < txs.size(); i++)
+      {
+         Transaction tx = txs.get(i);
+         txOffsets[i] = byteOutput.size();
+         ((TransactionImpl) tx).createTx().writeTo(output);
+         entry.txKeys[i] = getKey(tx.getHash());
+         // The coinbase claims nothing, and it is never checked for double spending
+         if (!tx.isCoinbase())
+            for (TransactionInput in : tx.getInputs())
+            {
+               entry.claimKeys[claim] = getClaimKey(in.getClaimedTransactionHash(), in.getClaimedOutputIndex());
+               entry.claimTxs[claim++] = i;
+            }
+      }
+      byte[] blockBytes = byteOutput.toByteArray();
+      // Start a new file if the block does not fit in the current one
+      if ((dataChannel.size() > 0) && (dataChannel.size() + RECORD_HEADER_LENGTH + blockBytes.length > maxFileSize))
+      {
+         // Blocks of the session already in the file are forced now, commit
+         // only forces the file being appended to
+         dataChannel.force(true);
+         dataChannel.close();
+         dataFile++;
+         dataChannel = new RandomAccessFile(getBlockFile(dataFile), "rw").getChannel();
+         dataChannel.truncate(0);
+      }
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + blockBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+      record.putInt((int) bitcoinFactory.getMessageMagic()).putInt(blockBytes.length).put(blockBytes).flip();
+      entry.file = dataFile;
+      entry.offset = (int) dataChannel.size() + RECORD_HEADER_LENGTH;
+      entry.length = blockBytes.length;
+      long indexPosition = indexChannel.size();
+      byte[] indexRecord = writeIndexRecord(entry, txs, txOffsets);
+      entry.txTable += indexPosition;
+      append(dataChannel, record);
+      append(indexChannel, ByteBuffer.wrap(indexRecord));
+      session.entries.add(entry);
+   }
+
+   private void append(FileChannel channel, ByteBuffer data)
+      throws IOException
+   {
+      channel.position(channel.size());
+      while (data.hasRemaining())
+         channel.write(data);
+   }
+
+   /**
+    * The record of a block in the index is its length followed by the hash,
+    * previous hash, height, chain work, place of the block, hash and offset of
+    * its transactions, and the key of every output claimed by its inputs with
+    * the index of the claiming transaction. The place of the transactions in
+    * the record is noted in the entry.
+    */
+   private byte[] writeIndexRecord(BlockEntry entry, List<Transaction> txs, int[] txOffsets)
+      throws IOException
+   {
+      ByteArrayOutputStream byteOutput = new ByteArrayOutputStream(128 + txs.size() * TX_RECORD_LENGTH + entry.claimKeys.length * 12);
+      DataOutputStream output = new DataOutputStream(byteOutput);
+      output.writeInt(0);
+      output.write(entry.hash);
+      output.write(entry.prevBlockHash);
+      output.writeInt(entry.height);
+      byte[] work = entry.chainWork.unscaledValue().toByteArray();
+      output.writeInt(entry.chainWork.scale());
+      output.writeShort(work.length);
+      output.write(work);
+      output.writeInt(entry.file);
+      output.writeInt(entry.offset);
+      output.writeInt(entry.length);
+      output.writeInt(txs.size());
+      entry.txTable = output.size();
+      for (int i = 0; i < txs.size(); i++)
+      {
+         output.write(txs.get(i).getHash());
+         output.writeInt(txOffsets[i]);
+      }
+      output.writeInt(entry.claimKeys.length);
+      for (int i = 0; i < entry.claimKeys.length; i++)
+      {
+         output.writeLong(entry.claimKeys[i]);
+         output.writeInt(entry.claimTxs[i]);
+      }
+      output.close();
+      byte[] record = byteOutput.toByteArray();
+      ByteBuffer.wrap(record).putInt(record.length - 4);
+      return record;
+   }
+
+   /**
+    * @param position The position of the record in the index file.
+    */
+   private BlockEntry readIndexRecord(ByteBuffer record, long position)
+   {
+      byte[] hash = readHash(record);
+      byte[] prevBlockHash = readHash(record);
+      int height = record.getInt();
+      int scale = record.getInt();
+      byte[] work = new byte[record.getShort()];
+      record.get(work);
+      BlockEntry entry = new BlockEntry(hash, prevBlockHash, height, new BigDecimal(new BigInteger(work), scale));
+      entry.file = record.getInt();
+      entry.offset = record.getInt();
+      entry.length = record.getInt();
+      entry.txCount = record.getInt();
+      entry.txTable = position + 4 + record.position();
+      entry.txKeys = new long[entry.txCount];
+      for (int i = 0; i < entry.txCount; i++)
+      {
+         entry.txKeys[i] = record.getLong(record.position());
+         record.position(record.position() + TX_RECORD_LENGTH);
+      }
+      int claimCount = record.getInt();
+      entry.claimKeys = new long[claimCount];
+      entry.claimTxs = new int[claimCount];
+      for (int i = 0; i < claimCount; i++)
+      {
+         entry.claimKeys[i] = record.getLong();
+         entry.claimTxs[i] = record.getInt();
+      }
+      return entry;
+   }
+
+   private byte[] readHash(ByteBuffer record)
+   {
+      byte[] hash = new byte[HASH_LENGTH];
+      record.get(hash);
+      return hash;
+   }
+
+   /**
+    * @return The first 8 bytes of the hash, the key of the hash in the tables.
+    */
+   private static long getKey(byte[] hash)
+   {
+      return ByteBuffer.wrap(hash).getLong();
+   }
+
+   private static long getClaimKey(byte[] hash, int index)
+   {
+      return getKey(hash) ^ (index * 0x9E3779B97F4A7C15l);
+   }
+
+   /**
+    * Make a block written by a committed session visible to readers.
+    */
+   private void publish(BlockEntry entry)
+   {
+      indexLock.writeLock().lock();
+      try
+      {
+         entry.seq = entries.size();
+         entries.add(entry);
+         blocks.put(ByteBuffer.wrap(entry.hash), entry);
+         long[] undo = pendingUndo.remove(ByteBuffer.wrap(entry.hash));
+         if (undo != null)
+         {
+            entry.undoOffset = undo[0];
+            entry.undoLength = (int) undo[1];
+         }
+         addTo(blocksAtHeight, entry.height, entry);
+         addTo(blocksWithPrevHash, ByteBuffer.wrap(entry.prevBlockHash), entry);
+         for (int i = 0; i < entry.txCount; i++)
+            txLocations.add(entry.txKeys[i], entry.seq, i);
+         for (int i = 0; i < entry.claimKeys.length; i++)
+            claimLocations.add(entry.claimKeys[i], entry.seq, entry.claimTxs[i]);
+         // The keys are only needed to fill the tables
+         entry.txKeys = null;
+         entry.claimKeys = null;
+         entry.claimTxs = null;
+         if ((topEntry == null) || (entry.chainWork.compareTo(topEntry.chainWork) > 0))
+            topEntry = entry;
+         lastEntry = entry;
+      } finally
+      {
+         indexLock.writeLock().unlock();
+      }
+   }
+
+   private static <K, V> void addTo(Map<K, List<V>> map, K key, V value)
+   {
+      List<V> values = map.get(key);
+      if (values == null)
+      {
+         values = new ArrayList<>(1);
+         map.put(key, values);
+      }
+      values.add(value);
+   }
+
+   private BlockEntry getEntry(byte[] hash)
+   {
+      indexLock.readLock().lock();
+      try
+      {
+         return blocks.get(ByteBuffer.wrap(hash));
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   private <K> List<SimplifiedStoredBlock> getBlocks(Map<K, List<BlockEntry>> map, K key)
+   {
+      List<SimplifiedStoredBlock> result = new LinkedList<>();
+      indexLock.readLock().lock();
+      try
+      {
+         List<BlockEntry> entries = map.get(key);
+         if (entries != null)
+            for (BlockEntry entry : entries)
+               result.add(entry.toSimplifiedStoredBlock());
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+      return result;
+   }
+
+   private <K> int getNumBlocks(Map<K, List<BlockEntry>> map, K key)
+   {
+      indexLock.readLock().lock();
+      try
+      {
+         List<BlockEntry> entries = map.get(key);
+         return entries == null ? 0 : entries.size();
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Get the blocks and indexes of the transactions at the places of the key
+    * in a table. Must be called holding the read lock of the index.
+    */
+   private List<TxPlace> getPlaces(LocationTable table, long key)
+   {
+      long[] places = table.get(key);
+      List<TxPlace> result = new ArrayList<>(places.length);
+      for (long place : places)
+         result.add(new TxPlace(entries.get((int) (place >>> 32)), (int) place));
+      return result;
+   }
+
+   /**
+    * Read the hash and the offset in the block of some transactions of a block
+    * from the index file.
+    */
+   private ByteBuffer readTxRecords(BlockEntry entry, int first, int count)
+      throws IOException
+   {
+      ByteBuffer records = ByteBuffer.allocate(count * TX_RECORD_LENGTH);
+      long position = entry.txTable + (long) first * TX_RECORD_LENGTH;
+      while (records.hasRemaining())
+         if (indexChannel.read(records, position + records.position()) < 0)
+            throw new EOFException("Index file ends before the transactions of " + BtcUtil.hexOut(entry.hash));
+      records.flip();
+      return records;
+   }
+
+   /**
+    * Find the stored transactions with the given hash, checking the places of
+    * its key against the hashes in the index file.
+    */
+   private List<TxPlace> findTransactions(byte[] hash)
+      throws IOException
+   {
+      List<TxPlace> places;
+      indexLock.readLock().lock();
+      try
+      {
+         places = getPlaces(txLocations, getKey(hash));
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+      List<TxPlace> result = new ArrayList<>(places.size());
+      byte[] storedHash = new byte[HASH_LENGTH];
+      for (TxPlace tx : places)
+      {
+         ByteBuffer record = readTxRecords(tx.block, tx.index, 1);
+         record.get(storedHash);
+         if (Arrays.equals(storedHash, hash))
+         {
+            tx.offset = record.getInt();
+            result.add(tx);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Get a part of a block file, mapping it again if the part was written
+    * after it was mapped.
+    */
+   private ByteBuffer getRegion(int file, int offset, int length)
+      throws IOException
+   {
+      MappedByteBuffer mapping = mappings.get(file);
+      if ((mapping == null) || (mapping.capacity() < offset + length))
+         mapping = map(file, offset + length);
+      ByteBuffer region = mapping.duplicate();
+      region.limit(offset + length).position(offset);
+      return region.slice();
+   }
+
+   private synchronized MappedByteBuffer map(int file, int minLength)
+      throws IOException
+   {
+      MappedByteBuffer mapping = mappings.get(file);
+      if ((mapping != null) && (mapping.capacity() >= minLength))
+         return mapping;
+      try (RandomAccessFile blockFile = new RandomAccessFile(getBlockFile(file), "r"))
+      {
+         mapping = blockFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, blockFile.length());
+      }
+      mappings.put(file, mapping);
+      return mapping;
+   }
+
+   private TransactionImpl readTransaction(BitcoinInputStream input, byte[] hash)
+      throws IOException, BitcoinException
+   {
+      return TransactionImpl.createTransaction(bitcoinFactory.getScriptFactory(), Tx.read(input), hash);
+   }
+
+   @Override
+   protected boolean blockExists(final StorageSession storageSession, byte[] hash)
+   {
+      return getEntry(hash) != null;
+   }
+
+   @Override
+   protected List<SimplifiedStoredBlock> getBlocksAtHeight(final StorageSession storageSession, long height)
+   {
+      return getBlocks(blocksAtHeight, (int) height);
+   }
+
+   /**
+    * The places of the claimed output are checked by reading the inputs of the
+    * claiming transactions.
+    */
+   @Override
+   protected List<SimplifiedStoredBlock> getBlocksReferringTx(final StorageSession storageSession, final TransactionInput in)
+      throws IOException
+   {
+      List<TxPlace> places;
+      indexLock.readLock().lock();
+      try
+      {
+         places = getPlaces(claimLocations, getClaimKey(in.getClaimedTransactionHash(), in.getClaimedOutputIndex()));
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+      List<SimplifiedStoredBlock> result = new LinkedList<>();
+      BlockEntry last = null;
+      for (TxPlace tx : places)
+      {
+         if (tx.block == last)
+            continue;
+         int offset = readTxRecords(tx.block, tx.index, 1).getInt(HASH_LENGTH);
+         Tx claimer = Tx.read(new BitcoinByteBufferInputStream(
+                 getRegion(tx.block.file, tx.block.offset + offset, tx.block.length - offset)));
+         for (TxIn txIn : claimer.getInputs())
+            if ((txIn.getReferencedTxOutIndex() == in.getClaimedOutputIndex())
+                    && Arrays.equals(txIn.getReferencedTxHash(), in.getClaimedTransactionHash()))
+            {
+               result.add(tx.block.toSimplifiedStoredBlock());
+               last = tx.block;
+               break;
+            }
+      }
+      return result;
+   }
+
+   @Override
+   protected List<SimplifiedStoredBlock> getBlocksWithTx(final StorageSession storageSession, final byte[] hash)
+      throws IOException
+   {
+      List<SimplifiedStoredBlock> result = new LinkedList<>();
+      BlockEntry last = null;
+      for (TxPlace tx : findTransactions(hash))
+         if (tx.block != last)
+         {
+            result.add(tx.block.toSimplifiedStoredBlock());
+            last = tx.block;
+         }
+      return result;
+   }
+
+   @Override
+   protected List<SimplifiedStoredBlock> getBlocksWithPrevHash(final StorageSession storageSession, final byte[] hash)
+   {
+      return getBlocks(blocksWithPrevHash, ByteBuffer.wrap(hash));
+   }
+
+   @Override
+   protected int getNumBlocksAtHeight(final StorageSession storageSession, long height)
+   {
+      return getNumBlocks(blocksAtHeight, (int) height);
+   }
+
+   @Override
+   protected int getNumBlocksWithPrevHash(final StorageSession storageSession, byte[] hash)
+   {
+      return getNumBlocks(blocksWithPrevHash, ByteBuffer.wrap(hash));
+   }
+
+   @Override
+   protected TransactionImpl getTransaction(final StorageSession storageSession, byte[] hash) throws IOException, BitcoinException
+   {
+      List<TxPlace> places = findTransactions(hash);
+      if (places.isEmpty())
+         return null;
+      TxPlace tx = places.get(0);
+      ByteBuffer region = getRegion(tx.block.file, tx.block.offset + tx.offset, tx.block.length - tx.offset);
+      return readTransaction(new BitcoinByteBufferInputStream(region), hash);
+   }
+
+   @Override
+   protected List<TransactionImpl> getBlockTransactions(final StorageSession storageSession, byte[] hash) throws IOException, BitcoinException
+   {
+      BlockEntry entry = getEntry(hash);
+      if (entry == null)
+         return null;
+      ByteBuffer records = readTxRecords(entry, 0, entry.txCount);
+      BitcoinInputStream input = new BitcoinByteBufferInputStream(getRegion(entry.file, entry.offset, entry.length));
+      input.skip(BlockHeader.LENGTH);
+      input.readUIntVar();
+      List<TransactionImpl> result = new ArrayList<>(entry.txCount);
+      for (int i = 0; i < entry.txCount; i++)
+      {
+         byte[] txHash = readHash(records);
+         records.getInt();
+         result.add(readTransaction(input, txHash));
+      }
+      return result;
+   }
+
+   @Override
+   protected BlockChainLink createBlockWithTxs(final StorageSession storageSession, final byte[] hash, List<TransactionImpl> transactions)
+      throws IOException, BitcoinException
+   {
+      BlockEntry entry = getEntry(hash);
+      if (entry == null)
+         return null;
+      BlockHeader header = BlockHeader.read(new BitcoinByteBufferInputStream(
+              getRegion(entry.file, entry.offset, BlockHeader.LENGTH)));
+      return bitcoinFactory.newBlockChainLink(
+              new BlockImpl(transactions, header.getTimestamp(), header.getNonce(), header.getDifficulty(),
+              header.getPrevBlock(), header.getRootHash(), entry.hash, header.getVersion()),
+              entry.chainWork, entry.height);
+   }
+
+   @Override
+   protected SimplifiedStoredBlock getSimplifiedStoredBlock(final StorageSession storageSession, final byte[] hash)
+   {
+      BlockEntry entry = getEntry(hash);
+      return entry == null ? null : entry.toSimplifiedStoredBlock();
+   }
+
+   @Override
+   protected SimplifiedStoredBlock getHigherWorkHash(final StorageSession storageSession)
+   {
+      indexLock.readLock().lock();
+      try
+      {
+         return topEntry == null ? null : topEntry.toSimplifiedStoredBlock();
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * The undo data is appended to the undo file, preceded by its length and
+    * the hash of the block. If the block is not stored yet, the undo data is
+    * attached to it when it is.
+    */
+   @Override
+   public synchronized void storeUndoData(byte[] hash, byte[] undoData)
+   {
+      try
+      {
+         long offset = undoChannel.size();
+         ByteBuffer record = ByteBuffer.allocate(UNDO_HEADER_LENGTH + undoData.length);
+         record.putInt(undoData.length).put(hash).put(undoData).flip();
+         append(undoChannel, record);
+         if (useExplicitTransactions())
+            undoChannel.force(false);
+         indexLock.writeLock().lock();
+         try
+         {
+            BlockEntry entry = blocks.get(ByteBuffer.wrap(hash));
+            if (entry == null)
+            {
+               pendingUndo.put(ByteBuffer.wrap(hash.clone()), new long[] {offset + UNDO_HEADER_LENGTH, undoData.length});
+            } else
+            {
+               entry.undoOffset = offset + UNDO_HEADER_LENGTH;
+               entry.undoLength = undoData.length;
+            }
+         } finally
+         {
+            indexLock.writeLock().unlock();
+         }
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't write undo data: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public byte[] getUndoData(byte[] hash)
+   {
+      long offset;
+      int length;
+      indexLock.readLock().lock();
+      try
+      {
+         BlockEntry entry = blocks.get(ByteBuffer.wrap(hash));
+         if ((entry != null) && (entry.undoOffset >= 0))
+         {
+            offset = entry.undoOffset;
+            length = entry.undoLength;
+         } else
+         {
+            long[] undo = pendingUndo.get(ByteBuffer.wrap(hash));
+            if (undo == null)
+               return null;
+            offset = undo[0];
+            length = (int) undo[1];
+         }
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+      ByteBuffer undoData = ByteBuffer.allocate(length);
+      try
+      {
+         while (undoData.hasRemaining())
+            if (undoChannel.read(undoData, offset + undoData.position()) < 0)
+               throw new EOFException("Undo file ends before the undo data of " + BtcUtil.hexOut(hash));
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't read undo data: " + e.getMessage(), e);
+      }
+      return undoData.array();
+   }
+
+   @Override
+   public boolean hasUndoData(byte[] hash)
+   {
+      indexLock.readLock().lock();
+      try
+      {
+         BlockEntry entry = blocks.get(ByteBuffer.wrap(hash));
+         return ((entry != null) && (entry.undoOffset >= 0)) || (pendingUndo.containsKey(ByteBuffer.wrap(hash)));
+      } finally
+      {
+         indexLock.readLock().unlock();
+      }
+   }
+
+   /**
+    * The snapshot is kept in its own file, written to a temporary file first
+    * and then renamed, so a crash never leaves a partial snapshot behind.
+    */
+   @Override
+   public void storeUnspentOutputSnapshot(SnapshotWriter writer)
+      throws IOException
+   {
+      File file = new File(directory, SNAPSHOT_FILE_NAME);
+      File tempFile = new File(directory, SNAPSHOT_FILE_NAME + ".tmp");
+      try (FileOutputStream output = new FileOutputStream(tempFile))
+      {
+         BufferedOutputStream bufferedOutput = new BufferedOutputStream(output, 65536);
+         writer.writeTo(bufferedOutput);
+         bufferedOutput.flush();
+         output.getChannel().force(true);
+      }
+      try
+      {
+         Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't replace unspent output snapshot: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public InputStream getUnspentOutputSnapshot()
+   {
+      File file = new File(directory, SNAPSHOT_FILE_NAME);
+      if (!file.isFile())
+         return null;
+      try
+      {
+         return new BufferedInputStream(new FileInputStream(file), 65536);
+      } catch (IOException e)
+      {
+         throw new StorageException("Can't read unspent output snapshot: " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Remove all the stored blocks. Used for unit testing
+    */
+   public void removeDatabase()
+   {
+      close();
+      File[] files = new File(dbPath).listFiles();
+      if (files != null)
+         for (File file : files)
+            if (file.getName().equals(INDEX_FILE_NAME) || file.getName().equals(SNAPSHOT_FILE_NAME) || file.getName().equals(UNDO_FILE_NAME) || file.getName().matches("blk\\d+\\.dat"))
+               file.delete();
+      indexLock.writeLock().lock();
+      try
+      {
+         blocks.clear();
+         blocksAtHeight.clear();
+         blocksWithPrevHash.clear();
+         entries.clear();
+         txLocations.clear();
+         claimLocations.clear();
+         pendingUndo.clear();
+         topEntry = null;
+         lastEntry = null;
+      } finally
+      {
+         indexLock.writeLock().unlock();
+      }
+      logger.info("Block files removed");
+   }
+
+   public String getDbPath()
+   {
+      return dbPath;
+   }
+
+   public void setDbPath(String dbPath)
+   {
+      this.dbPath = dbPath;
+   }
+
+   public long getMaxFileSize()
+   {
+      return maxFileSize;
+   }
+
+   /**
+    * @param maxFileSize The size after which blocks are appended to a new
+    * file, at most 2GB as a file is mapped in a single buffer.
+    */
+   public void setMaxFileSize(long maxFileSize)
+   {
+      if ((maxFileSize <= 0) || (maxFileSize > Integer.MAX_VALUE))
+         throw new IllegalArgumentException("Invalid maximum size of block files: " + maxFileSize);
+      this.maxFileSize = maxFileSize;
+   }
+
+   /**
+    * A stored block as kept in the index.
+    */
+   private static class BlockEntry
+   {
+
+      private final byte[] hash;
+      private final byte[] prevBlockHash;
+      private final int height;
+      private final BigDecimal chainWork;
+      private int file;
+      private int offset;
+      private int length;
+      private int txCount;
+      // The position of the transactions in the index file
+      private long txTable;
+      private long undoOffset = -1;
+      private int undoLength;
+      // The sequence number, once the block is published
+      private int seq = -1;
+      // The keys of the transactions and of the claimed outputs, with the
+      // index of the claiming transaction, until the block is published
+      private long[] txKeys;
+      private long[] claimKeys;
+      private int[] claimTxs;
+
+      private BlockEntry(byte[] hash, byte[] prevBlockHash, int height, BigDecimal chainWork)
+      {
+         this.hash = hash;
+         this.prevBlockHash = prevBlockHash;
+         this.height = height;
+         this.chainWork = chainWork;
+      }
+
+      private SimplifiedStoredBlock toSimplifiedStoredBlock()
+      {
+         return new SimplifiedStoredBlock(hash, prevBlockHash, height);
+      }
+   }
+
+   /**
+    * A transaction of a block, by its index in the block. The offset in the
+    * block is known once it was read from the index file.
+    */
+   private static class TxPlace
+   {
+
+      private final BlockEntry block;
+      private final int index;
+      private int offset = -1;
+
+      private TxPlace(BlockEntry block, int index)
+      {
+         this.block = block;
+         this.index = index;
+      }
+   }
+
+   /**
+    * A multimap from keys of 8 bytes to places of transactions, the sequence
+    * number of the block in the high 32 bits and the index of the transaction
+    * in the low ones. It is kept in two arrays with open addressing, so an
+    * entry takes 16 bytes instead of the objects of a map. Keys are only part
+    * of the hashes, the places found must be checked against the files.
+    */
+   private static class LocationTable
+   {
+
+      private static final int INITIAL_CAPACITY = 1024;
+      private static final long EMPTY = -1;
+      private long[] keys;
+      private long[] places;
+      private int size;
+
+      private LocationTable()
+      {
+         clear();
+      }
+
+      private void clear()
+      {
+         keys = new long[INITIAL_CAPACITY];
+         places = new long[INITIAL_CAPACITY];
+         Arrays.fill(places, EMPTY);
+         size = 0;
+      }
+
+      private void add(long key, int block, int index)
+      {
+         // Keep it at most three quarters full
+         if (4 * (size + 1) > 3 * keys.length)
+         {
+            long[] oldKeys = keys;
+            long[] oldPlaces = places;
+            keys = new long[oldKeys.length * 2];
+            places = new long[oldKeys.length * 2];
+            Arrays.fill(places, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++)
+               if (oldPlaces[i] != EMPTY)
+                  insert(oldKeys[i], oldPlaces[i]);
+         }
+         insert(key, ((long) block << 32) | index);
+         size++;
+      }
+
+      private void insert(long key, long place)
+      {
+         int mask = keys.length - 1;
+         int i = slot(key) & mask;
+         while (places[i] != EMPTY)
+            i = (i + 1) & mask;
+         keys[i] = key;
+         places[i] = place;
+      }
+
+      /**
+       * @return The places of the key, in no particular order.
+       */
+      private long[] get(long key)
+      {
+         int mask = keys.length - 1;
+         int count = 0;
+         for (int i = slot(key) & mask; places[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+               count++;
+         long[] result = new long[count];
+         count = 0;
+         for (int i = slot(key) & mask; places[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+               result[count++] = places[i];
+         return result;
+      }
+
+      private static int slot(long key)
+      {
+         return (int) (key ^ (key >>> 32));
+      }
+   }
+
+   public class StorageSessionImpl implements StorageSession
+   {
+
+      private final boolean forWriting;
+      private int startFile;
+      private long startDataLength;
+      private long startIndexLength;
+      private final List<BlockEntry> entries = new LinkedList<>();
+
+      private StorageSessionImpl()
+      {
+         forWriting = false;
+      }
+
+      private StorageSessionImpl(int startFile, long startDataLength, long startIndexLength)
+      {
+         forWriting = true;
+         this.startFile = startFile;
+         this.startDataLength = startDataLength;
+         this.startIndexLength = startIndexLength;
+      }
+
+      @Override
+      public void close()
+      {
+      }
+
+      @Override
+      public void commit()
+      {
+         if (!forWriting)
+            return;
+         try
+         {
+            if (useExplicitTransactions())
+            {
+               dataChannel.force(false);
+               indexChannel.force(false);
+            }
+         } catch (IOException ex)
+         {
+            throw new StorageException("IOException during commit: " + ex.getMessage(), ex);
+         }
+         for (BlockEntry entry : entries)
+            publish(entry);
+         entries.clear();
+      }
+
+      @Override
+      public void rollback()
+      {
+         if (!forWriting)
+            return;
+         try
+         {
+            if (dataFile != startFile)
+            {
+               dataChannel.close();
+               for (int file = startFile + 1; file <= dataFile; file++)
+               {
+                  getBlockFile(file).delete();
+                  mappings.remove(file);
+               }
+               dataFile = startFile;
+               dataChannel = new RandomAccessFile(getBlockFile(dataFile), "rw").getChannel();
+            }
+            dataChannel.truncate(startDataLength);
+            indexChannel.truncate(startIndexLength);
+            mappings.remove(dataFile);
+         } catch (IOException ex)
+         {
+            throw new StorageException("IOException during rollback: " + ex.getMessage(), ex);
+         }
+         entries.clear();
+      }
+   }
+}
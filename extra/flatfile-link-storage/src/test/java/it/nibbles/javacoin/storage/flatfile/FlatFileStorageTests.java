@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.flatfile;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.block.BitcoinFactory;
+import it.nibbles.javacoin.block.BlockChainLink;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.ProdnetBitcoinFactory;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.block.TransactionInputImpl;
+import it.nibbles.javacoin.block.TransactionOutputImpl;
+import it.nibbles.javacoin.script.ScriptFactoryImpl;
+import it.nibbles.javacoin.storage.SimplifiedStoredBlock;
+import it.nibbles.javacoin.storage.StorageException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.LinkedList;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the block and index files of the flat file storage.
+ *
+ * @author Alessandro Polverini
+ */
+@Test
+public class FlatFileStorageTests
+{
+
+   private static final String DB_PATH = "target/test-flatfile";
+   private ScriptFactoryImpl scriptFactory = new ScriptFactoryImpl(null);
+   private BitcoinFactory bitcoinFactory;
+   private FlatFileStorage storage;
+
+   @BeforeMethod
+   public void setupStorage()
+      throws BitcoinException
+   {
+      bitcoinFactory = new ProdnetBitcoinFactory(scriptFactory);
+      storage = newStorage();
+      storage.removeDatabase();
+      storage = newStorage();
+   }
+
+   @AfterMethod
+   public void closeStorage()
+   {
+      storage.close();
+   }
+
+   private FlatFileStorage newStorage()
+   {
+      FlatFileStorage newStorage = new FlatFileStorage(bitcoinFactory);
+      newStorage.setDbPath(DB_PATH);
+      newStorage.setMaxFileSize(1024);
+      newStorage.init();
+      return newStorage;
+   }
+
+   private FlatFileStorage reopenStorage()
+   {
+      storage.close();
+      return storage = newStorage();
+   }
+
+   private byte[] hash(int value)
+   {
+      byte[] hash = new byte[32];
+      hash[0] = (byte) value;
+      return hash;
+   }
+
+   private BlockChainLink addLink(int hash, int prevHash, int height)
+      throws BitcoinException
+   {
+      List<TransactionImpl> transactions = new LinkedList<>();
+      for (int t = 0; t < 5; t++)
+      {
+         List<TransactionInputImpl> inputs = new LinkedList<>();
+         inputs.add(new TransactionInputImpl(hash(t + 1), hash, scriptFactory.createFragment(new byte[] { 1, 2, 3 }), 1));
+         List<TransactionOutputImpl> outputs = new LinkedList<>();
+         outputs.add(new TransactionOutputImpl(100 * t, scriptFactory.createFragment(new byte[] { 4, 5 })));
+         transactions.add(new TransactionImpl(inputs, outputs, hash));
+      }
+      BlockImpl block = new BlockImpl(transactions, 11223000l, 11223344l, 0x1b0404cbl, hash(prevHash), hash(0), hash(hash));
+      BlockChainLink link = new BlockChainLink(block, bitcoinFactory.newDifficulty(new BigDecimal(height + 1)), height);
+      storage.addLink(link);
+      return link;
+   }
+
+   private void assertSameBlock(BlockChainLink readLink, BlockChainLink link)
+   {
+      Assert.assertNotNull(readLink);
+      Assert.assertEquals(readLink.getHeight(), link.getHeight());
+      Assert.assertEquals(readLink.getBlock().getHash(), link.getBlock().getHash());
+      Assert.assertEquals(readLink.getBlock().getTransactions().size(), link.getBlock().getTransactions().size());
+      for (int i = 0; i < link.getBlock().getTransactions().size(); i++)
+         Assert.assertEquals(readLink.getBlock().getTransactions().get(i).getHash(),
+                 link.getBlock().getTransactions().get(i).getHash());
+   }
+
+   private void append(String name, byte[] data)
+      throws IOException
+   {
+      try (FileOutputStream output = new FileOutputStream(new File(DB_PATH, name), true))
+      {
+         output.write(data);
+      }
+   }
+
+   public void testBlocksInMoreFiles()
+      throws BitcoinException
+   {
+      List<BlockChainLink> links = new LinkedList<>();
+      links.add(addLink(1, 0, 0));
+      for (int i = 2; i < 12; i++)
+         links.add(addLink(i, i - 1, i - 1));
+      Assert.assertTrue(new File(DB_PATH, "blk00001.dat").exists());
+      reopenStorage();
+      for (BlockChainLink link : links)
+         assertSameBlock(storage.getLink(link.getBlock().getHash()), link);
+      Assert.assertEquals(storage.getLastLink().getBlock().getHash(), hash(11));
+      Assert.assertEquals(storage.getLinkAtHeight(5).getBlock().getHash(), hash(6));
+   }
+
+   public void testTransactionsAndClaimsFound()
+      throws Exception
+   {
+      List<BlockChainLink> links = new LinkedList<>();
+      for (int i = 1; i < 12; i++)
+         links.add(addLink(i, i - 1, i - 1));
+      reopenStorage();
+      List<SimplifiedStoredBlock> blocks = storage.getBlocksWithTx(null, links.get(6).getBlock().getTransactions().get(3).getHash());
+      Assert.assertEquals(blocks.size(), 1);
+      Assert.assertEquals(blocks.get(0).hash, hash(7));
+      Assert.assertTrue(storage.getBlocksWithTx(null, hash(12)).isEmpty());
+      Assert.assertEquals(storage.getBlockTransactions(null, hash(7)).size(), 5);
+      // Every block claims outputs of the same transactions, the index of the
+      // output is the hash of the block
+      TransactionInputImpl in = new TransactionInputImpl(hash(2), 9, scriptFactory.createFragment(new byte[] { 1 }), 1);
+      blocks = storage.getBlocksReferringTx(null, in);
+      Assert.assertEquals(blocks.size(), 1);
+      Assert.assertEquals(blocks.get(0).hash, hash(9));
+      in = new TransactionInputImpl(hash(2), 12, scriptFactory.createFragment(new byte[] { 1 }), 1);
+      Assert.assertTrue(storage.getBlocksReferringTx(null, in).isEmpty());
+   }
+
+   public void testIncompleteRecordsRemoved()
+      throws BitcoinException, IOException
+   {
+      BlockChainLink genesis = addLink(1, 0, 0);
+      BlockChainLink link = addLink(2, 1, 1);
+      storage.close();
+      // Simulate a block being stored when the process stopped
+      long dataLength = new File(DB_PATH, "blk00000.dat").length();
+      long indexLength = new File(DB_PATH, "index.dat").length();
+      append("blk00000.dat", new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+      append("index.dat", new byte[] { 0, 0, 1, 0, 1, 2 });
+      storage = newStorage();
+      Assert.assertEquals(new File(DB_PATH, "blk00000.dat").length(), dataLength);
+      Assert.assertEquals(new File(DB_PATH, "index.dat").length(), indexLength);
+      assertSameBlock(storage.getLink(genesis.getBlock().getHash()), genesis);
+      assertSameBlock(storage.getLastLink(), link);
+      // New blocks are appended after the last complete one
+      BlockChainLink next = addLink(3, 2, 2);
+      reopenStorage();
+      assertSameBlock(storage.getLink(hash(3)), next);
+   }
+
+   public void testBlockFileNotInIndexRemoved()
+      throws BitcoinException, IOException
+   {
+      addLink(1, 0, 0);
+      storage.close();
+      append("blk00001.dat", new byte[] { 1, 2, 3 });
+      storage = newStorage();
+      Assert.assertFalse(new File(DB_PATH, "blk00001.dat").exists());
+      Assert.assertTrue(storage.blockExists(hash(1)));
+   }
+
+   private void assertIndexRefused(byte[] index)
+      throws IOException
+   {
+      storage.close();
+      new File(DB_PATH, "index.dat").delete();
+      append("index.dat", index);
+      try
+      {
+         newStorage();
+         Assert.fail("index of another format was read");
+      } catch (StorageException e)
+      {
+         // Expected
+      }
+      // The index is left untouched
+      Assert.assertEquals(new File(DB_PATH, "index.dat").length(), index.length);
+      storage.removeDatabase();
+      storage = newStorage();
+   }
+
+   public void testIndexWithoutVersionRefused()
+      throws IOException
+   {
+      // Starting with the length of a record, like before the header
+      byte[] index = new byte[48];
+      index[3] = 44;
+      assertIndexRefused(index);
+   }
+
+   public void testIndexOfOtherVersionRefused()
+      throws IOException
+   {
+      assertIndexRefused(new byte[] { (byte) 0xF1, (byte) 0xA7, (byte) 0xF1, 0x1E, 0, 0, 0, 2 });
+   }
+
+   public void testIncompleteIndexHeaderWrittenAgain()
+      throws BitcoinException, IOException
+   {
+      storage.close();
+      new File(DB_PATH, "index.dat").delete();
+      append("index.dat", new byte[] { (byte) 0xF1, (byte) 0xA7 });
+      storage = newStorage();
+      Assert.assertEquals(new File(DB_PATH, "index.dat").length(), 8);
+      BlockChainLink link = addLink(1, 0, 0);
+      reopenStorage();
+      assertSameBlock(storage.getLink(hash(1)), link);
+   }
+
+   private byte[] readSnapshot()
+      throws IOException
+   {
+      try (InputStream input = storage.getUnspentOutputSnapshot())
+      {
+         ByteArrayOutputStream output = new ByteArrayOutputStream();
+         for (int b = input.read(); b >= 0; b = input.read())
+            output.write(b);
+         return output.toByteArray();
+      }
+   }
+
+   public void testUnspentOutputSnapshot()
+      throws IOException
+   {
+      Assert.assertNull(storage.getUnspentOutputSnapshot());
+      storage.storeUnspentOutputSnapshot(output -> output.write(new byte[] { 1, 2, 3 }));
+      storage.storeUnspentOutputSnapshot(output -> output.write(new byte[] { 4, 5 }));
+      reopenStorage();
+      Assert.assertEquals(readSnapshot(), new byte[] { 4, 5 });
+      // A snapshot failing while written does not replace the last one
+      try
+      {
+         storage.storeUnspentOutputSnapshot(output ->
+         {
+            output.write(new byte[] { 6 });
+            throw new IOException("failed");
+         });
+         Assert.fail("failed snapshot was stored");
+      } catch (IOException e)
+      {
+         // Expected
+      }
+      Assert.assertEquals(readSnapshot(), new byte[] { 4, 5 });
+   }
+
+   public void testUndoData()
+      throws BitcoinException, IOException
+   {
+      addLink(1, 0, 0);
+      addLink(2, 1, 1);
+      Assert.assertNull(storage.getUndoData(hash(1)));
+      storage.storeUndoData(hash(1), new byte[] { 1, 2, 3 });
+      storage.storeUndoData(hash(2), new byte[] { 4, 5 });
+      Assert.assertEquals(storage.getUndoData(hash(2)), new byte[] { 4, 5 });
+      storage.close();
+      // A record written only in part is removed
+      append("undo.dat", new byte[] { 0, 0, 0, 9, 1 });
+      storage = newStorage();
+      Assert.assertEquals(storage.getUndoData(hash(1)), new byte[] { 1, 2, 3 });
+      Assert.assertEquals(storage.getUndoData(hash(2)), new byte[] { 4, 5 });
+      storage.storeUndoData(hash(1), new byte[] { 6 });
+      Assert.assertEquals(reopenStorage().getUndoData(hash(1)), new byte[] { 6 });
+   }
+
+   public void testUndoDataBeforeBlock()
+      throws BitcoinException, IOException
+   {
+      addLink(1, 0, 0);
+      Assert.assertFalse(storage.hasUndoData(hash(2)));
+      storage.storeUndoData(hash(2), new byte[] { 4, 5 });
+      Assert.assertTrue(storage.hasUndoData(hash(2)));
+      addLink(2, 1, 1);
+      Assert.assertEquals(storage.getUndoData(hash(2)), new byte[] { 4, 5 });
+      Assert.assertTrue(reopenStorage().hasUndoData(hash(2)));
+      Assert.assertFalse(storage.hasUndoData(hash(1)));
+   }
+}
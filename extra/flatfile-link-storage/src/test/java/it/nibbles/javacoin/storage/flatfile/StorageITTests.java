@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.flatfile;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.block.ProdnetBitcoinFactory;
+import it.nibbles.javacoin.script.ScriptFactoryImpl;
+import it.nibbles.javacoin.storage.StorageProvider;
+import it.nibbles.javacoin.storage.TestSuiteFactory;
+import org.testng.annotations.Factory;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class StorageITTests
+{
+
+   private static final String DB_PATH = "target/test-blocks";
+
+   /**
+    * @param dbPath The directory of the storages.
+    */
+   protected StorageProvider<FlatFileStorage> createProvider(final String dbPath)
+   {
+      return new StorageProvider<FlatFileStorage>()
+      {
+         private FlatFileStorage newStorageInstance()
+         {
+            try
+            {
+               FlatFileStorage storage = new FlatFileStorage(new ProdnetBitcoinFactory(new ScriptFactoryImpl(null)));
+               storage.setDbPath(dbPath);
+               // Small files, so blocks are also read from more of them
+               storage.setMaxFileSize(4096);
+               storage.init();
+               return storage;
+            } catch (BitcoinException ex)
+            {
+               throw new RuntimeException("Can't instance flat file storage: " + ex.getMessage(), ex);
+            }
+         }
+
+         @Override
+         public FlatFileStorage newStorage()
+         {
+            return newStorageInstance();
+         }
+
+         @Override
+         public void closeStorage(FlatFileStorage storage)
+         {
+            if (storage != null)
+               storage.close();
+         }
+
+         @Override
+         public void cleanStorage()
+         {
+            FlatFileStorage storage = newStorageInstance();
+            storage.removeDatabase();
+         }
+      };
+   }
+
+   @Factory
+   public Object[] createTestSuite()
+   {
+      return TestSuiteFactory.getTestSuite(createProvider(DB_PATH));
+   }
+}
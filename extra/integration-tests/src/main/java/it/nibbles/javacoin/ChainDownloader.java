@@ -32,6 +32,7 @@ import it.nibbles.javacoin.net.BitcoinInputStream;
 import it.nibbles.javacoin.net.BlockMessage;
 import it.nibbles.javacoin.net.MessageMarshaller;
 import it.nibbles.javacoin.net.p2p.AddressSource;
+import it.nibbles.javacoin.net.p2p.NioNode;
 import it.nibbles.javacoin.net.p2p.Node;
 import it.nibbles.javacoin.net.p2p.source.DNSFallbackNodesSource;
 import it.nibbles.javacoin.net.p2p.source.IrcAddressSource;
@@ -61,6 +62,10 @@ public class ChainDownloader {
   private static boolean isProdnet = false;
   private static boolean isTestnet2 = false;
   private static boolean isTestnet3 = false;
+  private static boolean headersFirst = false;
+  private static boolean nio = false;
+  private static boolean assumeValid = false;
+  private static String assumeValidHash = null;
   private static AddressSource customAddressSource = null;
   private static String jdbcUrl;
   private static String jdbcUser;
@@ -80,6 +85,10 @@ public class ChainDownloader {
     parser.accepts("testnet3", "Connecto to Bitcoin testnet3 network (default)");
     parser.accepts("prodnet", "Connecto to Bitcoin production network");
     parser.accepts("connect", "Disable peer discovery and connect just to the give peer (host:port)").withRequiredArg();
+    parser.accepts("headersfirst", "Download and verify all block headers first, then the blocks from all peers");
+    parser.accepts("nio", "Use the non-blocking network node");
+    OptionSpec<String> optAssumeValid = parser.accepts("assumevalid",
+            "Don't verify the scripts of the given block (default: highest known hash) and its ancestors").withOptionalArg();
     optJdbcUrl = parser.accepts("url").withRequiredArg();
     optJdbcUser = parser.accepts("dbuser").withRequiredArg().defaultsTo("javacoin");
     optJdbcPassword = parser.accepts("dbpass").withRequiredArg().defaultsTo("pw");
@@ -91,6 +100,10 @@ public class ChainDownloader {
     isProdnet = options.has("prodnet");
     isTestnet2 = options.has("testnet2");
     isTestnet3 = options.has("testnet3");
+    headersFirst = options.has("headersfirst");
+    nio = options.has("nio");
+    assumeValid = options.has("assumevalid");
+    assumeValidHash = optAssumeValid.value(options);
     if (!isProdnet && !isTestnet2 && !isTestnet3)
       isTestnet3 = true;
 
@@ -175,7 +188,9 @@ public class ChainDownloader {
      */
     nodeStorage.init();
     logger.debug("node storage initialized");
-    BlockChain chain = new BlockChainImpl(bitcoinFactory, bdbStorage, false);
+    BlockChainImpl chain = new BlockChainImpl(bitcoinFactory, bdbStorage, false);
+    if (assumeValid)
+      chain.setAssumeValidHash(assumeValidHash != null ? BtcUtil.hexIn(assumeValidHash) : chain.getHighestKnownHash());
     logger.debug("blockchain initialized");
     // Introduce a small check here that we can read back the genesis block correctly
     Block genesisBlock = bdbStorage.getGenesisLink().getBlock();
@@ -183,7 +198,10 @@ public class ChainDownloader {
     genesisBlock.validate();
     logger.info((isTestnet2 ? "[TESTNET2]" : isTestnet3 ? "[TESTNET3]" : "[PRODNET]") + " initialized chain, last link height: " + chain.getHeight());
     // Initialize p2p node
-    node = new Node(bitcoinFactory.getMessageMagic());
+    if (nio)
+      node = new NioNode(bitcoinFactory.getMessageMagic());
+    else
+      node = new Node(bitcoinFactory.getMessageMagic());
     node.setPort((isTestnet2 || isTestnet3) ? 18733 : 7333);
     node.setMinConnections(10);
     node.setMaxConnections(100);
@@ -212,6 +230,7 @@ public class ChainDownloader {
     //node.addHandler(new DownloaderHandler());
     logger.debug(defaultAddressSource.toString());
     nodeHandler = new StdNodeHandler(node, bitcoinFactory, chain, bdbStorage, nodeStorage);
+    nodeHandler.setHeadersFirst(headersFirst);
     logger.info("Node handler: " + nodeHandler);
   }
 
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.keyfactory.ecc;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Verifies per second on a single thread of the generic ECDSA implementation
+ * against the one specific to secp256k1, on the same random signature:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ * java -cp target/test-classes:target/classes:$(cat target/classpath.txt) it.nibbles.javacoin.keyfactory.ecc.SignatureVerificationBenchmark
+ * </pre>
+ *
+ * @author Alessandro Polverini
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class SignatureVerificationBenchmark
+{
+
+   private ECDomainParameters domain;
+   private ECPoint q;
+   private byte[] hash;
+   private BigInteger r;
+   private BigInteger s;
+
+   @Setup
+   public void setup()
+   {
+      X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+      domain = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
+      SecureRandom random = new SecureRandom();
+      BigInteger privateKey = new BigInteger(255, random).add(BigInteger.ONE);
+      q = params.getG().multiply(privateKey);
+      hash = new byte[32];
+      random.nextBytes(hash);
+      ECDSASigner signer = new ECDSASigner();
+      signer.init(true, new ECPrivateKeyParameters(privateKey, domain));
+      BigInteger[] signature = signer.generateSignature(hash);
+      r = signature[0];
+      s = signature[1];
+      if (!(generic() && secp256k1()))
+         throw new IllegalStateException("benchmark signature does not verify");
+   }
+
+   @Benchmark
+   public boolean generic()
+   {
+      ECDSASigner signer = new ECDSASigner();
+      signer.init(false, new ECPublicKeyParameters(q, domain));
+      return signer.verifySignature(hash, r, s);
+   }
+
+   @Benchmark
+   public boolean secp256k1()
+   {
+      return Secp256k1.verify(hash, r, s, q.getX().toBigInteger(), q.getY().toBigInteger());
+   }
+
+   public static void main(String[] args)
+           throws RunnerException
+   {
+      Options options = new OptionsBuilder()
+              .include(SignatureVerificationBenchmark.class.getSimpleName())
+              .build();
+      new Runner(options).run();
+   }
+}
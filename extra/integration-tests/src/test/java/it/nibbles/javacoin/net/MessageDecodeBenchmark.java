@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.net;
+
+import it.nibbles.javacoin.Constants;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decoding speed of a block message of about 370KB, read from a stream as the
+ * thread per connection node does, from a whole frame in an array, and from a
+ * slice of a direct buffer as the non-blocking node does. The checksum is
+ * verified by all of them. The "bytes" counter is the throughput in bytes
+ * per microsecond, that is MB/s:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ * java -cp target/test-classes:target/classes:$(cat target/classpath.txt) it.nibbles.javacoin.net.MessageDecodeBenchmark
+ * </pre>
+ *
+ * @author Alessandro Polverini
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class MessageDecodeBenchmark
+{
+
+   private static final int TRANSACTIONS = 1000;
+
+   private MessageMarshaller marshaller = new MessageMarshaller(Constants.PRODNET_MESSAGE_MAGIC);
+   private byte[] frame;
+   private ByteBuffer directFrame;
+
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Bytes
+   {
+
+      public long bytes;
+
+      @Setup(Level.Iteration)
+      public void clean()
+      {
+         bytes = 0;
+      }
+   }
+
+   @Setup
+   public void setUp()
+           throws IOException
+   {
+      Random random = new Random(1);
+      List<Tx> transactions = new ArrayList<>();
+      for (int i = 0; i < TRANSACTIONS; i++)
+      {
+         List<TxIn> inputs = new ArrayList<>();
+         for (int j = 0; j < 2; j++)
+            inputs.add(new TxIn(randomBytes(random, 32), j, randomBytes(random, 107), 0xffffffffl));
+         List<TxOut> outputs = new ArrayList<>();
+         for (int j = 0; j < 2; j++)
+            outputs.add(new TxOut(random.nextInt(100000000), randomBytes(random, 25)));
+         transactions.add(new Tx(1, inputs, outputs, 0));
+      }
+      BlockHeader header = new BlockHeader(1, randomBytes(random, 32), randomBytes(random, 32),
+         System.currentTimeMillis() / 1000, 0x1b0404cb, random.nextInt());
+      frame = marshaller.serialize(new BlockMessage(Constants.PRODNET_MESSAGE_MAGIC, header, transactions));
+      directFrame = ByteBuffer.allocateDirect(frame.length);
+      directFrame.put(frame).flip();
+   }
+
+   private static byte[] randomBytes(Random random, int length)
+   {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      return bytes;
+   }
+
+   @Benchmark
+   public Message stream(Bytes counter)
+           throws IOException
+   {
+      counter.bytes += frame.length;
+      return marshaller.read(new BitcoinInputStream(new ByteArrayInputStream(frame)));
+   }
+
+   @Benchmark
+   public Message array(Bytes counter)
+           throws IOException
+   {
+      counter.bytes += frame.length;
+      return marshaller.read(frame, 0, frame.length);
+   }
+
+   @Benchmark
+   public Message directBuffer(Bytes counter)
+           throws IOException
+   {
+      counter.bytes += frame.length;
+      return marshaller.read(directFrame);
+   }
+
+   public static void main(String[] args)
+           throws RunnerException
+   {
+      Options options = new OptionsBuilder()
+              .include(MessageDecodeBenchmark.class.getSimpleName())
+              .build();
+      new Runner(options).run();
+   }
+}
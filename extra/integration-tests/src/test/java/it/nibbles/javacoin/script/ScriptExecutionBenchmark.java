@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.script;
+
+import it.nibbles.javacoin.ScriptException;
+import it.nibbles.javacoin.ScriptFragment;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.util.Arrays;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures running a script through the interpreter, which is where the
+ * stack is used. The script is the one of testnet transaction
+ * a17b21f52859ed326d1395d8a56d5c7389f5fc83c17b9140a71d7cb86fdf0f5f without
+ * the final OP_CHECKMULTISIG, so it does not depend on signature
+ * verification. The stack and stackBaseline benchmarks replay only the stack
+ * traffic of the same script, once on the ScriptStack and once on the
+ * java.util.Stack of boxed items the interpreter used before, so the two
+ * stacks are compared in the same run. Run it with the gc profiler to see the
+ * allocation per script:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ * java -cp target/test-classes:target/classes:$(cat target/classpath.txt) it.nibbles.javacoin.script.ScriptExecutionBenchmark
+ * </pre>
+ *
+ * @author Alessandro Polverini
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptExecutionBenchmark
+{
+
+   private static final String SIG_SCRIPT = "00"
+           + "49" + "3046022100D73F633F114E0E0B324D87D38D34F22966A03B072803AFA99C9408201F6D6DC6022100900E85BE52AD2278D24E7EDBB7269367F5F2D6F1BD338D017CA4600087766144" + "01"
+           + "47" + "3044022071FEF8AC0AA6318817DBD242BF51FB5B75BE312AA31ECB44A0AFE7B49FCF840302204C223179A383BB6FCB80312AC66E473345065F7D9136F9662D867ACF96C12A42" + "01"
+           + "52"
+           + "41" + "048C006FF0D2CFDE86455086AF5A25B88C2B81858AAB67F6A3132C885A2CB9EC38E700576FD46C7D72D7D22555EEE3A14E2876C643CD70B1B0A77FBF46E62331AC"
+           + "41" + "04B68EF7D8F24D45E1771101E269C0AACF8D3ED7EBE12B65521712BBA768EF53E1E84FFF3AFBEE360ACEA0D1F461C013557F71D426AC17A293C5EEBF06E468253E";
+   private static final String PUB_SCRIPT = "00"
+           + "537A7652A2"
+           + "69537A829178A9" + "14" + "80677C5392220DB736455533477D0BC2FBA65502" + "879B"
+           + "69537A829178A9" + "14" + "02D7AA2E76D9066FB2B3C41FF8839A5C81BDCA19" + "879B"
+           + "69537A829178A9" + "14" + "10039CE4FDB5D4EE56148FE3935B9BFBBE4ECC89" + "879B"
+           + "6953";
+   private static final int KEYS = 3;
+   private ScriptFactoryImpl scriptFactory;
+   private ScriptFragment sigScript;
+   private ScriptFragment pubScript;
+   private byte[][] items;
+   private byte[] hash;
+
+   @Setup
+   public void setup()
+           throws ScriptException
+   {
+      // No signatures are checked, so no keys are needed
+      scriptFactory = new ScriptFactoryImpl(null, null);
+      sigScript = scriptFactory.createFragment(BtcUtil.hexIn(SIG_SCRIPT));
+      pubScript = scriptFactory.createFragment(BtcUtil.hexIn(PUB_SCRIPT));
+      byte[] sig = BtcUtil.hexIn(SIG_SCRIPT);
+      items = new byte[][]
+      {
+         new byte[0], Arrays.copyOfRange(sig, 2, 75), Arrays.copyOfRange(sig, 76, 147),
+         Arrays.copyOfRange(sig, 149, 214), Arrays.copyOfRange(sig, 215, 280), Arrays.copyOfRange(sig, 215, 280)
+      };
+      hash = Arrays.copyOfRange(BtcUtil.hexIn(PUB_SCRIPT), 14, 34);
+      if (!execute())
+         throw new IllegalStateException("benchmark script does not run to true");
+   }
+
+   @Benchmark
+   public boolean execute()
+           throws ScriptException
+   {
+      return scriptFactory.createScript(sigScript, pubScript).execute(null);
+   }
+
+   /**
+    * Replay the stack operations of one key check of the script on the stack
+    * of the interpreter: OP_3 OP_ROLL OP_SIZE OP_NOT OP_OVER OP_HASH160
+    * &lt;hash&gt; OP_EQUAL OP_BOOLOR OP_VERIFY. Hashing is left out, the hash
+    * is a constant.
+    */
+   @Benchmark
+   public boolean stack()
+   {
+      ScriptStack stack = ScriptStack.acquire();
+      try
+      {
+         stack.pushData(items[0]);
+         stack.pushNumber(2);
+         for (int i = 1; i < items.length; i++)
+            stack.pushData(items[i]);
+         boolean result = true;
+         for (int i = 0; i < KEYS; i++)
+         {
+            stack.pushNumber(3);
+            stack.roll((int) stack.popNumber());
+            stack.pushNumber(stack.getData(0).length);
+            stack.pushBoolean(stack.popNumber() == 0);
+            stack.pushCopy(1);
+            stack.popData();
+            stack.pushData(hash);
+            stack.pushData(hash);
+            stack.pushBoolean(Arrays.equals(stack.popData(), stack.popData()));
+            long b = stack.popNumber();
+            long a = stack.popNumber();
+            stack.pushBoolean(a != 0 || b != 0);
+            result &= stack.popNumber() != 0;
+         }
+         return result;
+      } finally
+      {
+         ScriptStack.release(stack);
+      }
+   }
+
+   /**
+    * The same stack operations as {@link #stack()}, done the way the
+    * interpreter did them on a java.util.Stack of boxed numbers and byte
+    * arrays.
+    */
+   @Benchmark
+   public boolean stackBaseline()
+   {
+      Stack<Object> stack = new Stack<>();
+      stack.push(items[0]);
+      stack.push(2);
+      for (int i = 1; i < items.length; i++)
+         stack.push(items[i]);
+      boolean result = true;
+      for (int i = 0; i < KEYS; i++)
+      {
+         stack.push(3);
+         int depth = popInt(stack);
+         stack.push(stack.remove((stack.size() - 1) - depth));
+         stack.push(((byte[]) stack.peek()).length);
+         stack.push(popInt(stack) == 0 ? 1 : 0);
+         Object top = stack.pop();
+         Object under = stack.peek();
+         stack.push(top);
+         stack.push(under);
+         stack.pop();
+         stack.push(hash);
+         stack.push(hash);
+         Object x1 = stack.pop();
+         Object x2 = stack.pop();
+         stack.push(Arrays.equals((byte[]) x1, (byte[]) x2) ? 1 : 0);
+         int b = popInt(stack);
+         int a = popInt(stack);
+         stack.push(a != 0 || b != 0 ? 1 : 0);
+         Object condition = stack.peek();
+         result &= condition instanceof Number && ((Number) stack.pop()).intValue() != 0;
+      }
+      return result;
+   }
+
+   private static int popInt(Stack<Object> stack)
+   {
+      Object obj = stack.peek();
+      if (obj instanceof Number)
+         return ((Number) stack.pop()).intValue();
+      throw new IllegalStateException("not a number: " + obj);
+   }
+
+   public static void main(String[] args)
+           throws RunnerException
+   {
+      Options options = new OptionsBuilder()
+              .include(ScriptExecutionBenchmark.class.getSimpleName())
+              .addProfiler("gc")
+              .build();
+      new Runner(options).run();
+   }
+}
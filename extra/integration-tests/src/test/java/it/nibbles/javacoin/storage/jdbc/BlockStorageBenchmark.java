@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.jdbc;
+
+import it.nibbles.javacoin.BitcoinException;
+import it.nibbles.javacoin.block.BlockChainLink;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.ProdnetBitcoinFactory;
+import it.nibbles.javacoin.block.StorageSession;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.block.TransactionInputImpl;
+import it.nibbles.javacoin.block.TransactionOutputImpl;
+import it.nibbles.javacoin.script.ScriptFactoryImpl;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the rows inserted per second storing blocks with the JDBC storage,
+ * and the time to load a full block back. The transactions of the block are
+ * also loaded alone, once with the set based queries of the storage and once
+ * with two queries for every transaction, as the storage did before.
+ * The database is an in memory H2 in MySql compatibility mode, which stands
+ * in for MySql without a server, so it shows the statements executed by the
+ * storage rather than the network round trips to a real server. Every block
+ * has 2000 new transactions with two inputs and two outputs, which is 12001
+ * rows. Loading is measured on the first block stored. Run it with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ * java -cp target/test-classes:target/classes:$(cat target/classpath.txt) it.nibbles.javacoin.storage.jdbc.BlockStorageBenchmark
+ * </pre>
+ *
+ * @author Alessandro Polverini
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockStorageBenchmark
+{
+
+   private static final int TRANSACTIONS = 2000;
+   private static final int ROWS = 1 + TRANSACTIONS * (1 + 2 + 2 + 1);
+   private static final String SQL_BLOCK_TRANSACTIONS =
+           "SELECT BlockTx.txId,Transaction.hash,Transaction.lockTime,Transaction.version FROM BlockTx "
+           + "LEFT JOIN Transaction ON (BlockTx.txId = Transaction.id) LEFT JOIN Block ON (BlockTx.blockId = Block.id) "
+           + "WHERE Block.hash=? ORDER BY BlockTx.pos";
+   private static final String[] SCHEMA = new String[]
+   {
+      "CREATE TABLE Counter (name VARCHAR(32) PRIMARY KEY, value BIGINT NOT NULL)",
+      "CREATE TABLE Block (id BIGINT PRIMARY KEY, height INT NOT NULL, nTime BIGINT NOT NULL, nBits BIGINT NOT NULL,"
+      + " nonce BIGINT NOT NULL, version BIGINT NOT NULL, hash BINARY(32) NOT NULL, prevBlockHash BINARY(32) NOT NULL,"
+      + " hashMerkleRoot BINARY(32) NOT NULL, chainWork BIGINT NOT NULL)",
+      "CREATE UNIQUE INDEX BlockHash ON Block(hash)",
+      "CREATE TABLE Transaction (id BIGINT PRIMARY KEY, hash BINARY(32) NOT NULL, lockTime BIGINT NOT NULL,"
+      + " version INT NOT NULL DEFAULT 1)",
+      "CREATE UNIQUE INDEX TransactionHash ON Transaction(hash)",
+      "CREATE TABLE TxInput (id BIGINT PRIMARY KEY, txId BIGINT NOT NULL, referredTxHash BINARY(32),"
+      + " referredTxIndex BIGINT NOT NULL, sequence BIGINT NOT NULL, scriptBytes VARBINARY(10000) NOT NULL)",
+      "CREATE INDEX TxInputTx ON TxInput(txId)",
+      "CREATE TABLE TxOutput (id BIGINT PRIMARY KEY, txId BIGINT NOT NULL, value BIGINT NOT NULL,"
+      + " scriptBytes VARBINARY(10000) NOT NULL)",
+      "CREATE INDEX TxOutputTx ON TxOutput(txId)",
+      "CREATE TABLE BlockTx (blockId BIGINT NOT NULL, txId BIGINT NOT NULL, pos INT NOT NULL)",
+      "CREATE INDEX BlockTxBlock ON BlockTx(blockId)"
+   };
+   private final Random random = new Random(1);
+   private ProdnetBitcoinFactory bitcoinFactory;
+   private ScriptFactoryImpl scriptFactory;
+   private MysqlStorage storage;
+   private int height = 0;
+   private byte[] storedHash;
+
+   @Setup
+   public void setup()
+           throws BitcoinException, SQLException
+   {
+      JdbcDataSource dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:javacoin;MODE=MySQL;DB_CLOSE_DELAY=-1");
+      try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement())
+      {
+         for (String table : new String[]
+                 {
+                    "BlockTx", "TxOutput", "TxInput", "Transaction", "Block", "Counter"
+                 })
+            st.execute("DROP TABLE IF EXISTS " + table);
+         for (String sql : SCHEMA)
+            st.execute(sql);
+      }
+      scriptFactory = new ScriptFactoryImpl(null, null);
+      bitcoinFactory = new ProdnetBitcoinFactory(scriptFactory);
+      storage = new MysqlStorage(bitcoinFactory);
+      storage.setDataSource(dataSource);
+      storage.setUseExplicitTransactions(true);
+      storage.init();
+      BlockChainLink link = createBlock();
+      store(link);
+      storedHash = link.getBlock().getHash();
+   }
+
+   private byte[] randomBytes(int length)
+   {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      return bytes;
+   }
+
+   private BlockChainLink createBlock()
+           throws BitcoinException
+   {
+      List<TransactionImpl> transactions = new ArrayList<>(TRANSACTIONS);
+      for (int i = 0; i < TRANSACTIONS; i++)
+      {
+         List<TransactionInputImpl> inputs = new ArrayList<>();
+         for (int j = 0; j < 2; j++)
+            inputs.add(new TransactionInputImpl(randomBytes(32), j,
+                    scriptFactory.createFragment(randomBytes(107)), 0xFFFFFFFFL));
+         List<TransactionOutputImpl> outputs = new ArrayList<>();
+         for (int j = 0; j < 2; j++)
+            outputs.add(new TransactionOutputImpl(random.nextInt(100000000),
+                    scriptFactory.createFragment(randomBytes(25))));
+         transactions.add(new TransactionImpl(inputs, outputs, random.nextInt(Integer.MAX_VALUE)));
+      }
+      BlockImpl block = new BlockImpl(transactions, System.currentTimeMillis() / 1000, random.nextInt(Integer.MAX_VALUE),
+              0x1d00ffffL, randomBytes(32), randomBytes(32));
+      return bitcoinFactory.newBlockChainLink(block, BigDecimal.valueOf(height + 1), height++);
+   }
+
+   private void store(BlockChainLink link)
+           throws SQLException
+   {
+      StorageSession session = storage.newStorageSession(true);
+      try
+      {
+         storage.storeBlockLink(session, link);
+         session.commit();
+      } finally
+      {
+         session.close();
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(ROWS)
+   public void storeBlock(NewBlock block)
+           throws SQLException
+   {
+      store(block.link);
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.AverageTime)
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   public BlockChainLink loadBlock()
+   {
+      return storage.getLink(storedHash);
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.AverageTime)
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   public List<TransactionImpl> loadTransactions()
+           throws SQLException, BitcoinException
+   {
+      StorageSession session = storage.newStorageSession(false);
+      try
+      {
+         return storage.getBlockTransactions(session, storedHash);
+      } finally
+      {
+         session.close();
+      }
+   }
+
+   /**
+    * Load the transactions of the block the way the storage did before the
+    * set based queries: the inputs and the outputs of every transaction with
+    * a query each.
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.AverageTime)
+   @OutputTimeUnit(TimeUnit.MILLISECONDS)
+   public List<TransactionImpl> loadTransactionsPerTransaction()
+           throws SQLException, BitcoinException
+   {
+      MysqlStorage.StorageSessionImpl session = (MysqlStorage.StorageSessionImpl) storage.newStorageSession(false);
+      try (PreparedStatement ps = session.getConnection().prepareStatement(SQL_BLOCK_TRANSACTIONS))
+      {
+         ps.setBytes(1, storedHash);
+         ResultSet rs = ps.executeQuery();
+         List<TransactionImpl> transactions = new ArrayList<>();
+         while (rs.next())
+         {
+            long txId = rs.getLong("txId");
+            transactions.add(new TransactionImpl(storage.loadTxInputs(session.getConnection(), txId),
+                    storage.loadTxOutputs(session.getConnection(), txId),
+                    rs.getLong("lockTime"), rs.getBytes("hash"), rs.getInt("version")));
+         }
+         return transactions;
+      } finally
+      {
+         session.close();
+      }
+   }
+
+   /**
+    * A new block for every invocation, so only the store benchmark pays for
+    * creating it.
+    */
+   @State(Scope.Thread)
+   public static class NewBlock
+   {
+
+      private BlockChainLink link;
+
+      @Setup(Level.Invocation)
+      public void create(BlockStorageBenchmark benchmark)
+              throws BitcoinException
+      {
+         link = benchmark.createBlock();
+      }
+   }
+
+   public static void main(String[] args)
+           throws RunnerException
+   {
+      Options options = new OptionsBuilder()
+              .include(BlockStorageBenchmark.class.getSimpleName())
+              .build();
+      new Runner(options).run();
+   }
+}
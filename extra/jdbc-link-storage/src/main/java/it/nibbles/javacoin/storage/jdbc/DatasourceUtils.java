@@ -35,6 +35,8 @@ public class DatasourceUtils
       p.setUrl(url);
       p.setUsername(user);
       p.setPassword(pw);
+      // Send JDBC batches as multi-row inserts
+      p.setConnectionProperties("rewriteBatchedStatements=true");
       p.setJmxEnabled(false);
       p.setTestWhileIdle(false);
       p.setTestOnBorrow(true);
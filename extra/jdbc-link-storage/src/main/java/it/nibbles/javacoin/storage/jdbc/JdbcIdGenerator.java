@@ -5,17 +5,32 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.sql.DataSource;
 
 /**
+ * Generates the ids of the rows of a table, reserving ranges of ids in the
+ * Counter table. Ids are handed out from the current range with an atomic
+ * counter, only getting a new range needs a lock and a round trip to the
+ * database. The size of the ranges grows when they are used up quickly and
+ * shrinks back when they last long, between the reserve size and the maximum
+ * reserve size. Ids left in a range which is replaced are never used.
  *
  * @author Alessandro Polverini
  */
 public class JdbcIdGenerator
 {
 
+   // A range is doubled when used up before this time, halved when it lasts
+   // more than ten times as much
+   private static final long TARGET_REFILL_NANOS = 1000000000L;
    private int idReserveSize = 100;
-   private long currentId, idPoolSizeLeft;
+   private int maxReserveSize = 100000;
+   private final AtomicReference<Range> range = new AtomicReference<>(new Range(0, 0));
+   private final Object refillLock = new Object();
+   private long currentReserveSize = 0;
+   private long lastRefill = 0;
    private String idName;
    private String jdbcUrl, dbUser, dbPassword;
    private DataSource dataSource;
@@ -39,18 +54,42 @@ public class JdbcIdGenerator
       this.dataSource = dataSource;
    }
 
+   /**
+    * Set the smallest number of ids to reserve at once.
+    */
    public JdbcIdGenerator setIdReserveSize(int idReserveSize)
    {
       this.idReserveSize = idReserveSize;
       return this;
    }
 
+   /**
+    * Set the largest number of ids to reserve at once, unless more are
+    * requested with a single reservation.
+    */
+   public JdbcIdGenerator setMaxReserveSize(int maxReserveSize)
+   {
+      this.maxReserveSize = maxReserveSize;
+      return this;
+   }
+
    public JdbcIdGenerator setIdName(String idName)
    {
       this.idName = idName;
       return this;
    }
 
+   /**
+    * @return The number of ids the next range will have at least.
+    */
+   public long getCurrentReserveSize()
+   {
+      synchronized (refillLock)
+      {
+         return Math.max(currentReserveSize, idReserveSize);
+      }
+   }
+
    private Connection getConnection()
    {
       try
@@ -65,42 +104,93 @@ public class JdbcIdGenerator
       }
    }
 
-   synchronized public long getNewId()
+   public long getNewId()
+   {
+      return reserve(1);
+   }
+
+   /**
+    * Reserve a number of consecutive ids.
+    *
+    * @param count The number of ids to reserve, at least one.
+    * @return The first of the ids.
+    */
+   public long reserve(int count)
+   {
+      if (count < 1)
+         throw new IllegalArgumentException("can not reserve " + count + " ids");
+      while (true)
+      {
+         Range current = range.get();
+         long first = current.next.getAndAdd(count);
+         if (first + count <= current.end)
+            return first;
+         refill(current, count);
+      }
+   }
+
+   /**
+    * Replace the range with a new one, unless another thread already did.
+    */
+   private void refill(Range exhausted, int count)
+   {
+      synchronized (refillLock)
+      {
+         if (range.get() != exhausted)
+            return;
+         long now = System.nanoTime();
+         long size = Math.max(currentReserveSize, idReserveSize);
+         if (lastRefill != 0)
+         {
+            long elapsed = now - lastRefill;
+            if (elapsed < TARGET_REFILL_NANOS)
+               size = Math.min(size * 2, maxReserveSize);
+            else if (elapsed > 10 * TARGET_REFILL_NANOS)
+               size = size / 2;
+         }
+         currentReserveSize = Math.max(size, idReserveSize);
+         lastRefill = now;
+         long reserved = Math.max(currentReserveSize, count);
+         long last = allocate(reserved);
+         range.set(new Range(last - reserved + 1, last + 1));
+      }
+   }
+
+   /**
+    * Reserve ids in the database.
+    *
+    * @param size The number of ids to reserve.
+    * @return The last id reserved.
+    */
+   protected long allocate(long size)
    {
-      if (idPoolSizeLeft-- > 0)
-         return ++currentId;
-      else
+      try (Connection con = getConnection())
       {
-         Connection con = null;
-         PreparedStatement psInsertId = null;
-         PreparedStatement psGetId = null;
-         PreparedStatement psUpdateId = null;
-         ResultSet rs = null;
-         long lastId = 0;
-         try
+         con.setAutoCommit(false);
+         try (PreparedStatement psUpdateId = con.prepareStatement("UPDATE Counter SET value = value + ? WHERE name = ?");
+                 PreparedStatement psGetId = con.prepareStatement("SELECT value FROM Counter WHERE name = ?"))
          {
-            con = getConnection();
-            con.setAutoCommit(false);
-            psGetId = con.prepareStatement("SELECT value FROM Counter WHERE name = ?");
-            psGetId.setString(1, idName);
-            rs = psGetId.executeQuery();
-            if (rs.next())
+            long lastId;
+            psUpdateId.setLong(1, size);
+            psUpdateId.setString(2, idName);
+            if (psUpdateId.executeUpdate() > 0)
             {
+               psGetId.setString(1, idName);
+               ResultSet rs = psGetId.executeQuery();
+               rs.next();
                lastId = rs.getLong(1);
-               psUpdateId = con.prepareStatement("UPDATE Counter set value = ? WHERE name = ?");
-               psUpdateId.setLong(1, lastId + idReserveSize);
-               psUpdateId.setString(2, idName);
-               psUpdateId.executeUpdate();
             } else
             {
-               psInsertId = con.prepareStatement("INSERT INTO Counter(name,value) VALUES (?,?)");
-               psInsertId.setString(1, idName);
-               psInsertId.setLong(2, idReserveSize);
-               psInsertId.executeUpdate();
+               try (PreparedStatement psInsertId = con.prepareStatement("INSERT INTO Counter(name,value) VALUES (?,?)"))
+               {
+                  psInsertId.setString(1, idName);
+                  psInsertId.setLong(2, size);
+                  psInsertId.executeUpdate();
+               }
+               lastId = size;
             }
             con.commit();
-            idPoolSizeLeft = idReserveSize - 1;
-            return (currentId = lastId + 1);
+            return lastId;
          } catch (SQLException e)
          {
             try
@@ -109,28 +199,30 @@ public class JdbcIdGenerator
             } catch (SQLException ex)
             {
             }
-            throw new JdbcStorageException("Exception getting new Id: " + e.getMessage(), e);
+            throw e;
          } finally
          {
-            try
-            {
-               if (rs != null)
-                  rs.close();
-               if (psInsertId != null)
-                  psInsertId.close();
-               if (psGetId != null)
-                  psGetId.close();
-               if (psUpdateId != null)
-                  psUpdateId.close();
-               if (con != null)
-               {
-                  con.setAutoCommit(true);
-                  con.close();
-               }
-            } catch (SQLException ex)
-            {
-            }
+            con.setAutoCommit(true);
          }
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Exception getting new Id: " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Ids from next (included) to end (excluded).
+    */
+   private static class Range
+   {
+
+      private final AtomicLong next;
+      private final long end;
+
+      private Range(long first, long end)
+      {
+         this.next = new AtomicLong(first);
+         this.end = end;
       }
    }
-}
\ No newline at end of file
+}
@@ -23,6 +23,8 @@ import it.nibbles.javacoin.Transaction;
 import it.nibbles.javacoin.TransactionInput;
 import it.nibbles.javacoin.TransactionOutput;
 import it.nibbles.javacoin.storage.BaseChainLinkStorage;
+import it.nibbles.javacoin.storage.ChunkedInputStream;
+import it.nibbles.javacoin.storage.ChunkedOutputStream;
 import it.nibbles.javacoin.block.BitcoinFactory;
 import it.nibbles.javacoin.block.BlockChainLink;
 import it.nibbles.javacoin.block.BlockImpl;
@@ -32,7 +34,10 @@ import it.nibbles.javacoin.block.StorageSession;
 import it.nibbles.javacoin.block.TransactionImpl;
 import it.nibbles.javacoin.block.TransactionInputImpl;
 import it.nibbles.javacoin.block.TransactionOutputImpl;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -40,10 +45,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.logging.Level;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
@@ -59,7 +68,16 @@ public class MysqlStorage extends BaseChainLinkStorage
 
    private static Logger logger = LoggerFactory.getLogger(MysqlStorage.class);
    private static final int DEFAULT_RESERVE_SIZE = 100;
+   // Rows of a block sent in a single batch at most
+   private static final int MAX_BATCH_ROWS = 1000;
+   // Hashes of transactions looked up with a single query at most
+   private static final int MAX_HASHES_PER_QUERY = 500;
+   private static final int DEFAULT_MAX_RESERVE_SIZE = 100000;
+   // Size of the rows the unspent output snapshot is stored in, below the
+   // default max_allowed_packet of the server
+   private static final int SNAPSHOT_CHUNK_SIZE = 512 * 1024;
    private int idReserveSize = DEFAULT_RESERVE_SIZE;
+   private int maxIdReserveSize = DEFAULT_MAX_RESERVE_SIZE;
    private BitcoinFactory bitcoinFactory = null;
    private DataSource dataSource;
    //
@@ -98,6 +116,8 @@ public class MysqlStorage extends BaseChainLinkStorage
            "SELECT COUNT(*) FROM Block WHERE prevBlockHash=?";
    final private String sqlGetTransaction =
            "SELECT id,lockTime,hash,version FROM Transaction WHERE hash=?";
+   final private String sqlGetTransactionIds =
+           "SELECT id,hash FROM Transaction WHERE hash IN ";
    final private String sqlGetBlockHashesWithTx =
            "SELECT Block.hash, Block.prevBlockHash, Block.height FROM Block "
            + "LEFT JOIN BlockTx ON (Block.id = BlockTx.blockId) LEFT JOIN Transaction ON (BlockTx.txId = Transaction.id) "
@@ -108,11 +128,13 @@ public class MysqlStorage extends BaseChainLinkStorage
            + "LEFT JOIN TxInput ON (Transaction.id=TxInput.txId) WHERE TxInput.referredTxHash=? AND TxInput.referredTxIndex=?";
    final private String sqlGetBlockTransactionsFromId =
            "SELECT BlockTx.txId,Transaction.hash,Transaction.lockTime,Transaction.version FROM BlockTx "
-           + "LEFT JOIN Transaction ON (BlockTx.txId = Transaction.id) WHERE blkId=? ORDER BY BlockTx.pos";
-   final private String sqlGetBlockTransactionsFromHash =
-           "SELECT BlockTx.txId,Transaction.hash,Transaction.lockTime,Transaction.version FROM BlockTx "
-           + "LEFT JOIN Transaction ON (BlockTx.txId = Transaction.id) LEFT JOIN Block ON (BlockTx.blockId = Block.id) "
-           + "WHERE Block.hash=? ORDER BY BlockTx.pos";
+           + "LEFT JOIN Transaction ON (BlockTx.txId = Transaction.id) WHERE BlockTx.blockId=? ORDER BY BlockTx.pos";
+   final private String sqlGetBlockTxInputs =
+           "SELECT TxInput.txId,TxInput.id,referredTxHash,referredTxIndex,sequence,scriptBytes FROM BlockTx "
+           + "JOIN TxInput ON (BlockTx.txId = TxInput.txId) WHERE BlockTx.blockId=? ORDER BY TxInput.txId,TxInput.id";
+   final private String sqlGetBlockTxOutputs =
+           "SELECT TxOutput.txId,TxOutput.id,value,scriptBytes FROM BlockTx "
+           + "JOIN TxOutput ON (BlockTx.txId = TxOutput.txId) WHERE BlockTx.blockId=? ORDER BY TxOutput.txId,TxOutput.id";
    final private String sqlGetTxInputs =
            "SELECT id,referredTxHash,referredTxIndex,sequence,scriptBytes FROM TxInput WHERE txId=? ORDER BY id";
    final private String sqlGetTxOutputs =
@@ -122,6 +144,34 @@ public class MysqlStorage extends BaseChainLinkStorage
    final private String sqlGetNumBlockHeadersAtHeight =
            "SELECT count(*) AS num FROM Block WHERE height=?";
    //
+   // State of the chain kept beside the blocks, the tables are created if missing
+   final private String[] sqlCreateStateTables =
+   {
+      "CREATE TABLE IF NOT EXISTS State (name VARCHAR(64) NOT NULL, value VARBINARY(255), PRIMARY KEY (name))",
+      "CREATE TABLE IF NOT EXISTS SnapshotChunk (generation INT NOT NULL, seq INT NOT NULL, data MEDIUMBLOB NOT NULL, "
+      + "PRIMARY KEY (generation, seq))",
+      "CREATE TABLE IF NOT EXISTS BlockUndo (hash BINARY(32) NOT NULL, data MEDIUMBLOB NOT NULL, PRIMARY KEY (hash))"
+   };
+   final private String sqlPutState =
+           "REPLACE INTO State(name,value) VALUES(?,?)";
+   final private String sqlGetState =
+           "SELECT value FROM State WHERE name=?";
+   final private String unspentOutputsState = "unspentOutputs";
+   final private String sqlPutSnapshotChunk =
+           "INSERT INTO SnapshotChunk(generation,seq,data) VALUES(?,?,?)";
+   final private String sqlGetSnapshotChunk =
+           "SELECT data FROM SnapshotChunk WHERE generation=? AND seq=?";
+   final private String sqlDeleteSnapshotChunks =
+           "DELETE FROM SnapshotChunk WHERE generation=?";
+   final private String sqlDeleteOtherSnapshotChunks =
+           "DELETE FROM SnapshotChunk WHERE generation<>?";
+   final private String sqlPutUndoData =
+           "REPLACE INTO BlockUndo(hash,data) VALUES(?,?)";
+   final private String sqlGetUndoData =
+           "SELECT data FROM BlockUndo WHERE hash=?";
+   final private String sqlHasUndoData =
+           "SELECT 1 FROM BlockUndo WHERE hash=?";
+   //
    // Purge blocks and transactions (mainly used for debugging/testing, do not use, broken)
    final private String sqlPurgeBlocksUpToHeight =
            "DELETE FROM Block,BlockTx "
@@ -158,6 +208,7 @@ public class MysqlStorage extends BaseChainLinkStorage
          setAutoCreate(Boolean.valueOf(config.getString(prefix + "autocreate")));
          //setTransactional(Boolean.valueOf(config.getString(prefix + "transactional")));
          idReserveSize = Integer.parseInt(config.getString(prefix + "idReserveSize"));
+         maxIdReserveSize = Integer.parseInt(config.getString(prefix + "maxIdReserveSize"));
       } catch (MissingResourceException e)
       {
          logger.warn("could not read configuration for JDBC link storage, using some default values", e);
@@ -176,8 +227,16 @@ public class MysqlStorage extends BaseChainLinkStorage
 
    private void initializeDatabases()
    {
-      logger.info("TODO: Initialize tables");
-      // TODO: autocreate tables and indexes
+      // TODO: autocreate the tables and indexes of the blocks
+      try (Connection dbConnection = newConnection(); Statement st = dbConnection.createStatement())
+      {
+         dbConnection.setAutoCommit(true);
+         for (String sql : sqlCreateStateTables)
+            st.execute(sql);
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while creating the chain state tables: " + e.getMessage(), e);
+      }
    }
 
    private void commonInit()
@@ -186,10 +245,10 @@ public class MysqlStorage extends BaseChainLinkStorage
       transactionIdGen = new JdbcIdGenerator(dataSource);
       txInputsIdGen = new JdbcIdGenerator(dataSource);
       txOutputsIdGen = new JdbcIdGenerator(dataSource);
-      blockIdGen.setIdName("Block").setIdReserveSize(idReserveSize);
-      transactionIdGen.setIdName("Transaction").setIdReserveSize(idReserveSize);
-      txInputsIdGen.setIdName("TxInput").setIdReserveSize(idReserveSize);
-      txOutputsIdGen.setIdName("TxOutput").setIdReserveSize(idReserveSize);
+      blockIdGen.setIdName("Block").setIdReserveSize(idReserveSize).setMaxReserveSize(maxIdReserveSize);
+      transactionIdGen.setIdName("Transaction").setIdReserveSize(idReserveSize).setMaxReserveSize(maxIdReserveSize);
+      txInputsIdGen.setIdName("TxInput").setIdReserveSize(idReserveSize).setMaxReserveSize(maxIdReserveSize);
+      txOutputsIdGen.setIdName("TxOutput").setIdReserveSize(idReserveSize).setMaxReserveSize(maxIdReserveSize);
    }
 
    @Override
@@ -214,7 +273,7 @@ public class MysqlStorage extends BaseChainLinkStorage
          dbConnection.setAutoCommit(true);
          String[] tables =
          {
-            "TxOutput", "TxInput", "Transaction", "Counter", "BlockTx", "Block"
+            "TxOutput", "TxInput", "Transaction", "Counter", "BlockTx", "Block", "State", "SnapshotChunk", "BlockUndo"
          };
 
          for (String table : tables)
@@ -226,6 +285,175 @@ public class MysqlStorage extends BaseChainLinkStorage
       }
    }
 
+   @Override
+   public void storeUndoData(byte[] hash, byte[] undoData)
+   {
+      try (Connection dbConnection = newConnection(); PreparedStatement ps = dbConnection.prepareStatement(sqlPutUndoData))
+      {
+         dbConnection.setAutoCommit(true);
+         ps.setBytes(1, hash);
+         ps.setBytes(2, undoData);
+         ps.executeUpdate();
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while storing undo data: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public byte[] getUndoData(byte[] hash)
+   {
+      try (Connection dbConnection = newConnection(); PreparedStatement ps = dbConnection.prepareStatement(sqlGetUndoData))
+      {
+         ps.setBytes(1, hash);
+         ResultSet rs = ps.executeQuery();
+         return rs.next() ? rs.getBytes(1) : null;
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while reading undo data: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public boolean hasUndoData(byte[] hash)
+   {
+      try (Connection dbConnection = newConnection(); PreparedStatement ps = dbConnection.prepareStatement(sqlHasUndoData))
+      {
+         ps.setBytes(1, hash);
+         return ps.executeQuery().next();
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while looking up undo data: " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * The snapshot is stored in rows of a new generation, each sent on its
+    * own, then the state is changed to point to the new generation and the
+    * rows of the other ones are deleted. A snapshot which is not complete is
+    * never read.
+    */
+   @Override
+   public void storeUnspentOutputSnapshot(SnapshotWriter writer)
+      throws IOException
+   {
+      try (Connection dbConnection = newConnection())
+      {
+         dbConnection.setAutoCommit(true);
+         int[] previous = getSnapshotPointer(dbConnection);
+         final int generation = previous == null ? 0 : previous[0] + 1;
+         deleteSnapshotChunks(dbConnection, sqlDeleteSnapshotChunks, generation);
+         try (final PreparedStatement ps = dbConnection.prepareStatement(sqlPutSnapshotChunk))
+         {
+            ChunkedOutputStream output = new ChunkedOutputStream(SNAPSHOT_CHUNK_SIZE, new ChunkedOutputStream.ChunkSink()
+            {
+               @Override
+               public void store(int seq, byte[] chunk)
+                  throws IOException
+               {
+                  try
+                  {
+                     ps.setInt(1, generation);
+                     ps.setInt(2, seq);
+                     ps.setBytes(3, chunk);
+                     ps.executeUpdate();
+                  } catch (SQLException e)
+                  {
+                     throw new IOException("Error while storing a chunk of the unspent output snapshot: " + e.getMessage(), e);
+                  }
+               }
+            });
+            writer.writeTo(output);
+            output.close();
+            try (PreparedStatement statePs = dbConnection.prepareStatement(sqlPutState))
+            {
+               statePs.setString(1, unspentOutputsState);
+               statePs.setBytes(2, ByteBuffer.allocate(8).putInt(generation).putInt(output.getChunkCount()).array());
+               statePs.executeUpdate();
+            }
+         } catch (IOException | RuntimeException e)
+         {
+            try
+            {
+               deleteSnapshotChunks(dbConnection, sqlDeleteSnapshotChunks, generation);
+            } catch (SQLException deleteException)
+            {
+               e.addSuppressed(deleteException);
+            }
+            throw e;
+         }
+         deleteSnapshotChunks(dbConnection, sqlDeleteOtherSnapshotChunks, generation);
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while storing unspent output snapshot: " + e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public InputStream getUnspentOutputSnapshot()
+   {
+      final int[] pointer;
+      try (Connection dbConnection = newConnection())
+      {
+         pointer = getSnapshotPointer(dbConnection);
+      } catch (SQLException e)
+      {
+         throw new JdbcStorageException("Error while reading unspent output snapshot: " + e.getMessage(), e);
+      }
+      if (pointer == null)
+         return null;
+      return new ChunkedInputStream(new ChunkedInputStream.ChunkSource()
+      {
+         @Override
+         public byte[] load(int seq)
+            throws IOException
+         {
+            if (seq >= pointer[1])
+               return null;
+            try (Connection dbConnection = newConnection(); PreparedStatement ps = dbConnection.prepareStatement(sqlGetSnapshotChunk))
+            {
+               ps.setInt(1, pointer[0]);
+               ps.setInt(2, seq);
+               ResultSet rs = ps.executeQuery();
+               if (!rs.next())
+                  throw new IOException("chunk " + seq + " of the unspent output snapshot is missing");
+               return rs.getBytes(1);
+            } catch (SQLException e)
+            {
+               throw new IOException("Error while reading a chunk of the unspent output snapshot: " + e.getMessage(), e);
+            }
+         }
+      });
+   }
+
+   /**
+    * @return The generation and the number of chunks of the stored snapshot,
+    * or null if there is none.
+    */
+   private int[] getSnapshotPointer(Connection dbConnection)
+      throws SQLException
+   {
+      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetState))
+      {
+         ps.setString(1, unspentOutputsState);
+         ResultSet rs = ps.executeQuery();
+         if (!rs.next())
+            return null;
+         ByteBuffer pointer = ByteBuffer.wrap(rs.getBytes(1));
+         return new int[] { pointer.getInt(), pointer.getInt() };
+      }
+   }
+
+   private void deleteSnapshotChunks(Connection dbConnection, String sql, int generation)
+      throws SQLException
+   {
+      try (PreparedStatement ps = dbConnection.prepareStatement(sql))
+      {
+         ps.setInt(1, generation);
+         ps.executeUpdate();
+      }
+   }
+
    @Override
    public boolean blockExists(final StorageSession storageSession, byte[] hash) throws SQLException
    {
@@ -328,13 +556,30 @@ public class MysqlStorage extends BaseChainLinkStorage
       long blockId = storeBlockHeader(dbConnection, link);
 
       List<Transaction> transactions = link.getBlock().getTransactions();
-      int pos = 0;
+      Map<ByteBuffer, Long> txIds = getTransactionIds(dbConnection, transactions);
+      List<Transaction> newTransactions = new ArrayList<>();
+      Set<ByteBuffer> newHashes = new HashSet<>();
       for (Transaction tx : transactions)
       {
-         long txId = getTransactionId(dbConnection, tx.getHash());
-         if (txId == -1)
-            txId = storeTransaction(dbConnection, tx);
-         storeBlkTxLink(dbConnection, blockId, txId, pos++);
+         ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+         if ((!txIds.containsKey(hash)) && (newHashes.add(hash)))
+            newTransactions.add(tx);
+      }
+      try (BlockWriter writer = new BlockWriter(dbConnection, newTransactions))
+      {
+         int pos = 0;
+         for (Transaction tx : transactions)
+         {
+            ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+            Long txId = txIds.get(hash);
+            if (txId == null)
+            {
+               txId = writer.addTransaction(tx);
+               txIds.put(hash, txId);
+            }
+            writer.addBlkTxLink(blockId, txId, pos++);
+         }
+         writer.flush();
       }
    }
 
@@ -360,56 +605,32 @@ public class MysqlStorage extends BaseChainLinkStorage
       }
    }
 
-   protected long storeTransaction(final Connection dbConnection, final Transaction tx) throws SQLException
+   /**
+    * Get the ids of the transactions already stored, looking them up with a
+    * query for many hashes at once.
+    *
+    * @return The ids of the stored transactions by hash.
+    */
+   protected Map<ByteBuffer, Long> getTransactionIds(final Connection dbConnection, final List<Transaction> transactions) throws SQLException
    {
-      try (PreparedStatement ps = dbConnection.prepareStatement(sqlPutTransaction);
-              PreparedStatement psPutTxInput = dbConnection.prepareStatement(sqlPutTxInput);
-              PreparedStatement psPutTxOutput = dbConnection.prepareStatement(sqlPutTxOutput);)
+      Map<ByteBuffer, Long> txIds = new HashMap<>();
+      for (int from = 0; from < transactions.size(); from += MAX_HASHES_PER_QUERY)
       {
-         long txId = transactionIdGen.getNewId();
-         //logger.debug("Transazione con nuovo id: " + txId + " :" + HexUtil.toSingleHexString(tx.getHash()) + " txins: " + tx.getInputs().size() + " txouts: " + tx.getOutputs().size());
-         ps.setLong(1, txId);
-         ps.setBytes(2, tx.getHash());
-         ps.setLong(3, tx.getLockTime());
-         int n = ps.executeUpdate();
-         //logger.debug("Numero record inseriti per la transazione: " + n);
-
-         for (TransactionInput tinput : tx.getInputs())
-         {
-            long id = txInputsIdGen.getNewId();
-            psPutTxInput.setLong(1, id);
-            psPutTxInput.setLong(2, txId);
-            if (Arrays.equals(TransactionInput.ZERO_HASH, tinput.getClaimedTransactionHash()))
-               psPutTxInput.setNull(3, java.sql.Types.BINARY);
-            else
-               psPutTxInput.setBytes(3, tinput.getClaimedTransactionHash());
-            psPutTxInput.setLong(4, tinput.getClaimedOutputIndex());
-            psPutTxInput.setLong(5, tinput.getSequence());
-            psPutTxInput.setBytes(6, tinput.getSignatureScript().toByteArray());
-            psPutTxInput.executeUpdate();
-         }
-         for (TransactionOutput tout : tx.getOutputs())
+         int to = Math.min(from + MAX_HASHES_PER_QUERY, transactions.size());
+         StringBuilder sql = new StringBuilder(sqlGetTransactionIds).append("(?");
+         for (int i = from + 1; i < to; i++)
+            sql.append(",?");
+         sql.append(')');
+         try (PreparedStatement ps = dbConnection.prepareStatement(sql.toString()))
          {
-            long id = txOutputsIdGen.getNewId();
-            psPutTxOutput.setLong(1, id);
-            psPutTxOutput.setLong(2, txId);
-            psPutTxOutput.setLong(3, tout.getValue());
-            psPutTxOutput.setBytes(4, tout.getScript().toByteArray());
-            psPutTxOutput.executeUpdate();
+            for (int i = from; i < to; i++)
+               ps.setBytes(i - from + 1, transactions.get(i).getHash());
+            ResultSet rs = ps.executeQuery();
+            while (rs.next())
+               txIds.put(ByteBuffer.wrap(rs.getBytes("hash")), rs.getLong("id"));
          }
-         return txId;
-      }
-   }
-
-   protected void storeBlkTxLink(final Connection dbConnection, long blockId, long txId, int pos) throws SQLException
-   {
-      try (PreparedStatement ps = dbConnection.prepareStatement(sqlPutBlkTxLink))
-      {
-         ps.setLong(1, blockId);
-         ps.setLong(2, txId);
-         ps.setLong(3, pos);
-         ps.executeUpdate();
       }
+      return txIds;
    }
 
    protected List<TransactionInputImpl> loadTxInputs(final Connection dbConnection, long txId) throws SQLException
@@ -420,19 +641,22 @@ public class MysqlStorage extends BaseChainLinkStorage
          ps.setLong(1, txId);
          ResultSet rs = ps.executeQuery();
          while (rs.next())
-         {
-            byte[] referredTxHash = rs.getBytes("referredTxHash");
-            if (rs.wasNull())
-               referredTxHash = TransactionInput.ZERO_HASH;
-            inputs.add(new TransactionInputImpl(
-                    referredTxHash, rs.getInt("referredTxIndex"),
-                    bitcoinFactory.getScriptFactory().createFragment(rs.getBytes("scriptBytes")),
-                    rs.getLong("sequence")));
-         }
+            inputs.add(readTxInput(rs));
       }
       return inputs;
    }
 
+   private TransactionInputImpl readTxInput(ResultSet rs) throws SQLException
+   {
+      byte[] referredTxHash = rs.getBytes("referredTxHash");
+      if (rs.wasNull())
+         referredTxHash = TransactionInput.ZERO_HASH;
+      return new TransactionInputImpl(
+              referredTxHash, rs.getInt("referredTxIndex"),
+              bitcoinFactory.getScriptFactory().createFragment(rs.getBytes("scriptBytes")),
+              rs.getLong("sequence"));
+   }
+
    protected List<TransactionOutputImpl> loadTxOutputs(final Connection dbConnection, long txId) throws SQLException
    {
       List<TransactionOutputImpl> outputs = new LinkedList<>();
@@ -441,12 +665,17 @@ public class MysqlStorage extends BaseChainLinkStorage
          ps.setLong(1, txId);
          ResultSet rs = ps.executeQuery();
          while (rs.next())
-            outputs.add(new TransactionOutputImpl(rs.getLong("value"),
-                    bitcoinFactory.getScriptFactory().createFragment(rs.getBytes("scriptBytes"))));
+            outputs.add(readTxOutput(rs));
       }
       return outputs;
    }
 
+   private TransactionOutputImpl readTxOutput(ResultSet rs) throws SQLException
+   {
+      return new TransactionOutputImpl(rs.getLong("value"),
+              bitcoinFactory.getScriptFactory().createFragment(rs.getBytes("scriptBytes")));
+   }
+
    protected long getTransactionId(final Connection dbConnection, byte[] hash) throws SQLException
    {
       long txId = -1;
@@ -477,34 +706,25 @@ public class MysqlStorage extends BaseChainLinkStorage
       }
    }
 
-   protected List<TransactionImpl> getBlockTransactions(final Connection dbConnection, ResultSet rs) throws SQLException, BitcoinException
-   {
-      List<TransactionImpl> res = new LinkedList<>();
-      while (rs.next())
-      {
-         long txId = rs.getLong("txId");
-         res.add(new TransactionImpl(loadTxInputs(dbConnection, txId), loadTxOutputs(dbConnection, txId), rs.getLong("lockTime"), rs.getBytes("hash"), rs.getInt("version")));
-      }
-      return res;
-   }
-
    @Override
    protected List<TransactionImpl> getBlockTransactions(final StorageSession storageSession, byte[] hash) throws SQLException, BitcoinException
    {
       Connection dbConnection = ((StorageSessionImpl) storageSession).getConnection();
-      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockTransactionsFromHash))
+      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockId))
       {
          ps.setBytes(1, hash);
-         return getBlockTransactions(dbConnection, ps.executeQuery());
+         ResultSet rs = ps.executeQuery();
+         if (!rs.next())
+            return new LinkedList<>();
+         return loadBlockTransactions(dbConnection, rs.getLong("id"));
       }
    }
 
    protected List<TransactionImpl> getBlockTransactions(final Connection dbConnection, long blockId)
    {
-      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockTransactionsFromId))
+      try
       {
-         ps.setLong(1, blockId);
-         return getBlockTransactions(dbConnection, ps.executeQuery());
+         return loadBlockTransactions(dbConnection, blockId);
       } catch (SQLException | BitcoinException e)
       {
          logger.error("getBlockByIdTransactionsEx: " + e.getMessage(), e);
@@ -512,6 +732,77 @@ public class MysqlStorage extends BaseChainLinkStorage
       }
    }
 
+   /**
+    * Load the transactions of a block with three queries: the transactions,
+    * all their inputs and all their outputs, instead of two more queries for
+    * every transaction. Inputs and outputs are ordered by transaction, so they
+    * are grouped in a single pass.
+    */
+   protected List<TransactionImpl> loadBlockTransactions(final Connection dbConnection, long blockId) throws SQLException, BitcoinException
+   {
+      Map<Long, List<TransactionInputImpl>> inputs = new HashMap<>();
+      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockTxInputs))
+      {
+         ps.setLong(1, blockId);
+         ResultSet rs = ps.executeQuery();
+         List<TransactionInputImpl> txInputs = null;
+         long lastTxId = -1, lastId = -1;
+         while (rs.next())
+         {
+            long txId = rs.getLong("txId");
+            long id = rs.getLong("id");
+            if (txId != lastTxId)
+            {
+               txInputs = new ArrayList<>();
+               inputs.put(txId, txInputs);
+               lastTxId = txId;
+            } else if (id == lastId)
+               continue; // Same transaction twice in the block
+            lastId = id;
+            txInputs.add(readTxInput(rs));
+         }
+      }
+      Map<Long, List<TransactionOutputImpl>> outputs = new HashMap<>();
+      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockTxOutputs))
+      {
+         ps.setLong(1, blockId);
+         ResultSet rs = ps.executeQuery();
+         List<TransactionOutputImpl> txOutputs = null;
+         long lastTxId = -1, lastId = -1;
+         while (rs.next())
+         {
+            long txId = rs.getLong("txId");
+            long id = rs.getLong("id");
+            if (txId != lastTxId)
+            {
+               txOutputs = new ArrayList<>();
+               outputs.put(txId, txOutputs);
+               lastTxId = txId;
+            } else if (id == lastId)
+               continue;
+            lastId = id;
+            txOutputs.add(readTxOutput(rs));
+         }
+      }
+      List<TransactionImpl> res = new LinkedList<>();
+      try (PreparedStatement ps = dbConnection.prepareStatement(sqlGetBlockTransactionsFromId))
+      {
+         ps.setLong(1, blockId);
+         ResultSet rs = ps.executeQuery();
+         while (rs.next())
+         {
+            long txId = rs.getLong("txId");
+            List<TransactionInputImpl> txInputs = inputs.get(txId);
+            List<TransactionOutputImpl> txOutputs = outputs.get(txId);
+            res.add(new TransactionImpl(
+                    txInputs == null ? new ArrayList<TransactionInputImpl>() : txInputs,
+                    txOutputs == null ? new ArrayList<TransactionOutputImpl>() : txOutputs,
+                    rs.getLong("lockTime"), rs.getBytes("hash"), rs.getInt("version")));
+         }
+      }
+      return res;
+   }
+
    @Override
    protected BlockChainLink createBlockWithTxs(final StorageSession storageSession, final byte[] hash, List<TransactionImpl> transactions)
    {
@@ -638,6 +929,130 @@ public class MysqlStorage extends BaseChainLinkStorage
       return new StorageSessionImpl(connection, forWriting && useExplicitTransactions());
    }
 
+   /**
+    * Writes the rows of a block with JDBC batches, so a block takes a few
+    * round trips to the database instead of some for every transaction. The
+    * ids of the new rows are reserved all at once, each statement is prepared
+    * once per block, and the batches are sent when they
+    * grow too large and when the block is complete. With the MySql driver the
+    * batches are sent as multi-row inserts if the connection has
+    * rewriteBatchedStatements enabled, as the data sources of DatasourceUtils
+    * have.
+    */
+   protected class BlockWriter implements AutoCloseable
+   {
+
+      private final PreparedStatement psPutTransaction;
+      private final PreparedStatement psPutTxInput;
+      private final PreparedStatement psPutTxOutput;
+      private final PreparedStatement psPutBlkTxLink;
+      private int batchedRows = 0;
+      private long nextTxId;
+      private long nextTxInputId;
+      private long nextTxOutputId;
+
+      /**
+       * @param newTransactions The transactions which will be added.
+       */
+      public BlockWriter(Connection dbConnection, List<Transaction> newTransactions) throws SQLException
+      {
+         int inputs = 0, outputs = 0;
+         for (Transaction tx : newTransactions)
+         {
+            inputs += tx.getInputs().size();
+            outputs += tx.getOutputs().size();
+         }
+         if (!newTransactions.isEmpty())
+            nextTxId = transactionIdGen.reserve(newTransactions.size());
+         if (inputs > 0)
+            nextTxInputId = txInputsIdGen.reserve(inputs);
+         if (outputs > 0)
+            nextTxOutputId = txOutputsIdGen.reserve(outputs);
+         psPutTransaction = dbConnection.prepareStatement(sqlPutTransaction);
+         psPutTxInput = dbConnection.prepareStatement(sqlPutTxInput);
+         psPutTxOutput = dbConnection.prepareStatement(sqlPutTxOutput);
+         psPutBlkTxLink = dbConnection.prepareStatement(sqlPutBlkTxLink);
+      }
+
+      /**
+       * Add a transaction with its inputs and outputs, which must be one of
+       * the new transactions given at construction.
+       *
+       * @return The id of the transaction.
+       */
+      public long addTransaction(final Transaction tx) throws SQLException
+      {
+         long txId = nextTxId++;
+         psPutTransaction.setLong(1, txId);
+         psPutTransaction.setBytes(2, tx.getHash());
+         psPutTransaction.setLong(3, tx.getLockTime());
+         psPutTransaction.addBatch();
+         for (TransactionInput tinput : tx.getInputs())
+         {
+            psPutTxInput.setLong(1, nextTxInputId++);
+            psPutTxInput.setLong(2, txId);
+            if (Arrays.equals(TransactionInput.ZERO_HASH, tinput.getClaimedTransactionHash()))
+               psPutTxInput.setNull(3, java.sql.Types.BINARY);
+            else
+               psPutTxInput.setBytes(3, tinput.getClaimedTransactionHash());
+            psPutTxInput.setLong(4, tinput.getClaimedOutputIndex());
+            psPutTxInput.setLong(5, tinput.getSequence());
+            psPutTxInput.setBytes(6, tinput.getSignatureScript().toByteArray());
+            psPutTxInput.addBatch();
+         }
+         for (TransactionOutput tout : tx.getOutputs())
+         {
+            psPutTxOutput.setLong(1, nextTxOutputId++);
+            psPutTxOutput.setLong(2, txId);
+            psPutTxOutput.setLong(3, tout.getValue());
+            psPutTxOutput.setBytes(4, tout.getScript().toByteArray());
+            psPutTxOutput.addBatch();
+         }
+         rowsAdded(1 + tx.getInputs().size() + tx.getOutputs().size());
+         return txId;
+      }
+
+      public void addBlkTxLink(long blockId, long txId, int pos) throws SQLException
+      {
+         psPutBlkTxLink.setLong(1, blockId);
+         psPutBlkTxLink.setLong(2, txId);
+         psPutBlkTxLink.setLong(3, pos);
+         psPutBlkTxLink.addBatch();
+         rowsAdded(1);
+      }
+
+      private void rowsAdded(int rows) throws SQLException
+      {
+         batchedRows += rows;
+         if (batchedRows >= MAX_BATCH_ROWS)
+            flush();
+      }
+
+      /**
+       * Send the rows added so far to the database.
+       */
+      public void flush() throws SQLException
+      {
+         if (batchedRows == 0)
+            return;
+         psPutTransaction.executeBatch();
+         psPutTxInput.executeBatch();
+         psPutTxOutput.executeBatch();
+         psPutBlkTxLink.executeBatch();
+         batchedRows = 0;
+      }
+
+      @Override
+      public void close() throws SQLException
+      {
+         try (PreparedStatement ps1 = psPutTransaction; PreparedStatement ps2 = psPutTxInput;
+                 PreparedStatement ps3 = psPutTxOutput; PreparedStatement ps4 = psPutBlkTxLink)
+         {
+            // Just close them all
+         }
+      }
+   }
+
    public class StorageSessionImpl implements StorageSession
    {
 
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class JdbcIdGeneratorTests
+{
+
+   /**
+    * Keeps the counter in memory instead of the database.
+    */
+   private static class MemoryIdGenerator extends JdbcIdGenerator
+   {
+
+      private long counter = 0;
+      private final List<Long> allocations = new ArrayList<>();
+
+      private MemoryIdGenerator()
+      {
+         super(null);
+      }
+
+      @Override
+      protected synchronized long allocate(long size)
+      {
+         allocations.add(size);
+         counter += size;
+         return counter;
+      }
+   }
+
+   public void testConsecutiveIds()
+   {
+      MemoryIdGenerator generator = new MemoryIdGenerator();
+      generator.setIdReserveSize(10);
+      Assert.assertEquals(generator.getNewId(), 1);
+      Assert.assertEquals(generator.getNewId(), 2);
+      Assert.assertEquals(generator.reserve(5), 3);
+      Assert.assertEquals(generator.getNewId(), 8);
+      Assert.assertEquals(generator.allocations.size(), 1);
+   }
+
+   public void testReserveMoreThanRange()
+   {
+      MemoryIdGenerator generator = new MemoryIdGenerator();
+      generator.setIdReserveSize(10);
+      generator.getNewId();
+      long first = generator.reserve(500);
+      // The rest of the first range is skipped, the reservation gets its own
+      Assert.assertEquals(first, 11);
+      Assert.assertTrue(generator.getNewId() > first + 499);
+   }
+
+   public void testReserveSizeGrows()
+   {
+      MemoryIdGenerator generator = new MemoryIdGenerator();
+      generator.setIdReserveSize(10).setMaxReserveSize(80);
+      for (int i = 0; i < 1000; i++)
+         generator.getNewId();
+      // Ranges are used up at once, so they double up to the maximum
+      Assert.assertEquals(generator.allocations.subList(0, 5), Arrays.asList(10L, 20L, 40L, 80L, 80L));
+      Assert.assertEquals(generator.getCurrentReserveSize(), 80);
+   }
+
+   public void testInvalidReserve()
+   {
+      try
+      {
+         new MemoryIdGenerator().reserve(0);
+         Assert.fail("reserved no ids");
+      } catch (IllegalArgumentException e)
+      {
+         // Expected
+      }
+   }
+
+   public void testConcurrentIdsUnique()
+           throws Exception
+   {
+      final MemoryIdGenerator generator = new MemoryIdGenerator();
+      generator.setIdReserveSize(7);
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try
+      {
+         List<Future<List<Long>>> results = new ArrayList<>();
+         for (int t = 0; t < 8; t++)
+            results.add(executor.submit(new Callable<List<Long>>()
+            {
+               @Override
+               public List<Long> call()
+               {
+                  List<Long> ids = new ArrayList<>();
+                  for (int i = 0; i < 5000; i++)
+                  {
+                     if (i % 10 == 0)
+                     {
+                        long first = generator.reserve(3);
+                        for (int j = 0; j < 3; j++)
+                           ids.add(first + j);
+                     } else
+                        ids.add(generator.getNewId());
+                  }
+                  return ids;
+               }
+            }));
+         Set<Long> all = new HashSet<>();
+         int count = 0;
+         for (Future<List<Long>> result : results)
+            for (Long id : result.get())
+            {
+               count++;
+               all.add(id);
+            }
+         Assert.assertEquals(all.size(), count);
+      } finally
+      {
+         executor.shutdown();
+      }
+   }
+}
@@ -31,7 +31,7 @@ import org.testng.annotations.Test;
 public class StorageITTests
 {
 
-   private StorageProvider<MysqlStorage> createProvider()
+   protected StorageProvider<MysqlStorage> createProvider()
    {
       return new StorageProvider<MysqlStorage>()
       {
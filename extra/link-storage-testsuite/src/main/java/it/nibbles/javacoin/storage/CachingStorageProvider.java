@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin.storage;
+
+import it.nibbles.javacoin.block.BlockChainLinkStorage;
+
+/**
+ * Provides the storages of another provider with a cache in front of them, so
+ * the test suite can be run through the cache.
+ *
+ * @author Alessandro Polverini
+ */
+public class CachingStorageProvider<T extends BlockChainLinkStorage> implements StorageProvider<CachingChainLinkStorage>
+{
+
+   private final StorageProvider<T> provider;
+
+   public CachingStorageProvider(StorageProvider<T> provider)
+   {
+      this.provider = provider;
+   }
+
+   @Override
+   public CachingChainLinkStorage newStorage()
+   {
+      return new CachingChainLinkStorage(provider.newStorage());
+   }
+
+   @Override
+   @SuppressWarnings("unchecked")
+   public void closeStorage(CachingChainLinkStorage storage)
+   {
+      // The cache is only ever created in front of a storage of the provider
+      provider.closeStorage(storage == null ? null : (T) storage.getStorage());
+   }
+
+   @Override
+   public void cleanStorage()
+   {
+      provider.cleanStorage();
+   }
+}
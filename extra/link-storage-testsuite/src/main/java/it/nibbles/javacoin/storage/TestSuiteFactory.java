@@ -50,5 +50,14 @@ public class TestSuiteFactory
          tests.init(provider);
       return result.toArray();
    }
+
+   /**
+    * Get the same test suite run through a cache in front of the storages of
+    * the provider.
+    */
+   public static <T extends BlockChainLinkStorage> Object[] getCachingTestSuite(StorageProvider<T> provider)
+   {
+      return getTestSuite(new CachingStorageProvider<>(provider));
+   }
 }
 
@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin;
+
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.HashWrapper;
+import it.nibbles.javacoin.net.p2p.Connection;
+import it.nibbles.javacoin.utils.BtcUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules the download of the missing blocks of the best header chain
+ * over all the connected peers. Only the blocks within a window ahead of
+ * the chain are requested, split in consecutive runs among the peers, each
+ * peer having a bounded number of blocks in flight. Blocks arriving out of
+ * order are kept in a reorder buffer (which can not grow beyond the window)
+ * until the chain reaches them. Requests taking too long, or holding back
+ * the whole download, are taken away from their peer and given to others.
+ * A block may so arrive more than once, only the first copy is kept.
+ *
+ * @author Alessandro Polverini
+ */
+public class BlockDownloadScheduler
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+   public static final int DEFAULT_WINDOW = 1024;
+   public static final int DEFAULT_PEER_WINDOW = 16;
+   public static final int MAX_PEER_WINDOW = 128;
+   public static final long DEFAULT_BLOCK_TIMEOUT = 60000;
+   public static final long DEFAULT_STALL_TIMEOUT = 5000;
+   private BlockChain chain;
+   private int window;
+   private int peerWindow;
+   private long blockTimeout;
+   private long stallTimeout;
+   private Map<HashWrapper, Request> requests = new HashMap<>();
+   private Map<HashWrapper, ReceivedBlock> reorderBuffer = new HashMap<>();
+   // Missing blocks which already arrived, further copies are dropped
+   private Set<HashWrapper> received = new HashSet<>();
+   private Map<Connection, PeerState> peers = new HashMap<>();
+   private long numReceived = 0;
+   private long numReassigned = 0;
+   private long numDuplicates = 0;
+
+   public BlockDownloadScheduler(BlockChain chain)
+   {
+      this(chain, DEFAULT_WINDOW, DEFAULT_PEER_WINDOW, DEFAULT_BLOCK_TIMEOUT, DEFAULT_STALL_TIMEOUT);
+   }
+
+   /**
+    * @param chain The chain to download the missing blocks of.
+    * @param window The number of blocks ahead of the chain that may be
+    * requested, this also bounds the reorder buffer.
+    * @param peerWindow The initial number of blocks a peer may have in flight,
+    * it grows as the peer delivers and shrinks when it stalls.
+    * @param blockTimeout Time in millis after which a request is given to
+    * another peer.
+    * @param stallTimeout Time in millis after which the request of the next
+    * block needed by the chain is given to another peer, when nothing else
+    * can be requested meanwhile.
+    */
+   public BlockDownloadScheduler(BlockChain chain, int window, int peerWindow, long blockTimeout, long stallTimeout)
+   {
+      this.chain = chain;
+      this.window = window;
+      this.peerWindow = peerWindow;
+      this.blockTimeout = blockTimeout;
+      this.stallTimeout = stallTimeout;
+   }
+
+   /**
+    * Assign the next missing blocks to a peer, as many as its window allows.
+    *
+    * @return The hashes of the blocks to request from the peer.
+    */
+   public synchronized List<byte[]> nextRequests(Connection peer)
+   {
+      PeerState state = getPeerState(peer);
+      if (state.inFlight >= state.window)
+         return Collections.emptyList();
+      List<byte[]> hashes = new ArrayList<>();
+      long now = System.currentTimeMillis();
+      for (byte[] hash : getMissingBlocks())
+      {
+         HashWrapper key = new HashWrapper(hash);
+         Request request = requests.get(key);
+         if ((reorderBuffer.containsKey(key)) || ((request != null) && (request.peer != null)))
+            continue;
+         requests.put(key, new Request(peer, now));
+         // Requested again because the chain could not take it
+         received.remove(key);
+         hashes.add(hash);
+         if (++state.inFlight >= state.window)
+            break;
+      }
+      return hashes;
+   }
+
+   /**
+    * Take a block received from a peer.
+    *
+    * @return True if the block was scheduled, so it is now in the reorder
+    * buffer or it is a copy of a block already received, false if it was
+    * not requested by the scheduler.
+    */
+   public synchronized boolean blockReceived(Connection peer, BlockImpl block)
+   {
+      HashWrapper key = new HashWrapper(block.getHash());
+      Request request = requests.remove(key);
+      if (request == null)
+      {
+         if (!received.contains(key))
+            return false;
+         // Requested from more than one peer after a stall
+         logger.debug("dropping block {} received again from {}", BtcUtil.hexOut(block.getHash()), peer);
+         numDuplicates++;
+         return true;
+      }
+      received.add(key);
+      if (request.peer != null)
+         peers.get(request.peer).inFlight--;
+      // Also a late block from a peer which lost the request is welcome
+      PeerState state = getPeerState(peer);
+      state.received++;
+      if (state.window < MAX_PEER_WINDOW)
+         state.window++;
+      reorderBuffer.put(key, new ReceivedBlock(block, peer));
+      numReceived++;
+      return true;
+   }
+
+   /**
+    * Take the next block of the header chain out of the reorder buffer.
+    *
+    * @return The block the chain needs next with the peer which sent it, or
+    * null if it did not arrive yet.
+    */
+   public synchronized ReceivedBlock nextBlock()
+   {
+      List<byte[]> next = chain.getMissingBlocks(1);
+      if (next.isEmpty())
+         return null;
+      return reorderBuffer.remove(new HashWrapper(next.get(0)));
+   }
+
+   /**
+    * Give the blocks requested from a peer to the others.
+    */
+   public synchronized void peerDisconnected(Connection peer)
+   {
+      PeerState state = peers.remove(peer);
+      if (state == null)
+         return;
+      logger.debug("peer {} left after delivering {} blocks, stalled {} times", new Object[] {peer, state.received, state.stalls});
+      for (Request request : requests.values())
+         if (request.peer == peer)
+            request.peer = null;
+   }
+
+   /**
+    * Take away the requests which are taking too long from their peers, so
+    * they can be requested from others. Peers losing requests get a smaller
+    * window.
+    *
+    * @return The number of requests released.
+    */
+   public synchronized int releaseStalled()
+   {
+      long now = System.currentTimeMillis();
+      int released = 0;
+      for (Request request : requests.values())
+         if ((request.peer != null) && (now - request.time > blockTimeout))
+         {
+            release(request);
+            released++;
+         }
+      // The whole download waits for the next block if nothing else can be requested
+      List<byte[]> missing = getMissingBlocks();
+      if (!missing.isEmpty())
+      {
+         Request head = requests.get(new HashWrapper(missing.get(0)));
+         if ((head != null) && (head.peer != null) && (now - head.time > stallTimeout)
+            && (requests.size() + reorderBuffer.size() >= missing.size()))
+         {
+            logger.debug("peer {} stalls the download with the next block", head.peer);
+            release(head);
+            released++;
+         }
+      }
+      numReassigned += released;
+      return released;
+   }
+
+   private void release(Request request)
+   {
+      PeerState state = peers.get(request.peer);
+      state.inFlight--;
+      state.stalls++;
+      state.window = Math.max(1, state.window / 2);
+      request.peer = null;
+   }
+
+   /**
+    * Get the blocks within the window, and forget requests and buffered blocks
+    * which are not missing anymore (because they arrived by other means, or
+    * the best header chain changed).
+    */
+   private List<byte[]> getMissingBlocks()
+   {
+      List<byte[]> missing = chain.getMissingBlocks(window);
+      Set<HashWrapper> keys = new HashSet<>();
+      for (byte[] hash : missing)
+         keys.add(new HashWrapper(hash));
+      for (Iterator<Map.Entry<HashWrapper, Request>> iterator = requests.entrySet().iterator(); iterator.hasNext();)
+      {
+         Map.Entry<HashWrapper, Request> entry = iterator.next();
+         if (!keys.contains(entry.getKey()))
+         {
+            if (entry.getValue().peer != null)
+               peers.get(entry.getValue().peer).inFlight--;
+            iterator.remove();
+         }
+      }
+      reorderBuffer.keySet().retainAll(keys);
+      received.retainAll(keys);
+      return missing;
+   }
+
+   private PeerState getPeerState(Connection peer)
+   {
+      PeerState state = peers.get(peer);
+      if (state == null)
+      {
+         state = new PeerState(peerWindow);
+         peers.put(peer, state);
+      }
+      return state;
+   }
+
+   public synchronized int getInFlight()
+   {
+      int inFlight = 0;
+      for (Request request : requests.values())
+         if (request.peer != null)
+            inFlight++;
+      return inFlight;
+   }
+
+   public synchronized int getBuffered()
+   {
+      return reorderBuffer.size();
+   }
+
+   public synchronized long getNumReceived()
+   {
+      return numReceived;
+   }
+
+   public synchronized long getNumReassigned()
+   {
+      return numReassigned;
+   }
+
+   public synchronized long getNumDuplicates()
+   {
+      return numDuplicates;
+   }
+
+   @Override
+   public synchronized String toString()
+   {
+      return "BlockDownloadScheduler[peers: " + peers.size() + " requested: " + requests.size()
+         + " buffered: " + reorderBuffer.size() + " received: " + numReceived + " reassigned: " + numReassigned + " duplicates: " + numDuplicates + "]";
+   }
+
+   /**
+    * A block taken out of the reorder buffer, with the peer it came from.
+    */
+   public static class ReceivedBlock
+   {
+
+      private BlockImpl block;
+      private Connection peer;
+
+      private ReceivedBlock(BlockImpl block, Connection peer)
+      {
+         this.block = block;
+         this.peer = peer;
+      }
+
+      public BlockImpl getBlock()
+      {
+         return block;
+      }
+
+      public Connection getPeer()
+      {
+         return peer;
+      }
+   }
+
+   private static class Request
+   {
+
+      private Connection peer;
+      private long time;
+
+      private Request(Connection peer, long time)
+      {
+         this.peer = peer;
+         this.time = time;
+      }
+   }
+
+   private static class PeerState
+   {
+
+      private int window;
+      private int inFlight = 0;
+      private long received = 0;
+      private long stalls = 0;
+
+      private PeerState(int window)
+      {
+         this.window = window;
+      }
+   }
+}
@@ -0,0 +1,565 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin;
+
+import it.nibbles.javacoin.block.BitcoinFactory;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.net.BlockMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes received blocks through the stages of ingestion, each stage having
+ * its own bounded queue and threads: decoding the message into a block,
+ * checking the proof of work of the header, and validating everything which
+ * does not need the chain (transactions and merkle root). The stages use the
+ * checks of the block itself, which remembers what it passed, so no check is
+ * done twice. These stages work
+ * on many blocks at once, so a block is decoded and hashed while the
+ * previous ones are validated. The last stage runs on a single thread and
+ * hands the blocks over to be added to the chain, in the order they were
+ * submitted, together with any other task which has to be run in order with
+ * them. Blocks are validated only once, so adding to the chain only does the
+ * checks which need the chain, and stores the block. Submitting never waits,
+ * it is called on the network threads shared by all the peers. When too many
+ * blocks or tasks are waiting the pipeline reports it is full, and the caller
+ * stops reading from the peer until the pipeline tells it there is room
+ * again.
+ *
+ * @author Alessandro Polverini
+ */
+public class BlockIngestPipeline
+{
+
+   private static final Logger logger = LoggerFactory.getLogger(BlockIngestPipeline.class);
+   public static final int DEFAULT_STAGE_QUEUE = 64;
+   public static final int DEFAULT_WINDOW = 256;
+   public static final int DEFAULT_TASK_WINDOW = 1024;
+   public static final long STOP_TIMEOUT = 60000;
+   // Statistics are logged every time this many blocks are added
+   private static final int REPORT_INTERVAL = 1000;
+   private BitcoinFactory bitcoinFactory;
+   private List<Stage> stages = new ArrayList<>();
+   private Stage decodeStage;
+   private Stage headerStage;
+   private Stage validateStage;
+   private Stage connectStage;
+   // Jobs in the order they are connected
+   private BlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+   // The pipeline is full with this many blocks, or this many tasks waiting
+   // for the connect thread, it has room again when both are down to half
+   private final int window;
+   private final int taskWindow;
+   private final AtomicInteger pendingBlocks = new AtomicInteger();
+   private final AtomicInteger pendingTasks = new AtomicInteger();
+   // Run when the pipeline has room again
+   private final Queue<Runnable> roomListeners = new ConcurrentLinkedQueue<>();
+   private Thread connectThread;
+   private volatile boolean running = true;
+
+   public BlockIngestPipeline(BitcoinFactory bitcoinFactory)
+   {
+      this(bitcoinFactory, Runtime.getRuntime().availableProcessors(), DEFAULT_STAGE_QUEUE, DEFAULT_WINDOW);
+   }
+
+   /**
+    * @param bitcoinFactory The factory to create the blocks with.
+    * @param threads The number of threads of each parallel stage.
+    * @param stageQueue The number of blocks waiting in front of each stage.
+    * @param window The number of blocks in the pipeline which make it full.
+    */
+   public BlockIngestPipeline(BitcoinFactory bitcoinFactory, int threads, int stageQueue, int window)
+   {
+      this(bitcoinFactory, threads, stageQueue, window, DEFAULT_TASK_WINDOW);
+   }
+
+   /**
+    * @param bitcoinFactory The factory to create the blocks with.
+    * @param threads The number of threads of each parallel stage.
+    * @param stageQueue The number of blocks waiting in front of each stage.
+    * @param window The number of blocks in the pipeline which make it full.
+    * @param taskWindow The number of tasks waiting for the connect thread
+    * which make the pipeline full.
+    */
+   public BlockIngestPipeline(BitcoinFactory bitcoinFactory, int threads, int stageQueue, int window, int taskWindow)
+   {
+      this.bitcoinFactory = bitcoinFactory;
+      this.window = window;
+      this.taskWindow = taskWindow;
+      // Submitting must not wait, the window keeps the first queue short
+      decodeStage = new Stage("decode", threads, 0)
+      {
+         @Override
+         void process(Job job)
+                 throws BitcoinException
+         {
+            job.block = BlockImpl.createBlock(BlockIngestPipeline.this.bitcoinFactory.getScriptFactory(), job.message);
+            job.message = null;
+         }
+      };
+      headerStage = new Stage("header", threads, stageQueue)
+      {
+         @Override
+         void process(Job job)
+                 throws BitcoinException
+         {
+            job.block.validateHeader();
+         }
+      };
+      validateStage = new Stage("validate", threads, stageQueue)
+      {
+         @Override
+         void process(Job job)
+                 throws BitcoinException
+         {
+            job.block.validate();
+         }
+      };
+      connectStage = new Stage("connect", 0, 0)
+      {
+         @Override
+         void process(Job job)
+         {
+            job.consumer.blockValidated(job.block);
+         }
+      };
+      stages.add(decodeStage);
+      stages.add(headerStage);
+      stages.add(validateStage);
+      stages.add(connectStage);
+      connectThread = new Thread(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            connectLoop();
+         }
+      }, "Block Ingest connect");
+      connectThread.setDaemon(true);
+      connectThread.start();
+   }
+
+   /**
+    * Submit a received block. It is decoded and validated in parallel with
+    * other blocks, then passed to the consumer on the connect thread, after
+    * everything submitted before it. Never waits, the block is taken even if
+    * the pipeline is full.
+    *
+    * @param message The message of the block.
+    * @param consumer Receives the validated block, or the error.
+    * @return False if the pipeline is full, the caller should stop
+    * submitting until the listener given to whenRoom() is run.
+    */
+   public boolean submit(BlockMessage message, BlockConsumer consumer)
+   {
+      if (!running)
+         throw new RejectedExecutionException("block ingest pipeline is stopped");
+      int blocks = pendingBlocks.incrementAndGet();
+      Job job = new Job(consumer);
+      job.message = message;
+      jobs.add(job);
+      decodeStage.add(job);
+      return blocks < window;
+   }
+
+   /**
+    * Run a task on the connect thread, after everything submitted before it.
+    * Never waits, tasks of the connect thread itself are not counted.
+    *
+    * @return False if the pipeline is full, the caller should stop
+    * submitting until the listener given to whenRoom() is run.
+    */
+   public boolean execute(Runnable task)
+   {
+      if (!running)
+         throw new RejectedExecutionException("block ingest pipeline is stopped");
+      Job job = new Job(null);
+      int tasks = pendingTasks.get();
+      if (Thread.currentThread() != connectThread)
+      {
+         tasks = pendingTasks.incrementAndGet();
+         job.counted = true;
+      }
+      job.task = task;
+      job.done.countDown();
+      jobs.add(job);
+      return tasks < taskWindow;
+   }
+
+   /**
+    * Run the listener once the pipeline has room again, that is when the
+    * blocks and the tasks waiting are down to half of their window. If it
+    * has room already the listener is run right away, otherwise it is run
+    * on the connect thread, so it must not wait.
+    */
+   public void whenRoom(Runnable listener)
+   {
+      roomListeners.add(listener);
+      notifyRoom();
+   }
+
+   private void notifyRoom()
+   {
+      // A listener added while counting down is run by whenRoom() itself
+      while ((!roomListeners.isEmpty()) && (pendingBlocks.get() <= window / 2) && (pendingTasks.get() <= taskWindow / 2))
+      {
+         Runnable listener = roomListeners.poll();
+         if (listener != null)
+            runTask(listener);
+      }
+   }
+
+   private void connectLoop()
+   {
+      try
+      {
+         while (true)
+         {
+            Job job = jobs.take();
+            if (job == STOP)
+               return;
+            job.done.await();
+            if (job.task != null)
+            {
+               if (job.counted)
+                  pendingTasks.decrementAndGet();
+               notifyRoom();
+               runTask(job.task);
+            }
+            else
+            {
+               pendingBlocks.decrementAndGet();
+               notifyRoom();
+               connect(job);
+            }
+         }
+      } catch (InterruptedException e)
+      {
+         logger.debug("connect thread interrupted");
+      }
+   }
+
+   private void connect(Job job)
+   {
+      if (job.error != null)
+      {
+         // Already counted by the stage it failed in
+         try
+         {
+            job.consumer.blockFailed(job.block, job.error);
+         } catch (RuntimeException e)
+         {
+            logger.error("consumer failed to handle invalid block " + job.block, e);
+         }
+         return;
+      }
+      connectStage.run(job);
+      if (connectStage.getNumProcessed() % REPORT_INTERVAL == 0)
+         logger.info("{}", this);
+   }
+
+   private void runTask(Runnable task)
+   {
+      try
+      {
+         task.run();
+      } catch (RuntimeException e)
+      {
+         logger.error("task " + task + " failed", e);
+      }
+   }
+
+   /**
+    * Stop accepting blocks and tasks, and wait until the ones already
+    * submitted are done.
+    */
+   public void stop()
+   {
+      running = false;
+      jobs.add(STOP);
+      try
+      {
+         connectThread.join(STOP_TIMEOUT);
+         if (connectThread.isAlive())
+         {
+            logger.warn("block ingest did not finish in time");
+            connectThread.interrupt();
+         }
+      } catch (InterruptedException e)
+      {
+         logger.error("interrupted while waiting for block ingest to finish", e);
+         Thread.currentThread().interrupt();
+      }
+      for (Stage stage : stages)
+         stage.shutdown();
+      logger.info("block ingest stopped: {}", this);
+   }
+
+   /**
+    * @return The stages in the order blocks go through them.
+    */
+   public List<Stage> getStages()
+   {
+      return Collections.unmodifiableList(stages);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "BlockIngestPipeline" + stages;
+   }
+
+   /**
+    * Receives the blocks coming out of the pipeline, on the connect thread.
+    */
+   public interface BlockConsumer
+   {
+
+      /**
+       * The block is validated, and can be added to the chain.
+       */
+      void blockValidated(BlockImpl block);
+
+      /**
+       * The block could not be created or is not valid.
+       *
+       * @param block The block, or null if it could not be created.
+       */
+      void blockFailed(BlockImpl block, BitcoinException e);
+   }
+
+   /**
+    * A block, or a task, going through the pipeline.
+    */
+   private static class Job
+   {
+
+      private final BlockConsumer consumer;
+      private final CountDownLatch done = new CountDownLatch(1);
+      private BlockMessage message;
+      private BlockImpl block;
+      private BitcoinException error;
+      private Runnable task;
+      private boolean counted;
+
+      private Job(BlockConsumer consumer)
+      {
+         this.consumer = consumer;
+      }
+   }
+   private static final Job STOP = new Job(null);
+
+   /**
+    * One step of ingestion, with the counters of its work. The parallel
+    * stages process the blocks on their own threads, then pass them to the
+    * next stage. Waiting for a full queue slows down the stage before.
+    */
+   public abstract class Stage
+   {
+
+      private final String name;
+      private final ThreadPoolExecutor executor;
+      private final AtomicLong numProcessed = new AtomicLong();
+      private final AtomicLong numFailed = new AtomicLong();
+      private final AtomicLong busyNanos = new AtomicLong();
+
+      /**
+       * @param queue The number of blocks waiting in front of the stage, or
+       * 0 for no limit.
+       */
+      private Stage(String name, int threads, int queue)
+      {
+         this.name = name;
+         if (threads == 0)
+         {
+            executor = null;
+            return;
+         }
+         executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                 queue > 0 ? new ArrayBlockingQueue<Runnable>(queue) : new LinkedBlockingQueue<Runnable>(),
+                 newThreadFactory("Block Ingest " + name));
+         executor.prestartAllCoreThreads();
+      }
+
+      private void submit(Job job)
+              throws InterruptedException
+      {
+         // Threads are all started, so the queue can be filled directly
+         executor.getQueue().put(newTask(job));
+      }
+
+      /**
+       * Add a job to a stage without a queue limit, never waits.
+       */
+      private void add(Job job)
+      {
+         executor.getQueue().add(newTask(job));
+      }
+
+      private Runnable newTask(final Job job)
+      {
+         return new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               Stage.this.run(job);
+            }
+         };
+      }
+
+      private void run(Job job)
+      {
+         long startTime = System.nanoTime();
+         try
+         {
+            process(job);
+         } catch (BitcoinException e)
+         {
+            job.error = e;
+         } catch (RuntimeException e)
+         {
+            job.error = new BitcoinException("unexpected error in stage " + name, e);
+         }
+         busyNanos.addAndGet(System.nanoTime() - startTime);
+         if (job.error == null)
+            numProcessed.incrementAndGet();
+         else
+         {
+            logger.debug("block failed in stage " + name, job.error);
+            numFailed.incrementAndGet();
+         }
+         if (executor == null)
+            return;
+         if (job.error == null)
+            passOn(job);
+         else
+            // Skip the rest of the stages
+            job.done.countDown();
+      }
+
+      /**
+       * Pass the job to the stage after this one.
+       */
+      private void passOn(Job job)
+      {
+         try
+         {
+            if (this == decodeStage)
+               headerStage.submit(job);
+            else if (this == headerStage)
+               validateStage.submit(job);
+            else
+               job.done.countDown();
+         } catch (InterruptedException e)
+         {
+            job.error = new BitcoinException("interrupted in stage " + name, e);
+            job.done.countDown();
+         }
+      }
+
+      /**
+       * Do the work of this stage on a block.
+       */
+      abstract void process(Job job)
+              throws BitcoinException;
+
+      private void shutdown()
+      {
+         if (executor != null)
+            executor.shutdownNow();
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      /**
+       * @return The number of blocks which went through this stage.
+       */
+      public long getNumProcessed()
+      {
+         return numProcessed.get();
+      }
+
+      /**
+       * @return The number of blocks which failed in this stage.
+       */
+      public long getNumFailed()
+      {
+         return numFailed.get();
+      }
+
+      /**
+       * @return The time spent in this stage summed over all of its threads,
+       * in milliseconds.
+       */
+      public long getBusyTime()
+      {
+         return busyNanos.get() / 1000000;
+      }
+
+      /**
+       * @return The number of blocks waiting for this stage.
+       */
+      public int getQueued()
+      {
+         return executor == null ? jobs.size() : executor.getQueue().size();
+      }
+
+      @Override
+      public String toString()
+      {
+         long busyTime = getBusyTime();
+         return name + "[processed: " + getNumProcessed() + " failed: " + getNumFailed() + " queued: " + getQueued()
+                 + " busy: " + busyTime + " ms" + (busyTime > 0 ? " " + (getNumProcessed() * 1000 / busyTime) + " blocks/s" : "") + "]";
+      }
+   }
+
+   private static ThreadFactory newThreadFactory(final String name)
+   {
+      return new ThreadFactory()
+      {
+         private int count = 0;
+
+         @Override
+         public synchronized Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, name + " " + (++count));
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+   }
+}
@@ -28,6 +28,8 @@ import it.nibbles.javacoin.net.InvMessage;
 import it.nibbles.javacoin.net.NetworkMessageFactory;
 import it.nibbles.javacoin.net.InventoryItem;
 import it.nibbles.javacoin.net.GetBlocksMessage;
+import it.nibbles.javacoin.net.BlockHeader;
+import it.nibbles.javacoin.net.HeadersMessage;
 import it.nibbles.javacoin.net.PingMessage;
 import it.nibbles.javacoin.net.VersionMessage;
 import it.nibbles.javacoin.BitcoinException;
@@ -47,17 +49,32 @@ import it.nibbles.javacoin.utils.BtcUtil;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Handles the messages of the peers to keep the block chain synchronized.
+ * Each peer's messages are handled on the thread the node delivers them on,
+ * so lightweight messages like ping, addr and inv of different peers are
+ * handled concurrently. Blocks are decoded and validated in parallel by a
+ * block ingest pipeline. Everything which reads or changes the chain and the
+ * download state is run in order on the single connect thread of the
+ * pipeline, so a slow block does not delay the other messages. Handing work
+ * to the pipeline never waits: while it is full, reading from the peer which
+ * sent the work is paused.
  *
  * @author Alessandro Polverini
  */
@@ -66,16 +83,25 @@ public class StdNodeHandler implements MessageHandler, Runnable
 
    private static Logger logger = LoggerFactory.getLogger(StdNodeHandler.class);
    private static long BC_PROTOCOL_VERSION = 32100;
+   // Peers answer getheaders with at most this many headers
+   private static final int MAX_HEADERS = 2000;
    private Node node;
    private BitcoinFactory bitcoinFactory;
    private BlockChain chain;
    private BlockChainLinkStorage storage;
    private NodeStorage nodeStorage;
    private NetworkMessageFactory messageFactory;
+   // These are only accessed on the block ingest thread
    private byte[] highestHashKnownBeforeRequest = null;
-   private byte[] highestHashPromised = null;
    private transient Connection downloadingFromPeer = null;
-   private int numMessages = 0;
+   private transient Connection headersFromPeer = null;
+   private BlockDownloadScheduler downloadScheduler;
+   // Set by the inv of any peer
+   private volatile byte[] highestHashPromised = null;
+   private AtomicInteger numMessages = new AtomicInteger();
+   private volatile boolean headersFirst = false;
+   private Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+   private BlockIngestPipeline ingestPipeline;
 
    public StdNodeHandler(Node node, BitcoinFactory bitcoinFactory, BlockChain chain, BlockChainLinkStorage storage, NodeStorage nodeStorage)
    {
@@ -85,13 +111,32 @@ public class StdNodeHandler implements MessageHandler, Runnable
       this.storage = storage;
       this.nodeStorage = nodeStorage;
       this.messageFactory = bitcoinFactory.getMessageFactory();
+      this.downloadScheduler = new BlockDownloadScheduler(chain);
+      this.ingestPipeline = new BlockIngestPipeline(bitcoinFactory);
       node.addHandler(this);
    }
 
+   /**
+    * Set the synchronization mode. In headers first mode the headers of the
+    * best chain are downloaded and verified first from a single peer, then
+    * the blocks are downloaded from all the peers in parallel, and added to
+    * the chain in order.
+    */
+   public void setHeadersFirst(boolean headersFirst)
+   {
+      this.headersFirst = headersFirst;
+   }
+
+   public boolean isHeadersFirst()
+   {
+      return headersFirst;
+   }
+
    @Override
    public void onJoin(Connection conn)
            throws IOException
    {
+      connections.add(conn);
       long ourHeight = chain.getHeight();
       logger.debug("connected to " + conn.getRemoteAddress() + " (from: " + conn.getLocalAddress() + ") sending out height: " + ourHeight);
       // Send our version information
@@ -104,27 +149,35 @@ public class StdNodeHandler implements MessageHandler, Runnable
    }
 
    @Override
-   public void onLeave(Connection conn)
+   public void onLeave(final Connection conn)
            throws IOException
    {
-      if (conn == downloadingFromPeer)
-         downloadingFromPeer = null;
+      connections.remove(conn);
+      ingest(conn, new IngestTask()
+      {
+         @Override
+         public void run()
+                 throws IOException
+         {
+            if (conn == downloadingFromPeer)
+               downloadingFromPeer = null;
+            if (conn == headersFromPeer)
+               headersFromPeer = null;
+            // Blocks requested from this peer will be requested from the others
+            downloadScheduler.peerDisconnected(conn);
+         }
+      });
       logger.debug("disconnected from " + conn.getRemoteAddress() + " (on local: " + conn.getLocalAddress() + ") removed: " + conn);
    }
 
    @Override
-   public synchronized void onMessage(Connection conn, Message message)
+   public void onMessage(final Connection conn, Message message)
            throws IOException
    {
-      numMessages++;
-      PeerData peerData = (PeerData) conn.getSessionAttribute("peerData");
-      if (peerData == null)
-      {
-         peerData = new PeerData();
-         conn.setSessionAttribute("peerData", peerData);
-      }
+      int messageNumber = numMessages.incrementAndGet();
+      final PeerData peerData = getPeerData(conn);
       peerData.newMessage(message);
-      logger.debug("[#" + numMessages + "] incoming (" + conn.getRemoteAddress() + "): " + message.getClass() + " currPeer: " + peerData);
+      logger.debug("[#" + messageNumber + "] incoming (" + conn.getRemoteAddress() + "): " + message.getClass() + " currPeer: " + peerData);
       if (message instanceof AlertMessage)
       {
          AlertMessage alertMessage = (AlertMessage) message;
@@ -183,53 +236,249 @@ public class StdNodeHandler implements MessageHandler, Runnable
             conn.send(messageFactory.newGetDataMessage(items));
             logger.debug("Reply to INV using getdata -- highestHashPromised: " + BtcUtil.hexOut(highestHashPromised));
          }
+      } else if (message instanceof HeadersMessage)
+      {
+         final List<BlockHeader> headers = ((HeadersMessage) message).getHeaders();
+         throttle(conn, peerData, ingest(conn, new IngestTask()
+         {
+            @Override
+            public void run()
+                    throws IOException
+            {
+               addHeaders(conn, peerData, headers);
+            }
+         }));
       } else if (message instanceof TxMessage)
+      {
+         final TxMessage txMessage = (TxMessage) message;
+         // Verified on the ingest thread, so the unspent outputs are not changing
+         throttle(conn, peerData, ingest(conn, new IngestTask()
+         {
+            @Override
+            public void run()
+            {
+               verifyTransaction(conn, txMessage);
+            }
+         }));
+      } else if (message instanceof BlockMessage)
+      {
          try
          {
-            long startTime = System.currentTimeMillis();
-            TransactionImpl tx = TransactionImpl.createTransaction(bitcoinFactory.getScriptFactory(), ((TxMessage) message).getTx());
-            tx.validate();
-            long diffTime = System.currentTimeMillis() - startTime;
-            logger.debug("New transaction {} validated in {} ms", BtcUtil.hexOut(tx.getHash()), diffTime);
-         } catch (BitcoinException ex)
+            // Decoded and validated on the pipeline, added in the order received
+            boolean room = ingestPipeline.submit((BlockMessage) message, new BlockIngestPipeline.BlockConsumer()
+            {
+               @Override
+               public void blockValidated(BlockImpl block)
+               {
+                  logger.debug("Received block {} created {}", BtcUtil.hexOut(block.getHash()), new Date(block.getCreationTime()));
+                  addBlock(conn, peerData, block);
+               }
+
+               @Override
+               public void blockFailed(BlockImpl block, BitcoinException e)
+               {
+                  logger.warn("block could not be added, marking peer " + conn + " as unreliable", e);
+                  if (block != null)
+                     peerData.newBadBlock(block);
+               }
+            });
+            throttle(conn, peerData, room);
+         } catch (RejectedExecutionException e)
          {
-            logger.error("Can't create transaction from tx message: " + message);
+            logger.debug("handler is stopping, not ingesting block from {}", conn);
          }
-      else if (message instanceof BlockMessage)
+      } else if (message instanceof PingMessage)
       {
-         BlockImpl block = null;
-         try
+         logger.debug("Ping message: " + message);
+         conn.send(messageFactory.newPingMessage());
+      } else
+         logger.debug("[#" + messageNumber + "] unhandled message (" + conn.getRemoteAddress() + "): " + message.getClass());
+
+      // Decide whether to download, after the chain work of this message
+      if (peerData.synchronizationPending.compareAndSet(false, true))
+         throttle(conn, peerData, ingest(conn, new IngestTask()
          {
-            block = BlockImpl.createBlock(bitcoinFactory.getScriptFactory(), (BlockMessage) message);
-            logger.debug("Received block {} created {}", BtcUtil.hexOut(block.getHash()), new Date(block.getCreationTime()));
-            // Check whether we are finished with the download, even before trying to add
-            if (Arrays.equals(highestHashPromised, block.getHash()))
+            @Override
+            public void run()
+                    throws IOException
             {
-               // Download stops
-               logger.debug("download from " + downloadingFromPeer + " finished for batch...");
-               downloadingFromPeer = null;
-               highestHashPromised = null;
-               highestHashKnownBeforeRequest = null;
+               peerData.synchronizationPending.set(false);
+               synchronize(conn, peerData);
+            }
+         }));
+   }
+
+   private PeerData getPeerData(Connection conn)
+   {
+      // The messages of a peer are delivered in order by a single thread at a time
+      PeerData peerData = (PeerData) conn.getSessionAttribute("peerData");
+      if (peerData == null)
+      {
+         peerData = new PeerData();
+         conn.setSessionAttribute("peerData", peerData);
+      }
+      return peerData;
+   }
+
+   /**
+    * Run a task on the block ingest thread, after the blocks and tasks
+    * already submitted by all the peers. Never waits.
+    *
+    * @return False if the pipeline is full.
+    */
+   private boolean ingest(final Connection conn, final IngestTask task)
+   {
+      try
+      {
+         return ingestPipeline.execute(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  task.run();
+               } catch (IOException e)
+               {
+                  logger.warn("could not send to " + conn + " while ingesting", e);
+               } catch (RuntimeException e)
+               {
+                  logger.error("unexpected error while ingesting for " + conn, e);
+               }
             }
+         });
+      } catch (RejectedExecutionException e)
+      {
+         logger.debug("handler is stopping, not ingesting for {}", conn);
+         return true;
+      }
+   }
+
+   /**
+    * Pause reading from a peer if the pipeline is full, until it has room
+    * again. The handler threads are shared by all the peers, so they never
+    * wait for the pipeline.
+    *
+    * @param room What the pipeline answered to the work of the peer.
+    */
+   private void throttle(final Connection conn, final PeerData peerData, boolean room)
+   {
+      if ((room) || (!peerData.readingPaused.compareAndSet(false, true)))
+         return;
+      logger.debug("block ingest is full, pausing reading from {}", conn);
+      conn.pauseReading();
+      ingestPipeline.whenRoom(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            peerData.readingPaused.set(false);
+            conn.resumeReading();
+         }
+      });
+   }
+
+   /**
+    * Verify a transaction relayed by a peer against the best chain. Its
+    * scripts run through the script factory of the chain, so the signatures
+    * found valid are cached until the transaction comes in a block.
+    */
+   private void verifyTransaction(Connection conn, TxMessage message)
+   {
+      try
+      {
+         long startTime = System.currentTimeMillis();
+         TransactionImpl tx = TransactionImpl.createTransaction(bitcoinFactory.getScriptFactory(), message.getTx());
+         long fees = chain.verifyTransaction(tx);
+         long diffTime = System.currentTimeMillis() - startTime;
+         logger.debug("New transaction {} with fees {} verified in {} ms", new Object[] {BtcUtil.hexOut(tx.getHash()), fees, diffTime});
+      } catch (BitcoinException e)
+      {
+         logger.debug("transaction from " + conn + " not verified: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Add the headers received from a peer to the header chain, and continue
+    * the header download if the peer has more.
+    */
+   private void addHeaders(Connection conn, PeerData peerData, List<BlockHeader> headers)
+           throws IOException
+   {
+      int newHeaders = 0;
+      BlockImpl header = null;
+      try
+      {
+         for (BlockHeader blockHeader : headers)
+         {
+            header = BlockImpl.createBlock(blockHeader);
+            if (chain.addBlockHeader(header))
+               newHeaders++;
+         }
+         logger.debug("received {} headers, {} new, best header height is now {}",
+                 new Object[] {headers.size(), newHeaders, chain.getHeaderHeight()});
+         // A full message means the peer has more headers to give
+         if ((conn == headersFromPeer) && (headers.size() >= MAX_HEADERS))
+            conn.send(messageFactory.newGetHeadersMessage(BC_PROTOCOL_VERSION, chain.buildHeaderLocator(), null));
+         else if (conn == headersFromPeer)
+         {
+            logger.info("header download from " + conn + " finished at height " + chain.getHeaderHeight());
+            headersFromPeer = null;
+            requestBlocksFromAll();
+         }
+      } catch (BitcoinException e)
+      {
+         logger.warn("header could not be added, marking peer " + conn + " as unreliable", e);
+         if (header != null)
+            peerData.newBadBlock(header);
+         if (conn == headersFromPeer)
+            headersFromPeer = null;
+      }
+   }
+
+   /**
+    * Add a block received from a peer to the chain.
+    */
+   private void addBlock(Connection conn, PeerData peerData, BlockImpl block)
+   {
+      // Check whether we are finished with the download, even before trying to add
+      if (Arrays.equals(highestHashPromised, block.getHash()))
+      {
+         // Download stops
+         logger.debug("download from " + downloadingFromPeer + " finished for batch...");
+         downloadingFromPeer = null;
+         highestHashPromised = null;
+         highestHashKnownBeforeRequest = null;
+      }
+      try
+      {
+         if (downloadScheduler.blockReceived(conn, block))
+            // Requested against the header skeleton, add it when its turn comes
+            addReceivedBlocks();
+         else
+         {
             // Now try to add to chain
             long startTime = System.currentTimeMillis();
             chain.addBlock(block);
             long stopTime = System.currentTimeMillis();
             logger.debug("Block " + BtcUtil.hexOut(block.getHash()) + " with " + block.getTransactions().size() + " transactions added in " + (stopTime - startTime) + " ms ");
-         } catch (BitcoinException e)
-         {
-            logger.warn("block could not be added, marking peer " + conn + " as unreliable", e);
-            if (peerData != null && block != null)
-               peerData.newBadBlock(block);
          }
-      } else if (message instanceof PingMessage)
+      } catch (BitcoinException e)
       {
-         logger.debug("Ping message: " + message);
-         conn.send(messageFactory.newPingMessage());
-      } else
-         logger.debug("[#" + numMessages + "] unhandled message (" + conn.getRemoteAddress() + "): " + message.getClass());
+         logger.warn("block could not be added, marking peer " + conn + " as unreliable", e);
+         peerData.newBadBlock(block);
+      }
+   }
 
-      if (downloadingFromPeer == null && peerData.numBadBlocks() == 0)
+   /**
+    * Start downloading from the peer if it knows more blocks than us.
+    */
+   private void synchronize(Connection conn, PeerData peerData)
+           throws IOException
+   {
+      if (headersFirst)
+         synchronizeHeadersFirst(conn, peerData);
+      else if (downloadingFromPeer == null && peerData.numBadBlocks() == 0)
       {
          BlockChainLink lastStoredLink = storage.getLastLink();
          if (peerData.getVersion().getStartHeight() > lastStoredLink.getHeight())
@@ -245,6 +494,94 @@ public class StdNodeHandler implements MessageHandler, Runnable
       }
    }
 
+   /**
+    * Ask for the headers if the peer knows more than us, then ask for the
+    * missing blocks of the best header chain.
+    */
+   private void synchronizeHeadersFirst(Connection conn, PeerData peerData)
+           throws IOException
+   {
+      if ((peerData.getVersion() == null) || (peerData.numBadBlocks() > 0))
+         return;
+      if ((headersFromPeer == null) && (peerData.getVersion().getStartHeight() > chain.getHeaderHeight()))
+      {
+         headersFromPeer = conn;
+         logger.debug("Headers are at " + chain.getHeaderHeight() + ", while known max is: "
+                 + peerData.getVersion().getStartHeight() + " Sending getheaders to " + conn);
+         conn.send(messageFactory.newGetHeadersMessage(BC_PROTOCOL_VERSION, chain.buildHeaderLocator(), null));
+      }
+      if (downloadScheduler.releaseStalled() > 0)
+      {
+         logger.debug("Reassigning stalled block requests: " + downloadScheduler);
+         requestBlocksFromAll();
+      } else
+         requestBlocks(conn, peerData);
+   }
+
+   private void requestBlocksFromAll()
+           throws IOException
+   {
+      for (Connection peer : connections)
+      {
+         PeerData peerData = (PeerData) peer.getSessionAttribute("peerData");
+         if ((peerData != null) && (peerData.getVersion() != null) && (peerData.numBadBlocks() == 0))
+            requestBlocks(peer, peerData);
+      }
+   }
+
+   /**
+    * Request the next missing blocks of the header chain which the scheduler
+    * assigns to a peer.
+    */
+   private void requestBlocks(Connection conn, PeerData peerData)
+           throws IOException
+   {
+      if (peerData.getVersion().getStartHeight() <= chain.getHeight())
+         return;
+      List<InventoryItem> items = new ArrayList<>();
+      for (byte[] hash : downloadScheduler.nextRequests(conn))
+         items.add(new InventoryItem(InventoryItem.TYPE_BLOCK, hash));
+      if (!items.isEmpty())
+      {
+         logger.debug("Requesting {} blocks from {}", items.size(), conn);
+         conn.send(messageFactory.newGetDataMessage(items));
+      }
+   }
+
+   /**
+    * Add the received blocks to the chain in the order of the header chain,
+    * each one as soon as its parent is in the chain. A block failing
+    * validation is marked invalid with the headers built on it, so it is not
+    * requested again, and the peer which sent it is dropped.
+    */
+   private void addReceivedBlocks()
+   {
+      BlockDownloadScheduler.ReceivedBlock received;
+      while ((received = downloadScheduler.nextBlock()) != null)
+      {
+         BlockImpl block = received.getBlock();
+         try
+         {
+            long startTime = System.currentTimeMillis();
+            chain.addBlock(block);
+            logger.debug("Block " + BtcUtil.hexOut(block.getHash()) + " with " + block.getTransactions().size()
+                    + " transactions added in " + (System.currentTimeMillis() - startTime) + " ms ");
+         } catch (VerificationException e)
+         {
+            Connection peer = received.getPeer();
+            logger.warn("block " + BtcUtil.hexOut(block.getHash()) + " from the header chain is invalid, disconnecting " + peer, e);
+            chain.invalidateBlock(block.getHash());
+            getPeerData(peer).newBadBlock(block);
+            peer.close();
+         } catch (BitcoinException e)
+         {
+            // It will be requested again
+            logger.warn("block " + BtcUtil.hexOut(block.getHash()) + " from the header chain could not be added", e);
+            return;
+         }
+      }
+   }
+
    @Override
    public void run()
    {
@@ -263,17 +600,32 @@ public class StdNodeHandler implements MessageHandler, Runnable
    {
       logger.info("StdNodeHandler stopping node...");
       node.stop();
+      ingestPipeline.stop();
+   }
+
+   /**
+    * Work on the chain or the download state, run on the block ingest thread.
+    */
+   private interface IngestTask
+   {
+
+      void run()
+              throws IOException;
    }
 
    protected class PeerData
    {
 
-      private VersionMessage version;
+      private volatile VersionMessage version;
       //private Connection connection;
-      private long timeOfLastReceivedMessage;
+      private volatile long timeOfLastReceivedMessage;
       // Number of messages received after initial Version
-      private int numReceivedMessages;
-      private Map<byte[], Block> badBlocks = new HashMap<>();
+      private volatile int numReceivedMessages;
+      private Map<byte[], Block> badBlocks = new ConcurrentHashMap<>();
+      // Whether a synchronization for this peer waits on the ingest thread
+      private final AtomicBoolean synchronizationPending = new AtomicBoolean();
+      // Whether reading from this peer is paused until the pipeline has room
+      private final AtomicBoolean readingPaused = new AtomicBoolean();
 
       public VersionMessage getVersion()
       {
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin;
+
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.net.p2p.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class BlockDownloadSchedulerTests
+{
+
+   // The blocks of the header chain not yet in the chain, in chain order
+   private List<byte[]> missing;
+   private BlockChain chain;
+   private Connection first;
+   private Connection second;
+
+   @BeforeMethod
+   public void setUp()
+   {
+      missing = new ArrayList<>();
+      for (int i = 1; i <= 4; i++)
+         missing.add(new byte[] { (byte) i });
+      chain = EasyMock.createMock(BlockChain.class);
+      EasyMock.expect(chain.getMissingBlocks(EasyMock.anyInt())).andAnswer(new IAnswer<List<byte[]>>()
+      {
+         @Override
+         public List<byte[]> answer()
+         {
+            int max = (Integer) EasyMock.getCurrentArguments()[0];
+            return new ArrayList<>(missing.subList(0, Math.min(max, missing.size())));
+         }
+      }).anyTimes();
+      EasyMock.replay(chain);
+      first = EasyMock.createMock(Connection.class);
+      second = EasyMock.createMock(Connection.class);
+      EasyMock.replay(first, second);
+   }
+
+   private static BlockImpl block(int id)
+      throws BitcoinException
+   {
+      return new BlockImpl(new ArrayList<TransactionImpl>(), 1234567 + id, 0, 0x1b0404cb,
+         new byte[] { (byte) (id - 1) }, new byte[] { 1, 2, 3 }, new byte[] { (byte) id });
+   }
+
+   /**
+    * The chain takes the block it is missing.
+    */
+   private BlockImpl nextBlock(BlockDownloadScheduler scheduler)
+   {
+      BlockDownloadScheduler.ReceivedBlock received = scheduler.nextBlock();
+      if (received == null)
+         return null;
+      missing.remove(0);
+      return received.getBlock();
+   }
+
+   public void testInOrderRelease()
+      throws BitcoinException
+   {
+      BlockDownloadScheduler scheduler = new BlockDownloadScheduler(chain, 16, 2, 60000, 60000);
+      List<byte[]> firstHashes = scheduler.nextRequests(first);
+      List<byte[]> secondHashes = scheduler.nextRequests(second);
+      Assert.assertEquals(firstHashes, Arrays.asList(missing.get(0), missing.get(1)));
+      Assert.assertEquals(secondHashes, Arrays.asList(missing.get(2), missing.get(3)));
+      Assert.assertTrue(scheduler.nextRequests(first).isEmpty());
+      // Later blocks wait in the buffer for the first one
+      Assert.assertTrue(scheduler.blockReceived(second, block(4)));
+      Assert.assertTrue(scheduler.blockReceived(second, block(3)));
+      Assert.assertTrue(scheduler.blockReceived(first, block(2)));
+      Assert.assertNull(scheduler.nextBlock());
+      Assert.assertEquals(scheduler.getBuffered(), 3);
+      Assert.assertTrue(scheduler.blockReceived(first, block(1)));
+      for (int id = 1; id <= 4; id++)
+         Assert.assertEquals(nextBlock(scheduler).getHash(), new byte[] { (byte) id });
+      Assert.assertNull(scheduler.nextBlock());
+      Assert.assertEquals(scheduler.getBuffered(), 0);
+      Assert.assertEquals(scheduler.getInFlight(), 0);
+      Assert.assertEquals(scheduler.getNumReceived(), 4);
+   }
+
+   public void testUnrequestedBlock()
+      throws BitcoinException
+   {
+      BlockDownloadScheduler scheduler = new BlockDownloadScheduler(chain, 16, 2, 60000, 60000);
+      scheduler.nextRequests(first);
+      Assert.assertFalse(scheduler.blockReceived(first, block(3)));
+      Assert.assertEquals(scheduler.getBuffered(), 0);
+   }
+
+   public void testStallRerequest()
+      throws BitcoinException
+   {
+      // Everything is requested, so the first block holds back the download at once
+      BlockDownloadScheduler scheduler = new BlockDownloadScheduler(chain, 16, 4, 60000, -1);
+      Assert.assertEquals(scheduler.nextRequests(first).size(), 4);
+      Assert.assertTrue(scheduler.nextRequests(second).isEmpty());
+      Assert.assertEquals(scheduler.releaseStalled(), 1);
+      Assert.assertEquals(scheduler.getNumReassigned(), 1);
+      Assert.assertEquals(scheduler.getInFlight(), 3);
+      List<byte[]> hashes = scheduler.nextRequests(second);
+      Assert.assertEquals(hashes.size(), 1);
+      Assert.assertEquals(hashes.get(0), new byte[] { 1 });
+      // The stalled peer lost half of its window
+      Assert.assertTrue(scheduler.nextRequests(first).isEmpty());
+   }
+
+   public void testDuplicateAfterStall()
+      throws BitcoinException
+   {
+      BlockDownloadScheduler scheduler = new BlockDownloadScheduler(chain, 16, 4, 60000, -1);
+      scheduler.nextRequests(first);
+      scheduler.releaseStalled();
+      scheduler.nextRequests(second);
+      // Both peers deliver the first block, the late copy is dropped
+      Assert.assertTrue(scheduler.blockReceived(second, block(1)));
+      Assert.assertTrue(scheduler.blockReceived(first, block(1)));
+      Assert.assertEquals(scheduler.getBuffered(), 1);
+      Assert.assertEquals(scheduler.getNumReceived(), 1);
+      Assert.assertEquals(scheduler.getNumDuplicates(), 1);
+      BlockDownloadScheduler.ReceivedBlock received = scheduler.nextBlock();
+      Assert.assertSame(received.getPeer(), second);
+      Assert.assertEquals(received.getBlock().getHash(), new byte[] { 1 });
+      Assert.assertNull(scheduler.nextBlock());
+   }
+}
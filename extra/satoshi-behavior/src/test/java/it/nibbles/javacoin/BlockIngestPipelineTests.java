@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2012 nibbles.it
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package it.nibbles.javacoin;
+
+import it.nibbles.javacoin.block.BitcoinFactory;
+import it.nibbles.javacoin.block.BlockImpl;
+import it.nibbles.javacoin.block.MerkleTree;
+import it.nibbles.javacoin.block.TransactionImpl;
+import it.nibbles.javacoin.net.BlockHeader;
+import it.nibbles.javacoin.net.BlockMessage;
+import it.nibbles.javacoin.net.Tx;
+import it.nibbles.javacoin.net.TxIn;
+import it.nibbles.javacoin.net.TxOut;
+import it.nibbles.javacoin.script.ScriptFactoryImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.easymock.EasyMock;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Alessandro Polverini
+ */
+@Test
+public class BlockIngestPipelineTests
+{
+
+   // Almost any hash satisfies this target
+   private static final long EASY_TARGET = 0x207fffffl;
+   // No hash satisfies this target
+   private static final long IMPOSSIBLE_TARGET = 0x03000001l;
+   private ScriptFactory scriptFactory = new ScriptFactoryImpl(null);
+   private BlockIngestPipeline pipeline;
+   // What the connect thread got, in order
+   private List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+   @BeforeMethod
+   public void setUp()
+   {
+      BitcoinFactory bitcoinFactory = EasyMock.createMock(BitcoinFactory.class);
+      EasyMock.expect(bitcoinFactory.getScriptFactory()).andReturn(scriptFactory).anyTimes();
+      EasyMock.replay(bitcoinFactory);
+      // Many threads and a small window, so blocks overtake each other in the stages
+      pipeline = new BlockIngestPipeline(bitcoinFactory, 4, 2, 8);
+      events.clear();
+   }
+
+   @AfterMethod
+   public void tearDown()
+   {
+      pipeline.stop();
+   }
+
+   /**
+    * Create a block message with only a coinbase, which passes all the checks
+    * not needing the chain.
+    */
+   private BlockMessage createMessage(int id, long target, boolean rightMerkleRoot)
+      throws BitcoinException, IOException
+   {
+      List<TxIn> inputs = new ArrayList<>();
+      inputs.add(new TxIn(new byte[32], 0xffffffffl, new byte[] { 1, 2, (byte) id, (byte) (id >> 8) }, 0xffffffffl));
+      List<TxOut> outputs = new ArrayList<>();
+      outputs.add(new TxOut(5000000000l, new byte[] { 0x51 }));
+      Tx tx = new Tx(1, inputs, outputs, 0);
+      List<TransactionImpl> transactions = new ArrayList<>();
+      transactions.add(TransactionImpl.createTransaction(scriptFactory, tx));
+      byte[] merkleRoot = rightMerkleRoot ? new MerkleTree(transactions).getRoot() : new byte[32];
+      long time = System.currentTimeMillis() / 1000;
+      for (long nonce = 0;; nonce++)
+      {
+         BlockHeader header = new BlockHeader(1, new byte[32], merkleRoot, time, target, nonce);
+         BlockMessage message = new BlockMessage(Constants.PRODNET_MESSAGE_MAGIC, header, Collections.singletonList(tx));
+         if (target != EASY_TARGET)
+            return message;
+         try
+         {
+            BlockImpl.validateHeader(BlockImpl.createBlock(header));
+            return message;
+         } catch (VerificationException e)
+         {
+            // Try the next nonce
+         }
+      }
+   }
+
+   private boolean submit(final int id, BlockMessage message)
+   {
+      return pipeline.submit(message, new BlockIngestPipeline.BlockConsumer()
+      {
+         @Override
+         public void blockValidated(BlockImpl block)
+         {
+            events.add("block " + id);
+         }
+
+         @Override
+         public void blockFailed(BlockImpl block, BitcoinException e)
+         {
+            events.add("failed " + id);
+         }
+      });
+   }
+
+   private void execute(final int id)
+   {
+      pipeline.execute(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            events.add("task " + id);
+         }
+      });
+   }
+
+   private BlockIngestPipeline.Stage getStage(String name)
+   {
+      for (BlockIngestPipeline.Stage stage : pipeline.getStages())
+         if (stage.getName().equals(name))
+            return stage;
+      throw new IllegalArgumentException(name);
+   }
+
+   public void testStageOrder()
+   {
+      List<String> names = new ArrayList<>();
+      for (BlockIngestPipeline.Stage stage : pipeline.getStages())
+         names.add(stage.getName());
+      Assert.assertEquals(names.toString(), "[decode, header, validate, connect]");
+   }
+
+   public void testHandedOverInOrder()
+      throws Exception
+   {
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < 50; i++)
+      {
+         submit(i, createMessage(i, EASY_TARGET, true));
+         expected.add("block " + i);
+         if (i % 10 == 0)
+         {
+            execute(i);
+            expected.add("task " + i);
+         }
+      }
+      pipeline.stop();
+      Assert.assertEquals(events, expected);
+      for (BlockIngestPipeline.Stage stage : pipeline.getStages())
+      {
+         Assert.assertEquals(stage.getNumProcessed(), 50, stage.getName());
+         Assert.assertEquals(stage.getNumFailed(), 0, stage.getName());
+      }
+   }
+
+   public void testFailurePropagation()
+      throws Exception
+   {
+      submit(0, createMessage(0, EASY_TARGET, true));
+      submit(1, createMessage(1, IMPOSSIBLE_TARGET, true));
+      submit(2, createMessage(2, EASY_TARGET, false));
+      execute(3);
+      submit(4, createMessage(4, EASY_TARGET, true));
+      pipeline.stop();
+      // Failed blocks reach the consumer in order, and do not hold back the others
+      Assert.assertEquals(events.toString(), "[block 0, failed 1, failed 2, task 3, block 4]");
+      // A block failing a stage skips the rest
+      Assert.assertEquals(getStage("decode").getNumProcessed(), 4);
+      Assert.assertEquals(getStage("header").getNumProcessed(), 3);
+      Assert.assertEquals(getStage("header").getNumFailed(), 1);
+      Assert.assertEquals(getStage("validate").getNumProcessed(), 2);
+      Assert.assertEquals(getStage("validate").getNumFailed(), 1);
+      Assert.assertEquals(getStage("connect").getNumProcessed(), 2);
+   }
+
+   public void testFullWithoutWaiting()
+      throws Exception
+   {
+      // Hold the connect thread, so nothing leaves the pipeline
+      final CountDownLatch release = new CountDownLatch(1);
+      pipeline.execute(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               release.await();
+            } catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+         }
+      });
+      // The window is 8 blocks, submitting more does not wait
+      for (int i = 0; i < 7; i++)
+         Assert.assertTrue(submit(i, createMessage(i, EASY_TARGET, true)));
+      Assert.assertFalse(submit(7, createMessage(7, EASY_TARGET, true)));
+      Assert.assertFalse(submit(8, createMessage(8, EASY_TARGET, true)));
+      final CountDownLatch room = new CountDownLatch(1);
+      pipeline.whenRoom(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            room.countDown();
+         }
+      });
+      Assert.assertEquals(room.getCount(), 1);
+      release.countDown();
+      Assert.assertTrue(room.await(10, TimeUnit.SECONDS));
+      pipeline.stop();
+      Assert.assertEquals(events.size(), 9);
+   }
+
+   @Test(expectedExceptions = java.util.concurrent.RejectedExecutionException.class)
+   public void testStopped()
+      throws Exception
+   {
+      pipeline.stop();
+      execute(0);
+   }
+}